@@ -0,0 +1,33 @@
+package org.lsd.alien.demo.metrics;
+
+import java.io.IOException;
+import javax.sql.DataSource;
+import org.lsd.alien.pool.AlienDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnNotWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @author nhsoft.lsd
+ */
+@Configuration
+public class MetricsConfiguration {
+
+    @Bean
+    public PrometheusExporter prometheusExporter(final DataSource dataSource) {
+        if (!(dataSource instanceof AlienDataSource)) {
+            throw new IllegalStateException("dataSource is not AlienDataSource: " + dataSource.getClass().getName());
+        }
+        return new PrometheusExporter((AlienDataSource) dataSource);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnNotWebApplication
+    public MetricsHttpServer metricsHttpServer(final PrometheusExporter prometheusExporter,
+                                               @Value("${alien.metrics.port:9404}") final int port) throws IOException {
+        MetricsHttpServer server = new MetricsHttpServer(prometheusExporter, port);
+        server.start();
+        return server;
+    }
+}
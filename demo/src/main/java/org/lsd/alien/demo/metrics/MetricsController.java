@@ -0,0 +1,27 @@
+package org.lsd.alien.demo.metrics;
+
+import java.io.IOException;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * web应用直接用内置的web服务器暴露 /metrics
+ *
+ * @author nhsoft.lsd
+ */
+@RestController
+@ConditionalOnWebApplication
+public class MetricsController {
+
+    @Resource
+    private PrometheusExporter prometheusExporter;
+
+    @GetMapping(value = "metrics")
+    public void metrics(final HttpServletResponse response) throws IOException {
+        response.setContentType(PrometheusExporter.CONTENT_TYPE);
+        prometheusExporter.writeTo(response.getOutputStream());
+    }
+}
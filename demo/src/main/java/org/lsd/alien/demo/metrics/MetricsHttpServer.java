@@ -0,0 +1,46 @@
+package org.lsd.alien.demo.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * 非web应用用JDK自带的HttpServer暴露 /metrics，请求在唯一的dispatcher线程上处理
+ *
+ * @author nhsoft.lsd
+ */
+public class MetricsHttpServer implements Closeable {
+
+    private final HttpServer server;
+
+    public MetricsHttpServer(final PrometheusExporter prometheusExporter, final int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/metrics", exchange -> handle(prometheusExporter, exchange));
+    }
+
+    private static void handle(final PrometheusExporter prometheusExporter, final HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", PrometheusExporter.CONTENT_TYPE);
+            // 长度为0表示chunked，渲染结果直接写到响应里
+            exchange.sendResponseHeaders(200, 0);
+            prometheusExporter.writeTo(exchange.getResponseBody());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,256 @@
+package org.lsd.alien.demo.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.pool.PreparedStatementBudget;
+import org.lsd.alien.stat.JdbcSqlStat;
+import org.lsd.alien.stat.JdbcSqlStatTable;
+import org.lsd.alien.stat.LatencyHistogram;
+import org.lsd.alien.stat.SlowSqlLogger;
+
+/**
+ * 把AlienDataSource和按SQL的统计渲染成Prometheus文本格式。
+ * 标签字符串只在第一次见到时构造，渲染和编码复用同一块缓冲区，一次抓取基本不分配内存
+ *
+ * @author nhsoft.lsd
+ */
+public class PrometheusExporter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * 直方图桶的上界，单位秒，和LatencyHistogram的桶一一对应
+     */
+    private static final String[] BUCKET_LE = new String[LatencyHistogram.BUCKET_COUNT];
+
+    static {
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; ++i) {
+            StringBuilder buf = new StringBuilder();
+            appendSeconds(buf, LatencyHistogram.upperBoundMicros(i) * 1000L);
+            BUCKET_LE[i] = buf.toString();
+        }
+    }
+
+    private final AlienDataSource dataSource;
+
+    /**
+     * {datasource="xxx"}
+     */
+    private final String poolLabels;
+
+    /**
+     * {datasource="xxx",le=" 不带结尾，和BUCKET_LE拼起来用
+     */
+    private final String bucketLabelsPrefix;
+
+    /**
+     * 每个SQL统计对应的 {datasource="xxx",sql="..."}，统计对象不会被替换，按引用缓存避免装箱
+     */
+    private final Map<JdbcSqlStat, String> sqlLabels = new IdentityHashMap<JdbcSqlStat, String>();
+
+    private final StringBuilder  text    = new StringBuilder(64 * 1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer           bytes   = ByteBuffer.allocate(64 * 1024);
+
+    public PrometheusExporter(final AlienDataSource dataSource) {
+        this.dataSource = dataSource;
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("{datasource=\"");
+        appendLabelValue(buf, dataSource.getName());
+        buf.append('"');
+        this.bucketLabelsPrefix = buf + ",le=\"";
+        this.poolLabels = buf.append('}').toString();
+    }
+
+    /**
+     * 渲染并写到输出流，同一时间只有一个抓取在使用缓冲区
+     */
+    public synchronized void writeTo(final OutputStream out) throws IOException {
+        render();
+        ByteBuffer encoded = encode();
+        out.write(encoded.array(), 0, encoded.limit());
+        out.flush();
+    }
+
+    private void render() {
+        final StringBuilder text = this.text;
+        text.setLength(0);
+
+        gauge(text, "alien_pool_idle_connections", "Idle connections in the pool", dataSource.getPoolingCount());
+        gauge(text, "alien_pool_active_connections", "Connections borrowed from the pool", dataSource.getActiveCount());
+        gauge(text, "alien_pool_active_peak", "Peak of borrowed connections since the last reset", dataSource.getActivePeak());
+        gauge(text, "alien_pool_max_active", "Configured maxActive", dataSource.getMaxActive());
+        gauge(text, "alien_pool_wait_threads", "Threads waiting for an idle connection", dataSource.getWaitThreadCount());
+
+        counter(text, "alien_pool_connections_created_total", "Physical connections created", dataSource.getCreateCount());
+        counter(text, "alien_pool_connection_create_errors_total", "Failed attempts to create a physical connection", dataSource.getCreateErrorCount());
+        counter(text, "alien_pool_connections_destroyed_total", "Physical connections closed", dataSource.getDestroyCount());
+        counter(text, "alien_pool_connections_discarded_total", "Connections discarded after failed validation", dataSource.getDiscardCount());
+        counter(text, "alien_pool_borrows_total", "Connections borrowed", dataSource.getBorrowCount());
+        counter(text, "alien_pool_recycles_total", "Connections returned", dataSource.getRecycleCount());
+        counter(text, "alien_pool_borrow_timeouts_total", "Borrows that timed out waiting for maxWait", dataSource.getBorrowTimeoutCount());
+        counter(text, "alien_pool_sql_errors_total", "Statements that failed with an exception", dataSource.getSqlErrorCount());
+        counter(text, "alien_pool_connection_leaks_total", "Connections held longer than leakDetectionThresholdMillis", dataSource.getLeakCount());
+        counter(text, "alien_pool_abandoned_connections_removed_total", "Connections aborted after removeAbandonedTimeoutMillis", dataSource.getRemoveAbandonedCount());
+
+        histogram(text, "alien_pool_borrow_wait_seconds", "Time spent waiting for a connection", dataSource.getBorrowWaitHistogram());
+        histogram(text, "alien_pool_hold_seconds", "Time a connection was held by the borrower", dataSource.getHoldHistogram());
+        histogram(text, "alien_pool_execute_seconds", "Statement execution time", dataSource.getExecuteHistogram());
+
+        PreparedStatementBudget budget = dataSource.getPreparedStatementBudget();
+        if (budget != null) {
+            gauge(text, "alien_pool_cached_statements", "Prepared statements cached across the pool", budget.getCount());
+            gauge(text, "alien_pool_cached_statement_bytes", "Estimated memory of cached prepared statements", budget.getBytes());
+            counter(text, "alien_pool_cached_statement_evictions_total", "Cached statements evicted by the pool-wide budget", budget.getEvictCount());
+        }
+
+        SlowSqlLogger slowSqlLogger = dataSource.getSlowSqlLogger();
+        if (slowSqlLogger != null) {
+            counter(text, "alien_slow_sql_logged_total", "Slow statements written to the slow sql log", slowSqlLogger.getLoggedCount());
+            counter(text, "alien_slow_sql_dropped_total", "Slow statements dropped because the log queue was full", slowSqlLogger.getDroppedCount());
+        }
+
+        JdbcSqlStatTable sqlStatTable = dataSource.getSqlStatTable();
+        if (sqlStatTable != null) {
+            renderSqlStats(text, sqlStatTable);
+        }
+    }
+
+    private void renderSqlStats(final StringBuilder text, final JdbcSqlStatTable sqlStatTable) {
+        List<JdbcSqlStat> stats = sqlStatTable.getStats();
+
+        header(text, "alien_sql_executions_total", "Statement executions by SQL", "counter");
+        for (JdbcSqlStat stat : stats) {
+            sample(text, "alien_sql_executions_total", sqlLabels(stat), stat.getExecuteCount());
+        }
+
+        header(text, "alien_sql_errors_total", "Statement failures by SQL", "counter");
+        for (JdbcSqlStat stat : stats) {
+            sample(text, "alien_sql_errors_total", sqlLabels(stat), stat.getErrorCount());
+        }
+
+        header(text, "alien_sql_seconds_total", "Total execution time by SQL", "counter");
+        for (JdbcSqlStat stat : stats) {
+            text.append("alien_sql_seconds_total").append(sqlLabels(stat)).append(' ');
+            appendSeconds(text, stat.getTotalNanos());
+            text.append('\n');
+        }
+
+        header(text, "alien_sql_max_seconds", "Slowest execution by SQL", "gauge");
+        for (JdbcSqlStat stat : stats) {
+            text.append("alien_sql_max_seconds").append(sqlLabels(stat)).append(' ');
+            appendSeconds(text, stat.getMaxNanos());
+            text.append('\n');
+        }
+
+        header(text, "alien_sql_fetch_rows_total", "Rows read from result sets by SQL", "counter");
+        for (JdbcSqlStat stat : stats) {
+            sample(text, "alien_sql_fetch_rows_total", sqlLabels(stat), stat.getFetchRowCount());
+        }
+
+        header(text, "alien_sql_update_rows_total", "Rows changed by SQL", "counter");
+        for (JdbcSqlStat stat : stats) {
+            sample(text, "alien_sql_update_rows_total", sqlLabels(stat), stat.getUpdateCount());
+        }
+    }
+
+    private String sqlLabels(final JdbcSqlStat stat) {
+        String labels = sqlLabels.get(stat);
+        if (labels == null) {
+            StringBuilder buf = new StringBuilder(stat.getSql().length() + poolLabels.length() + 16);
+            buf.append(poolLabels, 0, poolLabels.length() - 1).append(",sql=\"");
+            appendLabelValue(buf, stat.getSql());
+            buf.append("\"}");
+            labels = buf.toString();
+            sqlLabels.put(stat, labels);
+        }
+        return labels;
+    }
+
+    private void gauge(final StringBuilder text, final String name, final String help, final long value) {
+        header(text, name, help, "gauge");
+        sample(text, name, poolLabels, value);
+    }
+
+    private void counter(final StringBuilder text, final String name, final String help, final long value) {
+        header(text, name, help, "counter");
+        sample(text, name, poolLabels, value);
+    }
+
+    private void histogram(final StringBuilder text, final String name, final String help, final LatencyHistogram histogram) {
+        header(text, name, help, "histogram");
+
+        long cumulative = 0;
+        long sumNanos = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; ++i) {
+            long count = histogram.getBucket(i);
+            cumulative += count;
+            // 用桶上界估算总耗时
+            sumNanos += count * LatencyHistogram.upperBoundMicros(i) * 1000L;
+            text.append(name).append("_bucket").append(bucketLabelsPrefix).append(BUCKET_LE[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        text.append(name).append("_bucket").append(bucketLabelsPrefix).append("+Inf\"} ").append(cumulative).append('\n');
+        text.append(name).append("_sum").append(poolLabels).append(' ');
+        appendSeconds(text, sumNanos);
+        text.append('\n');
+        text.append(name).append("_count").append(poolLabels).append(' ').append(cumulative).append('\n');
+    }
+
+    private static void header(final StringBuilder text, final String name, final String help, final String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder text, final String name, final String labels, final long value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * 纳秒转成秒，定点输出9位小数，避免double格式化
+     */
+    private static void appendSeconds(final StringBuilder text, final long nanos) {
+        long seconds = nanos / 1000000000L;
+        long fraction = nanos % 1000000000L;
+        text.append(seconds).append('.');
+        for (long scale = 100000000L; scale > 0; scale /= 10) {
+            text.append((char) ('0' + fraction / scale % 10));
+        }
+    }
+
+    private static void appendLabelValue(final StringBuilder buf, final String value) {
+        for (int i = 0, len = value.length(); i < len; ++i) {
+            char ch = value.charAt(i);
+            if (ch == '\\' || ch == '"') {
+                buf.append('\\').append(ch);
+            } else if (ch == '\n') {
+                buf.append("\\n");
+            } else {
+                buf.append(ch);
+            }
+        }
+    }
+
+    private ByteBuffer encode() {
+        for (;;) {
+            bytes.clear();
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(text), bytes, true);
+            if (!result.isOverflow()) {
+                encoder.flush(bytes);
+                bytes.flip();
+                return bytes;
+            }
+            bytes = ByteBuffer.allocate(bytes.capacity() << 1);
+        }
+    }
+}
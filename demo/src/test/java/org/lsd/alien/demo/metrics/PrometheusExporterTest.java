@@ -0,0 +1,89 @@
+package org.lsd.alien.demo.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.stat.JdbcSqlStat;
+import org.lsd.alien.stat.JdbcSqlStatTable;
+import org.lsd.alien.stat.LatencyHistogram;
+
+/**
+ * @author nhsoft.lsd
+ */
+class PrometheusExporterTest {
+
+    private static String render(final AlienDataSource dataSource) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PrometheusExporter(dataSource).writeTo(out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> samples(final String text, final String prefix) {
+        List<Long> values = new ArrayList<Long>();
+        for (String line : text.split("\n")) {
+            if (line.startsWith(prefix)) {
+                values.add(Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+            }
+        }
+        return values;
+    }
+
+    @Test
+    void rendersPoolAndSqlStats() throws Exception {
+        final JdbcSqlStatTable sqlStatTable = new JdbcSqlStatTable(16);
+        AlienDataSource dataSource = new AlienDataSource() {
+            @Override
+            public JdbcSqlStatTable getSqlStatTable() {
+                return sqlStatTable;
+            }
+        };
+        dataSource.setName("order\"db\\1");
+
+        JdbcSqlStat select = sqlStatTable.getOrCreate(1L, "select * from t_order where id = ?");
+        select.recordExecute(TimeUnit.MILLISECONDS.toNanos(2), 0);
+        select.recordExecute(TimeUnit.MILLISECONDS.toNanos(3), 0);
+        JdbcSqlStat update = sqlStatTable.getOrCreate(2L, "update t_order set memo = \"a\\b\"\nwhere id = ?");
+        update.recordExecute(TimeUnit.MILLISECONDS.toNanos(1), 1);
+
+        long[] executeNanos = {TimeUnit.MICROSECONDS.toNanos(500), TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(5)};
+        for (long nanos : executeNanos) {
+            dataSource.getExecuteHistogram().record(nanos);
+        }
+
+        String text = render(dataSource);
+
+        assertTrue(text.contains("# HELP alien_pool_active_connections Connections borrowed from the pool\n"
+                + "# TYPE alien_pool_active_connections gauge\n"), text);
+        assertTrue(text.contains("# TYPE alien_pool_borrows_total counter\n"), text);
+        assertTrue(text.contains("# TYPE alien_pool_execute_seconds histogram\n"), text);
+        assertTrue(text.contains("# TYPE alien_sql_executions_total counter\n"), text);
+
+        // 桶是累计值，第i行是落在前i个桶里的次数
+        String labels = "{datasource=\"order\\\"db\\\\1\"";
+        List<Long> buckets = samples(text, "alien_pool_execute_seconds_bucket" + labels + ",le=");
+        assertEquals(LatencyHistogram.BUCKET_COUNT + 1, buckets.size());
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; ++i) {
+            long expected = 0;
+            for (long nanos : executeNanos) {
+                if (LatencyHistogram.bucketOf(nanos) <= i) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, (long) buckets.get(i));
+        }
+        assertTrue(text.contains("alien_pool_execute_seconds_bucket" + labels + ",le=\"+Inf\"} 3\n"), text);
+        assertTrue(text.contains("alien_pool_execute_seconds_count" + labels + "} 3\n"), text);
+
+        // 标签值里的引号、反斜杠和换行都要转义
+        assertTrue(text.contains("alien_sql_executions_total" + labels + ",sql=\"select * from t_order where id = ?\"} 2\n"), text);
+        assertTrue(text.contains("alien_sql_update_rows_total" + labels
+                + ",sql=\"update t_order set memo = \\\"a\\\\b\\\"\\nwhere id = ?\"} 1\n"), text);
+    }
+}
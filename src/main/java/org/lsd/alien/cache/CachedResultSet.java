@@ -0,0 +1,59 @@
+package org.lsd.alien.cache;
+
+import java.sql.Date;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * CachedRows上的游标，多个CachedResultSet共享同一份数据。
+ * 日期和byte[]是可变对象，返回副本，调用方修改不会影响缓存
+ *
+ * @author nhsoft.lsd
+ */
+public class CachedResultSet extends AbstractCachedResultSet {
+
+    private final CachedRows rows;
+
+    public CachedResultSet(final Statement statement, final CachedRows rows) {
+        super(statement);
+        this.rows = rows;
+    }
+
+    @Override
+    protected int rowCount() {
+        return rows.getRowCount();
+    }
+
+    @Override
+    protected Object value(final int row, final int column) {
+        Object value = rows.getValue(row, column);
+        if (value instanceof java.util.Date) {
+            if (value instanceof Timestamp) {
+                Timestamp copy = new Timestamp(((Timestamp) value).getTime());
+                copy.setNanos(((Timestamp) value).getNanos());
+                return copy;
+            }
+            if (value instanceof Date) {
+                return new Date(((Date) value).getTime());
+            }
+            if (value instanceof Time) {
+                return new Time(((Time) value).getTime());
+            }
+            return new java.util.Date(((java.util.Date) value).getTime());
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+
+    @Override
+    protected CachedResultSetMetaData metaData() {
+        return rows.getMetaData();
+    }
+
+    public CachedRows getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,225 @@
+package org.lsd.alien.cache;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * ResultSetMetaData的快照，构造时从驱动读一次，之后不再依赖原来的ResultSet。
+ * 列标签到下标的映射也在这里建好，findColumn不用每次遍历
+ *
+ * @author nhsoft.lsd
+ */
+public final class CachedResultSetMetaData implements ResultSetMetaData {
+
+    private final String[] labels;
+    private final String[] names;
+    private final String[] tableNames;
+    private final int[]    types;
+    private final String[] typeNames;
+    private final String[] classNames;
+    private final int[]    precisions;
+    private final int[]    scales;
+    private final int[]    nullables;
+
+    /**
+     * 小写的列标签到从1开始的下标，重名的列取第一个
+     */
+    private final Map<String, Integer> indexes;
+
+    public CachedResultSetMetaData(final ResultSetMetaData meta) throws SQLException {
+        int count = meta.getColumnCount();
+        labels = new String[count];
+        names = new String[count];
+        tableNames = new String[count];
+        types = new int[count];
+        typeNames = new String[count];
+        classNames = new String[count];
+        precisions = new int[count];
+        scales = new int[count];
+        nullables = new int[count];
+        indexes = new HashMap<String, Integer>(count * 2);
+
+        for (int i = 0; i < count; ++i) {
+            int column = i + 1;
+            labels[i] = meta.getColumnLabel(column);
+            names[i] = meta.getColumnName(column);
+            tableNames[i] = meta.getTableName(column);
+            types[i] = meta.getColumnType(column);
+            typeNames[i] = meta.getColumnTypeName(column);
+            classNames[i] = meta.getColumnClassName(column);
+            precisions[i] = meta.getPrecision(column);
+            scales[i] = meta.getScale(column);
+            nullables[i] = meta.isNullable(column);
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            if (names[i] != null) {
+                indexes.put(names[i].toLowerCase(Locale.ROOT), i + 1);
+            }
+        }
+        for (int i = count - 1; i >= 0; --i) {
+            if (labels[i] != null) {
+                indexes.put(labels[i].toLowerCase(Locale.ROOT), i + 1);
+            }
+        }
+    }
+
+    /**
+     * 按列标签查下标，找不到时按列名查，都找不到返回-1
+     */
+    public int indexOf(final String columnLabel) {
+        if (columnLabel == null) {
+            return -1;
+        }
+        Integer index = indexes.get(columnLabel.toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 估算占用的内存，计入缓存的容量
+     */
+    long estimateBytes() {
+        long bytes = 64 + labels.length * 64L;
+        for (int i = 0; i < labels.length; ++i) {
+            bytes += CachedRows.estimateBytes(labels[i]) + CachedRows.estimateBytes(names[i]) + CachedRows.estimateBytes(typeNames[i]);
+        }
+        return bytes;
+    }
+
+    private int check(final int column) throws SQLException {
+        if (column < 1 || column > labels.length) {
+            throw new SQLException("column index out of range: " + column);
+        }
+        return column - 1;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    @Override
+    public boolean isAutoIncrement(final int column) throws SQLException {
+        check(column);
+        return false;
+    }
+
+    @Override
+    public boolean isCaseSensitive(final int column) throws SQLException {
+        check(column);
+        return false;
+    }
+
+    @Override
+    public boolean isSearchable(final int column) throws SQLException {
+        check(column);
+        return true;
+    }
+
+    @Override
+    public boolean isCurrency(final int column) throws SQLException {
+        check(column);
+        return false;
+    }
+
+    @Override
+    public int isNullable(final int column) throws SQLException {
+        return nullables[check(column)];
+    }
+
+    @Override
+    public boolean isSigned(final int column) throws SQLException {
+        check(column);
+        return true;
+    }
+
+    @Override
+    public int getColumnDisplaySize(final int column) throws SQLException {
+        return precisions[check(column)];
+    }
+
+    @Override
+    public String getColumnLabel(final int column) throws SQLException {
+        return labels[check(column)];
+    }
+
+    @Override
+    public String getColumnName(final int column) throws SQLException {
+        return names[check(column)];
+    }
+
+    @Override
+    public String getSchemaName(final int column) throws SQLException {
+        check(column);
+        return "";
+    }
+
+    @Override
+    public int getPrecision(final int column) throws SQLException {
+        return precisions[check(column)];
+    }
+
+    @Override
+    public int getScale(final int column) throws SQLException {
+        return scales[check(column)];
+    }
+
+    @Override
+    public String getTableName(final int column) throws SQLException {
+        return tableNames[check(column)];
+    }
+
+    @Override
+    public String getCatalogName(final int column) throws SQLException {
+        check(column);
+        return "";
+    }
+
+    @Override
+    public int getColumnType(final int column) throws SQLException {
+        return types[check(column)];
+    }
+
+    @Override
+    public String getColumnTypeName(final int column) throws SQLException {
+        return typeNames[check(column)];
+    }
+
+    @Override
+    public boolean isReadOnly(final int column) throws SQLException {
+        check(column);
+        return true;
+    }
+
+    @Override
+    public boolean isWritable(final int column) throws SQLException {
+        check(column);
+        return false;
+    }
+
+    @Override
+    public boolean isDefinitelyWritable(final int column) throws SQLException {
+        check(column);
+        return false;
+    }
+
+    @Override
+    public String getColumnClassName(final int column) throws SQLException {
+        return classNames[check(column)];
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
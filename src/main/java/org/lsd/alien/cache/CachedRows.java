@@ -0,0 +1,109 @@
+package org.lsd.alien.cache;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次查询的完整结果，元数据和所有行都在堆上，构造后不再修改，可以被多个线程同时回放
+ *
+ * @author nhsoft.lsd
+ */
+public final class CachedRows {
+
+    private final CachedResultSetMetaData metaData;
+    private final Object[][]              rows;
+    private final long                    estimatedBytes;
+
+    CachedRows(final CachedResultSetMetaData metaData, final Object[][] rows) {
+        this.metaData = metaData;
+        this.rows = rows;
+
+        long bytes = metaData.estimateBytes() + 16 + rows.length * 8L;
+        for (Object[] row : rows) {
+            bytes += 16 + row.length * 8L;
+            for (Object value : row) {
+                bytes += estimateBytes(value);
+            }
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    /**
+     * 读完rs剩下的所有行，LOB读成byte[]和String，rs关闭以后仍然可以回放
+     */
+    public static CachedRows read(final ResultSet rs) throws SQLException {
+        CachedResultSetMetaData metaData = new CachedResultSetMetaData(rs.getMetaData());
+        int columnCount = metaData.getColumnCount();
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        while (rs.next()) {
+            Object[] row = new Object[columnCount];
+            for (int i = 0; i < columnCount; ++i) {
+                row[i] = detach(rs.getObject(i + 1));
+            }
+            rows.add(row);
+        }
+        return new CachedRows(metaData, rows.toArray(new Object[0][]));
+    }
+
+    private static Object detach(final Object value) throws SQLException {
+        if (value instanceof Blob) {
+            Blob blob = (Blob) value;
+            return blob.getBytes(1, (int) blob.length());
+        }
+        if (value instanceof Clob) {
+            Clob clob = (Clob) value;
+            return clob.getSubString(1, (int) clob.length());
+        }
+        return value;
+    }
+
+    static long estimateBytes(final Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return 64;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return 24;
+        }
+        return 48;
+    }
+
+    /**
+     * 回放用的ResultSet，每次调用返回独立的游标
+     */
+    public ResultSet newResultSet(final Statement statement) {
+        return new CachedResultSet(statement, this);
+    }
+
+    public CachedResultSetMetaData getMetaData() {
+        return metaData;
+    }
+
+    public int getRowCount() {
+        return rows.length;
+    }
+
+    public Object getValue(final int row, final int column) {
+        return rows[row][column];
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
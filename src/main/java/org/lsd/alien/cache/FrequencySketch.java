@@ -0,0 +1,63 @@
+package org.lsd.alien.cache;
+
+/**
+ * TinyLFU的访问频率估计，4行的Count-Min Sketch，计数上限15。
+ * 累计记录次数达到10倍宽度时所有计数减半，让频率随时间衰减。不是线程安全的，由调用方加锁
+ *
+ * @author nhsoft.lsd
+ */
+final class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+
+    private static final long[] SEEDS = {0x97cb3127L, 0xd6e8feb86659fd93L, 0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L};
+
+    private final byte[][] table;
+    private final int      mask;
+    private final int      sampleSize;
+    private int            size;
+
+    FrequencySketch(final int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+        table = new byte[SEEDS.length][width];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    private int index(final long hash, final int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return (int) h & mask;
+    }
+
+    void increment(final long hash) {
+        boolean added = false;
+        for (int row = 0; row < table.length; ++row) {
+            int index = index(hash, row);
+            if (table[row][index] < MAX_COUNT) {
+                table[row][index]++;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(final long hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < table.length; ++row) {
+            frequency = Math.min(frequency, table[row][index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; ++i) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        size >>>= 1;
+    }
+}
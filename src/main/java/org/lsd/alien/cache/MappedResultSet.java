@@ -0,0 +1,166 @@
+package org.lsd.alien.cache;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+
+/**
+ * 直接读映射文件的ResultSet，不把结果复制到堆上，取值时才解码当前行用到的列。
+ * 打开期间钉住文件里的这块区域，关闭时释放
+ *
+ * @author nhsoft.lsd
+ */
+public class MappedResultSet extends AbstractCachedResultSet {
+
+    private final MappedResultStore      store;
+    private final MappedResultStore.Slot slot;
+    private final ByteBuffer             buffer;
+
+    /**
+     * 当前解码过的行和各列值的位置
+     */
+    private int         decodedRow = -1;
+    private final int[] columnOffsets;
+
+    MappedResultSet(final Statement statement, final MappedResultStore store, final MappedResultStore.Slot slot) {
+        super(statement);
+        this.store = store;
+        this.slot = slot;
+        this.buffer = store.view();
+        this.columnOffsets = new int[slot.metaData.getColumnCount()];
+    }
+
+    @Override
+    protected int rowCount() {
+        return slot.rowCount;
+    }
+
+    @Override
+    protected Object value(final int row, final int column) throws SQLException {
+        if (row != decodedRow) {
+            decodeRow(row);
+        }
+        return read(columnOffsets[column]);
+    }
+
+    @Override
+    protected CachedResultSetMetaData metaData() {
+        return slot.metaData;
+    }
+
+    private void decodeRow(final int row) throws SQLException {
+        final int base = slot.offset;
+        int position = base + buffer.getInt(base + MappedResultStore.HEADER_BYTES + row * 4);
+        for (int i = 0; i < columnOffsets.length; ++i) {
+            columnOffsets[i] = position;
+            position = skip(position);
+        }
+        decodedRow = row;
+    }
+
+    private int skip(final int position) throws SQLException {
+        final byte tag = buffer.get(position);
+        switch (tag) {
+            case MappedResultStore.NULL:
+                return position + 1;
+            case MappedResultStore.BOOLEAN:
+            case MappedResultStore.BYTE:
+                return position + 2;
+            case MappedResultStore.SHORT:
+                return position + 3;
+            case MappedResultStore.INT:
+            case MappedResultStore.FLOAT:
+                return position + 5;
+            case MappedResultStore.LONG:
+            case MappedResultStore.DOUBLE:
+            case MappedResultStore.DATE:
+            case MappedResultStore.TIME:
+            case MappedResultStore.LOCAL_DATE:
+            case MappedResultStore.LOCAL_TIME:
+                return position + 9;
+            case MappedResultStore.TIMESTAMP:
+            case MappedResultStore.LOCAL_DATE_TIME:
+                return position + 13;
+            case MappedResultStore.DECIMAL:
+            case MappedResultStore.STRING:
+            case MappedResultStore.BYTES:
+            case MappedResultStore.BIG_INTEGER:
+                return position + 5 + buffer.getInt(position + 1);
+            default:
+                throw new SQLException("corrupted query cache entry, tag " + tag);
+        }
+    }
+
+    private Object read(final int position) throws SQLException {
+        final byte tag = buffer.get(position);
+        switch (tag) {
+            case MappedResultStore.NULL:
+                return null;
+            case MappedResultStore.INT:
+                return buffer.getInt(position + 1);
+            case MappedResultStore.LONG:
+                return buffer.getLong(position + 1);
+            case MappedResultStore.DOUBLE:
+                return buffer.getDouble(position + 1);
+            case MappedResultStore.FLOAT:
+                return buffer.getFloat(position + 1);
+            case MappedResultStore.DECIMAL:
+                return new BigDecimal(new String(bytes(position), StandardCharsets.US_ASCII));
+            case MappedResultStore.STRING:
+                return new String(bytes(position), StandardCharsets.UTF_8);
+            case MappedResultStore.BYTES:
+                return bytes(position);
+            case MappedResultStore.BOOLEAN:
+                return buffer.get(position + 1) != 0;
+            case MappedResultStore.DATE:
+                return new Date(buffer.getLong(position + 1));
+            case MappedResultStore.TIME:
+                return new Time(buffer.getLong(position + 1));
+            case MappedResultStore.TIMESTAMP: {
+                Timestamp timestamp = new Timestamp(buffer.getLong(position + 1));
+                timestamp.setNanos(buffer.getInt(position + 9));
+                return timestamp;
+            }
+            case MappedResultStore.SHORT:
+                return buffer.getShort(position + 1);
+            case MappedResultStore.BYTE:
+                return buffer.get(position + 1);
+            case MappedResultStore.BIG_INTEGER:
+                return new BigInteger(new String(bytes(position), StandardCharsets.US_ASCII));
+            case MappedResultStore.LOCAL_DATE_TIME:
+                return LocalDateTime.ofEpochSecond(buffer.getLong(position + 1), buffer.getInt(position + 9), ZoneOffset.UTC);
+            case MappedResultStore.LOCAL_DATE:
+                return LocalDate.ofEpochDay(buffer.getLong(position + 1));
+            case MappedResultStore.LOCAL_TIME:
+                return LocalTime.ofNanoOfDay(buffer.getLong(position + 1));
+            default:
+                throw new SQLException("corrupted query cache entry, tag " + tag);
+        }
+    }
+
+    private byte[] bytes(final int position) {
+        byte[] bytes = new byte[buffer.getInt(position + 1)];
+        buffer.position(position + 5);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        if (isClosed()) {
+            return;
+        }
+        super.close();
+        store.unpin(slot);
+    }
+}
@@ -0,0 +1,452 @@
+package org.lsd.alien.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import org.lsd.alien.logging.Log;
+import org.lsd.alien.logging.LogFactory;
+
+/**
+ * 查询缓存的第二层，结果序列化以后写进内存映射文件，不占堆，适合反复读的大结果集。
+ * <p>
+ * 文件当作环形日志使用：新结果追加在写指针后面，空间不够时从最老的结果开始覆盖，淘汰顺序就是写入顺序。
+ * 正在被ResultSet读的结果会被钉住，轮到它被覆盖时这次写入放弃，所以取出的ResultSet用完一定要关闭。
+ * <p>
+ * 每个结果的格式：行数、列数、每行的起始偏移，然后逐行逐列写类型标记和值。元数据很小，留在堆上
+ *
+ * @author nhsoft.lsd
+ */
+public final class MappedResultStore implements Closeable {
+
+    private final static Log LOG = LogFactory.getLog(MappedResultStore.class);
+
+    public final static long DEFAULT_MAX_BYTES       = 1024L * 1024L * 1024L;
+    public final static long DEFAULT_MAX_ENTRY_BYTES = 256L * 1024L * 1024L;
+
+    static final byte NULL            = 0;
+    static final byte INT             = 1;
+    static final byte LONG            = 2;
+    static final byte DOUBLE          = 3;
+    static final byte FLOAT           = 4;
+    static final byte DECIMAL         = 5;
+    static final byte STRING          = 6;
+    static final byte BYTES           = 7;
+    static final byte BOOLEAN         = 8;
+    static final byte DATE            = 9;
+    static final byte TIME            = 10;
+    static final byte TIMESTAMP       = 11;
+    static final byte SHORT           = 12;
+    static final byte BYTE            = 13;
+    static final byte BIG_INTEGER     = 14;
+    static final byte LOCAL_DATE_TIME = 15;
+    static final byte LOCAL_DATE      = 16;
+    static final byte LOCAL_TIME      = 17;
+
+    static final int HEADER_BYTES = 8;
+
+    /**
+     * 序列化用的线程私有缓冲区，超过这个大小的用完就丢，不长期占堆
+     */
+    static final int SCRATCH_RETAIN_BYTES = 64 * 1024;
+
+    private static final int MAX_BUFFER_BYTES = Integer.MAX_VALUE - 8;
+
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>();
+
+    private final File             file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int              capacity;
+    private final long             maxEntryBytes;
+
+    /**
+     * 以下只在synchronized(this)里访问。regions按写入顺序保存所有还占着文件空间的结果，包括已经从index删除但还被钉住的
+     */
+    private final Map<QueryResultCache.Key, Slot> index   = new HashMap<QueryResultCache.Key, Slot>();
+    private final ArrayDeque<Slot>                regions = new ArrayDeque<Slot>();
+    private long                                  head;
+    private long                                  usedBytes;
+    private long                                  evictCount;
+    private long                                  rejectCount;
+
+    public MappedResultStore(final File directory, final long maxBytes, final long maxEntryBytes) throws IOException {
+        if (maxBytes <= 0 || maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("illegal maxBytes " + maxBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+
+        this.capacity = (int) maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.file = File.createTempFile("alien-query-cache-", ".dat", directory);
+        this.file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException | RuntimeException ex) {
+            raf.close();
+            file.delete();
+            throw ex;
+        }
+        this.raf = raf;
+    }
+
+    /**
+     * @return 没有写入返回false：结果太大、有无法序列化的类型，或者要覆盖的位置正在被读
+     */
+    public boolean put(final QueryResultCache.Key key, final CachedRows rows, final QueryResultCache.Stamp stamp) {
+        final ByteBuffer data = encode(rows, maxEntryBytes);
+        if (data == null) {
+            synchronized (this) {
+                rejectCount++;
+            }
+            return false;
+        }
+
+        synchronized (this) {
+            remove(key);
+
+            final int length = data.remaining();
+            long position = head;
+            int offset = (int) (position % capacity);
+            if (offset + length > capacity) {
+                // 结果不跨文件末尾，剩下的一截空着
+                position += capacity - offset;
+                offset = 0;
+            }
+
+            // 文件里保留的是日志上最后capacity个字节，起点在这之前的结果会被覆盖
+            while (!regions.isEmpty() && regions.peekFirst().position < position + length - capacity) {
+                Slot oldest = regions.peekFirst();
+                if (oldest.pins > 0) {
+                    rejectCount++;
+                    return false;
+                }
+                regions.pollFirst();
+                usedBytes -= oldest.length;
+                if (!oldest.removed) {
+                    oldest.removed = true;
+                    index.remove(oldest.key);
+                    evictCount++;
+                }
+            }
+
+            ByteBuffer target = buffer.duplicate();
+            target.position(offset);
+            target.put(data);
+
+            Slot slot = new Slot(key, position, offset, length, rows.getMetaData(), rows.getRowCount(), stamp);
+            index.put(key, slot);
+            regions.addLast(slot);
+            usedBytes += length;
+            head = position + length;
+            return true;
+        }
+    }
+
+    /**
+     * 取出的结果在unpin之前不会被覆盖
+     */
+    synchronized Slot pin(final QueryResultCache.Key key) {
+        Slot slot = index.get(key);
+        if (slot != null) {
+            slot.pins++;
+        }
+        return slot;
+    }
+
+    synchronized void unpin(final Slot slot) {
+        slot.pins--;
+    }
+
+    /**
+     * 从索引里删除，占用的空间等写指针转一圈以后再复用
+     */
+    synchronized void remove(final QueryResultCache.Key key) {
+        Slot slot = index.remove(key);
+        if (slot != null) {
+            slot.removed = true;
+        }
+    }
+
+    public synchronized void clear() {
+        for (Slot slot : index.values()) {
+            slot.removed = true;
+        }
+        index.clear();
+    }
+
+    /**
+     * 每个ResultSet用自己的副本读，position互不影响
+     */
+    ByteBuffer view() {
+        return buffer.duplicate();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            clear();
+            regions.clear();
+        }
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            LOG.error("close query cache file error", ex);
+        }
+        // 映射在缓冲区被回收以前一直有效，Linux上删除文件不影响已经映射的内存
+        if (!file.delete()) {
+            LOG.warn("delete query cache file failed: " + file);
+        }
+    }
+
+    /**
+     * 序列化到当前线程的缓冲区里，行偏移先占位，写完行以后回填，put时只有缓冲区到映射文件这一次拷贝。
+     * 返回的缓冲区在当前线程下次调用encode之前有效
+     *
+     * @return 超过maxBytes或者有无法序列化的类型时返回null
+     */
+    static ByteBuffer encode(final CachedRows rows, final long maxBytes) {
+        final int rowCount = rows.getRowCount();
+        final int columnCount = rows.getMetaData().getColumnCount();
+        if (HEADER_BYTES + rowCount * 4L > maxBytes) {
+            return null;
+        }
+        final int bodyStart = HEADER_BYTES + rowCount * 4;
+
+        // 预估比缓冲区大时按预估一次分配，这种大缓冲区用完不保留
+        ByteBuffer scratch = SCRATCH.get();
+        final long expected = Math.min(Math.min(Math.max(rows.getEstimatedBytes(), 64) + bodyStart, maxBytes), MAX_BUFFER_BYTES);
+        if (scratch == null || scratch.capacity() < expected) {
+            scratch = ByteBuffer.allocate((int) expected);
+        }
+        scratch.clear();
+        final EntryWriter out = new EntryWriter(scratch, maxBytes);
+        if (!out.ensure(bodyStart)) {
+            return null;
+        }
+        out.buffer.position(bodyStart);
+        for (int i = 0; i < rowCount; ++i) {
+            out.buffer.putInt(HEADER_BYTES + i * 4, out.buffer.position());
+            for (int j = 0; j < columnCount; ++j) {
+                if (!write(out, rows.getValue(i, j))) {
+                    retain(out.buffer);
+                    return null;
+                }
+            }
+        }
+
+        ByteBuffer data = out.buffer;
+        data.putInt(0, rowCount);
+        data.putInt(4, columnCount);
+        data.flip();
+        retain(data);
+        return data;
+    }
+
+    private static void retain(final ByteBuffer buffer) {
+        if (buffer.capacity() <= SCRATCH_RETAIN_BYTES) {
+            SCRATCH.set(buffer);
+        }
+    }
+
+    private static boolean write(final EntryWriter out, final Object value) {
+        if (value == null) {
+            if (!out.ensure(1)) {
+                return false;
+            }
+            out.buffer.put(NULL);
+        } else if (value instanceof String) {
+            return writeBytes(out, STRING, ((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Integer) {
+            if (!out.ensure(5)) {
+                return false;
+            }
+            out.buffer.put(INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            if (!out.ensure(9)) {
+                return false;
+            }
+            out.buffer.put(LONG).putLong((Long) value);
+        } else if (value instanceof BigDecimal) {
+            return writeBytes(out, DECIMAL, value.toString().getBytes(StandardCharsets.US_ASCII));
+        } else if (value instanceof Timestamp) {
+            if (!out.ensure(13)) {
+                return false;
+            }
+            out.buffer.put(TIMESTAMP).putLong(((Timestamp) value).getTime()).putInt(((Timestamp) value).getNanos());
+        } else if (value instanceof Date) {
+            if (!out.ensure(9)) {
+                return false;
+            }
+            out.buffer.put(DATE).putLong(((Date) value).getTime());
+        } else if (value instanceof Time) {
+            if (!out.ensure(9)) {
+                return false;
+            }
+            out.buffer.put(TIME).putLong(((Time) value).getTime());
+        } else if (value instanceof Double) {
+            if (!out.ensure(9)) {
+                return false;
+            }
+            out.buffer.put(DOUBLE).putDouble((Double) value);
+        } else if (value instanceof Float) {
+            if (!out.ensure(5)) {
+                return false;
+            }
+            out.buffer.put(FLOAT).putFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            if (!out.ensure(2)) {
+                return false;
+            }
+            out.buffer.put(BOOLEAN).put((Boolean) value ? (byte) 1 : (byte) 0);
+        } else if (value instanceof byte[]) {
+            return writeBytes(out, BYTES, (byte[]) value);
+        } else if (value instanceof Short) {
+            if (!out.ensure(3)) {
+                return false;
+            }
+            out.buffer.put(SHORT).putShort((Short) value);
+        } else if (value instanceof Byte) {
+            if (!out.ensure(2)) {
+                return false;
+            }
+            out.buffer.put(BYTE).put((Byte) value);
+        } else if (value instanceof BigInteger) {
+            return writeBytes(out, BIG_INTEGER, value.toString().getBytes(StandardCharsets.US_ASCII));
+        } else if (value instanceof LocalDateTime) {
+            if (!out.ensure(13)) {
+                return false;
+            }
+            out.buffer.put(LOCAL_DATE_TIME).putLong(((LocalDateTime) value).toEpochSecond(ZoneOffset.UTC)).putInt(((LocalDateTime) value).getNano());
+        } else if (value instanceof LocalDate) {
+            if (!out.ensure(9)) {
+                return false;
+            }
+            out.buffer.put(LOCAL_DATE).putLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof LocalTime) {
+            if (!out.ensure(9)) {
+                return false;
+            }
+            out.buffer.put(LOCAL_TIME).putLong(((LocalTime) value).toNanoOfDay());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean writeBytes(final EntryWriter out, final byte tag, final byte[] bytes) {
+        if (!out.ensure(5L + bytes.length)) {
+            return false;
+        }
+        out.buffer.put(tag).putInt(bytes.length).put(bytes);
+        return true;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getSize() {
+        return index.size();
+    }
+
+    /**
+     * 占着文件空间的字节数，包括已经失效但还没有被覆盖的
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    public synchronized long getRejectCount() {
+        return rejectCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 序列化时的可扩容缓冲区，按两倍扩容，不超过maxBytes
+     */
+    private static final class EntryWriter {
+
+        private final long maxBytes;
+        private ByteBuffer buffer;
+
+        EntryWriter(final ByteBuffer buffer, final long maxBytes) {
+            this.buffer = buffer;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return 写下bytes个字节以后超过maxBytes时返回false
+         */
+        boolean ensure(final long bytes) {
+            final long required = buffer.position() + bytes;
+            if (required > maxBytes || required > MAX_BUFFER_BYTES) {
+                return false;
+            }
+            if (required > buffer.capacity()) {
+                long newCapacity = Math.min(Math.max(required, buffer.capacity() * 2L), Math.min(maxBytes, MAX_BUFFER_BYTES));
+                ByteBuffer grown = ByteBuffer.allocate((int) newCapacity);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 一个结果在文件里的位置，position是环形日志上的绝对位置，offset是在文件里的位置
+     */
+    static final class Slot {
+
+        final QueryResultCache.Key    key;
+        final long                    position;
+        final int                     offset;
+        final int                     length;
+        final CachedResultSetMetaData metaData;
+        final int                     rowCount;
+        final QueryResultCache.Stamp  stamp;
+
+        int     pins;
+        boolean removed;
+
+        Slot(final QueryResultCache.Key key, final long position, final int offset, final int length
+                , final CachedResultSetMetaData metaData, final int rowCount, final QueryResultCache.Stamp stamp) {
+            this.key = key;
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+            this.metaData = metaData;
+            this.rowCount = rowCount;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.lsd.alien.cache;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import org.lsd.alien.DbType;
+import org.lsd.alien.util.SqlParameterizer;
+
+/**
+ * 连接池级别的查询结果缓存，只缓存白名单里的SQL（按参数化以后的指纹匹配），key是指纹加参数。
+ * <p>
+ * 失效：每张表一个版本号，同一个连接池上的写语句执行时（事务里的写在提交或回滚时再加一次）把涉及的表版本号加一，
+ * 缓存项记录查询开始时各表的版本号，取出时不一致就当作没命中。识别不出表的写语句让所有缓存失效。
+ * <p>
+ * 容量按估算字节数限制，淘汰用W-TinyLFU的思路：新结果先进1%大小的窗口LRU，被挤出窗口时和主区LRU尾部比较访问频率，
+ * 频率更高才能进入主区，偶尔扫一次的大查询不会把热点结果挤掉。
+ * <p>
+ * 配置了spillStore时，超过单项上限的结果写到内存映射文件里，不占堆
+ *
+ * @author nhsoft.lsd
+ */
+public class QueryResultCache implements Closeable {
+
+    public final static long DEFAULT_MAX_BYTES       = 64L * 1024L * 1024L;
+    public final static long DEFAULT_MAX_ENTRY_BYTES = 1024L * 1024L;
+
+    /**
+     * 缓存的SQL解析结果最多多少条，Statement拼接字面量的SQL会不断变化，超过以后清空
+     */
+    private static final int MAX_PARSED_SQL = 4096;
+
+    private static final AtomicLongFieldUpdater<QueryResultCache> HIT_COUNT_UPDATER        = AtomicLongFieldUpdater.newUpdater(QueryResultCache.class, "hitCount");
+    private static final AtomicLongFieldUpdater<QueryResultCache> MISS_COUNT_UPDATER       = AtomicLongFieldUpdater.newUpdater(QueryResultCache.class, "missCount");
+    private static final AtomicLongFieldUpdater<QueryResultCache> REJECT_COUNT_UPDATER     = AtomicLongFieldUpdater.newUpdater(QueryResultCache.class, "rejectCount");
+    private static final AtomicLongFieldUpdater<QueryResultCache> INVALIDATE_COUNT_UPDATER = AtomicLongFieldUpdater.newUpdater(QueryResultCache.class, "invalidateCount");
+
+    private volatile long hitCount;
+    private volatile long missCount;
+    private volatile long rejectCount;
+    private volatile long invalidateCount;
+
+    private final DbType    dbType;
+    private final Set<Long> fingerprints;
+
+    private final long maxEntryBytes;
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+
+    /**
+     * 以下只在synchronized(this)里访问
+     */
+    private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> main   = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long                            windowBytes;
+    private long                            mainBytes;
+    private long                            evictCount;
+    private final FrequencySketch           sketch;
+
+    private final ConcurrentHashMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong                            globalVersion = new AtomicLong();
+
+    private final ConcurrentHashMap<String, SqlTables> parsed = new ConcurrentHashMap<String, SqlTables>();
+
+    /**
+     * 为null时不缓存超过单项上限的结果
+     */
+    private final MappedResultStore spillStore;
+
+    public QueryResultCache(final DbType dbType, final Collection<String> sqls, final long maxBytes, final long maxEntryBytes) {
+        this(dbType, sqls, maxBytes, maxEntryBytes, null);
+    }
+
+    public QueryResultCache(final DbType dbType, final Collection<String> sqls, final long maxBytes, final long maxEntryBytes, final MappedResultStore spillStore) {
+        this.dbType = dbType;
+        this.spillStore = spillStore;
+        this.fingerprints = new HashSet<Long>();
+        for (String sql : sqls) {
+            fingerprints.add(SqlParameterizer.fnv1a_64_lower(sql, dbType));
+        }
+
+        // 比窗口大的结果放进窗口以后马上被挤出来，直接参与准入比较
+        this.windowMaxBytes = maxBytes / 100;
+        this.mainMaxBytes = maxBytes - windowMaxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, mainMaxBytes);
+        // 按平均一项4KB估计条目数，太小的话不同key的计数冲突太多
+        this.sketch = new FrequencySketch((int) Math.min(Math.max(maxBytes / 4096, 1024), 1 << 20));
+    }
+
+    public long fingerprint(final String sql) {
+        return SqlParameterizer.fnv1a_64_lower(sql, dbType);
+    }
+
+    public boolean isCacheable(final long fingerprint) {
+        return fingerprints.contains(fingerprint);
+    }
+
+    /**
+     * 查询开始前记录涉及的表的版本号，查询期间有写入的话结果不会被放进缓存
+     */
+    public Stamp stamp(final String sql) {
+        String[] tables = parse(sql).tables;
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; ++i) {
+            versions[i] = version(tables[i]).get();
+        }
+        return new Stamp(globalVersion.get(), tables, versions);
+    }
+
+    private AtomicLong version(final String table) {
+        AtomicLong version = tableVersions.get(table);
+        if (version == null) {
+            version = tableVersions.computeIfAbsent(table, key -> new AtomicLong());
+        }
+        return version;
+    }
+
+    private boolean isCurrent(final Stamp stamp) {
+        if (stamp.globalVersion != globalVersion.get()) {
+            return false;
+        }
+        for (int i = 0; i < stamp.tables.length; ++i) {
+            if (stamp.versions[i] != version(stamp.tables[i]).get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private SqlTables parse(final String sql) {
+        SqlTables tables = parsed.get(sql);
+        if (tables == null) {
+            tables = SqlTables.parse(sql);
+            if (parsed.size() >= MAX_PARSED_SQL) {
+                parsed.clear();
+            }
+            parsed.put(sql, tables);
+        }
+        return tables;
+    }
+
+    /**
+     * 语句执行以后调用，写语句让涉及的表失效
+     *
+     * @return 失效的表，不是写语句返回空数组，识别不出表返回null（已经全部失效）
+     */
+    public String[] onExecute(final String sql) {
+        SqlTables tables = parse(sql);
+        if (!tables.write) {
+            return SqlTables.READ.tables;
+        }
+        invalidate(tables.tables);
+        return tables.tables;
+    }
+
+    /**
+     * @param tables 为null时所有缓存失效
+     */
+    public void invalidate(final String[] tables) {
+        if (tables == null) {
+            globalVersion.incrementAndGet();
+        } else {
+            for (String table : tables) {
+                version(table).incrementAndGet();
+            }
+        }
+        INVALIDATE_COUNT_UPDATER.incrementAndGet(this);
+    }
+
+    /**
+     * @return 没有命中返回null
+     */
+    public ResultSet get(final Key key, final Statement statement) {
+        Entry entry;
+        synchronized (this) {
+            sketch.increment(key.hash);
+
+            entry = window.get(key);
+            if (entry == null) {
+                entry = main.get(key);
+            }
+            if (entry != null && !isCurrent(entry.stamp)) {
+                remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry != null) {
+            HIT_COUNT_UPDATER.incrementAndGet(this);
+            return entry.rows.newResultSet(statement);
+        }
+
+        if (spillStore != null) {
+            MappedResultStore.Slot slot = spillStore.pin(key);
+            if (slot != null) {
+                if (isCurrent(slot.stamp)) {
+                    HIT_COUNT_UPDATER.incrementAndGet(this);
+                    return new MappedResultSet(statement, spillStore, slot);
+                }
+                spillStore.unpin(slot);
+                spillStore.remove(key);
+            }
+        }
+
+        MISS_COUNT_UPDATER.incrementAndGet(this);
+        return null;
+    }
+
+    public void put(final Key key, final CachedRows rows, final Stamp stamp) {
+        final long bytes = rows.getEstimatedBytes() + key.estimateBytes();
+        if (bytes > maxEntryBytes) {
+            // 取出时还会校验stamp，这里不用再检查表有没有被修改
+            if (spillStore == null || !spillStore.put(key, rows, stamp)) {
+                REJECT_COUNT_UPDATER.incrementAndGet(this);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            // 查询期间表被修改过，结果可能是旧的
+            if (!isCurrent(stamp)) {
+                return;
+            }
+
+            remove(key);
+            window.put(key, new Entry(rows, stamp, bytes));
+            windowBytes += bytes;
+
+            while (windowBytes > windowMaxBytes) {
+                Iterator<Map.Entry<Key, Entry>> iter = window.entrySet().iterator();
+                Map.Entry<Key, Entry> eldest = iter.next();
+                iter.remove();
+                windowBytes -= eldest.getValue().bytes;
+                admit(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    /**
+     * 被挤出窗口的项和主区LRU尾部比较频率，不比尾部高就丢弃
+     */
+    private void admit(final Key candidate, final Entry entry) {
+        if (!isCurrent(entry.stamp)) {
+            return;
+        }
+
+        final int candidateFrequency = sketch.frequency(candidate.hash);
+        while (mainBytes + entry.bytes > mainMaxBytes) {
+            Iterator<Map.Entry<Key, Entry>> iter = main.entrySet().iterator();
+            Map.Entry<Key, Entry> victim = iter.next();
+            if (isCurrent(victim.getValue().stamp) && sketch.frequency(victim.getKey().hash) >= candidateFrequency) {
+                REJECT_COUNT_UPDATER.incrementAndGet(this);
+                return;
+            }
+            iter.remove();
+            mainBytes -= victim.getValue().bytes;
+            evictCount++;
+        }
+
+        main.put(candidate, entry);
+        mainBytes += entry.bytes;
+    }
+
+    private void remove(final Key key) {
+        Entry entry = window.remove(key);
+        if (entry != null) {
+            windowBytes -= entry.bytes;
+        }
+        entry = main.remove(key);
+        if (entry != null) {
+            mainBytes -= entry.bytes;
+        }
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        main.clear();
+        windowBytes = 0;
+        mainBytes = 0;
+        if (spillStore != null) {
+            spillStore.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        clear();
+        if (spillStore != null) {
+            spillStore.close();
+        }
+    }
+
+    public synchronized int getSize() {
+        return window.size() + main.size();
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return windowBytes + mainBytes;
+    }
+
+    public synchronized long getEvictCount() {
+        return evictCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * 超过单项上限或者没有通过频率比较而没有缓存的次数
+     */
+    public long getRejectCount() {
+        return rejectCount;
+    }
+
+    public long getInvalidateCount() {
+        return invalidateCount;
+    }
+
+    public MappedResultStore getSpillStore() {
+        return spillStore;
+    }
+
+    /**
+     * 缓存key，参数需要是不可变的值，调用方负责拷贝
+     */
+    public static final class Key {
+
+        private final long     fingerprint;
+        private final Object[] parameters;
+        private final long     hash;
+
+        public Key(final long fingerprint, final Object[] parameters) {
+            this.fingerprint = fingerprint;
+            this.parameters = parameters;
+            this.hash = fingerprint * 31 + Arrays.deepHashCode(parameters);
+        }
+
+        long estimateBytes() {
+            long bytes = 48 + parameters.length * 8L;
+            for (Object parameter : parameters) {
+                bytes += CachedRows.estimateBytes(parameter);
+            }
+            return bytes;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return fingerprint == other.fingerprint && Arrays.deepEquals(parameters, other.parameters);
+        }
+    }
+
+    /**
+     * 查询开始时涉及的表的版本号
+     */
+    public static final class Stamp {
+
+        private final long     globalVersion;
+        private final String[] tables;
+        private final long[]   versions;
+
+        Stamp(final long globalVersion, final String[] tables, final long[] versions) {
+            this.globalVersion = globalVersion;
+            this.tables = tables;
+            this.versions = versions;
+        }
+    }
+
+    private static final class Entry {
+
+        private final CachedRows rows;
+        private final Stamp      stamp;
+        private final long       bytes;
+
+        Entry(final CachedRows rows, final Stamp stamp, final long bytes) {
+            this.rows = rows;
+            this.stamp = stamp;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.lsd.alien.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 从SQL里粗略地找出涉及的表名，只用于缓存失效，宁可多失效不能漏：
+ * 取FROM、JOIN、UPDATE、INTO、TABLE后面的标识符，FROM后面逗号分隔的多个表都算，表名去掉库名和引号转小写。
+ * 识别不了的写语句（比如CALL）tables为null，调用方应该让所有缓存失效
+ *
+ * @author nhsoft.lsd
+ */
+final class SqlTables {
+
+    static final SqlTables READ = new SqlTables(false, new String[0]);
+
+    final boolean  write;
+    final String[] tables;
+
+    private SqlTables(final boolean write, final String[] tables) {
+        this.write = write;
+        this.tables = tables;
+    }
+
+    static SqlTables parse(final String sql) {
+        List<String> tokens = tokenize(sql);
+        if (tokens.isEmpty()) {
+            return READ;
+        }
+
+        String first = tokens.get(0);
+        boolean write;
+        switch (first) {
+            case "select":
+            case "with":
+            case "(":
+                write = false;
+                break;
+            case "insert":
+            case "replace":
+            case "update":
+            case "delete":
+            case "merge":
+            case "truncate":
+            case "alter":
+            case "drop":
+            case "create":
+            case "rename":
+            case "load":
+                write = true;
+                break;
+            case "call":
+                return new SqlTables(true, null);
+            default:
+                // SET、SHOW、BEGIN之类，不读表也不写表
+                return READ;
+        }
+
+        List<String> tables = new ArrayList<String>();
+        for (int i = 0; i < tokens.size(); ++i) {
+            String token = tokens.get(i);
+            boolean tableList = "from".equals(token);
+            if (!tableList && !"join".equals(token) && !"update".equals(token) && !"into".equals(token) && !"table".equals(token)) {
+                continue;
+            }
+
+            int j = i + 1;
+            while (j < tokens.size()) {
+                String name = tokens.get(j);
+                if (!isIdentifier(name)) {
+                    break;
+                }
+                addTable(tables, name);
+                j++;
+
+                if (!tableList && !"update".equals(token)) {
+                    break;
+                }
+                // 跳过别名，遇到逗号继续下一个表
+                if (j < tokens.size() && "as".equals(tokens.get(j))) {
+                    j++;
+                }
+                if (j < tokens.size() && isIdentifier(tokens.get(j)) && !isKeyword(tokens.get(j))) {
+                    j++;
+                }
+                if (j < tokens.size() && ",".equals(tokens.get(j))) {
+                    j++;
+                    continue;
+                }
+                break;
+            }
+            i = j - 1;
+        }
+
+        if (write && tables.isEmpty()) {
+            return new SqlTables(true, null);
+        }
+        return new SqlTables(write, tables.toArray(new String[0]));
+    }
+
+    private static void addTable(final List<String> tables, final String name) {
+        int dot = name.lastIndexOf('.');
+        String table = dot >= 0 ? name.substring(dot + 1) : name;
+        if (!table.isEmpty() && !tables.contains(table)) {
+            tables.add(table);
+        }
+    }
+
+    private static boolean isIdentifier(final String token) {
+        if (token.isEmpty() || isKeyword(token)) {
+            return false;
+        }
+        char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+
+    private static boolean isKeyword(final String token) {
+        switch (token) {
+            case "select":
+            case "where":
+            case "set":
+            case "values":
+            case "value":
+            case "on":
+            case "using":
+            case "join":
+            case "inner":
+            case "left":
+            case "right":
+            case "outer":
+            case "cross":
+            case "natural":
+            case "straight_join":
+            case "group":
+            case "order":
+            case "having":
+            case "limit":
+            case "union":
+            case "for":
+            case "lock":
+            case "partition":
+            case "force":
+            case "ignore":
+            case "use":
+            case "low_priority":
+            case "quick":
+            case "if":
+            case "not":
+            case "exists":
+            case "dual":
+            case "window":
+            case "into":
+            case "from":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 切成小写的标识符（带库名的a.b算一个）和单字符符号，字符串、注释、数字丢掉，引号包起来的标识符去掉引号
+     */
+    static List<String> tokenize(final String sql) {
+        List<String> tokens = new ArrayList<String>();
+        final int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-' || c == '#') {
+                while (i < length && sql.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i, c);
+            } else if (c == '`' || Character.isLetter(c) || c == '_' || c == '$') {
+                StringBuilder name = new StringBuilder();
+                while (i < length) {
+                    c = sql.charAt(i);
+                    if (c == '`') {
+                        int end = sql.indexOf('`', i + 1);
+                        if (end < 0) {
+                            end = length;
+                        }
+                        name.append(sql, i + 1, end);
+                        i = end + 1;
+                    } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.') {
+                        name.append(c);
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                tokens.add(name.toString().toLowerCase(Locale.ROOT));
+            } else if (Character.isDigit(c)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+            } else {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static int skipQuoted(final String sql, int i, final char quote) {
+        i++;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return i;
+    }
+}
@@ -1,7 +1,13 @@
 package org.lsd.alien.pool;
 
 import java.sql.Connection;
-import java.util.Timer;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import org.lsd.alien.cache.QueryResultCache;
 
 /**
  * @author nhsoft.lsd
@@ -13,6 +19,11 @@ public class AlienConnectionHolder {
 
 
     protected final long                          connectTimeMillis;
+
+    /**
+     * 开始建连时连接池的connectEpoch，和连接池当前值不同说明已经被drainConnections作废
+     */
+    protected final int                           connectEpoch;
     protected volatile long                       lastActiveTimeMillis;
     protected volatile long                       lastExecTimeMillis;
     protected volatile long                       lastKeepTimeMillis;
@@ -20,11 +31,119 @@ public class AlienConnectionHolder {
 
     protected volatile boolean active;
 
-    public AlienConnectionHolder(final Connection conn, final AlienDataSource dataSource) {
+    /**
+     * 借出时的System.nanoTime()，用来统计持有时间
+     */
+    protected volatile long borrowNanos;
+
+    /**
+     * 已经被丢弃，物理连接已关闭或者正在关闭
+     */
+    protected volatile boolean discard;
+
+    /**
+     * 借出超过removeAbandonedTimeoutMillis被连接池强制关闭
+     */
+    protected volatile boolean abandoned;
+
+    private static final AtomicIntegerFieldUpdater<AlienConnectionHolder> RUNNING_COUNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(AlienConnectionHolder.class, "runningCount");
+
+    /**
+     * 正在执行的语句数，大于0时不会被当作abandoned回收
+     */
+    private volatile int runningCount;
+
+    /**
+     * 以下是泄露检测用的借出信息，只在开启leakDetectionThresholdMillis时记录
+     */
+    protected volatile long      borrowTimeMillis;
+    protected volatile String    borrowThreadName;
+    protected volatile Throwable borrowStack;
+    protected volatile boolean   leakReported;
+
+    /**
+     * 在AlienDataSource借出连接数组里的下标，只在连接池lock内读写
+     */
+    protected int activeIndex = -1;
+
+    /**
+     * PreparedStatement缓存，poolPreparedStatements=false时为null
+     */
+    protected final PreparedStatementPool statementPool;
+
+    /**
+     * 会话属性和连接池默认值不一致的位，归还时只恢复这些属性
+     */
+    static final int DIRTY_AUTO_COMMIT     = 1;
+    static final int DIRTY_READ_ONLY       = 1 << 1;
+    static final int DIRTY_ISOLATION       = 1 << 2;
+    static final int DIRTY_CATALOG         = 1 << 3;
+    static final int DIRTY_SCHEMA          = 1 << 4;
+    static final int DIRTY_NETWORK_TIMEOUT = 1 << 5;
+
+    /**
+     * 恢复networkTimeout用，MySQL驱动要求executor不为null，在调用线程里直接执行即可
+     */
+    private static final Executor SYNC_EXECUTOR = Runnable::run;
+
+    /**
+     * 物理连接创建时（已经应用了连接池默认值）的会话属性
+     */
+    protected final boolean defaultAutoCommit;
+    protected final boolean defaultReadOnly;
+    protected final int     defaultTransactionIsolation;
+    protected final String  defaultCatalog;
+    protected final String  defaultSchema;
+    protected final int     defaultNetworkTimeout;
+
+    /**
+     * 当前的会话属性，只在借出线程里读写，借还之间通过连接池的lock保证可见性
+     */
+    protected boolean underlyingAutoCommit;
+    protected boolean underlyingReadOnly;
+    protected int     underlyingTransactionIsolation;
+    protected String  underlyingCatalog;
+    protected String  underlyingSchema;
+    protected int     underlyingNetworkTimeout;
+
+    protected int dirtyBits;
+
+    /**
+     * autoCommit=false时执行过语句，归还时需要回滚
+     */
+    protected boolean transactionDirty;
+
+    /**
+     * 当前事务里写过的表，事务结束时让查询缓存再失效一次：
+     * 提交之前其他连接读到的还是旧数据，可能已经又放进了缓存
+     */
+    private Set<String> transactionTables;
+    private boolean     transactionTablesAll;
+
+    /**
+     * @param connectEpoch 调用connect之前取的连接池connectEpoch
+     */
+    public AlienConnectionHolder(final Connection conn, final AlienDataSource dataSource, final int connectEpoch) throws SQLException {
         this.conn = conn;
         this.dataSource = dataSource;
         connectTimeMillis = System.currentTimeMillis();
+        this.connectEpoch = connectEpoch;
         this.lastActiveTimeMillis = connectTimeMillis;
+
+        this.defaultAutoCommit = underlyingAutoCommit = conn.getAutoCommit();
+        this.defaultReadOnly = underlyingReadOnly = conn.isReadOnly();
+        this.defaultTransactionIsolation = underlyingTransactionIsolation = conn.getTransactionIsolation();
+        this.defaultCatalog = underlyingCatalog = conn.getCatalog();
+        this.defaultSchema = underlyingSchema = getSchema(conn);
+        this.defaultNetworkTimeout = underlyingNetworkTimeout = getNetworkTimeout(conn);
+
+        if (dataSource.isPoolPreparedStatements()) {
+            statementPool = new PreparedStatementPool(this
+                    , dataSource.getPreparedStatementBudget()
+                    , dataSource.getMaxPoolPreparedStatementPerConnectionSize());
+        } else {
+            statementPool = null;
+        }
     }
 
     public Connection getConn() {
@@ -35,6 +154,10 @@ public class AlienConnectionHolder {
         return dataSource;
     }
 
+    public int getConnectEpoch() {
+        return connectEpoch;
+    }
+
     public long getLastExecTimeMillis() {
         return lastExecTimeMillis;
     }
@@ -43,4 +166,191 @@ public class AlienConnectionHolder {
         this.lastExecTimeMillis = lastExecTimeMillis;
     }
 
+    /**
+     * JDBC 4.1的方法，老驱动可能没有实现
+     */
+    private static String getSchema(final Connection conn) throws SQLException {
+        try {
+            return conn.getSchema();
+        } catch (SQLFeatureNotSupportedException | AbstractMethodError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * 拿不到时返回-1，不跟踪networkTimeout
+     */
+    private static int getNetworkTimeout(final Connection conn) throws SQLException {
+        try {
+            return conn.getNetworkTimeout();
+        } catch (SQLFeatureNotSupportedException | AbstractMethodError ex) {
+            return -1;
+        }
+    }
+
+    void setUnderlyingAutoCommit(final boolean autoCommit) {
+        underlyingAutoCommit = autoCommit;
+        dirty(DIRTY_AUTO_COMMIT, autoCommit != defaultAutoCommit);
+        if (autoCommit) {
+            // setAutoCommit(true)会提交当前事务
+            transactionDirty = false;
+            endTransaction();
+        }
+    }
+
+    void setUnderlyingReadOnly(final boolean readOnly) {
+        underlyingReadOnly = readOnly;
+        dirty(DIRTY_READ_ONLY, readOnly != defaultReadOnly);
+    }
+
+    void setUnderlyingTransactionIsolation(final int level) {
+        underlyingTransactionIsolation = level;
+        dirty(DIRTY_ISOLATION, level != defaultTransactionIsolation);
+    }
+
+    void setUnderlyingCatalog(final String catalog) {
+        underlyingCatalog = catalog;
+        dirty(DIRTY_CATALOG, defaultCatalog != null && !defaultCatalog.equals(catalog));
+    }
+
+    void setUnderlyingSchema(final String schema) {
+        underlyingSchema = schema;
+        dirty(DIRTY_SCHEMA, defaultSchema != null && !defaultSchema.equals(schema));
+    }
+
+    void setUnderlyingNetworkTimeout(final int milliseconds) {
+        underlyingNetworkTimeout = milliseconds;
+        dirty(DIRTY_NETWORK_TIMEOUT, defaultNetworkTimeout >= 0 && milliseconds != defaultNetworkTimeout);
+    }
+
+    private void dirty(final int bit, final boolean dirty) {
+        if (dirty) {
+            dirtyBits |= bit;
+        } else {
+            dirtyBits &= ~bit;
+        }
+    }
+
+    /**
+     * 归还时调用：回滚未提交的事务，只恢复和默认值不一致的会话属性。
+     * 开启resetConnectionOnRecycle时先用COM_RESET_CONNECTION重置MySQL会话，会话属性回到服务端默认值，所以全部重新设置；
+     * 服务端的预编译语句也随之释放，缓存的PreparedStatement一起清掉
+     */
+    void reset() throws SQLException {
+        if (transactionDirty && !underlyingAutoCommit) {
+            conn.rollback();
+        }
+        transactionDirty = false;
+        endTransaction();
+
+        if (dataSource.isResetConnectionOnRecycle() && dataSource.resetSession(conn)) {
+            clearStatementPool();
+            dirtyBits = DIRTY_AUTO_COMMIT | DIRTY_READ_ONLY | DIRTY_ISOLATION
+                    | (defaultCatalog != null ? DIRTY_CATALOG : 0)
+                    | (defaultSchema != null ? DIRTY_SCHEMA : 0);
+        }
+
+        final int dirtyBits = this.dirtyBits;
+        if (dirtyBits == 0) {
+            return;
+        }
+
+        if ((dirtyBits & DIRTY_AUTO_COMMIT) != 0) {
+            conn.setAutoCommit(defaultAutoCommit);
+            underlyingAutoCommit = defaultAutoCommit;
+        }
+        if ((dirtyBits & DIRTY_READ_ONLY) != 0) {
+            conn.setReadOnly(defaultReadOnly);
+            underlyingReadOnly = defaultReadOnly;
+        }
+        if ((dirtyBits & DIRTY_ISOLATION) != 0) {
+            conn.setTransactionIsolation(defaultTransactionIsolation);
+            underlyingTransactionIsolation = defaultTransactionIsolation;
+        }
+        if ((dirtyBits & DIRTY_CATALOG) != 0) {
+            conn.setCatalog(defaultCatalog);
+            underlyingCatalog = defaultCatalog;
+        }
+        if ((dirtyBits & DIRTY_SCHEMA) != 0) {
+            conn.setSchema(defaultSchema);
+            underlyingSchema = defaultSchema;
+        }
+        if ((dirtyBits & DIRTY_NETWORK_TIMEOUT) != 0) {
+            conn.setNetworkTimeout(SYNC_EXECUTOR, defaultNetworkTimeout);
+            underlyingNetworkTimeout = defaultNetworkTimeout;
+        }
+        this.dirtyBits = 0;
+    }
+
+    public int getRunningCount() {
+        return runningCount;
+    }
+
+    void incrementRunningCount() {
+        RUNNING_COUNT_UPDATER.incrementAndGet(this);
+    }
+
+    void decrementRunningCount() {
+        RUNNING_COUNT_UPDATER.decrementAndGet(this);
+    }
+
+    /**
+     * 语句执行以后调用，写语句让查询缓存里相关的表失效
+     */
+    void invalidateQueryCache(final String sql) {
+        final QueryResultCache cache = dataSource.getQueryResultCache();
+        if (cache == null || sql == null) {
+            return;
+        }
+
+        final String[] tables = cache.onExecute(sql);
+        if (underlyingAutoCommit || transactionTablesAll) {
+            return;
+        }
+        if (tables == null) {
+            transactionTablesAll = true;
+            transactionTables = null;
+        } else if (tables.length != 0) {
+            if (transactionTables == null) {
+                transactionTables = new HashSet<String>();
+            }
+            for (String table : tables) {
+                transactionTables.add(table);
+            }
+        }
+    }
+
+    /**
+     * 提交、回滚或者setAutoCommit(true)以后调用
+     */
+    void endTransaction() {
+        if (transactionTables == null && !transactionTablesAll) {
+            return;
+        }
+
+        final QueryResultCache cache = dataSource.getQueryResultCache();
+        if (cache != null) {
+            cache.invalidate(transactionTablesAll ? null : transactionTables.toArray(new String[0]));
+        }
+        transactionTables = null;
+        transactionTablesAll = false;
+    }
+
+    public boolean isAbandoned() {
+        return abandoned;
+    }
+
+    public PreparedStatementPool getStatementPool() {
+        return statementPool;
+    }
+
+    /**
+     * 物理连接关闭前调用，释放缓存的语句和全局预算
+     */
+    public void clearStatementPool() {
+        if (statementPool != null) {
+            statementPool.clear();
+        }
+    }
+
 }
@@ -1,6 +1,9 @@
 package org.lsd.alien.pool;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
@@ -9,25 +12,43 @@ import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.naming.OperationNotSupportedException;
 import javax.sql.ConnectionPoolDataSource;
 import javax.sql.DataSource;
+import org.lsd.alien.DbType;
+import org.lsd.alien.cache.MappedResultStore;
+import org.lsd.alien.cache.QueryResultCache;
 import org.lsd.alien.logging.Log;
 import org.lsd.alien.logging.LogFactory;
 import org.lsd.alien.pool.vendor.MySqlValidConnectionChecker;
+import org.lsd.alien.stat.JdbcSqlStatTable;
+import org.lsd.alien.stat.LatencyHistogram;
+import org.lsd.alien.stat.SlowSqlLogger;
 import org.lsd.alien.util.JdbcUtils;
 import org.lsd.alien.util.MySqlUtils;
 
 /**
  * @author nhsoft.lsd
  */
-public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
+public class AlienDataSource implements ConnectionPoolDataSource, DataSource, AlienDataSourceMBean {
 
     private static final Log LOG = LogFactory.getLog(AlienDataSource.class);
 
@@ -47,14 +68,94 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
     private AlienConnectionHolder[]  keepAliveConnections;
 
     /**
-     * 线程池里数据大小
+     * 线程池里数据大小，只在lock内修改，volatile是为了监控无锁读取
      */
-    private int poolingCount = 0;
+    private volatile int poolingCount = 0;
 
     /**
      * 活跃数，就是从connections获取后的数量
      */
-    private int activeCount = 0;
+    private volatile int activeCount = 0;
+
+    private volatile int activePeak = 0;
+
+    /**
+     * 正在notEmpty上等待的线程数
+     */
+    private volatile int notEmptyWaitThreadCount = 0;
+
+    /**
+     * drainConnections时加一，之前创建的连接归还时直接关闭
+     */
+    private volatile int connectEpoch;
+
+    private static final AtomicLongFieldUpdater<AlienDataSource> CREATE_COUNT_UPDATER         = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "createCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> CREATE_ERROR_COUNT_UPDATER   = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "createErrorCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> DESTROY_COUNT_UPDATER        = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "destroyCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> BORROW_COUNT_UPDATER         = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "borrowCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> RECYCLE_COUNT_UPDATER        = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "recycleCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> BORROW_TIMEOUT_COUNT_UPDATER = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "borrowTimeoutCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> DISCARD_COUNT_UPDATER        = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "discardCount");
+    private static final AtomicLongFieldUpdater<AlienDataSource> SQL_ERROR_COUNT_UPDATER      = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "sqlErrorCount");
+
+    private volatile long createCount;
+    private volatile long createErrorCount;
+    private volatile long destroyCount;
+    private volatile long borrowCount;
+    private volatile long recycleCount;
+    private volatile long borrowTimeoutCount;
+    private volatile long discardCount;
+    private volatile long sqlErrorCount;
+
+    /**
+     * 借连接的等待时间、连接被借出的持有时间和语句的执行时间
+     */
+    private final LatencyHistogram borrowWaitHistogram = new LatencyHistogram();
+    private final LatencyHistogram holdHistogram       = new LatencyHistogram();
+    private final LatencyHistogram executeHistogram    = new LatencyHistogram();
+
+    public final static long                           DEFAULT_TIME_BETWEEN_LEAK_DETECTION_RUNS_MILLIS = 10 * 1000L;
+    public final static double                         DEFAULT_LEAK_DETECTION_SAMPLE_RATE        = 0.01D;
+
+    /**
+     * 连接借出超过这个时间没有归还就报告泄露，小于等于0表示不检测
+     */
+    protected long                                     leakDetectionThresholdMillis              = 0;
+
+    /**
+     * 记录借出堆栈的比例，0到1，1表示每次借出都记录
+     */
+    protected volatile double                          leakDetectionSampleRate                   = DEFAULT_LEAK_DETECTION_SAMPLE_RATE;
+
+    protected long                                     timeBetweenLeakDetectionRunsMillis        = DEFAULT_TIME_BETWEEN_LEAK_DETECTION_RUNS_MILLIS;
+
+    public final static long                           DEFAULT_REMOVE_ABANDONED_TIMEOUT_MILLIS   = 300 * 1000L;
+
+    /**
+     * 借出超过removeAbandonedTimeoutMillis、并且这段时间里连接上没有任何交互的，强制关闭物理连接并收回名额
+     */
+    protected volatile boolean                         removeAbandoned                           = false;
+
+    protected volatile long                            removeAbandonedTimeoutMillis              = DEFAULT_REMOVE_ABANDONED_TIMEOUT_MILLIS;
+
+    /**
+     * 借出的连接，开启泄露检测或者removeAbandoned时才维护，只在lock内读写
+     */
+    private AlienConnectionHolder[] activeHolders;
+    private int activeHolderCount;
+
+    private Timer activeScanTimer;
+
+    /**
+     * 执行Connection.abort的线程池，第一次回收时才创建
+     */
+    private volatile ExecutorService abortExecutor;
+
+    private static final AtomicLongFieldUpdater<AlienDataSource> LEAK_COUNT_UPDATER = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "leakCount");
+    private volatile long leakCount;
+
+    private static final AtomicLongFieldUpdater<AlienDataSource> REMOVE_ABANDONED_COUNT_UPDATER = AtomicLongFieldUpdater.newUpdater(AlienDataSource.class, "removeAbandonedCount");
+    private volatile long removeAbandonedCount;
 
     public final static int DEFAULT_INITIAL_SIZE = 1;
     public final static int DEFAULT_MAX_ACTIVE_SIZE = 8;
@@ -86,6 +187,13 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
      */
     private long maxWait = DEFAULT_MAX_WAIT;
 
+    public final static long DEFAULT_TIME_BETWEEN_CONNECT_ERROR_MILLIS = 500L;
+
+    /**
+     * 创建连接失败后等待多久再重试，避免数据库不可用时创建线程空转
+     */
+    private volatile long timeBetweenConnectErrorMillis = DEFAULT_TIME_BETWEEN_CONNECT_ERROR_MILLIS;
+
     public static final long                           DEFAULT_MIN_EVICTABLE_IDLE_TIME_MILLIS    = 1000L * 60L * 30L;
     public static final long                           DEFAULT_MAX_EVICTABLE_IDLE_TIME_MILLIS    = 1000L * 60L * 60L * 7;
     public static final long                           DEFAULT_TIME_BETWEEN_EVICTION_RUNS_MILLIS = 60 * 1000L;
@@ -138,6 +246,151 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
     protected volatile String                          validationQuery                           = null;
     protected volatile int                             validationQueryTimeout                    = -1;
 
+    public final static int                            DEFAULT_MAX_POOL_PREPARED_STATEMENT_PER_CONNECTION_SIZE = 10;
+    public final static long                           DEFAULT_MAX_POOL_PREPARED_STATEMENT_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * 是否缓存PreparedStatement
+     */
+    protected boolean                                  poolPreparedStatements                    = false;
+
+    /**
+     * 每个连接最多缓存的PreparedStatement数
+     */
+    protected int                                      maxPoolPreparedStatementPerConnectionSize = DEFAULT_MAX_POOL_PREPARED_STATEMENT_PER_CONNECTION_SIZE;
+
+    /**
+     * 整个连接池最多缓存的PreparedStatement数，小于等于0表示maxActive * maxPoolPreparedStatementPerConnectionSize
+     */
+    protected int                                      maxPoolPreparedStatementCount             = -1;
+
+    /**
+     * 整个连接池缓存的PreparedStatement估算内存上限，小于等于0表示不限制
+     */
+    protected long                                     maxPoolPreparedStatementBytes             = DEFAULT_MAX_POOL_PREPARED_STATEMENT_BYTES;
+
+    private PreparedStatementBudget preparedStatementBudget;
+
+    /**
+     * 物理连接创建后设置的会话属性，借出期间被修改的属性归还时恢复成这些值；为null的使用驱动默认值
+     */
+    protected volatile boolean                         defaultAutoCommit                         = true;
+    protected volatile Boolean                         defaultReadOnly;
+    protected volatile Integer                         defaultTransactionIsolation;
+    protected volatile String                          defaultCatalog;
+
+    /**
+     * 归还时是否重置MySQL会话（清理用户变量、临时表等），会多一次网络往返。
+     * 重置会释放服务端的预编译语句，和poolPreparedStatements一起开启时每次归还都会清空语句缓存
+     */
+    protected volatile boolean                         resetConnectionOnRecycle                  = false;
+
+    /**
+     * getConnection只返回逻辑连接，第一次创建语句时才借出物理连接，缩短事务开始到第一条SQL之间的占用时间
+     */
+    protected volatile boolean                         lazyConnectionBinding                     = false;
+
+    /**
+     * 事务级复用，隐含lazyConnectionBinding：autoCommit并且没有打开的语句时，逻辑连接把物理连接还给连接池，
+     * 多个逻辑连接在语句之间共享少量物理连接。会话属性被修改过的连接不会释放。
+     * 连接池察觉不到服务端会话状态，两条语句之间可能换了物理连接，详见{@link #setTransactionPooling(boolean)}
+     */
+    protected volatile boolean                         transactionPooling                        = false;
+
+    /**
+     * 是否按SQL统计执行次数、耗时、读取和影响行数
+     */
+    protected boolean                                  statEnabled                               = true;
+
+    /**
+     * 最多统计多少条不同的SQL，超出的记到overflow里
+     */
+    protected int                                      maxSqlStatSize                            = JdbcSqlStatTable.DEFAULT_CAPACITY;
+
+    /**
+     * 是否把SQL参数化以后再统计，字面量不同的SQL合并成一条
+     */
+    protected boolean                                  statMergeSql                              = true;
+
+    private JdbcSqlStatTable sqlStatTable;
+
+    public final static long                           DEFAULT_SLOW_SQL_MILLIS                   = 3000L;
+    public final static String                         DEFAULT_SLOW_SQL_LOG_FILE                 = "logs/alien-slow-sql.log";
+    public final static long                           DEFAULT_SLOW_SQL_LOG_MAX_FILE_BYTES       = 64L * 1024L * 1024L;
+    public final static int                            DEFAULT_SLOW_SQL_LOG_MAX_BACKUPS          = 5;
+    public final static int                            DEFAULT_SLOW_SQL_LOG_QUEUE_CAPACITY       = 1024;
+
+    /**
+     * 是否记录慢SQL，执行耗时超过slowSqlMillis的SQL异步写入slowSqlLogFile
+     */
+    protected boolean                                  logSlowSql                                = false;
+
+    protected long                                     slowSqlMillis                             = DEFAULT_SLOW_SQL_MILLIS;
+
+    /**
+     * 慢SQL日志里是否输出PreparedStatement的参数，开启后每次set参数都会多记一份引用
+     */
+    protected boolean                                  slowSqlLogParameters                      = false;
+
+    protected String                                   slowSqlLogFile                            = DEFAULT_SLOW_SQL_LOG_FILE;
+
+    /**
+     * 单个慢SQL日志文件的大小上限，超过后滚动
+     */
+    protected long                                     slowSqlLogMaxFileBytes                    = DEFAULT_SLOW_SQL_LOG_MAX_FILE_BYTES;
+
+    protected int                                      slowSqlLogMaxBackups                      = DEFAULT_SLOW_SQL_LOG_MAX_BACKUPS;
+
+    /**
+     * 等待写入的慢SQL最多缓存多少条，满了以后丢弃并计数
+     */
+    protected int                                      slowSqlLogQueueCapacity                   = DEFAULT_SLOW_SQL_LOG_QUEUE_CAPACITY;
+
+    private SlowSqlLogger slowSqlLogger;
+
+    /**
+     * 是否缓存查询结果，只缓存queryCacheSqls里的SQL，同一个连接池上写了相关的表以后失效。
+     * 其他应用或者其他连接池写的数据感知不到，只适合读多写少并且所有写入都经过这个连接池的表
+     */
+    protected boolean                                  queryCacheEnabled                         = false;
+
+    /**
+     * 允许缓存的SQL，按参数化以后的指纹匹配，字面量不同的SQL算同一条
+     */
+    protected Collection<String>                       queryCacheSqls                            = Collections.emptyList();
+
+    protected long                                     queryCacheMaxBytes                        = QueryResultCache.DEFAULT_MAX_BYTES;
+
+    /**
+     * 单个查询结果超过这个大小不缓存
+     */
+    protected long                                     queryCacheMaxEntryBytes                   = QueryResultCache.DEFAULT_MAX_ENTRY_BYTES;
+
+    /**
+     * 超过queryCacheMaxEntryBytes的结果写到这个目录下的内存映射文件里，为null时不缓存
+     */
+    protected String                                   queryCacheSpillDirectory                  = null;
+
+    /**
+     * 映射文件的大小，最大2GB
+     */
+    protected long                                     queryCacheSpillMaxBytes                   = MappedResultStore.DEFAULT_MAX_BYTES;
+
+    protected long                                     queryCacheSpillMaxEntryBytes              = MappedResultStore.DEFAULT_MAX_ENTRY_BYTES;
+
+    private QueryResultCache queryResultCache;
+
+    private DbType dbType;
+
+    /**
+     * 注册JMX时使用的名字，不设置时用identityHashCode生成
+     */
+    private String name;
+
+    protected boolean                                  jmxEnabled                                = true;
+
+    private ObjectName objectName;
+
     private Driver driver;
     private String driverClassName;
     private String url;
@@ -157,6 +410,11 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
 
     private boolean inited = false;
 
+    private volatile boolean closed = false;
+
+    private Thread createConnectionThread;
+    private Thread destroyConnectionThread;
+
     public AlienDataSource() {
         this(false);
     }
@@ -216,6 +474,23 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
 
         validationQueryCheck();
 
+        if (poolPreparedStatements) {
+            int maxCount = maxPoolPreparedStatementCount;
+            if (maxCount <= 0) {
+                maxCount = maxActive * maxPoolPreparedStatementPerConnectionSize;
+            }
+            preparedStatementBudget = new PreparedStatementBudget(maxCount, maxPoolPreparedStatementBytes);
+        }
+
+        if (statEnabled) {
+            sqlStatTable = new JdbcSqlStatTable(maxSqlStatSize);
+        }
+
+        if (logSlowSql) {
+            slowSqlLogger = new SlowSqlLogger(slowSqlMillis, slowSqlLogParameters, slowSqlLogFile, slowSqlLogMaxFileBytes, slowSqlLogMaxBackups, slowSqlLogQueueCapacity);
+            slowSqlLogger.start("Alien-ConnectionPool-SlowSql-" + System.identityHashCode(this));
+        }
+
         /**
          * 1. 初始化Driver
          */
@@ -230,6 +505,23 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
 
         driver = DriverManager.getDriver(url);
 
+        dbType = JdbcUtils.getDbTypeRaw(url, driverClassName);
+
+        if (queryCacheEnabled) {
+            MappedResultStore spillStore = null;
+            if (queryCacheSpillDirectory != null) {
+                if (queryCacheSpillMaxBytes <= 0 || queryCacheSpillMaxBytes > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("illegal queryCacheSpillMaxBytes " + queryCacheSpillMaxBytes);
+                }
+                try {
+                    spillStore = new MappedResultStore(new File(queryCacheSpillDirectory), queryCacheSpillMaxBytes, queryCacheSpillMaxEntryBytes);
+                } catch (IOException ex) {
+                    throw new SQLException("create query cache spill file error, directory " + queryCacheSpillDirectory, ex);
+                }
+            }
+            queryResultCache = new QueryResultCache(dbType, queryCacheSqls, queryCacheMaxBytes, queryCacheMaxEntryBytes, spillStore);
+        }
+
         /**
          * 2. 初始化SQLChecker，这个主要用于校验连接有效性
          */
@@ -242,15 +534,25 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         connections = new AlienConnectionHolder[maxActive];
         evictConnections = new AlienConnectionHolder[maxActive];
         keepAliveConnections = new AlienConnectionHolder[maxActive];
+        if (leakDetectionThresholdMillis > 0 || removeAbandoned) {
+            activeHolders = new AlienConnectionHolder[maxActive];
+        }
 
         //同步创建初始化线程
         while (poolingCount < (keepAlive ? minIdle : initialSize)) {
+            Connection connection = null;
             try {
-                Connection connection = createPhysicalConnection();
-                AlienConnectionHolder holder = new AlienConnectionHolder(connection, this);
+                int epoch = connectEpoch;
+                connection = createPhysicalConnection();
+                AlienConnectionHolder holder = new AlienConnectionHolder(connection, this, epoch);
                 connections[poolingCount++] = holder;
+                CREATE_COUNT_UPDATER.incrementAndGet(this);
             } catch (SQLException ex) {
+                CREATE_ERROR_COUNT_UPDATER.incrementAndGet(this);
                 LOG.error("init datasource error, url: " + this.getUrl(), ex);
+                JdbcUtils.close(connection);
+                // 数据库不可用时不在这里重试，剩下的交给创建线程按timeBetweenConnectErrorMillis重试
+                break;
             }
         }
 
@@ -266,6 +568,15 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
             throw new SQLException(e.getMessage(), e);
         }
         inited = true;
+
+        if (activeHolders != null) {
+            createAndStartActiveScanTimer();
+        }
+
+        if (jmxEnabled) {
+            registerMBean();
+        }
+
         LOG.info("AlienDataSource inited");
         LOG.info("当前连接数：" + poolingCount);
     }
@@ -280,7 +591,8 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
             this.validConnectionChecker = new MySqlValidConnectionChecker(false);
 
         } else {
-            throw new SQLException(realDriverClassName + " not supported");
+            // 其他驱动只用validationQuery校验
+            this.validConnectionChecker = new ValidConnectionCheckerAdapter();
         }
 
     }
@@ -321,50 +633,47 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
     public void recycle(AlienPooledConnection conn) throws SQLException{
 
         AlienConnectionHolder holder = conn.getHolder();
-        if (conn.isClosed()) {
+        holdHistogram.record(System.nanoTime() - holder.borrowNanos);
+        RECYCLE_COUNT_UPDATER.incrementAndGet(this);
 
-            try {
-                lock.lock();
-                if (holder.active) {
-                    activeCount--;
-                    holder.active = false;
-                }
-            } finally {
-                lock.unlock();
-            }
+        // abort是异步的，被当作abandoned回收的连接isClosed可能还是false
+        if (closed || holder.discard || holder.connectEpoch != connectEpoch || holder.conn.isClosed()) {
+            discardConnection(holder);
+            return;
+        }
 
+        try {
+            holder.reset();
+        } catch (SQLException ex) {
+            LOG.warn("reset connection error, url: " + url, ex);
+            discardConnection(holder);
             return;
         }
 
         if (testOnReturn) {
-            boolean validate = testConnectionInternal(holder, conn);
+            boolean validate = testConnectionInternal(holder, holder.conn);
             if (!validate) {
-                JdbcUtils.close(conn);
-                lock.lock();
-                try {
-                    if (holder.active) {
-                        activeCount--;
-                        holder.active = false;
-                    }
-                } finally {
-                    lock.unlock();
-                }
+                discardConnection(holder);
                 return;
             }
         }
 
+        holder.lastActiveTimeMillis = System.currentTimeMillis();
+
         lock.lock();
         try {
-            LOG.info("归还前，连接池里连接数为" + poolingCount);
+            releaseActive(holder);
 
             connections[poolingCount] = holder;
             poolingCount++;
 
-            notEmpty.signalAll();
-
+            notEmpty.signal();
         } finally {
             lock.unlock();
-            LOG.info("归还后，连接池里连接数为" + poolingCount);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("归还后，连接池里连接数为" + poolingCount);
         }
     }
 
@@ -374,6 +683,33 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         thread.setName(threadName);
         thread.setDaemon(true);
         thread.start();
+        createConnectionThread = thread;
+    }
+
+    /**
+     * 泄露检测和回收abandoned连接共用一个定时器，都按timeBetweenLeakDetectionRunsMillis扫描借出的连接
+     */
+    private void createAndStartActiveScanTimer() {
+        String threadName = "Alien-ConnectionPool-ActiveScan-" + System.identityHashCode(this);
+        long period = timeBetweenLeakDetectionRunsMillis > 0 ? timeBetweenLeakDetectionRunsMillis : DEFAULT_TIME_BETWEEN_LEAK_DETECTION_RUNS_MILLIS;
+
+        activeScanTimer = new Timer(threadName, true);
+        activeScanTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    if (leakDetectionThresholdMillis > 0) {
+                        detectLeaks();
+                    }
+                    if (removeAbandoned) {
+                        removeAbandoned();
+                    }
+                } catch (Throwable ex) {
+                    // 异常会让Timer线程退出，这里吞掉
+                    LOG.error("scan active connections error", ex);
+                }
+            }
+        }, period, period);
     }
 
     private void createAndStartDestroyThread() {
@@ -382,6 +718,7 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         thread.setName(threadName);
         thread.setDaemon(true);
         thread.start();
+        destroyConnectionThread = thread;
     }
 
     /**
@@ -406,6 +743,7 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
                         break;
                     }
                     shrink(true, keepAlive);
+                    purgeIdleStatementPools();
                 } catch (InterruptedException e) {
                     break;
                 }
@@ -426,7 +764,7 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         int keepAliveCount = 0;
 
         try {
-            if (!inited) {
+            if (!inited || closed) {
                 return;
             }
 
@@ -486,7 +824,9 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
             for (int i = 0; i < evictCount; ++i) {
                 AlienConnectionHolder item = evictConnections[i];
                 Connection connection = item.getConn();
+                item.clearStatementPool();
                 JdbcUtils.close(connection);
+                DESTROY_COUNT_UPDATER.incrementAndGet(this);
             }
             Arrays.fill(evictConnections, null);
         }
@@ -514,29 +854,20 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
 
                     lock.lock();
                     try {
-                        connections[poolingCount] = holder;
-                        poolingCount++;
-                        notEmpty.signal();
+                        if (closed) {
+                            discard = true;
+                        } else {
+                            connections[poolingCount] = holder;
+                            poolingCount++;
+                            notEmpty.signal();
+                        }
                     } finally {
                         lock.unlock();
                     }
                 }
 
                 if (discard) {
-                    try {
-                        connection.close();
-                    } catch (Exception e) {
-                        // skip
-                    }
-
-                    lock.lock();
-                    try {
-                        if (activeCount + poolingCount <= minIdle) {
-                            empty.signalAll();
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
+                    discardConnection(holder);
                 }
             }
             Arrays.fill(keepAliveConnections, null);//处理完以后，要将keepAliveConnections置空，以备下次还要用
@@ -557,6 +888,48 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         LOG.info("回收连接后，当前连接数：" + poolingCount);
     }
 
+    /**
+     * 全局预算驱逐的语句要等所属连接下次借出或归还才物理关闭，一直空闲的连接由销毁线程在这里关闭。
+     * 语句在lock内移出缓存，这时空闲连接不会同时被借出；解锁以后再关闭，关闭语句是网络IO，不能挡住借出和归还。
+     * 连接这时可能已经被借出，驱动的Statement.close和连接上的其他操作是互斥的
+     */
+    void purgeIdleStatementPools() {
+        if (preparedStatementBudget == null) {
+            return;
+        }
+
+        List<Statement> statements = null;
+        lock.lock();
+        try {
+            if (!inited || closed) {
+                return;
+            }
+            for (int i = 0; i < poolingCount; ++i) {
+                PreparedStatementPool statementPool = connections[i].statementPool;
+                if (statementPool == null) {
+                    continue;
+                }
+                List<Statement> evicted = statementPool.takeEvicted();
+                if (evicted == null) {
+                    continue;
+                }
+                if (statements == null) {
+                    statements = evicted;
+                } else {
+                    statements.addAll(evicted);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (statements != null) {
+            for (Statement statement : statements) {
+                JdbcUtils.close(statement);
+            }
+        }
+    }
+
     /**
      * 创建数据库连接
      */
@@ -576,45 +949,91 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
                 }
 
                 Connection conn = null;
+                boolean connectError = false;
                 try {
 
-                    if (keepAlive) {
-                        if (poolingCount < minIdle) {
-                            empty.await();
-                            continue;
-                        }
+                    if (closed) {
+                        break;
                     }
 
-                    if (poolingCount >= maxActive) {
+                    // 借出的连接也占用maxActive的名额
+                    if (poolingCount + activeCount >= maxActive) {
                         empty.await();
                         continue;
                     }
 
+                    // 建连之前取epoch，建连期间drainConnections的话这个连接也算作废
+                    int epoch = connectEpoch;
                     conn = createPhysicalConnection();
-                    AlienConnectionHolder holder = new AlienConnectionHolder(conn, AlienDataSource.this);
+                    AlienConnectionHolder holder = new AlienConnectionHolder(conn, AlienDataSource.this, epoch);
                     connections[poolingCount] = holder;
                     poolingCount++;
+                    CREATE_COUNT_UPDATER.incrementAndGet(AlienDataSource.this);
 
                     notEmpty.signalAll();
 
-                    LOG.info("创建线程后，当前连接数：" + poolingCount);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("创建线程后，当前连接数：" + poolingCount);
+                    }
 
                 } catch (InterruptedException e) {
                     break;
                 } catch (SQLException e) {
+                    CREATE_ERROR_COUNT_UPDATER.incrementAndGet(AlienDataSource.this);
                     LOG.error(e.getMessage(), e);
                     JdbcUtils.close(conn);
+                    connectError = true;
                 } catch (Exception e) {
+                    CREATE_ERROR_COUNT_UPDATER.incrementAndGet(AlienDataSource.this);
                     LOG.error(e.getMessage(), e);
                     JdbcUtils.close(conn);
+                    connectError = true;
                 } finally {
                     lock.unlock();
                 }
+
+                // 失败后在锁外等一会再重试，借连接的线程按maxWait超时，不会被创建线程拖住
+                long backoffMillis = timeBetweenConnectErrorMillis;
+                if (connectError && backoffMillis > 0) {
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
             }
         }
     }
 
     private Connection createPhysicalConnection() throws SQLException {
+        Connection conn = connect(getConnectProperties());
+        if (conn == null) {
+            throw new SQLException("driver does not accept url: " + url);
+        }
+        try {
+            initPhysicalConnection(conn);
+        } catch (SQLException ex) {
+            JdbcUtils.close(conn);
+            throw ex;
+        }
+        return conn;
+    }
+
+    /**
+     * 建立物理连接，子类可以覆盖来选择连接哪个地址
+     */
+    protected Connection connect(final Properties properties) throws SQLException {
+        return getDriver().connect(url, properties);
+    }
+
+    /**
+     * 归还时重置服务端会话，驱动不支持时返回false，子类可以覆盖
+     */
+    protected boolean resetSession(final Connection conn) throws SQLException {
+        return MySqlUtils.resetConnection(conn);
+    }
+
+    protected Properties getConnectProperties() {
         Properties properties = new Properties();
         if (username != null && username.length() != 0) {
             properties.put("user", username);
@@ -623,8 +1042,31 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         if (password != null && password.length() != 0) {
             properties.put("password", password);
         }
-        Connection conn = getDriver().connect(url, properties);
-        return conn;
+        return properties;
+    }
+
+    /**
+     * 应用连接池默认的会话属性，和驱动当前值一样的不重复设置
+     */
+    private void initPhysicalConnection(final Connection conn) throws SQLException {
+        if (conn.getAutoCommit() != defaultAutoCommit) {
+            conn.setAutoCommit(defaultAutoCommit);
+        }
+
+        Boolean readOnly = defaultReadOnly;
+        if (readOnly != null && conn.isReadOnly() != readOnly) {
+            conn.setReadOnly(readOnly);
+        }
+
+        Integer transactionIsolation = defaultTransactionIsolation;
+        if (transactionIsolation != null && conn.getTransactionIsolation() != transactionIsolation) {
+            conn.setTransactionIsolation(transactionIsolation);
+        }
+
+        String catalog = defaultCatalog;
+        if (catalog != null && catalog.length() != 0) {
+            conn.setCatalog(catalog);
+        }
     }
 
     public Driver getDriver() {
@@ -638,25 +1080,41 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
 
     public AlienPooledConnection getConnection(long maxWaitMillis) throws SQLException {
 
+        if (closed) {
+            throw new SQLException("dataSource already closed");
+        }
+
+        if (lazyConnectionBinding || transactionPooling) {
+            return new AlienPooledConnection(this, maxWaitMillis);
+        }
+
+        return new AlienPooledConnection(getConnectionHolder(maxWaitMillis));
+    }
+
+    /**
+     * 借出一个校验过的物理连接
+     */
+    AlienConnectionHolder getConnectionHolder(long maxWaitMillis) throws SQLException {
+
+        if (closed) {
+            throw new SQLException("dataSource already closed");
+        }
+
         final long nanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
 
         for(;;) {
+            final long startNanos = System.nanoTime();
             AlienConnectionHolder holder;
-            if (maxWait > 0) {
+            if (maxWaitMillis > 0) {
                 holder = pollLast(nanos);
             } else {
                 holder = takeLast();
             }
+            holder.borrowNanos = System.nanoTime();
+            borrowWaitHistogram.record(holder.borrowNanos - startNanos);
+            BORROW_COUNT_UPDATER.incrementAndGet(this);
+
             holder.lastActiveTimeMillis = System.currentTimeMillis();
-            lock.lock();
-            try {
-                if (activeCount < maxActive) {
-                    activeCount++;
-                    holder.active = true;
-                }
-            } finally {
-                lock.unlock();
-            }
 
             if (testOnBorrow) {
                 boolean validate = testConnectionInternal(holder, holder.conn);
@@ -713,10 +1171,18 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
                 }
             }
 
-            return new AlienPooledConnection(holder);
-        }
+            if (holder.statementPool != null) {
+                holder.statementPool.purgeEvicted();
+            }
 
-    }
+            if (activeHolders != null) {
+                recordBorrower(holder);
+            }
+
+            return holder;
+        }
+
+    }
 
     protected boolean testConnectionInternal(AlienConnectionHolder holder, Connection conn) {
 
@@ -777,28 +1243,72 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         }
     }
 
+    /**
+     * 抛弃连接，不进行回收，而是抛弃，同一个连接重复调用只处理一次
+     */
     public void discardConnection(AlienConnectionHolder holder) {
-        discardConnection(holder.conn);
+        lock.lock();
+        try {
+            if (holder.discard) {
+                return;
+            }
+            holder.discard = true;
+
+            releaseActive(holder);
+
+            empty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        holder.clearStatementPool();
+        JdbcUtils.close(holder.conn);
+        DISCARD_COUNT_UPDATER.incrementAndGet(this);
+        DESTROY_COUNT_UPDATER.incrementAndGet(this);
     }
 
     /**
-     * 抛弃连接，不进行回收，而是抛弃
+     * 一次性关闭所有空闲连接，借出的连接归还时关闭，用于切换数据库地址以后丢掉旧连接。
+     * 在锁内整体摘下空闲连接，锁外再逐个关闭，不会在切换期间把旧连接一个个借出去
      *
-     * @param realConnection
-     * @deprecated
+     * @return 关闭的空闲连接数
      */
-    public void discardConnection(Connection realConnection) {
-        JdbcUtils.close(realConnection);
+    public int drainConnections() {
+        AlienConnectionHolder[] holders;
+        int count;
+
         lock.lock();
         try {
-            activeCount--;
+            connectEpoch++;
 
-            if (activeCount <= minIdle) {
-                empty.signalAll();
+            count = poolingCount;
+            if (count == 0 || connections == null) {
+                return 0;
+            }
+            holders = Arrays.copyOf(connections, count);
+            Arrays.fill(connections, 0, count, null);
+            poolingCount = 0;
+            for (int i = 0; i < count; ++i) {
+                holders[i].discard = true;
             }
+
+            empty.signalAll();
         } finally {
             lock.unlock();
         }
+
+        for (int i = 0; i < count; ++i) {
+            AlienConnectionHolder holder = holders[i];
+            holder.clearStatementPool();
+            JdbcUtils.close(holder.conn);
+            DISCARD_COUNT_UPDATER.incrementAndGet(this);
+            DESTROY_COUNT_UPDATER.incrementAndGet(this);
+        }
+        return count;
+    }
+
+    public int getConnectEpoch() {
+        return connectEpoch;
     }
 
     private AlienConnectionHolder pollLast(long waitNanos) throws SQLException {
@@ -808,19 +1318,27 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
             throw new SQLException("interrupt", e);
         }
         try {
+            long estimate = waitNanos;
             while (poolingCount == 0) {
+                if (closed) {
+                    throw new SQLException("dataSource already closed");
+                }
+                if (estimate <= 0) {
+                    BORROW_TIMEOUT_COUNT_UPDATER.incrementAndGet(this);
+                    throw new GetConnectionTimeoutException("wait millis " + TimeUnit.NANOSECONDS.toMillis(waitNanos)
+                            + ", active " + activeCount + ", maxActive " + maxActive);
+                }
+
                 empty.signalAll();
-                notEmpty.awaitNanos(waitNanos);
+                notEmptyWaitThreadCount++;
+                try {
+                    estimate = notEmpty.awaitNanos(estimate);
+                } finally {
+                    notEmptyWaitThreadCount--;
+                }
             }
 
-            poolingCount--;
-            AlienConnectionHolder last = connections[poolingCount];
-            connections[poolingCount] = null;
-
-            empty.signalAll();
-
-            LOG.info("获取线程后pollLast，当前连接数：" + poolingCount);
-            return last;
+            return takeHolder();
         } catch (InterruptedException e) {
             throw new SQLException(e.getMessage(), e);
         } finally {
@@ -836,16 +1354,20 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         }
         try {
             while (poolingCount == 0) {
+                if (closed) {
+                    throw new SQLException("dataSource already closed");
+                }
+
                 empty.signalAll();
-                notEmpty.await();
+                notEmptyWaitThreadCount++;
+                try {
+                    notEmpty.await();
+                } finally {
+                    notEmptyWaitThreadCount--;
+                }
             }
 
-            poolingCount--;
-            AlienConnectionHolder last = connections[poolingCount];
-            connections[poolingCount] = null;
-
-            LOG.info("获取线程后takeLast，当前连接数：" + poolingCount);
-            return last;
+            return takeHolder();
         } catch (InterruptedException e) {
             throw new SQLException(e.getMessage(), e);
         } finally {
@@ -853,6 +1375,335 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
         }
     }
 
+    /**
+     * 记录借出线程，按leakDetectionSampleRate抽样记录借出堆栈。
+     * Throwable只在JVM里保存紧凑的栈帧，StackTraceElement到报告泄露时才会展开
+     */
+    private void recordBorrower(final AlienConnectionHolder holder) {
+        holder.borrowThreadName = Thread.currentThread().getName();
+
+        final double sampleRate = leakDetectionSampleRate;
+        if (sampleRate >= 1.0D || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate)) {
+            holder.borrowStack = new Throwable("connection borrowed here");
+        } else {
+            holder.borrowStack = null;
+        }
+    }
+
+    /**
+     * 在lock内调用，取出最后一个空闲连接并记为借出
+     */
+    private AlienConnectionHolder takeHolder() {
+        poolingCount--;
+        AlienConnectionHolder last = connections[poolingCount];
+        connections[poolingCount] = null;
+
+        activeCount++;
+        last.active = true;
+        if (activeCount > activePeak) {
+            activePeak = activeCount;
+        }
+
+        if (activeHolders != null) {
+            last.borrowTimeMillis = System.currentTimeMillis();
+            last.leakReported = false;
+            last.activeIndex = activeHolderCount;
+            activeHolders[activeHolderCount++] = last;
+        }
+
+        empty.signalAll();
+        return last;
+    }
+
+    /**
+     * 在lock内调用，借出的连接归还或者被丢弃
+     */
+    private void releaseActive(final AlienConnectionHolder holder) {
+        if (!holder.active) {
+            return;
+        }
+        activeCount--;
+        holder.active = false;
+
+        int index = holder.activeIndex;
+        if (activeHolders != null && index >= 0) {
+            int last = --activeHolderCount;
+            if (index != last) {
+                AlienConnectionHolder moved = activeHolders[last];
+                activeHolders[index] = moved;
+                moved.activeIndex = index;
+            }
+            activeHolders[last] = null;
+            holder.activeIndex = -1;
+        }
+    }
+
+    /**
+     * 定时扫描借出的连接，持有时间超过leakDetectionThresholdMillis的报告一次
+     */
+    void detectLeaks() {
+        final long currentTimeMillis = System.currentTimeMillis();
+
+        // 借出信息在锁内复制出来，锁外连接可能已经归还并被别的线程借走
+        long[] borrowTimes = null;
+        String[] borrowThreadNames = null;
+        Throwable[] borrowStacks = null;
+        int leakCount = 0;
+
+        lock.lock();
+        try {
+            for (int i = 0; i < activeHolderCount; ++i) {
+                AlienConnectionHolder holder = activeHolders[i];
+                if (holder.leakReported || currentTimeMillis - holder.borrowTimeMillis < leakDetectionThresholdMillis) {
+                    continue;
+                }
+                holder.leakReported = true;
+                if (borrowTimes == null) {
+                    borrowTimes = new long[activeHolderCount];
+                    borrowThreadNames = new String[activeHolderCount];
+                    borrowStacks = new Throwable[activeHolderCount];
+                }
+                borrowTimes[leakCount] = holder.borrowTimeMillis;
+                borrowThreadNames[leakCount] = holder.borrowThreadName;
+                borrowStacks[leakCount] = holder.borrowStack;
+                leakCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // 日志在锁外输出，堆栈也是到这里才真正展开
+        for (int i = 0; i < leakCount; ++i) {
+            LEAK_COUNT_UPDATER.incrementAndGet(this);
+
+            String message = "connection leak detected, held " + (currentTimeMillis - borrowTimes[i])
+                    + "ms by thread " + borrowThreadNames[i] + ", url: " + url;
+            Throwable borrowStack = borrowStacks[i];
+            if (borrowStack != null) {
+                LOG.warn(message, borrowStack);
+            } else {
+                LOG.warn(message + ", borrow stack not sampled, see leakDetectionSampleRate");
+            }
+        }
+    }
+
+    /**
+     * 回收abandoned连接：借出超过removeAbandonedTimeoutMillis，没有语句在执行，
+     * 并且最近一次执行（或者驱动最后收到数据包）也在removeAbandonedTimeoutMillis之前
+     */
+    void removeAbandoned() {
+        final long timeoutMillis = removeAbandonedTimeoutMillis;
+        final long currentTimeMillis = System.currentTimeMillis();
+
+        AlienConnectionHolder[] abandoned = null;
+        long[] borrowTimes = null;
+        int abandonedCount = 0;
+
+        lock.lock();
+        try {
+            for (int i = 0; i < activeHolderCount; ++i) {
+                AlienConnectionHolder holder = activeHolders[i];
+                if (holder.getRunningCount() > 0 || currentTimeMillis - holder.borrowTimeMillis < timeoutMillis) {
+                    continue;
+                }
+                if (currentTimeMillis - holder.lastExecTimeMillis < timeoutMillis) {
+                    continue;
+                }
+                if (abandoned == null) {
+                    abandoned = new AlienConnectionHolder[activeHolderCount];
+                    borrowTimes = new long[activeHolderCount];
+                }
+                abandoned[abandonedCount] = holder;
+                borrowTimes[abandonedCount] = holder.borrowTimeMillis;
+                abandonedCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = 0; i < abandonedCount; ++i) {
+            AlienConnectionHolder holder = abandoned[i];
+
+            // 驱动能拿到最后收包时间的，以它为准，防止把正在读大结果集的连接关掉
+            if (DbType.mysql == dbType) {
+                try {
+                    long lastPacketReceivedTimeMs = MySqlUtils.getLastPacketReceivedTimeMs(holder.conn);
+                    if (lastPacketReceivedTimeMs > 0 && currentTimeMillis - lastPacketReceivedTimeMs < timeoutMillis) {
+                        continue;
+                    }
+                } catch (SQLException ex) {
+                    // ignore
+                }
+            }
+
+            if (!markAbandoned(holder, borrowTimes[i], timeoutMillis, currentTimeMillis)) {
+                continue;
+            }
+
+            abort(holder);
+            REMOVE_ABANDONED_COUNT_UPDATER.incrementAndGet(this);
+            DESTROY_COUNT_UPDATER.incrementAndGet(this);
+
+            String message = "abandoned connection removed, held " + (currentTimeMillis - holder.borrowTimeMillis)
+                    + "ms by thread " + holder.borrowThreadName + ", url: " + url;
+            Throwable borrowStack = holder.borrowStack;
+            if (borrowStack != null) {
+                LOG.warn(message, borrowStack);
+            } else {
+                LOG.warn(message);
+            }
+        }
+    }
+
+    /**
+     * 在lock内重新检查并标记为abandoned，锁外检查期间连接可能已经归还、被重新借出或者开始执行
+     *
+     * @param borrowTimeMillis 扫描时看到的借出时间，变了说明已经是另一次借出
+     * @return false表示不再回收
+     */
+    boolean markAbandoned(final AlienConnectionHolder holder, final long borrowTimeMillis, final long timeoutMillis, final long currentTimeMillis) {
+        lock.lock();
+        try {
+            if (!holder.active || holder.discard || holder.getRunningCount() > 0
+                    || holder.borrowTimeMillis != borrowTimeMillis
+                    || currentTimeMillis - holder.borrowTimeMillis < timeoutMillis
+                    || currentTimeMillis - holder.lastExecTimeMillis < timeoutMillis) {
+                return false;
+            }
+            holder.abandoned = true;
+            holder.discard = true;
+            releaseActive(holder);
+            empty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 用Connection.abort关闭物理连接，不等待正在进行的网络操作；驱动不支持时退化为close。
+     * 语句缓存由借出线程在归还时清理，这里不碰
+     */
+    private void abort(final AlienConnectionHolder holder) {
+        try {
+            holder.conn.abort(getAbortExecutor());
+            return;
+        } catch (SQLFeatureNotSupportedException | AbstractMethodError ex) {
+            // 退化为close
+        } catch (SQLException ex) {
+            LOG.warn("abort connection error, url: " + url, ex);
+        }
+        JdbcUtils.close(holder.conn);
+    }
+
+    private ExecutorService getAbortExecutor() {
+        ExecutorService executor = abortExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = abortExecutor;
+                if (executor == null) {
+                    final String threadName = "Alien-ConnectionPool-Abort-" + System.identityHashCode(this);
+                    executor = Executors.newCachedThreadPool(r -> {
+                        Thread thread = new Thread(r, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    abortExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 关闭连接池：停止后台线程，关闭空闲连接，借出的连接归还时直接关闭
+     */
+    public void close() {
+        AlienConnectionHolder[] holders;
+        int count;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            count = poolingCount;
+            holders = connections == null ? new AlienConnectionHolder[0] : Arrays.copyOf(connections, count);
+            if (connections != null) {
+                Arrays.fill(connections, 0, count, null);
+            }
+            poolingCount = 0;
+
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (createConnectionThread != null) {
+            createConnectionThread.interrupt();
+        }
+        if (destroyConnectionThread != null) {
+            destroyConnectionThread.interrupt();
+        }
+        if (activeScanTimer != null) {
+            activeScanTimer.cancel();
+        }
+        if (abortExecutor != null) {
+            abortExecutor.shutdown();
+        }
+
+        for (int i = 0; i < count; ++i) {
+            AlienConnectionHolder holder = holders[i];
+            holder.discard = true;
+            holder.clearStatementPool();
+            JdbcUtils.close(holder.conn);
+            DESTROY_COUNT_UPDATER.incrementAndGet(this);
+        }
+
+        if (slowSqlLogger != null) {
+            slowSqlLogger.close();
+        }
+
+        if (queryResultCache != null) {
+            queryResultCache.close();
+        }
+
+        unregisterMBean();
+
+        LOG.info("AlienDataSource closed");
+    }
+
+    private void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("org.lsd.alien:type=AlienDataSource,name=" + ObjectName.quote(getName()));
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(new StandardMBean(this, AlienDataSourceMBean.class), objectName);
+            this.objectName = objectName;
+        } catch (Exception ex) {
+            LOG.warn("register mbean error, name: " + getName(), ex);
+        }
+    }
+
+    private void unregisterMBean() {
+        ObjectName objectName = this.objectName;
+        if (objectName == null) {
+            return;
+        }
+        this.objectName = null;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception ex) {
+            LOG.warn("unregister mbean error, name: " + getName(), ex);
+        }
+    }
+
+    void incrementSqlErrorCount() {
+        SQL_ERROR_COUNT_UPDATER.incrementAndGet(this);
+    }
+
     public String getUrl() {
         return url;
     }
@@ -1002,4 +1853,465 @@ public class AlienDataSource implements ConnectionPoolDataSource, DataSource {
     public void setCheckExecuteTime(final boolean checkExecuteTime) {
         this.checkExecuteTime = checkExecuteTime;
     }
+
+    public boolean isPoolPreparedStatements() {
+        return poolPreparedStatements;
+    }
+
+    public void setPoolPreparedStatements(final boolean poolPreparedStatements) {
+        this.poolPreparedStatements = poolPreparedStatements;
+    }
+
+    public int getMaxPoolPreparedStatementPerConnectionSize() {
+        return maxPoolPreparedStatementPerConnectionSize;
+    }
+
+    public void setMaxPoolPreparedStatementPerConnectionSize(final int maxPoolPreparedStatementPerConnectionSize) {
+        this.maxPoolPreparedStatementPerConnectionSize = maxPoolPreparedStatementPerConnectionSize;
+    }
+
+    public int getMaxPoolPreparedStatementCount() {
+        return maxPoolPreparedStatementCount;
+    }
+
+    public void setMaxPoolPreparedStatementCount(final int maxPoolPreparedStatementCount) {
+        this.maxPoolPreparedStatementCount = maxPoolPreparedStatementCount;
+    }
+
+    public long getMaxPoolPreparedStatementBytes() {
+        return maxPoolPreparedStatementBytes;
+    }
+
+    public void setMaxPoolPreparedStatementBytes(final long maxPoolPreparedStatementBytes) {
+        this.maxPoolPreparedStatementBytes = maxPoolPreparedStatementBytes;
+    }
+
+    public PreparedStatementBudget getPreparedStatementBudget() {
+        return preparedStatementBudget;
+    }
+
+    public boolean isStatEnabled() {
+        return statEnabled;
+    }
+
+    public void setStatEnabled(final boolean statEnabled) {
+        this.statEnabled = statEnabled;
+    }
+
+    public int getMaxSqlStatSize() {
+        return maxSqlStatSize;
+    }
+
+    public void setMaxSqlStatSize(final int maxSqlStatSize) {
+        this.maxSqlStatSize = maxSqlStatSize;
+    }
+
+    public JdbcSqlStatTable getSqlStatTable() {
+        return sqlStatTable;
+    }
+
+    public boolean isStatMergeSql() {
+        return statMergeSql;
+    }
+
+    public void setStatMergeSql(final boolean statMergeSql) {
+        this.statMergeSql = statMergeSql;
+    }
+
+    public DbType getDbType() {
+        return dbType;
+    }
+
+    public boolean isDefaultAutoCommit() {
+        return defaultAutoCommit;
+    }
+
+    public void setDefaultAutoCommit(final boolean defaultAutoCommit) {
+        this.defaultAutoCommit = defaultAutoCommit;
+    }
+
+    public Boolean getDefaultReadOnly() {
+        return defaultReadOnly;
+    }
+
+    public void setDefaultReadOnly(final Boolean defaultReadOnly) {
+        this.defaultReadOnly = defaultReadOnly;
+    }
+
+    public Integer getDefaultTransactionIsolation() {
+        return defaultTransactionIsolation;
+    }
+
+    public void setDefaultTransactionIsolation(final Integer defaultTransactionIsolation) {
+        this.defaultTransactionIsolation = defaultTransactionIsolation;
+    }
+
+    public String getDefaultCatalog() {
+        return defaultCatalog;
+    }
+
+    public void setDefaultCatalog(final String defaultCatalog) {
+        this.defaultCatalog = defaultCatalog;
+    }
+
+    public boolean isLazyConnectionBinding() {
+        return lazyConnectionBinding;
+    }
+
+    public void setLazyConnectionBinding(final boolean lazyConnectionBinding) {
+        this.lazyConnectionBinding = lazyConnectionBinding;
+    }
+
+    public boolean isTransactionPooling() {
+        return transactionPooling;
+    }
+
+    /**
+     * 开启后autoCommit的两条语句之间可能换了物理连接，服务端会话状态不会跟着逻辑连接走：
+     * 用户变量（SET @x）、LAST_INSERT_ID()、临时表、SET SESSION修改的变量在下一条语句里可能看不到，
+     * 也可能看到其他逻辑连接留下的值。依赖这些状态的代码要在autoCommit=false的事务里执行，
+     * 或者在执行期间一直持有一个打开的语句。
+     * 调用过prepareCall、getConnection、unwrap或者getMetaData的逻辑连接一直占用物理连接到close
+     */
+    public void setTransactionPooling(final boolean transactionPooling) {
+        this.transactionPooling = transactionPooling;
+    }
+
+    public boolean isResetConnectionOnRecycle() {
+        return resetConnectionOnRecycle;
+    }
+
+    public void setResetConnectionOnRecycle(final boolean resetConnectionOnRecycle) {
+        this.resetConnectionOnRecycle = resetConnectionOnRecycle;
+    }
+
+    public boolean isLogSlowSql() {
+        return logSlowSql;
+    }
+
+    public void setLogSlowSql(final boolean logSlowSql) {
+        this.logSlowSql = logSlowSql;
+    }
+
+    public long getSlowSqlMillis() {
+        return slowSqlMillis;
+    }
+
+    public void setSlowSqlMillis(final long slowSqlMillis) {
+        this.slowSqlMillis = slowSqlMillis;
+    }
+
+    public boolean isSlowSqlLogParameters() {
+        return slowSqlLogParameters;
+    }
+
+    public void setSlowSqlLogParameters(final boolean slowSqlLogParameters) {
+        this.slowSqlLogParameters = slowSqlLogParameters;
+    }
+
+    public String getSlowSqlLogFile() {
+        return slowSqlLogFile;
+    }
+
+    public void setSlowSqlLogFile(final String slowSqlLogFile) {
+        this.slowSqlLogFile = slowSqlLogFile;
+    }
+
+    public long getSlowSqlLogMaxFileBytes() {
+        return slowSqlLogMaxFileBytes;
+    }
+
+    public void setSlowSqlLogMaxFileBytes(final long slowSqlLogMaxFileBytes) {
+        this.slowSqlLogMaxFileBytes = slowSqlLogMaxFileBytes;
+    }
+
+    public int getSlowSqlLogMaxBackups() {
+        return slowSqlLogMaxBackups;
+    }
+
+    public void setSlowSqlLogMaxBackups(final int slowSqlLogMaxBackups) {
+        this.slowSqlLogMaxBackups = slowSqlLogMaxBackups;
+    }
+
+    public int getSlowSqlLogQueueCapacity() {
+        return slowSqlLogQueueCapacity;
+    }
+
+    public void setSlowSqlLogQueueCapacity(final int slowSqlLogQueueCapacity) {
+        this.slowSqlLogQueueCapacity = slowSqlLogQueueCapacity;
+    }
+
+    public SlowSqlLogger getSlowSqlLogger() {
+        return slowSqlLogger;
+    }
+
+    public boolean isQueryCacheEnabled() {
+        return queryCacheEnabled;
+    }
+
+    public void setQueryCacheEnabled(final boolean queryCacheEnabled) {
+        this.queryCacheEnabled = queryCacheEnabled;
+    }
+
+    public Collection<String> getQueryCacheSqls() {
+        return queryCacheSqls;
+    }
+
+    public void setQueryCacheSqls(final Collection<String> queryCacheSqls) {
+        this.queryCacheSqls = queryCacheSqls;
+    }
+
+    public long getQueryCacheMaxBytes() {
+        return queryCacheMaxBytes;
+    }
+
+    public void setQueryCacheMaxBytes(final long queryCacheMaxBytes) {
+        this.queryCacheMaxBytes = queryCacheMaxBytes;
+    }
+
+    public long getQueryCacheMaxEntryBytes() {
+        return queryCacheMaxEntryBytes;
+    }
+
+    public void setQueryCacheMaxEntryBytes(final long queryCacheMaxEntryBytes) {
+        this.queryCacheMaxEntryBytes = queryCacheMaxEntryBytes;
+    }
+
+    public String getQueryCacheSpillDirectory() {
+        return queryCacheSpillDirectory;
+    }
+
+    public void setQueryCacheSpillDirectory(final String queryCacheSpillDirectory) {
+        this.queryCacheSpillDirectory = queryCacheSpillDirectory;
+    }
+
+    public long getQueryCacheSpillMaxBytes() {
+        return queryCacheSpillMaxBytes;
+    }
+
+    public void setQueryCacheSpillMaxBytes(final long queryCacheSpillMaxBytes) {
+        this.queryCacheSpillMaxBytes = queryCacheSpillMaxBytes;
+    }
+
+    public long getQueryCacheSpillMaxEntryBytes() {
+        return queryCacheSpillMaxEntryBytes;
+    }
+
+    public void setQueryCacheSpillMaxEntryBytes(final long queryCacheSpillMaxEntryBytes) {
+        this.queryCacheSpillMaxEntryBytes = queryCacheSpillMaxEntryBytes;
+    }
+
+    /**
+     * 没有开启queryCacheEnabled时为null
+     */
+    public QueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    @Override
+    public String getName() {
+        String name = this.name;
+        if (name == null) {
+            name = "AlienDataSource-" + System.identityHashCode(this);
+        }
+        return name;
+    }
+
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    public long getTimeBetweenConnectErrorMillis() {
+        return timeBetweenConnectErrorMillis;
+    }
+
+    public void setTimeBetweenConnectErrorMillis(final long timeBetweenConnectErrorMillis) {
+        this.timeBetweenConnectErrorMillis = timeBetweenConnectErrorMillis;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public void setJmxEnabled(final boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    @Override
+    public int getPoolingCount() {
+        return poolingCount;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    @Override
+    public int getActivePeak() {
+        return activePeak;
+    }
+
+    @Override
+    public int getWaitThreadCount() {
+        return notEmptyWaitThreadCount;
+    }
+
+    @Override
+    public long getCreateCount() {
+        return createCount;
+    }
+
+    @Override
+    public long getCreateErrorCount() {
+        return createErrorCount;
+    }
+
+    @Override
+    public long getDestroyCount() {
+        return destroyCount;
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowCount;
+    }
+
+    @Override
+    public long getRecycleCount() {
+        return recycleCount;
+    }
+
+    @Override
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount;
+    }
+
+    @Override
+    public long getDiscardCount() {
+        return discardCount;
+    }
+
+    @Override
+    public long getSqlErrorCount() {
+        return sqlErrorCount;
+    }
+
+    public LatencyHistogram getBorrowWaitHistogram() {
+        return borrowWaitHistogram;
+    }
+
+    public LatencyHistogram getHoldHistogram() {
+        return holdHistogram;
+    }
+
+    public LatencyHistogram getExecuteHistogram() {
+        return executeHistogram;
+    }
+
+    @Override
+    public double getBorrowWaitMillisP50() {
+        return borrowWaitHistogram.percentileMillis(50);
+    }
+
+    @Override
+    public double getBorrowWaitMillisP99() {
+        return borrowWaitHistogram.percentileMillis(99);
+    }
+
+    @Override
+    public double getBorrowWaitMillisP999() {
+        return borrowWaitHistogram.percentileMillis(99.9);
+    }
+
+    @Override
+    public double getHoldMillisP50() {
+        return holdHistogram.percentileMillis(50);
+    }
+
+    @Override
+    public double getHoldMillisP99() {
+        return holdHistogram.percentileMillis(99);
+    }
+
+    @Override
+    public double getHoldMillisP999() {
+        return holdHistogram.percentileMillis(99.9);
+    }
+
+    @Override
+    public long getLeakCount() {
+        return leakCount;
+    }
+
+    public long getLeakDetectionThresholdMillis() {
+        return leakDetectionThresholdMillis;
+    }
+
+    public void setLeakDetectionThresholdMillis(final long leakDetectionThresholdMillis) {
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+    }
+
+    public double getLeakDetectionSampleRate() {
+        return leakDetectionSampleRate;
+    }
+
+    public void setLeakDetectionSampleRate(final double leakDetectionSampleRate) {
+        this.leakDetectionSampleRate = leakDetectionSampleRate;
+    }
+
+    public long getTimeBetweenLeakDetectionRunsMillis() {
+        return timeBetweenLeakDetectionRunsMillis;
+    }
+
+    public void setTimeBetweenLeakDetectionRunsMillis(final long timeBetweenLeakDetectionRunsMillis) {
+        this.timeBetweenLeakDetectionRunsMillis = timeBetweenLeakDetectionRunsMillis;
+    }
+
+    public boolean isRemoveAbandoned() {
+        return removeAbandoned;
+    }
+
+    public void setRemoveAbandoned(final boolean removeAbandoned) {
+        this.removeAbandoned = removeAbandoned;
+    }
+
+    public long getRemoveAbandonedTimeoutMillis() {
+        return removeAbandonedTimeoutMillis;
+    }
+
+    public void setRemoveAbandonedTimeoutMillis(final long removeAbandonedTimeoutMillis) {
+        this.removeAbandonedTimeoutMillis = removeAbandonedTimeoutMillis;
+    }
+
+    @Override
+    public long getRemoveAbandonedCount() {
+        return removeAbandonedCount;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 清零累计计数和直方图，连接数不受影响
+     */
+    @Override
+    public void resetStat() {
+        CREATE_COUNT_UPDATER.set(this, 0);
+        CREATE_ERROR_COUNT_UPDATER.set(this, 0);
+        DESTROY_COUNT_UPDATER.set(this, 0);
+        BORROW_COUNT_UPDATER.set(this, 0);
+        RECYCLE_COUNT_UPDATER.set(this, 0);
+        BORROW_TIMEOUT_COUNT_UPDATER.set(this, 0);
+        DISCARD_COUNT_UPDATER.set(this, 0);
+        SQL_ERROR_COUNT_UPDATER.set(this, 0);
+        LEAK_COUNT_UPDATER.set(this, 0);
+        REMOVE_ABANDONED_COUNT_UPDATER.set(this, 0);
+        activePeak = activeCount;
+        borrowWaitHistogram.reset();
+        holdHistogram.reset();
+        executeHistogram.reset();
+    }
 }
@@ -0,0 +1,85 @@
+package org.lsd.alien.pool;
+
+/**
+ * 连接池的JMX视图，所有属性都直接读volatile字段或者无锁的直方图，不会和借还连接争用锁
+ *
+ * @author nhsoft.lsd
+ */
+public interface AlienDataSourceMBean {
+
+    String getName();
+
+    String getUrl();
+
+    String getUsername();
+
+    int getInitialSize();
+
+    int getMaxActive();
+
+    int getMinIdle();
+
+    long getMaxWait();
+
+    /**
+     * 空闲连接数
+     */
+    int getPoolingCount();
+
+    /**
+     * 被借出的连接数
+     */
+    int getActiveCount();
+
+    int getActivePeak();
+
+    /**
+     * 正在等待空闲连接的线程数
+     */
+    int getWaitThreadCount();
+
+    long getCreateCount();
+
+    long getCreateErrorCount();
+
+    long getDestroyCount();
+
+    long getBorrowCount();
+
+    long getRecycleCount();
+
+    long getBorrowTimeoutCount();
+
+    /**
+     * 校验失败或者物理连接已关闭而被丢弃的连接数
+     */
+    long getDiscardCount();
+
+    long getSqlErrorCount();
+
+    /**
+     * 借出超过leakDetectionThresholdMillis未归还的连接数
+     */
+    long getLeakCount();
+
+    /**
+     * 借出超过removeAbandonedTimeoutMillis被强制关闭的连接数
+     */
+    long getRemoveAbandonedCount();
+
+    double getBorrowWaitMillisP50();
+
+    double getBorrowWaitMillisP99();
+
+    double getBorrowWaitMillisP999();
+
+    double getHoldMillisP50();
+
+    double getHoldMillisP99();
+
+    double getHoldMillisP999();
+
+    boolean isClosed();
+
+    void resetStat();
+}
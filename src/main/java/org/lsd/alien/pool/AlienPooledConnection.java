@@ -15,298 +15,770 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
 import javax.sql.ConnectionEventListener;
 import javax.sql.PooledConnection;
 import javax.sql.StatementEventListener;
+import org.lsd.alien.stat.JdbcSqlStat;
+import org.lsd.alien.stat.JdbcSqlStatTable;
+import org.lsd.alien.util.FnvHash;
+import org.lsd.alien.util.JdbcUtils;
+import org.lsd.alien.util.SqlParameterizer;
 
 /**
  * @author nhsoft.lsd
  */
 public class AlienPooledConnection implements PooledConnection, Connection {
 
+    private final AlienDataSource  dataSource;
+    private final long             maxWaitMillis;
+    private final ConnectionRouter router;
+
+    /**
+     * 最近一次绑定物理连接时是否只读
+     */
+    private boolean readOnlyAtBind;
+
+    /**
+     * 最近一次绑定以后是否执行过写语句，绕过包装直接使用物理连接时无法判断，按写过处理
+     */
+    private boolean writtenSinceBind;
+
+    /**
+     * 交出过CallableStatement、物理连接等驱动的原始对象，transactionPooling时一直占用到close
+     */
+    private boolean pinned;
+
+    /**
+     * lazyConnectionBinding时第一次需要物理连接才借出，之前为null
+     */
     private AlienConnectionHolder holder;
     private Connection conn;
 
+    private boolean closed;
+
+    /**
+     * 绑定物理连接前记录的会话属性，位的含义和AlienConnectionHolder的DIRTY_*一致
+     */
+    private int        pendingBits;
+    private boolean    pendingAutoCommit;
+    private boolean    pendingReadOnly;
+    private int        pendingTransactionIsolation;
+    private String     pendingCatalog;
+    private String     pendingSchema;
+    private Executor   pendingNetworkTimeoutExecutor;
+    private int        pendingNetworkTimeout;
+
+    /**
+     * 通过这个连接打开且尚未关闭的语句，归还连接时一并关闭
+     */
+    private List<AlienPooledStatement> statements;
+
     public AlienPooledConnection(final AlienConnectionHolder holder) {
+        this.dataSource = holder.getDataSource();
+        this.maxWaitMillis = -1;
+        this.router = null;
         this.holder = holder;
         this.conn = holder.conn;
     }
 
+    /**
+     * 延迟绑定的逻辑连接，创建语句等需要物理连接的操作时才按maxWaitMillis从连接池借出
+     */
+    public AlienPooledConnection(final AlienDataSource dataSource, final long maxWaitMillis) {
+        this(dataSource, maxWaitMillis, null);
+    }
+
+    /**
+     * @param dataSource 绑定前会话属性的默认值从这里取，router为null时也从这里借连接
+     * @param router 绑定时决定从哪个连接池借，可以为null
+     */
+    public AlienPooledConnection(final AlienDataSource dataSource, final long maxWaitMillis, final ConnectionRouter router) {
+        this.dataSource = dataSource;
+        this.maxWaitMillis = maxWaitMillis;
+        this.router = router;
+    }
+
     public AlienConnectionHolder getHolder() {
         return holder;
     }
 
+    /**
+     * 连接已经归还，或者借出太久被连接池当作abandoned强制关闭时抛出异常
+     */
+    void checkState() throws SQLException {
+        if (closed) {
+            throw new SQLException("connection is closed");
+        }
+        final AlienConnectionHolder holder = this.holder;
+        if (holder != null && holder.abandoned) {
+            throw new SQLException("connection was removed by the pool as abandoned, it was held longer than removeAbandonedTimeoutMillis("
+                    + holder.getDataSource().getRemoveAbandonedTimeoutMillis() + "ms) without activity");
+        }
+    }
+
+    /**
+     * 需要物理连接的操作先调用，还没有绑定时从连接池借出，并回放绑定前设置的会话属性
+     */
+    private void bind() throws SQLException {
+        checkState();
+        if (holder != null) {
+            return;
+        }
+
+        readOnlyAtBind = (pendingBits & AlienConnectionHolder.DIRTY_READ_ONLY) != 0
+                ? pendingReadOnly
+                : Boolean.TRUE.equals(dataSource.getDefaultReadOnly());
+        writtenSinceBind = false;
+
+        final AlienDataSource target = router != null ? router.route(this) : dataSource;
+        final AlienConnectionHolder holder = target.getConnectionHolder(maxWaitMillis);
+        this.holder = holder;
+        this.conn = holder.conn;
+
+        final int pendingBits = this.pendingBits;
+        this.pendingBits = 0;
+        if ((pendingBits & AlienConnectionHolder.DIRTY_AUTO_COMMIT) != 0) {
+            setAutoCommit(pendingAutoCommit);
+        }
+        if ((pendingBits & AlienConnectionHolder.DIRTY_READ_ONLY) != 0) {
+            setReadOnly(pendingReadOnly);
+        }
+        if ((pendingBits & AlienConnectionHolder.DIRTY_ISOLATION) != 0) {
+            setTransactionIsolation(pendingTransactionIsolation);
+        }
+        if ((pendingBits & AlienConnectionHolder.DIRTY_CATALOG) != 0) {
+            setCatalog(pendingCatalog);
+        }
+        if ((pendingBits & AlienConnectionHolder.DIRTY_SCHEMA) != 0) {
+            setSchema(pendingSchema);
+        }
+        if ((pendingBits & AlienConnectionHolder.DIRTY_NETWORK_TIMEOUT) != 0) {
+            setNetworkTimeout(pendingNetworkTimeoutExecutor, pendingNetworkTimeout);
+            pendingNetworkTimeoutExecutor = null;
+        }
+    }
+
+    /**
+     * 绑定物理连接时是否只读，在ConnectionRouter.route里就是即将绑定的只读属性
+     */
+    public boolean isReadOnlyAtBind() {
+        return readOnlyAtBind;
+    }
+
+    /**
+     * 最近一次绑定的物理连接上是否执行过写语句，在ConnectionRouter.afterRelease里就是刚归还的物理连接
+     */
+    public boolean isWrittenSinceBind() {
+        return writtenSinceBind;
+    }
+
+    void markWritten() {
+        writtenSinceBind = true;
+    }
+
+    /**
+     * 交出了驱动的原始对象，连接池跟踪不到它们什么时候用完，写没写过也判断不了
+     */
+    private void pinRawAccess() {
+        pinned = true;
+        writtenSinceBind = true;
+    }
+
+    /**
+     * 是否已经绑定物理连接，未开启lazyConnectionBinding时总是true
+     */
+    public boolean isBound() {
+        return holder != null;
+    }
+
     @Override
     public Connection getConnection() throws SQLException {
+        bind();
+        pinRawAccess();
         return holder.getConn();
     }
 
     @Override
     public Statement createStatement() throws SQLException {
-        return conn.createStatement();
+        bind();
+        return addStatement(new AlienPooledStatement(this, conn.createStatement()));
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql) throws SQLException {
-        return conn.prepareStatement(sql);
+        bind();
+        PreparedStatementPool statementPool = holder.getStatementPool();
+        if (statementPool == null) {
+            return addStatement(new AlienPooledPreparedStatement(this, conn.prepareStatement(sql), sql, null, getSqlStat(sql)));
+        }
+
+        return prepareCachedStatement(statementPool, new PreparedStatementKey(sql));
+    }
+
+    private AlienPooledPreparedStatement prepareCachedStatement(final PreparedStatementPool statementPool, final PreparedStatementKey key) throws SQLException {
+        PreparedStatementHolder stmtHolder = statementPool.get(key);
+        if (stmtHolder == null) {
+            PreparedStatement stmt = conn.prepareStatement(key.sql, key.resultSetType, key.resultSetConcurrency);
+            try {
+                stmtHolder = new PreparedStatementHolder(key, stmt, statementPool, getSqlStat(key.sql));
+            } catch (SQLException ex) {
+                JdbcUtils.close(stmt);
+                throw ex;
+            }
+
+            if (!statementPool.put(stmtHolder)) {
+                return addStatement(new AlienPooledPreparedStatement(this, stmt, key.sql, null, stmtHolder.sqlStat));
+            }
+        }
+
+        return addStatement(new AlienPooledPreparedStatement(this, stmtHolder.statement, key.sql, stmtHolder, stmtHolder.sqlStat));
+    }
+
+    /**
+     * 按SQL的FNV指纹找到统计，开启statMergeSql时用参数化以后的指纹，未开启统计时返回null
+     */
+    JdbcSqlStat getSqlStat(final String sql) {
+        final AlienDataSource dataSource = holder.getDataSource();
+        JdbcSqlStatTable sqlStatTable = dataSource.getSqlStatTable();
+        if (sqlStatTable == null || sql == null) {
+            return null;
+        }
+
+        if (!dataSource.isStatMergeSql()) {
+            return sqlStatTable.getOrCreate(FnvHash.fnv1a_64(sql), sql);
+        }
+
+        long hash = SqlParameterizer.fnv1a_64_lower(sql, dataSource.getDbType());
+        JdbcSqlStat sqlStat = sqlStatTable.get(hash);
+        if (sqlStat != null) {
+            return sqlStat;
+        }
+        // 只在第一次见到时才构造参数化以后的SQL文本，统计里不保留字面量
+        return sqlStatTable.getOrCreate(hash, SqlParameterizer.parameterize(sql, dataSource.getDbType()));
+    }
+
+    private <T extends AlienPooledStatement> T addStatement(final T stmt) {
+        if (statements == null) {
+            statements = new ArrayList<AlienPooledStatement>(2);
+        }
+        statements.add(stmt);
+        return stmt;
+    }
+
+    void removeStatement(final AlienPooledStatement stmt) throws SQLException {
+        if (statements != null) {
+            statements.remove(stmt);
+        }
+        releaseIfIdle();
+    }
+
+    /**
+     * transactionPooling模式下，autoCommit、会话属性都是默认值并且没有打开的语句时，
+     * 把物理连接还给连接池，下一条语句执行前再重新借出。
+     * 交出过CallableStatement、物理连接、DatabaseMetaData的逻辑连接不释放，直到close
+     */
+    private void releaseIfIdle() throws SQLException {
+        final AlienConnectionHolder holder = this.holder;
+        if (closed || holder == null || !holder.getDataSource().isTransactionPooling()) {
+            return;
+        }
+        if (pinned || !holder.underlyingAutoCommit || holder.dirtyBits != 0 || holder.abandoned) {
+            return;
+        }
+        if (statements != null && !statements.isEmpty()) {
+            return;
+        }
+
+        if (holder.statementPool != null) {
+            holder.statementPool.purgeEvicted();
+        }
+        final AlienDataSource dataSource = holder.getDataSource();
+        try {
+            dataSource.recycle(this);
+        } finally {
+            this.holder = null;
+            this.conn = null;
+        }
+        if (router != null) {
+            router.afterRelease(this, dataSource);
+        }
     }
 
     @Override
     public CallableStatement prepareCall(final String sql) throws SQLException {
+        bind();
+        pinRawAccess();
         return conn.prepareCall(sql);
     }
 
     @Override
     public String nativeSQL(final String sql) throws SQLException {
+        bind();
         return conn.nativeSQL(sql);
     }
 
     @Override
     public void setAutoCommit(final boolean autoCommit) throws SQLException {
+        checkState();
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingAutoCommit = autoCommit;
+            pendingBits |= AlienConnectionHolder.DIRTY_AUTO_COMMIT;
+            return;
+        }
         holder.setLastExecTimeMillis(System.currentTimeMillis());
+        // MyBatis和Spring每次事务结束都会setAutoCommit(true)，和当前值一样时不发给驱动
+        if (holder.underlyingAutoCommit == autoCommit) {
+            return;
+        }
         conn.setAutoCommit(autoCommit);
+        holder.setUnderlyingAutoCommit(autoCommit);
+        if (autoCommit) {
+            // 事务结束
+            releaseIfIdle();
+        }
     }
 
     @Override
     public boolean getAutoCommit() throws SQLException {
+        checkState();
+        if (holder == null) {
+            // 新借出的物理连接autoCommit一定是连接池默认值
+            return (pendingBits & AlienConnectionHolder.DIRTY_AUTO_COMMIT) != 0 ? pendingAutoCommit : dataSource.isDefaultAutoCommit();
+        }
         return conn.getAutoCommit();
     }
 
     @Override
     public void commit() throws SQLException {
+        checkState();
+        if (holder == null) {
+            // 没有执行过语句，没有需要提交的
+            return;
+        }
         conn.commit();
+        holder.transactionDirty = false;
+        holder.endTransaction();
     }
 
     @Override
     public void rollback() throws SQLException {
+        checkState();
+        if (holder == null) {
+            return;
+        }
         conn.rollback();
+        holder.transactionDirty = false;
+        holder.endTransaction();
     }
 
     @Override
     public boolean isClosed() throws SQLException {
-        return conn.isClosed();
+        if (closed) {
+            return true;
+        }
+        return conn != null && conn.isClosed();
     }
 
     @Override
     public DatabaseMetaData getMetaData() throws SQLException {
+        bind();
+        // DatabaseMetaData的查询直接跑在物理连接上
+        pinned = true;
         return conn.getMetaData();
     }
 
     @Override
     public void setReadOnly(final boolean readOnly) throws SQLException {
+        checkState();
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingReadOnly = readOnly;
+            pendingBits |= AlienConnectionHolder.DIRTY_READ_ONLY;
+            return;
+        }
+        if (holder.underlyingReadOnly == readOnly) {
+            return;
+        }
         conn.setReadOnly(readOnly);
+        holder.setUnderlyingReadOnly(readOnly);
     }
 
     @Override
     public boolean isReadOnly() throws SQLException {
+        checkState();
+        if (holder == null) {
+            if ((pendingBits & AlienConnectionHolder.DIRTY_READ_ONLY) != 0) {
+                return pendingReadOnly;
+            }
+            Boolean defaultReadOnly = dataSource.getDefaultReadOnly();
+            if (defaultReadOnly != null) {
+                return defaultReadOnly;
+            }
+            bind();
+        }
         return conn.isReadOnly();
     }
 
     @Override
     public void setCatalog(final String catalog) throws SQLException {
+        checkState();
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingCatalog = catalog;
+            pendingBits |= AlienConnectionHolder.DIRTY_CATALOG;
+            return;
+        }
+        if (catalog != null && catalog.equals(holder.underlyingCatalog)) {
+            return;
+        }
         conn.setCatalog(catalog);
+        holder.setUnderlyingCatalog(catalog);
     }
 
     @Override
     public String getCatalog() throws SQLException {
+        checkState();
+        if (holder == null) {
+            if ((pendingBits & AlienConnectionHolder.DIRTY_CATALOG) != 0) {
+                return pendingCatalog;
+            }
+            bind();
+        }
         return conn.getCatalog();
     }
 
     @Override
     public void setTransactionIsolation(final int level) throws SQLException {
+        checkState();
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingTransactionIsolation = level;
+            pendingBits |= AlienConnectionHolder.DIRTY_ISOLATION;
+            return;
+        }
+        if (holder.underlyingTransactionIsolation == level) {
+            return;
+        }
         conn.setTransactionIsolation(level);
+        holder.setUnderlyingTransactionIsolation(level);
     }
 
     @Override
     public int getTransactionIsolation() throws SQLException {
+        checkState();
+        if (holder == null) {
+            if ((pendingBits & AlienConnectionHolder.DIRTY_ISOLATION) != 0) {
+                return pendingTransactionIsolation;
+            }
+            Integer defaultTransactionIsolation = dataSource.getDefaultTransactionIsolation();
+            if (defaultTransactionIsolation != null) {
+                return defaultTransactionIsolation;
+            }
+            bind();
+        }
         return conn.getTransactionIsolation();
     }
 
     @Override
     public SQLWarning getWarnings() throws SQLException {
+        bind();
         return conn.getWarnings();
     }
 
     @Override
     public void clearWarnings() throws SQLException {
+        bind();
         conn.clearWarnings();
     }
 
     @Override
     public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
-        return conn.createStatement(resultSetType, resultSetConcurrency);
+        bind();
+        return addStatement(new AlienPooledStatement(this, conn.createStatement(resultSetType, resultSetConcurrency)));
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency) throws SQLException {
-        return conn.prepareStatement(sql, resultSetConcurrency, resultSetConcurrency);
+        bind();
+        PreparedStatementPool statementPool = holder.getStatementPool();
+        if (statementPool == null) {
+            return addStatement(new AlienPooledPreparedStatement(this, conn.prepareStatement(sql, resultSetType, resultSetConcurrency), sql, null, getSqlStat(sql)));
+        }
+
+        return prepareCachedStatement(statementPool, new PreparedStatementKey(sql, resultSetType, resultSetConcurrency));
     }
 
     @Override
     public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency) throws SQLException {
-        return conn.prepareCall(sql, resultSetConcurrency, resultSetConcurrency);
+        bind();
+        pinRawAccess();
+        return conn.prepareCall(sql, resultSetType, resultSetConcurrency);
     }
 
     @Override
     public Map<String, Class<?>> getTypeMap() throws SQLException {
+        bind();
         return conn.getTypeMap();
     }
 
     @Override
     public void setTypeMap(final Map<String, Class<?>> map) throws SQLException {
+        bind();
         conn.setTypeMap(map);
     }
 
     @Override
     public void setHoldability(final int holdability) throws SQLException {
+        bind();
         conn.setHoldability(holdability);
     }
 
     @Override
     public int getHoldability() throws SQLException {
+        bind();
         return conn.getHoldability();
     }
 
     @Override
     public Savepoint setSavepoint() throws SQLException {
+        bind();
         return conn.setSavepoint();
     }
 
     @Override
     public Savepoint setSavepoint(final String name) throws SQLException {
+        bind();
         return conn.setSavepoint(name);
     }
 
     @Override
     public void rollback(final Savepoint savepoint) throws SQLException {
+        bind();
         conn.rollback(savepoint);
     }
 
     @Override
     public void releaseSavepoint(final Savepoint savepoint) throws SQLException {
+        bind();
         conn.releaseSavepoint(savepoint);
     }
 
     @Override
     public Statement createStatement(final int resultSetType, final int resultSetConcurrency, final int resultSetHoldability) throws SQLException {
-        return conn.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        bind();
+        return addStatement(new AlienPooledStatement(this, conn.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability)));
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency, final int resultSetHoldability) throws SQLException {
-        return conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        bind();
+        return addStatement(new AlienPooledPreparedStatement(this, conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql, null, getSqlStat(sql)));
     }
 
     @Override
     public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency, final int resultSetHoldability) throws SQLException {
+        bind();
+        pinRawAccess();
         return conn.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
-        return conn.prepareStatement(sql, autoGeneratedKeys);
+        bind();
+        return addStatement(new AlienPooledPreparedStatement(this, conn.prepareStatement(sql, autoGeneratedKeys), sql, null, getSqlStat(sql)));
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
-        return conn.prepareStatement(sql, columnIndexes);
+        bind();
+        return addStatement(new AlienPooledPreparedStatement(this, conn.prepareStatement(sql, columnIndexes), sql, null, getSqlStat(sql)));
     }
 
     @Override
     public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
-        return conn.prepareStatement(sql, columnNames);
+        bind();
+        return addStatement(new AlienPooledPreparedStatement(this, conn.prepareStatement(sql, columnNames), sql, null, getSqlStat(sql)));
     }
 
     @Override
     public Clob createClob() throws SQLException {
+        bind();
         return conn.createClob();
     }
 
     @Override
     public Blob createBlob() throws SQLException {
+        bind();
         return conn.createBlob();
     }
 
     @Override
     public NClob createNClob() throws SQLException {
+        bind();
         return conn.createNClob();
     }
 
     @Override
     public SQLXML createSQLXML() throws SQLException {
+        bind();
         return conn.createSQLXML();
     }
 
     @Override
     public boolean isValid(final int timeout) throws SQLException {
+        bind();
         return conn.isValid(timeout);
     }
 
     @Override
     public void setClientInfo(final String name, final String value) throws SQLClientInfoException {
+        bindForClientInfo();
         conn.setClientInfo(name, value);
     }
 
     @Override
     public void setClientInfo(final Properties properties) throws SQLClientInfoException {
+        bindForClientInfo();
         conn.setClientInfo(properties);
     }
 
+    private void bindForClientInfo() throws SQLClientInfoException {
+        try {
+            bind();
+        } catch (SQLClientInfoException ex) {
+            throw ex;
+        } catch (SQLException ex) {
+            throw new SQLClientInfoException(ex.getMessage(), ex.getSQLState(), ex.getErrorCode(), null, ex);
+        }
+    }
+
     @Override
     public String getClientInfo(final String name) throws SQLException {
+        bind();
         return conn.getClientInfo(name);
     }
 
     @Override
     public Properties getClientInfo() throws SQLException {
+        bind();
         return conn.getClientInfo();
     }
 
     @Override
     public Array createArrayOf(final String typeName, final Object[] elements) throws SQLException {
+        bind();
         return conn.createArrayOf(typeName, elements);
     }
 
     @Override
     public Struct createStruct(final String typeName, final Object[] attributes) throws SQLException {
+        bind();
         return conn.createStruct(typeName, attributes);
     }
 
     @Override
     public void setSchema(final String schema) throws SQLException {
+        checkState();
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingSchema = schema;
+            pendingBits |= AlienConnectionHolder.DIRTY_SCHEMA;
+            return;
+        }
+        if (schema != null && schema.equals(holder.underlyingSchema)) {
+            return;
+        }
         conn.setSchema(schema);
+        holder.setUnderlyingSchema(schema);
     }
 
     @Override
     public String getSchema() throws SQLException {
+        checkState();
+        if (holder == null) {
+            if ((pendingBits & AlienConnectionHolder.DIRTY_SCHEMA) != 0) {
+                return pendingSchema;
+            }
+            bind();
+        }
         return conn.getSchema();
     }
 
+    /**
+     * 物理连接不再归还连接池，直接丢弃并释放名额，之后的close不做任何事
+     */
     @Override
     public void abort(final Executor executor) throws SQLException {
-        conn.abort(executor);
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingNetworkTimeoutExecutor = null;
+            return;
+        }
+        this.holder = null;
+        this.statements = null;
+
+        final AlienDataSource dataSource = holder.getDataSource();
+        try {
+            conn.abort(executor);
+        } finally {
+            conn = null;
+            dataSource.discardConnection(holder);
+            if (router != null) {
+                router.afterRelease(this, dataSource);
+            }
+        }
     }
 
     @Override
     public void setNetworkTimeout(final Executor executor, final int milliseconds) throws SQLException {
+        checkState();
+        final AlienConnectionHolder holder = this.holder;
+        if (holder == null) {
+            pendingNetworkTimeoutExecutor = executor;
+            pendingNetworkTimeout = milliseconds;
+            pendingBits |= AlienConnectionHolder.DIRTY_NETWORK_TIMEOUT;
+            return;
+        }
+        if (holder.underlyingNetworkTimeout == milliseconds) {
+            return;
+        }
         conn.setNetworkTimeout(executor, milliseconds);
+        holder.setUnderlyingNetworkTimeout(milliseconds);
     }
 
     @Override
     public int getNetworkTimeout() throws SQLException {
+        checkState();
+        if (holder == null) {
+            if ((pendingBits & AlienConnectionHolder.DIRTY_NETWORK_TIMEOUT) != 0) {
+                return pendingNetworkTimeout;
+            }
+            bind();
+        }
         return conn.getNetworkTimeout();
     }
 
     @Override
     public <T> T unwrap(final Class<T> iface) throws SQLException {
+        bind();
+        pinRawAccess();
         return conn.unwrap(iface);
     }
 
     @Override
     public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        bind();
         return conn.isWrapperFor(iface);
     }
 
@@ -316,20 +788,56 @@ public class AlienPooledConnection implements PooledConnection, Connection {
     }
 
     public void recycle() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
 
         AlienConnectionHolder holder = this.holder;
         if (holder == null) {
+            // 没有绑定过物理连接，不需要归还
+            pendingNetworkTimeoutExecutor = null;
             return;
         }
 
-        AlienDataSource dataSource = holder.getDataSource();
-        dataSource.recycle(this);
+        closeStatements();
 
-        this.holder = null;
-        conn = null;
+        if (holder.abandoned) {
+            // 物理连接已经被连接池abort，语句缓存只能由借出线程在这里清理
+            holder.clearStatementPool();
+        } else if (holder.statementPool != null) {
+            holder.statementPool.purgeEvicted();
+        }
+
+        AlienDataSource dataSource = holder.getDataSource();
+        try {
+            dataSource.recycle(this);
+        } finally {
+            this.holder = null;
+            conn = null;
+        }
+        if (router != null) {
+            router.afterRelease(this, dataSource);
+        }
     }
 
 
+    /**
+     * 按JDBC规范，连接关闭时关闭它打开的语句，缓存的语句借此归还到PreparedStatementPool
+     */
+    private void closeStatements() {
+        List<AlienPooledStatement> statements = this.statements;
+        if (statements == null || statements.isEmpty()) {
+            return;
+        }
+
+        AlienPooledStatement[] array = statements.toArray(new AlienPooledStatement[0]);
+        for (AlienPooledStatement stmt : array) {
+            JdbcUtils.close(stmt);
+        }
+        statements.clear();
+    }
+
     @Override
     public void addConnectionEventListener(final ConnectionEventListener listener) {
 
@@ -0,0 +1,725 @@
+package org.lsd.alien.pool;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Calendar;
+import org.lsd.alien.cache.QueryResultCache;
+import org.lsd.alien.stat.JdbcSqlStat;
+import org.lsd.alien.stat.SlowSqlLogger;
+import org.lsd.alien.util.JdbcUtils;
+
+/**
+ * @author nhsoft.lsd
+ */
+public class AlienPooledPreparedStatement extends AlienPooledStatement implements PreparedStatement {
+
+    /**
+     * 慢SQL日志里单个参数最多输出的字符数
+     */
+    private static final int MAX_PARAMETER_LENGTH = 256;
+
+    protected final PreparedStatement pstmt;
+    protected final String sql;
+
+    /**
+     * 为null表示没有被缓存，关闭时直接物理关闭
+     */
+    protected final PreparedStatementHolder stmtHolder;
+
+    protected final JdbcSqlStat sqlStat;
+
+    /**
+     * fetchSize、maxRows等可以在归还缓存时还原的属性被修改过
+     */
+    private boolean propertyChanged = false;
+
+    /**
+     * cursorName、escapeProcessing等无法还原的属性被修改过，归还时直接丢弃
+     */
+    private boolean unrestorable = false;
+
+    private boolean batchPending = false;
+
+    /**
+     * 开启slowSqlLogParameters时才记录参数，只在出现慢SQL时格式化
+     */
+    private final boolean logParameters;
+    private Object[] parameters;
+    private int parameterCount;
+
+    /**
+     * SQL在查询缓存的白名单里时不为null，同样需要记录参数
+     */
+    private final QueryResultCache queryCache;
+    private final long             queryFingerprint;
+
+    public AlienPooledPreparedStatement(final AlienPooledConnection conn, final PreparedStatement pstmt, final String sql, final PreparedStatementHolder stmtHolder, final JdbcSqlStat sqlStat) {
+        super(conn, pstmt);
+        this.pstmt = pstmt;
+        this.sql = sql;
+        this.stmtHolder = stmtHolder;
+        this.sqlStat = sqlStat;
+
+        SlowSqlLogger slowSqlLogger = conn.getHolder().getDataSource().getSlowSqlLogger();
+        this.logParameters = slowSqlLogger != null && slowSqlLogger.isLogParameters();
+
+        QueryResultCache queryCache = conn.getHolder().getDataSource().getQueryResultCache();
+        long queryFingerprint = 0;
+        if (queryCache != null) {
+            queryFingerprint = queryCache.fingerprint(sql);
+            if (!queryCache.isCacheable(queryFingerprint)) {
+                queryCache = null;
+            }
+        }
+        this.queryCache = queryCache;
+        this.queryFingerprint = queryFingerprint;
+    }
+
+    public JdbcSqlStat getSqlStat() {
+        return sqlStat;
+    }
+
+    @Override
+    protected JdbcSqlStat batchSqlStat() {
+        batchSql = null;
+        return sqlStat;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    protected String slowSql() {
+        return sql;
+    }
+
+    @Override
+    protected String slowSqlParameters() {
+        if (parameters == null) {
+            return null;
+        }
+
+        StringBuilder buf = new StringBuilder();
+        buf.append('[');
+        for (int i = 0; i < parameterCount; ++i) {
+            if (i != 0) {
+                buf.append(", ");
+            }
+            appendParameter(buf, parameters[i]);
+        }
+        buf.append(']');
+        return buf.toString();
+    }
+
+    private static void appendParameter(final StringBuilder buf, final Object value) {
+        if (value == null) {
+            buf.append("NULL");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            buf.append(value);
+        } else if (value instanceof CharSequence || value instanceof java.util.Date || value instanceof TemporalAccessor) {
+            String text = value.toString();
+            buf.append('\'');
+            if (text.length() > MAX_PARAMETER_LENGTH) {
+                buf.append(text, 0, MAX_PARAMETER_LENGTH).append("...");
+            } else {
+                buf.append(text);
+            }
+            buf.append('\'');
+        } else if (value instanceof byte[]) {
+            buf.append("<byte[").append(((byte[]) value).length).append("]>");
+        } else {
+            buf.append('<').append(value.getClass().getSimpleName()).append('>');
+        }
+    }
+
+    private void parameter(final int parameterIndex, final Object value) {
+        if (!logParameters && queryCache == null || parameterIndex < 1) {
+            return;
+        }
+
+        if (parameters == null) {
+            parameters = new Object[Math.max(parameterIndex, 8)];
+        } else if (parameterIndex > parameters.length) {
+            parameters = Arrays.copyOf(parameters, Math.max(parameterIndex, parameters.length << 1));
+        }
+        parameters[parameterIndex - 1] = value;
+        if (parameterIndex > parameterCount) {
+            parameterCount = parameterIndex;
+        }
+    }
+
+    /**
+     * 当前参数对应的缓存key，参数里有流、LOB之类无法比较的值时返回null，不使用缓存
+     */
+    private QueryResultCache.Key queryCacheKey() {
+        final Object[] values = new Object[parameterCount];
+        for (int i = 0; i < parameterCount; ++i) {
+            Object value = parameters[i];
+            if (value == null || value instanceof String || value instanceof Number
+                    || value instanceof Boolean || value instanceof Character || value instanceof TemporalAccessor) {
+                values[i] = value;
+            } else if (value instanceof byte[]) {
+                values[i] = ((byte[]) value).clone();
+            } else if (value instanceof java.util.Date) {
+                values[i] = ((java.util.Date) value).clone();
+            } else {
+                return null;
+            }
+        }
+        return new QueryResultCache.Key(queryFingerprint, values);
+    }
+
+    public PreparedStatementHolder getStatementHolder() {
+        return stmtHolder;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        closeCurrentResultSet();
+
+        // 先关闭或者归还物理语句，最后再从连接上移除，transactionPooling时移除可能会把物理连接还给连接池
+        try {
+            final PreparedStatementHolder stmtHolder = this.stmtHolder;
+            if (stmtHolder == null) {
+                pstmt.close();
+                return;
+            }
+
+            final PreparedStatementPool pool = stmtHolder.getPool();
+            boolean reusable;
+            try {
+                reusable = resetForPool(stmtHolder);
+            } catch (SQLException ex) {
+                reusable = false;
+            }
+
+            if (reusable) {
+                pool.release(stmtHolder);
+            } else {
+                pool.remove(stmtHolder);
+            }
+        } finally {
+            conn.removeStatement(this);
+        }
+    }
+
+    /**
+     * 把语句还原成刚创建时的状态，还原不了返回false
+     */
+    private boolean resetForPool(final PreparedStatementHolder stmtHolder) throws SQLException {
+        if (unrestorable || pstmt.isClosed()) {
+            return false;
+        }
+
+        JdbcUtils.close(pstmt.getResultSet());
+        pstmt.clearParameters();
+
+        if (batchPending) {
+            pstmt.clearBatch();
+        }
+
+        if (propertyChanged) {
+            pstmt.setFetchSize(stmtHolder.defaultFetchSize);
+            pstmt.setMaxRows(stmtHolder.defaultMaxRows);
+            pstmt.setMaxFieldSize(stmtHolder.defaultMaxFieldSize);
+            pstmt.setQueryTimeout(stmtHolder.defaultQueryTimeout);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void setFetchSize(final int rows) throws SQLException {
+        propertyChanged = true;
+        queryCacheBypass = true;
+        pstmt.setFetchSize(rows);
+    }
+
+    @Override
+    public void setMaxRows(final int max) throws SQLException {
+        propertyChanged = true;
+        queryCacheBypass = true;
+        pstmt.setMaxRows(max);
+    }
+
+    @Override
+    public void setMaxFieldSize(final int max) throws SQLException {
+        propertyChanged = true;
+        pstmt.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setQueryTimeout(final int seconds) throws SQLException {
+        propertyChanged = true;
+        pstmt.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void setLargeMaxRows(final long max) throws SQLException {
+        unrestorable = true;
+        queryCacheBypass = true;
+        pstmt.setLargeMaxRows(max);
+    }
+
+    @Override
+    public void setCursorName(final String name) throws SQLException {
+        unrestorable = true;
+        pstmt.setCursorName(name);
+    }
+
+    @Override
+    public void setEscapeProcessing(final boolean enable) throws SQLException {
+        unrestorable = true;
+        pstmt.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setFetchDirection(final int direction) throws SQLException {
+        unrestorable = true;
+        pstmt.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setPoolable(final boolean poolable) throws SQLException {
+        if (!poolable) {
+            unrestorable = true;
+        }
+        pstmt.setPoolable(poolable);
+    }
+
+    @Override
+    public void addBatch(final String sql) throws SQLException {
+        checkOpen();
+        batchPending = true;
+        pstmt.addBatch(sql);
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        checkOpen();
+        batchPending = true;
+        pstmt.addBatch();
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        if (parameters != null) {
+            Arrays.fill(parameters, null);
+            parameterCount = 0;
+        }
+        pstmt.clearParameters();
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        checkOpen();
+        final long startNanos = beforeExecute();
+        try {
+            boolean result = pstmt.execute();
+            afterExecute(sqlStat, startNanos, result ? -1 : pstmt.getUpdateCount());
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate() throws SQLException {
+        checkOpen();
+        final long startNanos = beforeExecute();
+        try {
+            long result = pstmt.executeLargeUpdate();
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        checkOpen();
+
+        final QueryResultCache queryCache = this.queryCache;
+        QueryResultCache.Key cacheKey = null;
+        if (queryCache != null && !queryCacheBypass) {
+            cacheKey = queryCacheKey();
+            if (cacheKey != null) {
+                final ResultSet cached = cachedResultSet(queryCache, cacheKey, sqlStat);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        final QueryResultCache.Stamp stamp = cacheKey != null ? queryCache.stamp(sql) : null;
+
+        final long startNanos = beforeExecute();
+        final ResultSet result;
+        try {
+            result = pstmt.executeQuery();
+            afterExecute(sqlStat, startNanos, -1);
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+
+        if (stamp != null && conn.getHolder().underlyingAutoCommit) {
+            return cacheResultSet(queryCache, cacheKey, stamp, result, sqlStat);
+        }
+        return wrapResultSet(result, sqlStat);
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        checkOpen();
+        final long startNanos = beforeExecute();
+        try {
+            int result = pstmt.executeUpdate();
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return pstmt.getMetaData();
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return pstmt.getParameterMetaData();
+    }
+
+    @Override
+    public void setArray(final int parameterIndex, final Array x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setArray(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(final int parameterIndex, final InputStream x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setAsciiStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(final int parameterIndex, final InputStream x, final int length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setAsciiStream(final int parameterIndex, final InputStream x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBigDecimal(final int parameterIndex, final BigDecimal x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBigDecimal(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(final int parameterIndex, final InputStream x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBinaryStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(final int parameterIndex, final InputStream x, final int length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBinaryStream(final int parameterIndex, final InputStream x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBlob(final int parameterIndex, final InputStream x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBlob(parameterIndex, x);
+    }
+
+    @Override
+    public void setBlob(final int parameterIndex, final Blob x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBlob(parameterIndex, x);
+    }
+
+    @Override
+    public void setBlob(final int parameterIndex, final InputStream x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBlob(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBoolean(final int parameterIndex, final boolean x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBoolean(parameterIndex, x);
+    }
+
+    @Override
+    public void setByte(final int parameterIndex, final byte x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setByte(parameterIndex, x);
+    }
+
+    @Override
+    public void setBytes(final int parameterIndex, final byte[] x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setBytes(parameterIndex, x);
+    }
+
+    @Override
+    public void setCharacterStream(final int parameterIndex, final Reader x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setCharacterStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setCharacterStream(final int parameterIndex, final Reader x, final int length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setCharacterStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setCharacterStream(final int parameterIndex, final Reader x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setCharacterStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setClob(final int parameterIndex, final Reader x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setClob(final int parameterIndex, final Clob x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setClob(final int parameterIndex, final Reader x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setClob(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setDate(final int parameterIndex, final Date x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setDate(parameterIndex, x);
+    }
+
+    @Override
+    public void setDate(final int parameterIndex, final Date x, final Calendar cal) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setDate(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setDouble(final int parameterIndex, final double x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setDouble(parameterIndex, x);
+    }
+
+    @Override
+    public void setFloat(final int parameterIndex, final float x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setFloat(parameterIndex, x);
+    }
+
+    @Override
+    public void setInt(final int parameterIndex, final int x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setInt(parameterIndex, x);
+    }
+
+    @Override
+    public void setLong(final int parameterIndex, final long x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setLong(parameterIndex, x);
+    }
+
+    @Override
+    public void setNCharacterStream(final int parameterIndex, final Reader x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setNCharacterStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setNCharacterStream(final int parameterIndex, final Reader x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setNCharacterStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setNClob(final int parameterIndex, final Reader x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setNClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setNClob(final int parameterIndex, final NClob x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setNClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setNClob(final int parameterIndex, final Reader x, final long length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setNClob(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setNString(final int parameterIndex, final String x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setNString(parameterIndex, x);
+    }
+
+    @Override
+    public void setNull(final int parameterIndex, final int sqlType) throws SQLException {
+        parameter(parameterIndex, null);
+        pstmt.setNull(parameterIndex, sqlType);
+    }
+
+    @Override
+    public void setNull(final int parameterIndex, final int sqlType, final String typeName) throws SQLException {
+        parameter(parameterIndex, null);
+        pstmt.setNull(parameterIndex, sqlType, typeName);
+    }
+
+    @Override
+    public void setObject(final int parameterIndex, final Object x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setObject(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(final int parameterIndex, final Object x, final int targetSqlType) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setObject(parameterIndex, x, targetSqlType);
+    }
+
+    @Override
+    public void setObject(final int parameterIndex, final Object x, final SQLType targetSqlType) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setObject(parameterIndex, x, targetSqlType);
+    }
+
+    @Override
+    public void setObject(final int parameterIndex, final Object x, final int targetSqlType, final int scaleOrLength) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    @Override
+    public void setObject(final int parameterIndex, final Object x, final SQLType targetSqlType, final int scaleOrLength) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    @Override
+    public void setRef(final int parameterIndex, final Ref x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setRef(parameterIndex, x);
+    }
+
+    @Override
+    public void setRowId(final int parameterIndex, final RowId x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setRowId(parameterIndex, x);
+    }
+
+    @Override
+    public void setSQLXML(final int parameterIndex, final SQLXML x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setSQLXML(parameterIndex, x);
+    }
+
+    @Override
+    public void setShort(final int parameterIndex, final short x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setShort(parameterIndex, x);
+    }
+
+    @Override
+    public void setString(final int parameterIndex, final String x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setString(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(final int parameterIndex, final Time x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setTime(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(final int parameterIndex, final Time x, final Calendar cal) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setTime(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setTimestamp(final int parameterIndex, final Timestamp x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setTimestamp(parameterIndex, x);
+    }
+
+    @Override
+    public void setTimestamp(final int parameterIndex, final Timestamp x, final Calendar cal) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setTimestamp(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setURL(final int parameterIndex, final URL x) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setURL(parameterIndex, x);
+    }
+
+    @Deprecated
+    @Override
+    public void setUnicodeStream(final int parameterIndex, final InputStream x, final int length) throws SQLException {
+        parameter(parameterIndex, x);
+        pstmt.setUnicodeStream(parameterIndex, x, length);
+    }
+
+}
@@ -0,0 +1,760 @@
+package org.lsd.alien.pool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.lsd.alien.DbType;
+import org.lsd.alien.cache.CachedRows;
+import org.lsd.alien.cache.QueryResultCache;
+import org.lsd.alien.stat.JdbcSqlStat;
+import org.lsd.alien.stat.SlowSqlLogger;
+import org.lsd.alien.stat.SlowSqlRecord;
+import org.lsd.alien.util.JdbcUtils;
+import org.lsd.alien.util.MySqlUtils;
+import org.lsd.alien.util.SqlParameterizer;
+
+/**
+ * @author nhsoft.lsd
+ */
+public class AlienPooledStatement implements Statement {
+
+    protected final AlienPooledConnection conn;
+    protected final Statement stmt;
+
+    protected boolean closed = false;
+
+    /**
+     * 最近一次执行返回的ResultSet，再次执行或者关闭语句时把读取行数记到统计里
+     */
+    protected AlienPooledResultSet currentResultSet;
+
+    /**
+     * 查询缓存返回的ResultSet，驱动不知道它的存在，再次执行或者关闭语句时在这里关闭，
+     * 映射文件里的结果关闭时才会释放钉住的区域
+     */
+    private ResultSet currentCachedResultSet;
+
+    /**
+     * 最近一次执行的SQL统计，getResultSet()时使用
+     */
+    protected JdbcSqlStat lastSqlStat;
+
+    /**
+     * Statement.addBatch(sql)的最后一条SQL，executeBatch时按它统计
+     */
+    protected String batchSql;
+
+    /**
+     * 开启查询缓存时记录Statement.addBatch(sql)的所有SQL，执行以后让写过的表失效
+     */
+    private List<String> batchSqls;
+
+    /**
+     * 设置过fetchSize或者maxRows时不走查询缓存：maxRows会截断结果，设置fetchSize一般是要流式读取
+     */
+    protected boolean queryCacheBypass;
+
+    /**
+     * 最近一次执行的SQL，只在记录慢SQL时使用
+     */
+    protected String lastSql;
+
+    public AlienPooledStatement(final AlienPooledConnection conn, final Statement stmt) {
+        this.conn = conn;
+        this.stmt = stmt;
+    }
+
+    public Statement getStatement() {
+        return stmt;
+    }
+
+    public AlienPooledConnection getPoolableConnection() {
+        return conn;
+    }
+
+    protected void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("statement is closed");
+        }
+        conn.checkState();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        closeCurrentResultSet();
+        try {
+            stmt.close();
+        } finally {
+            conn.removeStatement(this);
+        }
+    }
+
+    protected JdbcSqlStat sqlStat(final String sql) {
+        lastSql = sql;
+        return conn.getSqlStat(sql);
+    }
+
+    protected JdbcSqlStat batchSqlStat() {
+        String sql = batchSql;
+        batchSql = null;
+        if (sql == null) {
+            lastSql = null;
+            return null;
+        }
+        return sqlStat(sql);
+    }
+
+    protected String slowSql() {
+        return lastSql;
+    }
+
+    /**
+     * 慢SQL日志里输出的参数，Statement的参数都在SQL里，没有单独的参数
+     */
+    protected String slowSqlParameters() {
+        return null;
+    }
+
+    protected final long beforeExecute() {
+        closeCurrentResultSet();
+        final AlienConnectionHolder holder = conn.getHolder();
+        holder.incrementRunningCount();
+        if (!holder.underlyingAutoCommit) {
+            holder.transactionDirty = true;
+        }
+        return System.nanoTime();
+    }
+
+    protected final void afterExecute(final JdbcSqlStat sqlStat, final long startNanos, final long updateCount) {
+        final long nanos = System.nanoTime() - startNanos;
+        final AlienConnectionHolder holder = conn.getHolder();
+        holder.decrementRunningCount();
+        holder.getDataSource().getExecuteHistogram().record(nanos);
+        lastSqlStat = sqlStat;
+        if (sqlStat != null) {
+            sqlStat.recordExecute(nanos, updateCount);
+        }
+        if (updateCount >= 0) {
+            conn.markWritten();
+        }
+        invalidateQueryCache(holder);
+        checkSlowSql(nanos, false);
+        holder.setLastExecTimeMillis(System.currentTimeMillis());
+    }
+
+    protected final void afterExecuteError(final JdbcSqlStat sqlStat, final long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        final AlienConnectionHolder holder = conn.getHolder();
+        holder.decrementRunningCount();
+        holder.getDataSource().getExecuteHistogram().record(nanos);
+        lastSqlStat = sqlStat;
+        if (sqlStat != null) {
+            sqlStat.recordError(nanos);
+        }
+        holder.getDataSource().incrementSqlErrorCount();
+        // 批量执行失败时前面的语句可能已经生效
+        conn.markWritten();
+        invalidateQueryCache(holder);
+        checkSlowSql(nanos, true);
+    }
+
+    private void invalidateQueryCache(final AlienConnectionHolder holder) {
+        if (holder.getDataSource().getQueryResultCache() == null) {
+            return;
+        }
+
+        final List<String> batchSqls = this.batchSqls;
+        if (batchSqls != null && !batchSqls.isEmpty()) {
+            for (String sql : batchSqls) {
+                holder.invalidateQueryCache(sql);
+            }
+            batchSqls.clear();
+        } else {
+            holder.invalidateQueryCache(slowSql());
+        }
+    }
+
+    /**
+     * 从查询缓存里取结果，没有命中返回null，只在autoCommit时使用缓存，事务里可能读到自己未提交的修改
+     */
+    protected final ResultSet cachedResultSet(final QueryResultCache cache, final QueryResultCache.Key key, final JdbcSqlStat sqlStat) {
+        if (!conn.getHolder().underlyingAutoCommit) {
+            return null;
+        }
+
+        final ResultSet rs = cache.get(key, this);
+        if (rs == null) {
+            return null;
+        }
+        closeCurrentResultSet();
+        currentCachedResultSet = rs;
+        lastSqlStat = sqlStat;
+        return rs;
+    }
+
+    /**
+     * 把驱动返回的结果全部读到内存里，放进缓存，返回可以回放的ResultSet
+     */
+    protected final ResultSet cacheResultSet(final QueryResultCache cache, final QueryResultCache.Key key, final QueryResultCache.Stamp stamp, final ResultSet rs, final JdbcSqlStat sqlStat) throws SQLException {
+        final CachedRows rows;
+        try {
+            rows = CachedRows.read(rs);
+        } finally {
+            rs.close();
+        }
+
+        if (sqlStat != null) {
+            sqlStat.recordFetchRows(rows.getRowCount());
+        }
+        cache.put(key, rows, stamp);
+        final ResultSet cached = rows.newResultSet(this);
+        currentCachedResultSet = cached;
+        return cached;
+    }
+
+    private void checkSlowSql(final long nanos, final boolean error) {
+        final SlowSqlLogger slowSqlLogger = conn.getHolder().getDataSource().getSlowSqlLogger();
+        if (slowSqlLogger == null || nanos < slowSqlLogger.getThresholdNanos()) {
+            return;
+        }
+        logSlowSql(slowSqlLogger, nanos, error);
+    }
+
+    /**
+     * 只有慢SQL才会走到这里，参数化、取连接id和堆栈的开销都放在这条路径上
+     */
+    private void logSlowSql(final SlowSqlLogger slowSqlLogger, final long nanos, final boolean error) {
+        final String sql = slowSql();
+        if (sql == null) {
+            return;
+        }
+
+        final AlienConnectionHolder holder = conn.getHolder();
+        final DbType dbType = holder.getDataSource().getDbType();
+        final Thread thread = Thread.currentThread();
+
+        slowSqlLogger.offer(new SlowSqlRecord(
+                System.currentTimeMillis(),
+                nanos,
+                SqlParameterizer.fnv1a_64_lower(sql, dbType),
+                SqlParameterizer.parameterize(sql, dbType),
+                slowSqlLogger.isLogParameters() ? slowSqlParameters() : null,
+                MySqlUtils.getId(holder.getConn()),
+                error,
+                thread.getName(),
+                thread.getStackTrace()));
+    }
+
+    protected final ResultSet wrapResultSet(final ResultSet rs, final JdbcSqlStat sqlStat) {
+        if (rs == null) {
+            return null;
+        }
+
+        AlienPooledResultSet wrapper = new AlienPooledResultSet(this, rs, sqlStat);
+        currentResultSet = wrapper;
+        return wrapper;
+    }
+
+    void onResultSetClosed(final AlienPooledResultSet rs) {
+        rs.recordFetchRows();
+        if (currentResultSet == rs) {
+            currentResultSet = null;
+        }
+    }
+
+    protected final void closeCurrentResultSet() {
+        AlienPooledResultSet rs = currentResultSet;
+        if (rs != null) {
+            currentResultSet = null;
+            rs.recordFetchRows();
+        }
+        ResultSet cached = currentCachedResultSet;
+        if (cached != null) {
+            currentCachedResultSet = null;
+            JdbcUtils.close(cached);
+        }
+    }
+
+    protected static long sum(final int[] updateCounts) {
+        long sum = 0;
+        for (int updateCount : updateCounts) {
+            if (updateCount > 0) {
+                sum += updateCount;
+            }
+        }
+        return sum;
+    }
+
+    protected static long sum(final long[] updateCounts) {
+        long sum = 0;
+        for (long updateCount : updateCounts) {
+            if (updateCount > 0) {
+                sum += updateCount;
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed || stmt.isClosed();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return conn;
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return stmt.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || stmt.isWrapperFor(iface);
+    }
+
+    @Override
+    public void addBatch(final String sql) throws SQLException {
+        checkOpen();
+        batchSql = sql;
+        if (conn.getHolder().getDataSource().getQueryResultCache() != null) {
+            if (batchSqls == null) {
+                batchSqls = new ArrayList<String>();
+            }
+            batchSqls.add(sql);
+        }
+        stmt.addBatch(sql);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        stmt.cancel();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        if (batchSqls != null) {
+            batchSqls.clear();
+        }
+        stmt.clearBatch();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        stmt.clearWarnings();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        stmt.closeOnCompletion();
+    }
+
+    @Override
+    public boolean execute(final String sql) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            boolean result = stmt.execute(sql);
+            afterExecute(sqlStat, startNanos, result ? -1 : stmt.getUpdateCount());
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean execute(final String sql, final int[] columnIndexes) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            boolean result = stmt.execute(sql, columnIndexes);
+            afterExecute(sqlStat, startNanos, result ? -1 : stmt.getUpdateCount());
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean execute(final String sql, final String[] columnNames) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            boolean result = stmt.execute(sql, columnNames);
+            afterExecute(sqlStat, startNanos, result ? -1 : stmt.getUpdateCount());
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean execute(final String sql, final int autoGeneratedKeys) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            boolean result = stmt.execute(sql, autoGeneratedKeys);
+            afterExecute(sqlStat, startNanos, result ? -1 : stmt.getUpdateCount());
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = batchSqlStat();
+        final long startNanos = beforeExecute();
+        try {
+            int[] result = stmt.executeBatch();
+            afterExecute(sqlStat, startNanos, sum(result));
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = batchSqlStat();
+        final long startNanos = beforeExecute();
+        try {
+            long[] result = stmt.executeLargeBatch();
+            afterExecute(sqlStat, startNanos, sum(result));
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(final String sql) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            long result = stmt.executeLargeUpdate(sql);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(final String sql, final int[] columnIndexes) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            long result = stmt.executeLargeUpdate(sql, columnIndexes);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(final String sql, final String[] columnNames) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            long result = stmt.executeLargeUpdate(sql, columnNames);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(final String sql, final int autoGeneratedKeys) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            long result = stmt.executeLargeUpdate(sql, autoGeneratedKeys);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery(final String sql) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+
+        // Statement的参数都在SQL里，整条SQL作为参数
+        final QueryResultCache cache = conn.getHolder().getDataSource().getQueryResultCache();
+        QueryResultCache.Key cacheKey = null;
+        if (cache != null && !queryCacheBypass) {
+            final long fingerprint = cache.fingerprint(sql);
+            if (cache.isCacheable(fingerprint)) {
+                cacheKey = new QueryResultCache.Key(fingerprint, new Object[] {sql});
+                final ResultSet cached = cachedResultSet(cache, cacheKey, sqlStat);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        final QueryResultCache.Stamp stamp = cacheKey != null ? cache.stamp(sql) : null;
+
+        final long startNanos = beforeExecute();
+        final ResultSet result;
+        try {
+            result = stmt.executeQuery(sql);
+            afterExecute(sqlStat, startNanos, -1);
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+
+        if (stamp != null && conn.getHolder().underlyingAutoCommit) {
+            return cacheResultSet(cache, cacheKey, stamp, result, sqlStat);
+        }
+        return wrapResultSet(result, sqlStat);
+    }
+
+    @Override
+    public int executeUpdate(final String sql) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            int result = stmt.executeUpdate(sql);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int executeUpdate(final String sql, final int[] columnIndexes) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            int result = stmt.executeUpdate(sql, columnIndexes);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int executeUpdate(final String sql, final String[] columnNames) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            int result = stmt.executeUpdate(sql, columnNames);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int executeUpdate(final String sql, final int autoGeneratedKeys) throws SQLException {
+        checkOpen();
+        final JdbcSqlStat sqlStat = sqlStat(sql);
+        final long startNanos = beforeExecute();
+        try {
+            int result = stmt.executeUpdate(sql, autoGeneratedKeys);
+            afterExecute(sqlStat, startNanos, result);
+            return result;
+        } catch (SQLException | RuntimeException ex) {
+            afterExecuteError(sqlStat, startNanos);
+            throw ex;
+        }
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return stmt.getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return stmt.getFetchSize();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return stmt.getGeneratedKeys();
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return stmt.getLargeMaxRows();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return stmt.getLargeUpdateCount();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return stmt.getMaxFieldSize();
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return stmt.getMaxRows();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return stmt.getMoreResults();
+    }
+
+    @Override
+    public boolean getMoreResults(final int current) throws SQLException {
+        return stmt.getMoreResults(current);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return stmt.getQueryTimeout();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        checkOpen();
+        ResultSet rs = stmt.getResultSet();
+        if (rs == null) {
+            return null;
+        }
+
+        AlienPooledResultSet current = this.currentResultSet;
+        if (current != null && current.rs == rs) {
+            return current;
+        }
+        return wrapResultSet(rs, lastSqlStat);
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return stmt.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return stmt.getResultSetHoldability();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return stmt.getResultSetType();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return stmt.getUpdateCount();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return stmt.getWarnings();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return stmt.isCloseOnCompletion();
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return stmt.isPoolable();
+    }
+
+    @Override
+    public void setCursorName(final String name) throws SQLException {
+        stmt.setCursorName(name);
+    }
+
+    @Override
+    public void setEscapeProcessing(final boolean enable) throws SQLException {
+        stmt.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setFetchDirection(final int direction) throws SQLException {
+        stmt.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setFetchSize(final int rows) throws SQLException {
+        queryCacheBypass = true;
+        stmt.setFetchSize(rows);
+    }
+
+    @Override
+    public void setLargeMaxRows(final long max) throws SQLException {
+        queryCacheBypass = true;
+        stmt.setLargeMaxRows(max);
+    }
+
+    @Override
+    public void setMaxFieldSize(final int max) throws SQLException {
+        stmt.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setMaxRows(final int max) throws SQLException {
+        queryCacheBypass = true;
+        stmt.setMaxRows(max);
+    }
+
+    @Override
+    public void setPoolable(final boolean poolable) throws SQLException {
+        stmt.setPoolable(poolable);
+    }
+
+    @Override
+    public void setQueryTimeout(final int seconds) throws SQLException {
+        stmt.setQueryTimeout(seconds);
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.lsd.alien.pool;
+
+import java.sql.SQLException;
+
+/**
+ * 延迟绑定的逻辑连接在借物理连接前决定从哪个连接池借，用于读写分离等路由
+ *
+ * @author nhsoft.lsd
+ */
+public interface ConnectionRouter {
+
+    /**
+     * 第一次需要物理连接时调用，此时连接上设置的会话属性还没有回放
+     */
+    AlienDataSource route(AlienPooledConnection connection) throws SQLException;
+
+    /**
+     * 物理连接归还给dataSource以后调用
+     */
+    void afterRelease(AlienPooledConnection connection, AlienDataSource dataSource);
+}
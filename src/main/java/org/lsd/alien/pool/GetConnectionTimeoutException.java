@@ -0,0 +1,17 @@
+package org.lsd.alien.pool;
+
+import java.sql.SQLException;
+
+/**
+ * 在maxWait内没有借到连接，连接池已满，不代表数据库不可用
+ *
+ * @author nhsoft.lsd
+ */
+public class GetConnectionTimeoutException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    public GetConnectionTimeoutException(final String reason) {
+        super(reason);
+    }
+}
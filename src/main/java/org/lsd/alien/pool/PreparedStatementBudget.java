@@ -0,0 +1,162 @@
+package org.lsd.alien.pool;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 连接池级别的PreparedStatement缓存预算，统计所有连接上缓存的语句数量和估算内存，
+ * 超出预算时按 频率 x 新近度 在整个连接池范围内驱逐分数最低的空闲语句
+ *
+ * @author nhsoft.lsd
+ */
+public class PreparedStatementBudget {
+
+    /**
+     * 一次驱逐到预算的90%，避免每次登记都触发驱逐
+     */
+    private static final double LOW_WATER_MARK = 0.9D;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final int  maxCount;
+    private final long maxBytes;
+
+    private PreparedStatementHolder[] entries = new PreparedStatementHolder[64];
+    private int  count;
+    private long bytes;
+
+    private long evictCount;
+
+    public PreparedStatementBudget(final int maxCount, final long maxBytes) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    public void register(final PreparedStatementHolder stmtHolder) {
+        lock.lock();
+        try {
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count << 1);
+            }
+            stmtHolder.budgetIndex = count;
+            entries[count++] = stmtHolder;
+            bytes += stmtHolder.estimatedBytes;
+
+            if (isOverBudget(count, bytes)) {
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return false表示这个语句已经被驱逐
+     */
+    public boolean unregister(final PreparedStatementHolder stmtHolder) {
+        lock.lock();
+        try {
+            if (stmtHolder.budgetIndex < 0) {
+                return false;
+            }
+            removeAt(stmtHolder.budgetIndex);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isOverBudget(final int count, final long bytes) {
+        return (maxCount > 0 && count > maxCount) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    private void evict() {
+        final long currentTimeMillis = System.currentTimeMillis();
+        final int targetCount = maxCount > 0 ? (int) (maxCount * LOW_WATER_MARK) : Integer.MAX_VALUE;
+        final long targetBytes = maxBytes > 0 ? (long) (maxBytes * LOW_WATER_MARK) : Long.MAX_VALUE;
+
+        int candidateCount = 0;
+        PreparedStatementHolder[] candidates = new PreparedStatementHolder[count];
+        double[] scores = new double[count];
+        for (int i = 0; i < count; ++i) {
+            PreparedStatementHolder stmtHolder = entries[i];
+            if (stmtHolder.inUse) {
+                continue;
+            }
+            candidates[candidateCount] = stmtHolder;
+            scores[candidateCount] = stmtHolder.score(currentTimeMillis);
+            candidateCount++;
+        }
+
+        Integer[] order = new Integer[candidateCount];
+        for (int i = 0; i < candidateCount; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(scores[a], scores[b]));
+
+        for (int i = 0; i < candidateCount; ++i) {
+            if (count <= targetCount && bytes <= targetBytes) {
+                break;
+            }
+
+            PreparedStatementHolder stmtHolder = candidates[order[i]];
+            // 排序期间所属连接可能已经重新借用了这个语句
+            if (stmtHolder.inUse || stmtHolder.budgetIndex < 0) {
+                continue;
+            }
+
+            removeAt(stmtHolder.budgetIndex);
+            stmtHolder.evicted = true;
+            stmtHolder.pool.onEvicted();
+            evictCount++;
+        }
+    }
+
+    private void removeAt(final int index) {
+        PreparedStatementHolder removed = entries[index];
+        int last = --count;
+        if (index != last) {
+            PreparedStatementHolder moved = entries[last];
+            entries[index] = moved;
+            moved.budgetIndex = index;
+        }
+        entries[last] = null;
+        removed.budgetIndex = -1;
+        bytes -= removed.estimatedBytes;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictCount() {
+        lock.lock();
+        try {
+            return evictCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.lsd.alien.pool;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.lsd.alien.stat.JdbcSqlStat;
+
+/**
+ * 被缓存的PreparedStatement，物理关闭只能由所属连接的使用线程执行
+ *
+ * @author nhsoft.lsd
+ */
+public final class PreparedStatementHolder {
+
+    /**
+     * 除SQL文本外，客户端和服务端为每个预编译语句保留的大致开销
+     */
+    public static final int STATEMENT_OVERHEAD_BYTES = 512;
+
+    /**
+     * 每个参数占用的大致开销
+     */
+    public static final int PARAMETER_OVERHEAD_BYTES = 64;
+
+    protected final PreparedStatementKey key;
+    protected final PreparedStatement    statement;
+    protected final PreparedStatementPool pool;
+    protected final long                 estimatedBytes;
+    protected final JdbcSqlStat          sqlStat;
+
+    protected final int defaultFetchSize;
+    protected final int defaultMaxRows;
+    protected final int defaultMaxFieldSize;
+    protected final int defaultQueryTimeout;
+
+    protected volatile long    hitCount;
+    protected volatile long    lastActiveTimeMillis;
+    protected volatile boolean inUse;
+
+    /**
+     * 被连接池全局预算驱逐，等待所属连接在自己的线程里物理关闭
+     */
+    protected volatile boolean evicted;
+
+    /**
+     * 在PreparedStatementBudget中的下标，-1表示未登记，只在budget锁内读写
+     */
+    protected int budgetIndex = -1;
+
+    public PreparedStatementHolder(final PreparedStatementKey key, final PreparedStatement statement, final PreparedStatementPool pool, final JdbcSqlStat sqlStat) throws SQLException {
+        this.key = key;
+        this.statement = statement;
+        this.pool = pool;
+        this.sqlStat = sqlStat;
+        this.estimatedBytes = estimateBytes(key.sql);
+        this.defaultFetchSize = statement.getFetchSize();
+        this.defaultMaxRows = statement.getMaxRows();
+        this.defaultMaxFieldSize = statement.getMaxFieldSize();
+        this.defaultQueryTimeout = statement.getQueryTimeout();
+        this.lastActiveTimeMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 估算一个预编译语句在客户端和服务端占用的内存：SQL文本在客户端是UTF-16，服务端再保留一份，外加参数元数据
+     */
+    public static long estimateBytes(final String sql) {
+        int parameterCount = 0;
+        for (int i = 0, len = sql.length(); i < len; ++i) {
+            if (sql.charAt(i) == '?') {
+                parameterCount++;
+            }
+        }
+
+        return STATEMENT_OVERHEAD_BYTES + sql.length() * 3L + parameterCount * (long) PARAMETER_OVERHEAD_BYTES;
+    }
+
+    /**
+     * 频率乘以新近度，分数越低越先被驱逐
+     */
+    public double score(final long currentTimeMillis) {
+        long idleMillis = currentTimeMillis - lastActiveTimeMillis;
+        if (idleMillis < 0) {
+            idleMillis = 0;
+        }
+        return (hitCount + 1) / (1.0D + idleMillis / 1000.0D);
+    }
+
+    public PreparedStatementKey getKey() {
+        return key;
+    }
+
+    public PreparedStatement getStatement() {
+        return statement;
+    }
+
+    public PreparedStatementPool getPool() {
+        return pool;
+    }
+
+    public JdbcSqlStat getSqlStat() {
+        return sqlStat;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getLastActiveTimeMillis() {
+        return lastActiveTimeMillis;
+    }
+
+    public boolean isInUse() {
+        return inUse;
+    }
+
+    public boolean isEvicted() {
+        return evicted;
+    }
+}
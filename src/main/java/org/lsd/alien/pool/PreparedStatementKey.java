@@ -0,0 +1,61 @@
+package org.lsd.alien.pool;
+
+import java.sql.ResultSet;
+
+/**
+ * 缓存PreparedStatement的key，只缓存prepareStatement(sql)和prepareStatement(sql, resultSetType, resultSetConcurrency)两种
+ *
+ * @author nhsoft.lsd
+ */
+public final class PreparedStatementKey {
+
+    protected final String sql;
+    protected final int    resultSetType;
+    protected final int    resultSetConcurrency;
+
+    public PreparedStatementKey(final String sql) {
+        this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    public PreparedStatementKey(final String sql, final int resultSetType, final int resultSetConcurrency) {
+        this.sql = sql;
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public int getResultSetType() {
+        return resultSetType;
+    }
+
+    public int getResultSetConcurrency() {
+        return resultSetConcurrency;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof PreparedStatementKey)) {
+            return false;
+        }
+
+        PreparedStatementKey that = (PreparedStatementKey) o;
+        return resultSetType == that.resultSetType
+                && resultSetConcurrency == that.resultSetConcurrency
+                && sql.equals(that.sql);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = sql.hashCode();
+        result = 31 * result + resultSetType;
+        result = 31 * result + resultSetConcurrency;
+        return result;
+    }
+}
@@ -0,0 +1,207 @@
+package org.lsd.alien.pool;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lsd.alien.util.JdbcUtils;
+
+/**
+ * 单个物理连接上的PreparedStatement缓存，只会被持有该连接的线程访问，连接空闲时只在连接池lock内访问；
+ * 全局预算的驱逐线程只打标记，物理关闭留给持有线程在get/recycle时完成，空闲连接由连接池的销毁线程在lock外完成
+ *
+ * @author nhsoft.lsd
+ */
+public class PreparedStatementPool {
+
+    private final AlienConnectionHolder holder;
+    private final PreparedStatementBudget budget;
+    private final int maxSize;
+
+    private final LinkedHashMap<PreparedStatementKey, PreparedStatementHolder> map;
+
+    /**
+     * 已被全局预算驱逐但还未物理关闭的数量
+     */
+    private final AtomicInteger pendingEvictCount = new AtomicInteger();
+
+    public PreparedStatementPool(final AlienConnectionHolder holder, final PreparedStatementBudget budget, final int maxSize) {
+        this.holder = holder;
+        this.budget = budget;
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<PreparedStatementKey, PreparedStatementHolder>(16, 0.75f, true);
+    }
+
+    public PreparedStatementHolder get(final PreparedStatementKey key) {
+        PreparedStatementHolder stmtHolder = map.get(key);
+        if (stmtHolder == null) {
+            return null;
+        }
+
+        if (stmtHolder.evicted) {
+            map.remove(key);
+            closeEvicted(stmtHolder);
+            return null;
+        }
+
+        // 同一个连接上同时打开了两个相同SQL的语句，第二个不走缓存
+        if (stmtHolder.inUse) {
+            return null;
+        }
+
+        stmtHolder.inUse = true;
+        stmtHolder.hitCount++;
+        stmtHolder.lastActiveTimeMillis = System.currentTimeMillis();
+        return stmtHolder;
+    }
+
+    /**
+     * 新建的语句登记进缓存，返回false表示未缓存，调用方自行关闭
+     */
+    public boolean put(final PreparedStatementHolder stmtHolder) {
+        PreparedStatementHolder old = map.get(stmtHolder.key);
+        if (old != null) {
+            return false;
+        }
+
+        if (map.size() >= maxSize) {
+            removeEldestIdle();
+            if (map.size() >= maxSize) {
+                return false;
+            }
+        }
+
+        stmtHolder.inUse = true;
+        map.put(stmtHolder.key, stmtHolder);
+        if (budget != null) {
+            budget.register(stmtHolder);
+        }
+        return true;
+    }
+
+    /**
+     * 语句被业务关闭，归还到缓存
+     */
+    public void release(final PreparedStatementHolder stmtHolder) {
+        stmtHolder.lastActiveTimeMillis = System.currentTimeMillis();
+        stmtHolder.inUse = false;
+
+        if (stmtHolder.evicted) {
+            map.remove(stmtHolder.key);
+            closeEvicted(stmtHolder);
+        }
+    }
+
+    /**
+     * 丢弃一个语句，例如语句状态无法还原时
+     */
+    public void remove(final PreparedStatementHolder stmtHolder) {
+        if (map.get(stmtHolder.key) == stmtHolder) {
+            map.remove(stmtHolder.key);
+        }
+
+        discard(stmtHolder);
+    }
+
+    /**
+     * 由全局预算在budget锁内调用
+     */
+    void onEvicted() {
+        pendingEvictCount.incrementAndGet();
+    }
+
+    /**
+     * 物理关闭被全局预算驱逐的语句，在连接的借出和归还时调用，空闲连接由销毁线程定时调用
+     */
+    public void purgeEvicted() {
+        List<Statement> statements = takeEvicted();
+        if (statements == null) {
+            return;
+        }
+        for (Statement statement : statements) {
+            JdbcUtils.close(statement);
+        }
+    }
+
+    /**
+     * 把被驱逐的空闲语句移出缓存但不关闭，返回null表示没有。
+     * 销毁线程在连接池lock内取出，解锁以后再关闭，关闭语句的网络往返不会挡住借出和归还
+     */
+    List<Statement> takeEvicted() {
+        if (pendingEvictCount.get() == 0) {
+            return null;
+        }
+
+        List<Statement> statements = null;
+        for (Iterator<Map.Entry<PreparedStatementKey, PreparedStatementHolder>> iter = map.entrySet().iterator(); iter.hasNext();) {
+            PreparedStatementHolder stmtHolder = iter.next().getValue();
+            if (stmtHolder.evicted && !stmtHolder.inUse) {
+                iter.remove();
+                pendingEvictCount.decrementAndGet();
+                if (statements == null) {
+                    statements = new ArrayList<Statement>();
+                }
+                statements.add(stmtHolder.statement);
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * 物理连接关闭前清空缓存
+     */
+    public void clear() {
+        List<PreparedStatementHolder> stmtHolders = new ArrayList<PreparedStatementHolder>(map.values());
+        map.clear();
+        for (PreparedStatementHolder stmtHolder : stmtHolders) {
+            discard(stmtHolder);
+        }
+    }
+
+    private void removeEldestIdle() {
+        for (Iterator<Map.Entry<PreparedStatementKey, PreparedStatementHolder>> iter = map.entrySet().iterator(); iter.hasNext();) {
+            PreparedStatementHolder stmtHolder = iter.next().getValue();
+            if (stmtHolder.inUse) {
+                continue;
+            }
+
+            iter.remove();
+            discard(stmtHolder);
+            return;
+        }
+    }
+
+    private void discard(final PreparedStatementHolder stmtHolder) {
+        // 全局预算可能刚好并发驱逐了这个语句，这时由驱逐计数负责
+        if (stmtHolder.evicted || (budget != null && !budget.unregister(stmtHolder))) {
+            closeEvicted(stmtHolder);
+            return;
+        }
+
+        JdbcUtils.close(stmtHolder.statement);
+    }
+
+    private void closeEvicted(final PreparedStatementHolder stmtHolder) {
+        pendingEvictCount.decrementAndGet();
+        JdbcUtils.close(stmtHolder.statement);
+    }
+
+    public AlienConnectionHolder getHolder() {
+        return holder;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getPendingEvictCount() {
+        return pendingEvictCount.get();
+    }
+}
@@ -0,0 +1,343 @@
+package org.lsd.alien.route;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import org.lsd.alien.logging.Log;
+import org.lsd.alien.logging.LogFactory;
+import org.lsd.alien.pool.AlienConnectionHolder;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.util.JdbcUtils;
+
+/**
+ * 多地址故障转移连接池，urls按优先级排列，同一时间只连一个地址。
+ * 每个地址维护一个0到1的健康分，建连和校验成功向1靠拢，失败向0靠拢（EWMA）。
+ * 当前地址的分数低于failoverScore时立刻切到下一个健康的地址，并一次性关闭旧地址的空闲连接；
+ * 后台定时探测优先级更高的地址，分数回到failbackScore以上时切回去
+ *
+ * @author nhsoft.lsd
+ */
+public class FailoverDataSource extends AlienDataSource {
+
+    private static final Log LOG = LogFactory.getLog(FailoverDataSource.class);
+
+    public final static double DEFAULT_FAILOVER_SCORE                  = 0.5D;
+    public final static double DEFAULT_FAILBACK_SCORE                  = 0.8D;
+    public final static long   DEFAULT_TIME_BETWEEN_HEALTH_CHECK_MILLIS = 3000L;
+    public final static int    DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS    = 1;
+
+    /**
+     * 健康分EWMA里新结果的权重，从1开始连续失败两次就会低于0.5
+     */
+    private static final double HEALTH_ALPHA = 0.3D;
+
+    private static final AtomicIntegerFieldUpdater<FailoverDataSource> CURRENT_UPDATER        = AtomicIntegerFieldUpdater.newUpdater(FailoverDataSource.class, "current");
+    private static final AtomicLongFieldUpdater<FailoverDataSource>    FAILOVER_COUNT_UPDATER = AtomicLongFieldUpdater.newUpdater(FailoverDataSource.class, "failoverCount");
+
+    private Host[] hosts = new Host[0];
+
+    /**
+     * 当前连接的地址下标
+     */
+    private volatile int current;
+
+    private volatile long failoverCount;
+
+    private volatile double failoverScore = DEFAULT_FAILOVER_SCORE;
+    private volatile double failbackScore = DEFAULT_FAILBACK_SCORE;
+
+    private long timeBetweenHealthCheckMillis = DEFAULT_TIME_BETWEEN_HEALTH_CHECK_MILLIS;
+
+    private volatile int healthCheckTimeoutSeconds = DEFAULT_HEALTH_CHECK_TIMEOUT_SECONDS;
+
+    private Timer healthCheckTimer;
+
+    @Override
+    public synchronized void init() throws SQLException {
+        if (hosts.length == 0) {
+            throw new IllegalArgumentException("urls not set");
+        }
+
+        super.init();
+
+        if (healthCheckTimer == null && hosts.length > 1) {
+            String threadName = "Alien-ConnectionPool-HealthCheck-" + System.identityHashCode(this);
+            long period = timeBetweenHealthCheckMillis > 0 ? timeBetweenHealthCheckMillis : DEFAULT_TIME_BETWEEN_HEALTH_CHECK_MILLIS;
+
+            healthCheckTimer = new Timer(threadName, true);
+            healthCheckTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        checkHealth();
+                    } catch (Throwable ex) {
+                        LOG.error("check hosts health error", ex);
+                    }
+                }
+            }, period, period);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (healthCheckTimer != null) {
+                healthCheckTimer.cancel();
+                healthCheckTimer = null;
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * 连当前地址，失败并且分数低于failoverScore时再试一个分数最高的其他地址，连上就切过去。
+     * 创建线程持有连接池的锁调用这里，每次最多等两个地址的建连超时，剩下的地址交给创建线程按timeBetweenConnectErrorMillis重试，
+     * 失败的地址分数降低，下一轮会换一个地址试
+     */
+    @Override
+    protected Connection connect(final Properties properties) throws SQLException {
+        final int index = current;
+        SQLException error;
+        try {
+            return connect(hosts[index], properties);
+        } catch (SQLException ex) {
+            error = ex;
+        }
+
+        if (hosts.length < 2 || hosts[index].score >= failoverScore) {
+            throw error;
+        }
+
+        final int candidate = failoverCandidate(index);
+        try {
+            Connection conn = connect(hosts[candidate], properties);
+            switchTo(index, candidate, "failover");
+            return conn;
+        } catch (SQLException ex) {
+            ex.addSuppressed(error);
+            throw ex;
+        }
+    }
+
+    /**
+     * 除index以外分数最高的地址，分数相同时取优先级高的
+     */
+    private int failoverCandidate(final int index) {
+        int candidate = -1;
+        for (int i = 0; i < hosts.length; ++i) {
+            if (i != index && (candidate < 0 || hosts[i].score > hosts[candidate].score)) {
+                candidate = i;
+            }
+        }
+        return candidate;
+    }
+
+    private Connection connect(final Host host, final Properties properties) throws SQLException {
+        try {
+            Connection conn = getDriver().connect(host.url, properties);
+            if (conn == null) {
+                throw new SQLException("driver does not accept url: " + host.url);
+            }
+            host.success();
+            return conn;
+        } catch (SQLException ex) {
+            host.failure();
+            throw ex;
+        }
+    }
+
+    /**
+     * 当前地址上创建的连接校验失败也计入健康分，切换之前创建的连接已经作废，不再计入
+     */
+    @Override
+    protected boolean testConnectionInternal(final AlienConnectionHolder holder, final Connection conn) {
+        final int index = current;
+        final int epoch = getConnectEpoch();
+
+        boolean valid = super.testConnectionInternal(holder, conn);
+
+        if (holder != null && holder.getConnectEpoch() == epoch) {
+            Host host = hosts[index];
+            if (valid) {
+                host.success();
+            } else {
+                host.failure();
+                failoverIfUnhealthy(index);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * 下标为index的地址不健康时切到排在最前面的健康地址，都不健康时不切，由connect每次换一个地址去试
+     */
+    private void failoverIfUnhealthy(final int index) {
+        if (current != index || hosts[index].score >= failoverScore) {
+            return;
+        }
+
+        for (int i = 0; i < hosts.length; ++i) {
+            if (i != index && hosts[i].score >= failoverScore) {
+                switchTo(index, i, "failover");
+                return;
+            }
+        }
+    }
+
+    private void switchTo(final int from, final int to, final String reason) {
+        if (!CURRENT_UPDATER.compareAndSet(this, from, to)) {
+            return;
+        }
+        FAILOVER_COUNT_UPDATER.incrementAndGet(this);
+
+        int drained = drainConnections();
+        LOG.warn(reason + " from " + hosts[from].url + " (score " + format(hosts[from].score) + ") to "
+                + hosts[to].url + " (score " + format(hosts[to].score) + "), drained " + drained + " idle connections");
+    }
+
+    /**
+     * 探测优先级比当前地址高的地址，最靠前的一个恢复到failbackScore以上时切回去。
+     * 在健康检查线程里执行，也可以在测试里直接调用
+     */
+    public void checkHealth() {
+        if (isClosed()) {
+            return;
+        }
+
+        final int index = current;
+        final Properties properties = getConnectProperties();
+        for (int i = 0; i < index; ++i) {
+            Host host = hosts[i];
+            if (probe(host, properties)) {
+                host.success();
+            } else {
+                host.failure();
+            }
+        }
+
+        for (int i = 0; i < index; ++i) {
+            if (hosts[i].score >= failbackScore) {
+                switchTo(index, i, "failback");
+                return;
+            }
+        }
+    }
+
+    private boolean probe(final Host host, final Properties properties) {
+        Connection conn = null;
+        try {
+            conn = getDriver().connect(host.url, properties);
+            return conn != null && conn.isValid(healthCheckTimeoutSeconds);
+        } catch (SQLException ex) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("health check error, url: " + host.url, ex);
+            }
+            return false;
+        } finally {
+            JdbcUtils.close(conn);
+        }
+    }
+
+    private static String format(final double score) {
+        return String.format("%.2f", score);
+    }
+
+    /**
+     * 按优先级排列的jdbc url，第一个是主地址，需要在init之前设置
+     */
+    public synchronized void setUrls(final List<String> urls) {
+        if (urls == null || urls.isEmpty()) {
+            throw new IllegalArgumentException("urls is empty");
+        }
+        Host[] hosts = new Host[urls.size()];
+        for (int i = 0; i < hosts.length; ++i) {
+            hosts[i] = new Host(urls.get(i));
+        }
+        this.hosts = hosts;
+        this.current = 0;
+        // 驱动和数据库类型按第一个地址识别
+        setUrl(urls.get(0));
+    }
+
+    public Host[] getHosts() {
+        return hosts.clone();
+    }
+
+    public String getCurrentUrl() {
+        return hosts[current].url;
+    }
+
+    public long getFailoverCount() {
+        return failoverCount;
+    }
+
+    public double getFailoverScore() {
+        return failoverScore;
+    }
+
+    public void setFailoverScore(final double failoverScore) {
+        this.failoverScore = failoverScore;
+    }
+
+    public double getFailbackScore() {
+        return failbackScore;
+    }
+
+    public void setFailbackScore(final double failbackScore) {
+        this.failbackScore = failbackScore;
+    }
+
+    public long getTimeBetweenHealthCheckMillis() {
+        return timeBetweenHealthCheckMillis;
+    }
+
+    public void setTimeBetweenHealthCheckMillis(final long timeBetweenHealthCheckMillis) {
+        this.timeBetweenHealthCheckMillis = timeBetweenHealthCheckMillis;
+    }
+
+    public int getHealthCheckTimeoutSeconds() {
+        return healthCheckTimeoutSeconds;
+    }
+
+    public void setHealthCheckTimeoutSeconds(final int healthCheckTimeoutSeconds) {
+        this.healthCheckTimeoutSeconds = healthCheckTimeoutSeconds;
+    }
+
+    /**
+     * 一个地址的健康状态
+     */
+    public static final class Host {
+
+        private final String url;
+
+        /**
+         * 0到1，1表示最近的建连和校验都成功
+         */
+        private volatile double score = 1D;
+
+        Host(final String url) {
+            this.url = url;
+        }
+
+        synchronized void success() {
+            score += HEALTH_ALPHA * (1D - score);
+        }
+
+        synchronized void failure() {
+            score -= HEALTH_ALPHA * score;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+}
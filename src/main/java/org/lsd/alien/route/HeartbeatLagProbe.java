@@ -0,0 +1,52 @@
+package org.lsd.alien.route;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import org.lsd.alien.util.JdbcUtils;
+
+/**
+ * 心跳表探测，主库定时更新一行时间戳（比如pt-heartbeat），从库上读出来和当前时间比较。
+ * 精度到毫秒，但依赖应用服务器和主库的时钟同步
+ *
+ * @author nhsoft.lsd
+ */
+public class HeartbeatLagProbe implements ReplicaLagProbe {
+
+    private final String sql;
+
+    /**
+     * @param sql 返回一行一列时间戳的查询，例如 SELECT ts FROM heartbeat WHERE server_id = 1
+     */
+    public HeartbeatLagProbe(final String sql) {
+        this.sql = sql;
+    }
+
+    @Override
+    public long lagMillis(final Connection conn) throws SQLException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery(sql);
+            if (!rs.next()) {
+                return Long.MAX_VALUE;
+            }
+
+            Timestamp heartbeat = rs.getTimestamp(1);
+            if (heartbeat == null) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0L, System.currentTimeMillis() - heartbeat.getTime());
+        } finally {
+            JdbcUtils.close(rs);
+            JdbcUtils.close(stmt);
+        }
+    }
+
+    public String getSql() {
+        return sql;
+    }
+}
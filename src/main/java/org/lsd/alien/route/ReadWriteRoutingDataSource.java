@@ -0,0 +1,166 @@
+package org.lsd.alien.route;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.pool.AlienPooledConnection;
+import org.lsd.alien.pool.ConnectionRouter;
+
+/**
+ * 读写分离数据源，由一个主库连接池和若干从库连接池组成。
+ * getConnection返回延迟绑定的逻辑连接，第一次需要物理连接时才决定去哪个库：
+ * 绑定时只读的连接（setReadOnly(true)，Spring的@Transactional(readOnly = true)也是这样设置的）走从库，
+ * 其他连接，包括读写事务里的读，都走主库。从库由ReplicaBalancer按负载和复制延迟选择。
+ * 开启readYourWritesMillis时，线程用主库连接写过以后，这段时间内的只读连接也走主库，避免读到从库延迟前的数据
+ *
+ * @author nhsoft.lsd
+ */
+public class ReadWriteRoutingDataSource implements DataSource {
+
+    private final AlienDataSource   master;
+    private final AlienDataSource[] replicas;
+    private final ReplicaBalancer   balancer;
+
+    /**
+     * 写主库以后只读连接继续走主库的时间，小于等于0表示不开启
+     */
+    private volatile long readYourWritesMillis = 0;
+
+    /**
+     * 每个线程最后一次归还执行过写语句的主库连接的时间
+     */
+    private final ThreadLocal<long[]> lastWriteMillis = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final ConnectionRouter router = new ConnectionRouter() {
+
+        @Override
+        public AlienDataSource route(final AlienPooledConnection connection) throws SQLException {
+            if (!connection.isReadOnlyAtBind() || isReadYourWritesWindow()) {
+                return master;
+            }
+            AlienDataSource replica = balancer.select();
+            return replica != null ? replica : master;
+        }
+
+        @Override
+        public void afterRelease(final AlienPooledConnection connection, final AlienDataSource dataSource) {
+            // 读写连接上只执行过查询时不算写，不影响之后的只读连接走从库
+            if (dataSource == master && !connection.isReadOnlyAtBind() && connection.isWrittenSinceBind() && readYourWritesMillis > 0) {
+                lastWriteMillis.get()[0] = System.currentTimeMillis();
+            }
+        }
+    };
+
+    public ReadWriteRoutingDataSource(final AlienDataSource master, final List<AlienDataSource> replicas) {
+        if (master == null) {
+            throw new IllegalArgumentException("master is null");
+        }
+        this.master = master;
+        this.replicas = replicas == null ? new AlienDataSource[0] : replicas.toArray(new AlienDataSource[0]);
+        this.balancer = new ReplicaBalancer(Arrays.asList(this.replicas));
+    }
+
+    public void init() throws SQLException {
+        master.init();
+        for (AlienDataSource replica : replicas) {
+            replica.init();
+        }
+        balancer.start();
+    }
+
+    public void close() {
+        balancer.close();
+        master.close();
+        for (AlienDataSource replica : replicas) {
+            replica.close();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (master.isClosed()) {
+            throw new SQLException("dataSource already closed");
+        }
+        return new AlienPooledConnection(master, master.getMaxWait(), router);
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private boolean isReadYourWritesWindow() {
+        final long readYourWritesMillis = this.readYourWritesMillis;
+        if (readYourWritesMillis <= 0) {
+            return false;
+        }
+        return System.currentTimeMillis() - lastWriteMillis.get()[0] < readYourWritesMillis;
+    }
+
+    public AlienDataSource getMaster() {
+        return master;
+    }
+
+    public AlienDataSource[] getReplicas() {
+        return replicas.clone();
+    }
+
+    /**
+     * 从库的探测和负载均衡参数在这里设置，需要在init之前设置
+     */
+    public ReplicaBalancer getReplicaBalancer() {
+        return balancer;
+    }
+
+    public long getReadYourWritesMillis() {
+        return readYourWritesMillis;
+    }
+
+    public void setReadYourWritesMillis(final long readYourWritesMillis) {
+        this.readYourWritesMillis = readYourWritesMillis;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return master.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        master.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        master.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return master.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
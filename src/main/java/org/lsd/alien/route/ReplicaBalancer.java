@@ -0,0 +1,294 @@
+package org.lsd.alien.route;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lsd.alien.logging.Log;
+import org.lsd.alien.logging.LogFactory;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.pool.GetConnectionTimeoutException;
+import org.lsd.alien.stat.LatencyHistogram;
+
+/**
+ * 从库负载均衡：选借出连接数加等待线程数最少的从库，再乘上最近的语句平均耗时作为权重，慢的从库分到的请求更少。
+ * 后台定时刷新每个从库的耗时，配置了ReplicaLagProbe时顺便探测复制延迟，延迟超过maxLagMillis的移出轮询，恢复后再加回来
+ *
+ * @author nhsoft.lsd
+ */
+public class ReplicaBalancer {
+
+    private static final Log LOG = LogFactory.getLog(ReplicaBalancer.class);
+
+    public final static long   DEFAULT_TIME_BETWEEN_PROBE_RUNS_MILLIS = 1000L;
+    public final static long   DEFAULT_MAX_LAG_MILLIS                 = 5000L;
+    public final static long   DEFAULT_PROBE_MAX_WAIT_MILLIS          = 1000L;
+
+    /**
+     * 耗时EWMA里新样本的权重
+     */
+    private static final double LATENCY_ALPHA = 0.3D;
+
+    private final Replica[] replicas;
+
+    private volatile ReplicaLagProbe lagProbe;
+
+    /**
+     * 复制延迟超过这个值移出轮询
+     */
+    private volatile long maxLagMillis = DEFAULT_MAX_LAG_MILLIS;
+
+    private long timeBetweenProbeRunsMillis = DEFAULT_TIME_BETWEEN_PROBE_RUNS_MILLIS;
+
+    /**
+     * 探测时借连接的最长等待时间，借不到当作探测失败
+     */
+    private volatile long probeMaxWaitMillis = DEFAULT_PROBE_MAX_WAIT_MILLIS;
+
+    /**
+     * 分数相同时从不同的起点开始比较，避免总是选中第一个
+     */
+    private final AtomicInteger nextStart = new AtomicInteger();
+
+    private Timer probeTimer;
+
+    public ReplicaBalancer(final List<AlienDataSource> dataSources) {
+        replicas = new Replica[dataSources.size()];
+        for (int i = 0; i < replicas.length; ++i) {
+            replicas[i] = new Replica(dataSources.get(i));
+        }
+    }
+
+    public synchronized void start() {
+        if (probeTimer != null || replicas.length == 0) {
+            return;
+        }
+
+        String threadName = "Alien-ConnectionPool-ReplicaProbe-" + System.identityHashCode(this);
+        long period = timeBetweenProbeRunsMillis > 0 ? timeBetweenProbeRunsMillis : DEFAULT_TIME_BETWEEN_PROBE_RUNS_MILLIS;
+
+        probeTimer = new Timer(threadName, true);
+        probeTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    probe();
+                } catch (Throwable ex) {
+                    LOG.error("probe replicas error", ex);
+                }
+            }
+        }, 0, period);
+    }
+
+    public synchronized void close() {
+        if (probeTimer != null) {
+            probeTimer.cancel();
+            probeTimer = null;
+        }
+    }
+
+    /**
+     * 选择分数最低的可用从库，没有可用的返回null
+     */
+    public AlienDataSource select() {
+        final Replica[] replicas = this.replicas;
+        final int size = replicas.length;
+        if (size == 0) {
+            return null;
+        }
+
+        final int start = nextStart.getAndIncrement() & Integer.MAX_VALUE;
+        Replica best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < size; ++i) {
+            Replica replica = replicas[(start + i) % size];
+            AlienDataSource dataSource = replica.dataSource;
+            if (!replica.available || dataSource.isClosed()) {
+                continue;
+            }
+
+            int outstanding = dataSource.getActiveCount() + dataSource.getWaitThreadCount();
+            double score = (outstanding + 1) * Math.max(replica.latencyMicros, 1D);
+            if (score < bestScore) {
+                bestScore = score;
+                best = replica;
+            }
+        }
+        return best == null ? null : best.dataSource;
+    }
+
+    /**
+     * 刷新所有从库的耗时和复制延迟，在探测线程里执行，也可以在测试里直接调用
+     */
+    public void probe() {
+        final ReplicaLagProbe lagProbe = this.lagProbe;
+        for (Replica replica : replicas) {
+            if (replica.dataSource.isClosed()) {
+                replica.available = false;
+                continue;
+            }
+
+            long probeNanos = -1;
+            if (lagProbe != null) {
+                long startNanos = System.nanoTime();
+                long lagMillis;
+                Connection conn = null;
+                try {
+                    conn = replica.dataSource.getConnection(probeMaxWaitMillis);
+                    lagMillis = lagProbe.lagMillis(conn);
+                } catch (GetConnectionTimeoutException ex) {
+                    // 连接都被业务借走了，延迟未知，保持上次的状态，繁忙的从库不应该因此移出轮询
+                    LOG.debug("probe replica lag skipped, pool busy, name: " + replica.dataSource.getName());
+                    replica.updateLatency(-1);
+                    continue;
+                } catch (SQLException ex) {
+                    LOG.warn("probe replica lag error, name: " + replica.dataSource.getName(), ex);
+                    lagMillis = Long.MAX_VALUE;
+                } finally {
+                    closeQuietly(conn);
+                }
+                probeNanos = System.nanoTime() - startNanos;
+
+                replica.lagMillis = lagMillis;
+                setAvailable(replica, lagMillis <= maxLagMillis);
+            }
+
+            replica.updateLatency(probeNanos);
+        }
+    }
+
+    private void setAvailable(final Replica replica, final boolean available) {
+        if (replica.available == available) {
+            return;
+        }
+        replica.available = available;
+        if (available) {
+            LOG.info("replica back in rotation, name: " + replica.dataSource.getName() + ", lag: " + replica.lagMillis + "ms");
+        } else {
+            LOG.warn("replica out of rotation, name: " + replica.dataSource.getName()
+                    + ", lag: " + (replica.lagMillis == Long.MAX_VALUE ? "unknown" : replica.lagMillis + "ms"));
+        }
+    }
+
+    private static void closeQuietly(final Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (Exception ex) {
+            LOG.debug("close connection error", ex);
+        }
+    }
+
+    public Replica[] getReplicas() {
+        return replicas.clone();
+    }
+
+    public ReplicaLagProbe getLagProbe() {
+        return lagProbe;
+    }
+
+    public void setLagProbe(final ReplicaLagProbe lagProbe) {
+        this.lagProbe = lagProbe;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    public void setMaxLagMillis(final long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    public long getTimeBetweenProbeRunsMillis() {
+        return timeBetweenProbeRunsMillis;
+    }
+
+    public void setTimeBetweenProbeRunsMillis(final long timeBetweenProbeRunsMillis) {
+        this.timeBetweenProbeRunsMillis = timeBetweenProbeRunsMillis;
+    }
+
+    public long getProbeMaxWaitMillis() {
+        return probeMaxWaitMillis;
+    }
+
+    public void setProbeMaxWaitMillis(final long probeMaxWaitMillis) {
+        this.probeMaxWaitMillis = probeMaxWaitMillis;
+    }
+
+    /**
+     * 一个从库的负载均衡状态
+     */
+    public static final class Replica {
+
+        private final AlienDataSource dataSource;
+
+        private volatile boolean available = true;
+        private volatile long    lagMillis;
+
+        /**
+         * 语句平均耗时的EWMA，单位微秒，0表示还没有样本
+         */
+        private volatile double latencyMicros;
+
+        /**
+         * 上次刷新时executeHistogram的快照，只在探测线程里访问
+         */
+        private long[] lastBuckets;
+
+        Replica(final AlienDataSource dataSource) {
+            this.dataSource = dataSource;
+            this.lastBuckets = dataSource.getExecuteHistogram().toArray();
+        }
+
+        /**
+         * 用上次刷新以来executeHistogram新增的样本算平均耗时，按桶的中点估算；
+         * 这段时间没有语句执行时用探测本身的耗时
+         */
+        void updateLatency(final long probeNanos) {
+            long[] buckets = dataSource.getExecuteHistogram().toArray();
+            long count = 0;
+            double sumMicros = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                long delta = buckets[i] - lastBuckets[i];
+                if (delta <= 0) {
+                    continue;
+                }
+                count += delta;
+                sumMicros += delta * LatencyHistogram.upperBoundMicros(i) * 0.75D;
+            }
+            lastBuckets = buckets;
+
+            double sample;
+            if (count > 0) {
+                sample = sumMicros / count;
+            } else if (probeNanos >= 0) {
+                sample = probeNanos / 1000.0D;
+            } else {
+                return;
+            }
+
+            double latencyMicros = this.latencyMicros;
+            this.latencyMicros = latencyMicros == 0 ? sample : latencyMicros + LATENCY_ALPHA * (sample - latencyMicros);
+        }
+
+        public AlienDataSource getDataSource() {
+            return dataSource;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        public long getLagMillis() {
+            return lagMillis;
+        }
+
+        public double getLatencyMillis() {
+            return latencyMicros / 1000.0D;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.lsd.alien.route;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 探测从库复制延迟，ReplicaBalancer定时在每个从库上调用一次
+ *
+ * @author nhsoft.lsd
+ */
+public interface ReplicaLagProbe {
+
+    /**
+     * 复制已经停止或者拿不到延迟时返回Long.MAX_VALUE，从库会被移出轮询
+     *
+     * @return 延迟，单位毫秒
+     */
+    long lagMillis(Connection conn) throws SQLException;
+}
@@ -0,0 +1,256 @@
+package org.lsd.alien.route;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.lsd.alien.logging.Log;
+import org.lsd.alien.logging.LogFactory;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.util.FnvHash;
+
+/**
+ * 分片数据源，按分片键（比如merchant_id）把连接路由到N个AlienDataSource中的一个。
+ * 分片键先用FNV-1a哈希，再用jump consistent hash映射到固定数量的虚拟分片，虚拟分片再通过映射表对应到物理连接池。
+ * 默认映射表也用jump consistent hash生成，加一个连接池只会把大约1/(N+1)的虚拟分片挪到新池子，其他分片的数据不用迁移；
+ * 需要手工搬迁时用setVirtualShardMapping指定映射表
+ *
+ * @author nhsoft.lsd
+ */
+public class ShardingDataSource implements DataSource {
+
+    private static final Log LOG = LogFactory.getLog(ShardingDataSource.class);
+
+    public final static int DEFAULT_VIRTUAL_SHARD_COUNT = 1024;
+
+    private final int virtualShardCount;
+
+    /**
+     * 连接池和映射表一起替换，路由时读一次就是一致的快照
+     */
+    private volatile Shards shards;
+
+    /**
+     * init以后新加的连接池要先init再放进路由表，否则路由过去的请求借不到连接
+     */
+    private boolean inited;
+
+    public ShardingDataSource(final List<AlienDataSource> dataSources) {
+        this(dataSources, DEFAULT_VIRTUAL_SHARD_COUNT);
+    }
+
+    public ShardingDataSource(final List<AlienDataSource> dataSources, final int virtualShardCount) {
+        if (dataSources == null || dataSources.isEmpty()) {
+            throw new IllegalArgumentException("dataSources is empty");
+        }
+        if (virtualShardCount < dataSources.size()) {
+            throw new IllegalArgumentException("illegal virtualShardCount " + virtualShardCount + ", dataSources " + dataSources.size());
+        }
+        this.virtualShardCount = virtualShardCount;
+
+        AlienDataSource[] pools = dataSources.toArray(new AlienDataSource[0]);
+        this.shards = new Shards(pools, defaultMapping(pools.length), false);
+    }
+
+    public synchronized void init() throws SQLException {
+        for (AlienDataSource dataSource : shards.pools) {
+            dataSource.init();
+        }
+        inited = true;
+    }
+
+    public synchronized void close() {
+        inited = false;
+        for (AlienDataSource dataSource : shards.pools) {
+            dataSource.close();
+        }
+    }
+
+    public Connection getConnection(final Object shardKey) throws SQLException {
+        return getShard(shardKey).getConnection();
+    }
+
+    public AlienDataSource getShard(final Object shardKey) {
+        final Shards shards = this.shards;
+        return shards.pools[shards.mapping[virtualShardOf(shardKey)]];
+    }
+
+    /**
+     * 分片键所在的虚拟分片，只和virtualShardCount有关，增减连接池不会变。
+     * 数字类型按十进制字符串哈希，Long和BigInteger的同一个值落在同一个分片
+     */
+    public int virtualShardOf(final Object shardKey) {
+        if (shardKey == null) {
+            throw new IllegalArgumentException("shardKey is null");
+        }
+        long hash = FnvHash.fnv1a_64(shardKey.toString());
+        return jumpConsistentHash(hash, virtualShardCount);
+    }
+
+    /**
+     * 增加一个连接池，返回它的下标。使用默认映射表时重新生成映射，
+     * 使用自定义映射表时映射不变，新连接池要等setVirtualShardMapping把分片挪过来才会有流量。
+     * 已经init过时先init新连接池再生效，init失败时不加
+     */
+    public synchronized int addShard(final AlienDataSource dataSource) throws SQLException {
+        final Shards shards = this.shards;
+        if (shards.pools.length >= virtualShardCount) {
+            throw new IllegalStateException("shard count reached virtualShardCount " + virtualShardCount);
+        }
+
+        if (inited) {
+            dataSource.init();
+        }
+
+        AlienDataSource[] pools = Arrays.copyOf(shards.pools, shards.pools.length + 1);
+        pools[pools.length - 1] = dataSource;
+
+        int[] mapping = shards.customMapping ? shards.mapping : defaultMapping(pools.length);
+        if (!shards.customMapping) {
+            int moved = 0;
+            for (int i = 0; i < mapping.length; ++i) {
+                if (mapping[i] != shards.mapping[i]) {
+                    moved++;
+                }
+            }
+            LOG.info("add shard " + dataSource.getName() + ", moved " + moved + " of " + virtualShardCount + " virtual shards");
+        }
+
+        this.shards = new Shards(pools, mapping, shards.customMapping);
+        return pools.length - 1;
+    }
+
+    /**
+     * 指定虚拟分片到连接池下标的映射，长度必须等于virtualShardCount
+     */
+    public synchronized void setVirtualShardMapping(final int[] mapping) {
+        final Shards shards = this.shards;
+        if (mapping == null || mapping.length != virtualShardCount) {
+            throw new IllegalArgumentException("mapping length must be " + virtualShardCount);
+        }
+        for (int i = 0; i < mapping.length; ++i) {
+            if (mapping[i] < 0 || mapping[i] >= shards.pools.length) {
+                throw new IllegalArgumentException("illegal mapping, virtual shard " + i + " -> " + mapping[i]);
+            }
+        }
+        this.shards = new Shards(shards.pools, mapping.clone(), true);
+    }
+
+    public int[] getVirtualShardMapping() {
+        return shards.mapping.clone();
+    }
+
+    private int[] defaultMapping(final int poolCount) {
+        int[] mapping = new int[virtualShardCount];
+        for (int i = 0; i < virtualShardCount; ++i) {
+            mapping[i] = jumpConsistentHash(mix64(i), poolCount);
+        }
+        return mapping;
+    }
+
+    /**
+     * MurmurHash3的fmix64，把连续的虚拟分片号打散，否则小整数在jump consistent hash里分布不均匀
+     */
+    private static long mix64(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Lamping和Veach的jump consistent hash，bucket从n变成n+1时只有1/(n+1)的key换桶，而且都换到新桶
+     */
+    public static int jumpConsistentHash(long key, final int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * 没有分片键时不知道路由到哪个库，必须用getConnection(shardKey)
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        throw new SQLFeatureNotSupportedException("shard key required, use getConnection(shardKey)");
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    public AlienDataSource[] getShards() {
+        return shards.pools.clone();
+    }
+
+    public int getVirtualShardCount() {
+        return virtualShardCount;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return shards.pools[0].getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        for (AlienDataSource dataSource : shards.pools) {
+            dataSource.setLogWriter(out);
+        }
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        for (AlienDataSource dataSource : shards.pools) {
+            dataSource.setLoginTimeout(seconds);
+        }
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return shards.pools[0].getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    private static final class Shards {
+
+        private final AlienDataSource[] pools;
+        private final int[]             mapping;
+        private final boolean           customMapping;
+
+        Shards(final AlienDataSource[] pools, final int[] mapping, final boolean customMapping) {
+            this.pools = pools;
+            this.mapping = mapping;
+            this.customMapping = customMapping;
+        }
+    }
+}
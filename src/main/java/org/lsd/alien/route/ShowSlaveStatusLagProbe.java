@@ -0,0 +1,39 @@
+package org.lsd.alien.route;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.lsd.alien.util.JdbcUtils;
+
+/**
+ * 用SHOW SLAVE STATUS的Seconds_Behind_Master作为延迟，精度只到秒，需要REPLICATION CLIENT权限
+ *
+ * @author nhsoft.lsd
+ */
+public class ShowSlaveStatusLagProbe implements ReplicaLagProbe {
+
+    @Override
+    public long lagMillis(final Connection conn) throws SQLException {
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.createStatement();
+            rs = stmt.executeQuery("SHOW SLAVE STATUS");
+            if (!rs.next()) {
+                // 不是从库
+                return Long.MAX_VALUE;
+            }
+
+            long seconds = rs.getLong("Seconds_Behind_Master");
+            if (rs.wasNull()) {
+                // 复制线程没有运行
+                return Long.MAX_VALUE;
+            }
+            return seconds * 1000L;
+        } finally {
+            JdbcUtils.close(rs);
+            JdbcUtils.close(stmt);
+        }
+    }
+}
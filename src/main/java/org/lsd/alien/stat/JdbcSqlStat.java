@@ -0,0 +1,119 @@
+package org.lsd.alien.stat;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 单条SQL的执行统计，以SQL的64位FNV指纹为key，记录时无锁无分配
+ *
+ * @author nhsoft.lsd
+ */
+public final class JdbcSqlStat {
+
+    private static final AtomicLongFieldUpdater<JdbcSqlStat> EXECUTE_COUNT_UPDATER   = AtomicLongFieldUpdater.newUpdater(JdbcSqlStat.class, "executeCount");
+    private static final AtomicLongFieldUpdater<JdbcSqlStat> ERROR_COUNT_UPDATER     = AtomicLongFieldUpdater.newUpdater(JdbcSqlStat.class, "errorCount");
+    private static final AtomicLongFieldUpdater<JdbcSqlStat> TOTAL_NANOS_UPDATER     = AtomicLongFieldUpdater.newUpdater(JdbcSqlStat.class, "totalNanos");
+    private static final AtomicLongFieldUpdater<JdbcSqlStat> MAX_NANOS_UPDATER       = AtomicLongFieldUpdater.newUpdater(JdbcSqlStat.class, "maxNanos");
+    private static final AtomicLongFieldUpdater<JdbcSqlStat> FETCH_ROW_COUNT_UPDATER = AtomicLongFieldUpdater.newUpdater(JdbcSqlStat.class, "fetchRowCount");
+    private static final AtomicLongFieldUpdater<JdbcSqlStat> UPDATE_COUNT_UPDATER    = AtomicLongFieldUpdater.newUpdater(JdbcSqlStat.class, "updateCount");
+
+    private final long   hash;
+    private final String sql;
+
+    private volatile long executeCount;
+    private volatile long errorCount;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+    private volatile long fetchRowCount;
+    private volatile long updateCount;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    public JdbcSqlStat(final long hash, final String sql) {
+        this.hash = hash;
+        this.sql = sql;
+    }
+
+    /**
+     * @param updateCount 影响行数，小于0表示不是更新语句
+     */
+    public void recordExecute(final long nanos, final long updateCount) {
+        EXECUTE_COUNT_UPDATER.incrementAndGet(this);
+        recordTime(nanos);
+        if (updateCount > 0) {
+            UPDATE_COUNT_UPDATER.addAndGet(this, updateCount);
+        }
+    }
+
+    public void recordError(final long nanos) {
+        EXECUTE_COUNT_UPDATER.incrementAndGet(this);
+        ERROR_COUNT_UPDATER.incrementAndGet(this);
+        recordTime(nanos);
+    }
+
+    public void recordFetchRows(final long rows) {
+        if (rows > 0) {
+            FETCH_ROW_COUNT_UPDATER.addAndGet(this, rows);
+        }
+    }
+
+    private void recordTime(final long nanos) {
+        TOTAL_NANOS_UPDATER.addAndGet(this, nanos);
+        histogram.record(nanos);
+
+        for (;;) {
+            long max = this.maxNanos;
+            if (nanos <= max || MAX_NANOS_UPDATER.compareAndSet(this, max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public long getExecuteCount() {
+        return executeCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getFetchRowCount() {
+        return fetchRowCount;
+    }
+
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return "JdbcSqlStat{"
+                + "sql='" + sql + '\''
+                + ", executeCount=" + executeCount
+                + ", errorCount=" + errorCount
+                + ", totalMillis=" + totalNanos / 1000000L
+                + ", maxMillis=" + maxNanos / 1000000L
+                + ", fetchRowCount=" + fetchRowCount
+                + ", updateCount=" + updateCount
+                + '}';
+    }
+}
@@ -0,0 +1,146 @@
+package org.lsd.alien.stat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 以SQL指纹为key的无锁开放寻址表，容量固定，找到已有条目时不分配内存；
+ * 表满以后新的SQL都记到overflow里，不会无限增长
+ *
+ * @author nhsoft.lsd
+ */
+public final class JdbcSqlStatTable {
+
+    public static final int  DEFAULT_CAPACITY = 1024;
+
+    /**
+     * 线性探测的最大步数，超过就算表满
+     */
+    private static final int MAX_PROBE        = 32;
+
+    /**
+     * 0表示空槽位，hash恰好为0的SQL映射成这个值
+     */
+    private static final long ZERO_HASH       = 1L;
+
+    private final int                                mask;
+    private final AtomicLongArray                    keys;
+    private final AtomicReferenceArray<JdbcSqlStat>  values;
+
+    private final JdbcSqlStat overflow         = new JdbcSqlStat(0, "<overflow>");
+    private final AtomicLong  overflowSqlCount = new AtomicLong();
+
+    public JdbcSqlStatTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public JdbcSqlStatTable(final int capacity) {
+        int size = 16;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.keys = new AtomicLongArray(size);
+        this.values = new AtomicReferenceArray<JdbcSqlStat>(size);
+    }
+
+    /**
+     * 查找或者创建SQL的统计
+     *
+     * @param hash SQL的指纹，见FnvHash.fnv1a_64
+     * @param sql 第一次创建时保存的SQL文本
+     */
+    public JdbcSqlStat getOrCreate(long hash, final String sql) {
+        if (hash == 0) {
+            hash = ZERO_HASH;
+        }
+
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        for (int probe = 0; probe < MAX_PROBE; ++probe) {
+            long key = keys.get(index);
+            if (key == hash) {
+                return awaitValue(index);
+            }
+
+            if (key == 0) {
+                if (keys.compareAndSet(index, 0, hash)) {
+                    JdbcSqlStat stat = new JdbcSqlStat(hash, sql);
+                    values.set(index, stat);
+                    return stat;
+                }
+
+                // 被其他线程抢先占了这个槽位，重新检查一次
+                if (keys.get(index) == hash) {
+                    return awaitValue(index);
+                }
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        overflowSqlCount.incrementAndGet();
+        return overflow;
+    }
+
+    /**
+     * 只查找不创建
+     */
+    public JdbcSqlStat get(long hash) {
+        if (hash == 0) {
+            hash = ZERO_HASH;
+        }
+
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        for (int probe = 0; probe < MAX_PROBE; ++probe) {
+            long key = keys.get(index);
+            if (key == hash) {
+                return awaitValue(index);
+            }
+            if (key == 0) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    private JdbcSqlStat awaitValue(final int index) {
+        // key先于value发布，抢到槽位的线程马上就会写入value
+        for (;;) {
+            JdbcSqlStat stat = values.get(index);
+            if (stat != null) {
+                return stat;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public List<JdbcSqlStat> getStats() {
+        List<JdbcSqlStat> stats = new ArrayList<JdbcSqlStat>();
+        for (int i = 0, size = values.length(); i < size; ++i) {
+            JdbcSqlStat stat = values.get(i);
+            if (stat != null) {
+                stats.add(stat);
+            }
+        }
+        if (overflow.getExecuteCount() > 0) {
+            stats.add(overflow);
+        }
+        return stats;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public JdbcSqlStat getOverflow() {
+        return overflow;
+    }
+
+    public long getOverflowSqlCount() {
+        return overflowSqlCount.get();
+    }
+}
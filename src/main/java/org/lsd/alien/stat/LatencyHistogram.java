@@ -0,0 +1,97 @@
+package org.lsd.alien.stat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按2的幂划分的延迟直方图，单位微秒，记录时无锁无分配。
+ * 第0个桶是小于1微秒，第k个桶是[2^(k-1), 2^k)微秒，最后一个桶兜底
+ *
+ * @author nhsoft.lsd
+ */
+public final class LatencyHistogram {
+
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(final long nanos) {
+        buckets.incrementAndGet(bucketOf(nanos));
+    }
+
+    public static int bucketOf(final long nanos) {
+        long micros = nanos / 1000L;
+        if (micros <= 0) {
+            return 0;
+        }
+
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    /**
+     * 桶的上界，单位微秒
+     */
+    public static long upperBoundMicros(final int bucket) {
+        return 1L << bucket;
+    }
+
+    public long getBucket(final int bucket) {
+        return buckets.get(bucket);
+    }
+
+    public long[] toArray() {
+        long[] values = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            values[i] = buckets.get(i);
+        }
+        return values;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * 百分位数，返回所在桶的上界，单位毫秒
+     *
+     * @param percentile 0到100
+     */
+    public double percentileMillis(final double percentile) {
+        return percentileMillis(toArray(), percentile);
+    }
+
+    public static double percentileMillis(final long[] values, final double percentile) {
+        long count = 0;
+        for (long value : values) {
+            count += value;
+        }
+
+        if (count == 0) {
+            return 0D;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0D);
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < values.length; ++i) {
+            seen += values[i];
+            if (seen >= rank) {
+                return upperBoundMicros(i) / 1000.0D;
+            }
+        }
+        return upperBoundMicros(values.length - 1) / 1000.0D;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            buckets.set(i, 0);
+        }
+    }
+}
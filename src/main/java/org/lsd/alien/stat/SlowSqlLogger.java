@@ -0,0 +1,273 @@
+package org.lsd.alien.stat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.lsd.alien.logging.Log;
+import org.lsd.alien.logging.LogFactory;
+
+/**
+ * 慢SQL日志，执行线程只往有界队列里放记录，队列满了直接丢弃并计数；
+ * 后台线程批量取出记录，格式化以后通过FileChannel写入按大小滚动的文件
+ *
+ * @author nhsoft.lsd
+ */
+public final class SlowSqlLogger {
+
+    private static final Log LOG = LogFactory.getLog(SlowSqlLogger.class);
+
+    /**
+     * 堆栈最多输出多少层
+     */
+    private static final int MAX_STACK_DEPTH = 32;
+
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    /**
+     * 写线程检查closed的间隔
+     */
+    private static final long POLL_TIMEOUT_MILLIS = 200L;
+
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final long    thresholdNanos;
+    private final boolean logParameters;
+    private final Path    file;
+    private final long    maxFileBytes;
+    private final int     maxBackups;
+
+    private final ArrayBlockingQueue<SlowSqlRecord> queue;
+
+    private final AtomicLong loggedCount  = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private Thread writerThread;
+
+    /**
+     * 以下只在写日志的线程里访问
+     */
+    private FileChannel channel;
+    private long        fileSize;
+    private long        reportedDroppedCount;
+
+    public SlowSqlLogger(final long thresholdMillis, final boolean logParameters, final String file, final long maxFileBytes, final int maxBackups, final int queueCapacity) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.logParameters = logParameters;
+        this.file = Paths.get(file);
+        this.maxFileBytes = maxFileBytes;
+        this.maxBackups = maxBackups;
+        this.queue = new ArrayBlockingQueue<SlowSqlRecord>(queueCapacity);
+    }
+
+    public void start(final String threadName) {
+        Thread thread = new Thread(this::writeLoop);
+        thread.setName(threadName);
+        thread.setDaemon(true);
+        thread.start();
+        writerThread = thread;
+    }
+
+    /**
+     * 不阻塞，队列满了返回false
+     */
+    public boolean offer(final SlowSqlRecord record) {
+        if (closed || !queue.offer(record)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 停止接收新记录，把队列里剩下的写完
+     */
+    public void close() {
+        closed = true;
+        Thread thread = writerThread;
+        if (thread != null) {
+            // 不能中断写线程，FileChannel被中断会直接关闭
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        final List<SlowSqlRecord> batch = new ArrayList<SlowSqlRecord>(DRAIN_BATCH_SIZE);
+        final StringBuilder text = new StringBuilder(4096);
+
+        for (;;) {
+            SlowSqlRecord record = null;
+            try {
+                record = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+
+            if (record == null) {
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+
+            batch.add(record);
+            queue.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+
+            text.setLength(0);
+            for (SlowSqlRecord item : batch) {
+                format(item, text);
+            }
+            long dropped = droppedCount.get();
+            if (dropped != reportedDroppedCount) {
+                text.append(TIME_FORMATTER.format(Instant.now()))
+                        .append(" dropped ").append(dropped - reportedDroppedCount).append(" slow sql records, total ").append(dropped).append('\n');
+                reportedDroppedCount = dropped;
+            }
+
+            try {
+                write(text);
+                loggedCount.addAndGet(batch.size());
+            } catch (IOException e) {
+                LOG.error("write slow sql log error, file: " + file, e);
+                closeChannel();
+            }
+            batch.clear();
+        }
+
+        closeChannel();
+    }
+
+    private void format(final SlowSqlRecord record, final StringBuilder text) {
+        text.append(TIME_FORMATTER.format(Instant.ofEpochMilli(record.getTimeMillis())))
+                .append(" slow sql ").append(TimeUnit.NANOSECONDS.toMillis(record.getNanos())).append("ms")
+                .append(" hash=").append(Long.toHexString(record.getHash()));
+        if (record.getConnectionId() != null) {
+            text.append(" connectionId=").append(record.getConnectionId());
+        }
+        if (record.isError()) {
+            text.append(" error");
+        }
+        text.append(" thread=").append(record.getThreadName()).append('\n');
+
+        text.append("  sql: ").append(record.getSql()).append('\n');
+        if (record.getParameters() != null) {
+            text.append("  parameters: ").append(record.getParameters()).append('\n');
+        }
+
+        StackTraceElement[] stackTrace = record.getStackTrace();
+        if (stackTrace != null) {
+            int depth = 0;
+            for (StackTraceElement element : stackTrace) {
+                String className = element.getClassName();
+                // 跳过getStackTrace本身和连接池内部的帧
+                if (depth == 0 && (className.equals(Thread.class.getName()) || className.startsWith("org.lsd.alien.pool."))) {
+                    continue;
+                }
+                if (depth++ == MAX_STACK_DEPTH) {
+                    text.append("    ...\n");
+                    break;
+                }
+                text.append("    at ").append(element).append('\n');
+            }
+        }
+        text.append('\n');
+    }
+
+    private void write(final CharSequence text) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+
+        if (channel != null && fileSize > 0 && fileSize + bytes.remaining() > maxFileBytes) {
+            roll();
+        }
+        if (channel == null) {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            fileSize = channel.size();
+        }
+
+        while (bytes.hasRemaining()) {
+            fileSize += channel.write(bytes);
+        }
+    }
+
+    /**
+     * slow.log -> slow.log.1 -> slow.log.2 ...，超过maxBackups的删除
+     */
+    private void roll() throws IOException {
+        closeChannel();
+
+        if (maxBackups <= 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+
+        Files.deleteIfExists(backup(maxBackups));
+        for (int i = maxBackups - 1; i >= 1; --i) {
+            Path source = backup(i);
+            if (Files.exists(source)) {
+                Files.move(source, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path backup(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void closeChannel() {
+        FileChannel channel = this.channel;
+        if (channel == null) {
+            return;
+        }
+        this.channel = null;
+        fileSize = 0;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("close slow sql log error, file: " + file);
+        }
+    }
+
+    public long getThresholdNanos() {
+        return thresholdNanos;
+    }
+
+    public boolean isLogParameters() {
+        return logParameters;
+    }
+
+    public long getLoggedCount() {
+        return loggedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,73 @@
+package org.lsd.alien.stat;
+
+/**
+ * 一条慢SQL，在执行线程里只采集原始数据，格式化交给写日志的线程
+ *
+ * @author nhsoft.lsd
+ */
+public final class SlowSqlRecord {
+
+    private final long                timeMillis;
+    private final long                nanos;
+    private final long                hash;
+    private final String              sql;
+    private final String              parameters;
+    private final Long                connectionId;
+    private final boolean             error;
+    private final String              threadName;
+    private final StackTraceElement[] stackTrace;
+
+    /**
+     * @param sql 参数化以后的SQL
+     * @param parameters 参数，未开启slowSqlLogParameters时为null
+     * @param connectionId MySQL连接的thread id，拿不到时为null
+     */
+    public SlowSqlRecord(final long timeMillis, final long nanos, final long hash, final String sql, final String parameters,
+                         final Long connectionId, final boolean error, final String threadName, final StackTraceElement[] stackTrace) {
+        this.timeMillis = timeMillis;
+        this.nanos = nanos;
+        this.hash = hash;
+        this.sql = sql;
+        this.parameters = parameters;
+        this.connectionId = connectionId;
+        this.error = error;
+        this.threadName = threadName;
+        this.stackTrace = stackTrace;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public String getParameters() {
+        return parameters;
+    }
+
+    public Long getConnectionId() {
+        return connectionId;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace;
+    }
+}
@@ -0,0 +1,104 @@
+package org.lsd.alien.util;
+
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * 批量执行的结果，每个分块一次executeBatch，记录分块的行数和耗时
+ *
+ * @author nhsoft.lsd
+ */
+public final class BatchResult {
+
+    private int    chunkCount;
+    private int[]  chunkRows  = new int[16];
+    private long[] chunkNanos = new long[16];
+
+    private long rowCount;
+    private long updateCount;
+
+    /**
+     * 驱动返回Statement.SUCCESS_NO_INFO的行数，MySQL开了rewriteBatchedStatements的insert都是这种
+     */
+    private long noInfoCount;
+
+    void addChunk(final int rows, final int[] updateCounts, final long nanos) {
+        if (chunkCount == chunkRows.length) {
+            chunkRows = Arrays.copyOf(chunkRows, chunkCount * 2);
+            chunkNanos = Arrays.copyOf(chunkNanos, chunkCount * 2);
+        }
+        chunkRows[chunkCount] = rows;
+        chunkNanos[chunkCount] = nanos;
+        chunkCount++;
+
+        rowCount += rows;
+        for (int count : updateCounts) {
+            if (count >= 0) {
+                updateCount += count;
+            } else if (count == Statement.SUCCESS_NO_INFO) {
+                noInfoCount++;
+            }
+        }
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @param chunk 从0开始
+     */
+    public int getChunkRows(final int chunk) {
+        checkChunk(chunk);
+        return chunkRows[chunk];
+    }
+
+    /**
+     * 分块executeBatch的耗时，按块提交事务时包括commit
+     */
+    public long getChunkNanos(final int chunk) {
+        checkChunk(chunk);
+        return chunkNanos[chunk];
+    }
+
+    private void checkChunk(final int chunk) {
+        if (chunk < 0 || chunk >= chunkCount) {
+            throw new IndexOutOfBoundsException("chunk " + chunk + ", chunkCount " + chunkCount);
+        }
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            total += chunkNanos[i];
+        }
+        return total;
+    }
+
+    public long getMaxChunkNanos() {
+        long max = 0;
+        for (int i = 0; i < chunkCount; ++i) {
+            max = Math.max(max, chunkNanos[i]);
+        }
+        return max;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    public long getNoInfoCount() {
+        return noInfoCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{rows=" + rowCount + ", chunks=" + chunkCount + ", updateCount=" + updateCount
+                + ", noInfoCount=" + noInfoCount + ", totalMillis=" + getTotalNanos() / 1000000
+                + ", maxChunkMillis=" + getMaxChunkNanos() / 1000000 + "}";
+    }
+}
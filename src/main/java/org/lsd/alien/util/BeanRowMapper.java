@@ -0,0 +1,290 @@
+package org.lsd.alien.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 把行映射成JavaBean，按列标签匹配setter，忽略大小写和下划线（image_id对应setImageId）。
+ * 第一次遇到某条SQL时为每个匹配上的列把ResultSet的取值方法和setter组合成一个MethodHandle，
+ * 按SQL指纹和目标类缓存起来，之后每行只是依次调用这些MethodHandle，不再查列名也不走反射。
+ * 基本类型的属性用getInt、getLong这类方法取值，不装箱
+ *
+ * 目标类需要无参构造方法，没有对应setter的列忽略
+ *
+ * @author nhsoft.lsd
+ */
+public final class BeanRowMapper<T> implements RowMapper<T> {
+
+    /**
+     * 每个类最多缓存的映射计划数，超过时清空，避免拼接出来的SQL把缓存撑大
+     */
+    public final static int MAX_PLANS_PER_CLASS = 256;
+
+    /**
+     * 计划里的MethodHandle引用了目标类，ClassValue的值会反过来拖住这个类和它的ClassLoader（JDK-8136353）。
+     * 和应用放在同一个ClassLoader里没有影响；放在容器的共享目录时，应用卸载以后它的类不会被回收
+     */
+    private static final ClassValue<ConcurrentMap<Long, Plan>> PLANS = new ClassValue<ConcurrentMap<Long, Plan>>() {
+
+        @Override
+        protected ConcurrentMap<Long, Plan> computeValue(final Class<?> type) {
+            return new ConcurrentHashMap<Long, Plan>();
+        }
+    };
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Map<Class<?>, MethodHandle> GETTERS = new HashMap<Class<?>, MethodHandle>();
+
+    private static final MethodHandle GET_OBJECT;
+    private static final MethodHandle GET_ENUM;
+
+    static {
+        try {
+            getter(int.class, ResultSet.class, "getInt");
+            getter(long.class, ResultSet.class, "getLong");
+            getter(double.class, ResultSet.class, "getDouble");
+            getter(float.class, ResultSet.class, "getFloat");
+            getter(short.class, ResultSet.class, "getShort");
+            getter(byte.class, ResultSet.class, "getByte");
+            getter(boolean.class, ResultSet.class, "getBoolean");
+            getter(String.class, ResultSet.class, "getString");
+            getter(BigDecimal.class, ResultSet.class, "getBigDecimal");
+            getter(byte[].class, ResultSet.class, "getBytes");
+            getter(java.sql.Date.class, ResultSet.class, "getDate");
+            getter(Time.class, ResultSet.class, "getTime");
+            getter(Timestamp.class, ResultSet.class, "getTimestamp");
+            getter(Integer.class, BeanRowMapper.class, "getInteger");
+            getter(Long.class, BeanRowMapper.class, "getLong");
+            getter(Double.class, BeanRowMapper.class, "getDouble");
+            getter(Float.class, BeanRowMapper.class, "getFloat");
+            getter(Short.class, BeanRowMapper.class, "getShort");
+            getter(Byte.class, BeanRowMapper.class, "getByte");
+            getter(Boolean.class, BeanRowMapper.class, "getBoolean");
+            getter(BigInteger.class, BeanRowMapper.class, "getBigInteger");
+            GETTERS.put(java.util.Date.class, GETTERS.get(Timestamp.class));
+
+            GET_OBJECT = LOOKUP.findStatic(BeanRowMapper.class, "getObject", MethodType.methodType(Object.class, ResultSet.class, int.class, Class.class));
+            GET_ENUM = LOOKUP.findStatic(BeanRowMapper.class, "getEnum", MethodType.methodType(Enum.class, ResultSet.class, int.class, Class.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Class<T> type;
+    private final long     fingerprint;
+
+    /**
+     * 同一个结果集只在第一行检查一次计划
+     */
+    private Plan plan;
+
+    private BeanRowMapper(final Class<T> type, final long fingerprint) {
+        this.type = type;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * 每次查询新建一个，映射计划在第一行时从缓存里取
+     */
+    public static <T> BeanRowMapper<T> of(final Class<T> type, final String sql) {
+        return new BeanRowMapper<T>(type, SqlParameterizer.fnv1a_64_lower(sql));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T map(final ResultSet rs) throws SQLException {
+        Plan plan = this.plan;
+        if (plan == null) {
+            plan = plan(type, fingerprint, rs.getMetaData());
+            this.plan = plan;
+        }
+
+        try {
+            final Object bean = plan.constructor.invokeExact();
+            for (MethodHandle setter : plan.setters) {
+                setter.invokeExact(bean, rs);
+            }
+            return (T) bean;
+        } catch (SQLException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new SQLException("map row to " + type.getName() + " error", e);
+        }
+    }
+
+    /**
+     * 缓存里的计划列标签和这次结果集一致时直接复用，select *在表结构变了以后会重新生成
+     */
+    static Plan plan(final Class<?> type, final long fingerprint, final ResultSetMetaData rsMeta) throws SQLException {
+        final String[] labels = new String[rsMeta.getColumnCount()];
+        for (int i = 0; i < labels.length; ++i) {
+            labels[i] = rsMeta.getColumnLabel(i + 1);
+        }
+
+        final ConcurrentMap<Long, Plan> plans = PLANS.get(type);
+        Plan plan = plans.get(fingerprint);
+        if (plan != null && Arrays.equals(plan.labels, labels)) {
+            return plan;
+        }
+
+        plan = compile(type, labels);
+        if (plans.size() >= MAX_PLANS_PER_CLASS) {
+            plans.clear();
+        }
+        plans.put(fingerprint, plan);
+        return plan;
+    }
+
+    private static Plan compile(final Class<?> type, final String[] labels) throws SQLException {
+        try {
+            final Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            final MethodHandle newInstance = LOOKUP.unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(Object.class));
+
+            final Map<String, Method> setters = setters(type);
+            final List<MethodHandle> handles = new ArrayList<MethodHandle>(labels.length);
+            for (int i = 0; i < labels.length; ++i) {
+                final Method setter = setters.get(normalize(labels[i]));
+                if (setter != null) {
+                    handles.add(columnSetter(setter, i + 1));
+                }
+            }
+            return new Plan(labels, newInstance, handles.toArray(new MethodHandle[0]));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new SQLException("create row mapper for " + type.getName() + " error", e);
+        }
+    }
+
+    /**
+     * 把取值和setter组合成(Object bean, ResultSet rs)void
+     */
+    private static MethodHandle columnSetter(final Method method, final int column) throws IllegalAccessException {
+        final Class<?> propertyType = method.getParameterTypes()[0];
+        method.setAccessible(true);
+        final MethodHandle setter = LOOKUP.unreflect(method)
+                .asType(MethodType.methodType(void.class, Object.class, propertyType));
+
+        MethodHandle getter = GETTERS.get(propertyType);
+        if (getter != null) {
+            getter = MethodHandles.insertArguments(getter, 1, column);
+        } else if (propertyType.isEnum()) {
+            getter = MethodHandles.insertArguments(GET_ENUM, 1, column, propertyType);
+        } else {
+            getter = MethodHandles.insertArguments(GET_OBJECT, 1, column, propertyType);
+        }
+        getter = getter.asType(MethodType.methodType(propertyType, ResultSet.class));
+
+        return MethodHandles.filterArguments(setter, 1, getter);
+    }
+
+    /**
+     * 公开的单参数setXxx，返回值不限（兼容链式setter），key是去掉下划线的小写属性名
+     */
+    private static Map<String, Method> setters(final Class<?> type) {
+        final Map<String, Method> setters = new HashMap<String, Method>();
+        for (Method method : type.getMethods()) {
+            final String name = method.getName();
+            if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1
+                    && !Modifier.isStatic(method.getModifiers()) && !method.isBridge()) {
+                setters.putIfAbsent(normalize(name.substring(3)), method);
+            }
+        }
+        return setters;
+    }
+
+    private static String normalize(final String name) {
+        return name.replace("_", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static void getter(final Class<?> propertyType, final Class<?> owner, final String name) throws ReflectiveOperationException {
+        final MethodType methodType = MethodType.methodType(propertyType, int.class);
+        final MethodHandle getter = owner == ResultSet.class
+                ? LOOKUP.findVirtual(ResultSet.class, name, methodType)
+                : LOOKUP.findStatic(owner, name, methodType.insertParameterTypes(0, ResultSet.class));
+        GETTERS.put(propertyType, getter);
+    }
+
+    private static Integer getInteger(final ResultSet rs, final int column) throws SQLException {
+        final int value = rs.getInt(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Long getLong(final ResultSet rs, final int column) throws SQLException {
+        final long value = rs.getLong(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Double getDouble(final ResultSet rs, final int column) throws SQLException {
+        final double value = rs.getDouble(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Float getFloat(final ResultSet rs, final int column) throws SQLException {
+        final float value = rs.getFloat(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Short getShort(final ResultSet rs, final int column) throws SQLException {
+        final short value = rs.getShort(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Byte getByte(final ResultSet rs, final int column) throws SQLException {
+        final byte value = rs.getByte(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Boolean getBoolean(final ResultSet rs, final int column) throws SQLException {
+        final boolean value = rs.getBoolean(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static BigInteger getBigInteger(final ResultSet rs, final int column) throws SQLException {
+        final BigDecimal value = rs.getBigDecimal(column);
+        return value == null ? null : value.toBigInteger();
+    }
+
+    private static Object getObject(final ResultSet rs, final int column, final Class<?> type) throws SQLException {
+        return rs.getObject(column, type);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Enum getEnum(final ResultSet rs, final int column, final Class type) throws SQLException {
+        final String value = rs.getString(column);
+        return value == null ? null : Enum.valueOf(type, value);
+    }
+
+    static final class Plan {
+
+        final String[]       labels;
+        final MethodHandle   constructor;
+        final MethodHandle[] setters;
+
+        Plan(final String[] labels, final MethodHandle constructor, final MethodHandle[] setters) {
+            this.labels = labels;
+            this.constructor = constructor;
+            this.setters = setters;
+        }
+    }
+}
@@ -0,0 +1,679 @@
+package org.lsd.alien.util;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 按列存放的查询结果，替代每行一个Map的List&lt;Map&lt;String, Object&gt;&gt;：
+ * 列信息只读一次，整数、日期和小数位为0的DECIMAL存long[]，浮点数存double[]，字符串按字典编码存int[]，
+ * 其他类型才存Object[]。取值时按需要装箱，getObject返回的类型和驱动的getObject一致
+ *
+ * @author nhsoft.lsd
+ */
+public final class ColumnarResult {
+
+    private final String[]             labels;
+    private final int[]                types;
+    private final Column[]             columns;
+    private final Map<String, Integer> indexes;
+    private int                        rowCount;
+
+    private ColumnarResult(final String[] labels, final int[] types, final Column[] columns) {
+        this.labels = labels;
+        this.types = types;
+        this.columns = columns;
+        this.indexes = new HashMap<String, Integer>(labels.length * 2);
+        for (int i = labels.length - 1; i >= 0; --i) {
+            indexes.put(labels[i].toLowerCase(Locale.ROOT), i);
+        }
+    }
+
+    /**
+     * 读完rs剩下的所有行，不关闭rs
+     */
+    public static ColumnarResult read(final ResultSet rs) throws SQLException {
+        final ResultSetMetaData rsMeta = rs.getMetaData();
+        final int columnCount = rsMeta.getColumnCount();
+        final String[] labels = new String[columnCount];
+        final int[] types = new int[columnCount];
+        final Column[] columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; ++i) {
+            labels[i] = rsMeta.getColumnLabel(i + 1);
+            types[i] = rsMeta.getColumnType(i + 1);
+            columns[i] = column(rsMeta, i + 1);
+        }
+
+        final ColumnarResult result = new ColumnarResult(labels, types, columns);
+        int rowCount = 0;
+        while (rs.next()) {
+            for (int i = 0; i < columnCount; ++i) {
+                columns[i].read(rs, i + 1, rowCount);
+            }
+            rowCount++;
+        }
+        for (Column column : columns) {
+            column.trim(rowCount);
+        }
+        result.rowCount = rowCount;
+        return result;
+    }
+
+    private static Column column(final ResultSetMetaData rsMeta, final int column) throws SQLException {
+        final int type = rsMeta.getColumnType(column);
+        final String className = rsMeta.getColumnClassName(column);
+        switch (type) {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return new StringColumn();
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return new DoubleColumn("java.lang.Float".equals(className));
+            case Types.TIMESTAMP:
+                if (className == null || Timestamp.class.getName().equals(className)) {
+                    return new TimestampColumn();
+                }
+                return new ObjectColumn();
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                // 没有小数部分并且不超过18位的DECIMAL可以无损地存成long
+                if (rsMeta.getScale(column) == 0 && rsMeta.getPrecision(column) > 0 && rsMeta.getPrecision(column) <= 18
+                        && (className == null || BigDecimal.class.getName().equals(className))) {
+                    return new LongColumn(LongColumn.DECIMAL);
+                }
+                return new ObjectColumn();
+            default:
+                break;
+        }
+
+        final int kind = LongColumn.kind(type, className);
+        return kind >= 0 ? new LongColumn(kind) : new ObjectColumn();
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    /**
+     * @param column 从0开始
+     */
+    public String getColumnLabel(final int column) {
+        return labels[column];
+    }
+
+    public int getColumnType(final int column) {
+        return types[column];
+    }
+
+    /**
+     * 按列标签查下标（从0开始），不区分大小写，找不到返回-1
+     */
+    public int findColumn(final String label) {
+        Integer index = indexes.get(label.toLowerCase(Locale.ROOT));
+        return index == null ? -1 : index;
+    }
+
+    private int column(final String label) {
+        int index = findColumn(label);
+        if (index < 0) {
+            throw new IllegalArgumentException("column not found: " + label);
+        }
+        return index;
+    }
+
+    public boolean isNull(final int row, final int column) {
+        return columns[column].isNull(checkRow(row));
+    }
+
+    /**
+     * 为null时返回0
+     */
+    public long getLong(final int row, final int column) {
+        return columns[column].getLong(checkRow(row));
+    }
+
+    public double getDouble(final int row, final int column) {
+        return columns[column].getDouble(checkRow(row));
+    }
+
+    public String getString(final int row, final int column) {
+        return columns[column].getString(checkRow(row));
+    }
+
+    public Object getObject(final int row, final int column) {
+        return columns[column].getObject(checkRow(row));
+    }
+
+    private int checkRow(final int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("row " + row + ", rowCount " + rowCount);
+        }
+        return row;
+    }
+
+    /**
+     * 估算占用的内存
+     */
+    public long estimateBytes() {
+        long bytes = 64;
+        for (Column column : columns) {
+            bytes += column.estimateBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 逐行遍历的游标，用法和ResultSet一样先调用next()
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    public final class Cursor {
+
+        private int row = -1;
+
+        public boolean next() {
+            if (row < rowCount) {
+                row++;
+            }
+            return row < rowCount;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public boolean isNull(final int column) {
+            return ColumnarResult.this.isNull(row, column);
+        }
+
+        public boolean isNull(final String label) {
+            return ColumnarResult.this.isNull(row, column(label));
+        }
+
+        public long getLong(final int column) {
+            return ColumnarResult.this.getLong(row, column);
+        }
+
+        public long getLong(final String label) {
+            return ColumnarResult.this.getLong(row, column(label));
+        }
+
+        public double getDouble(final int column) {
+            return ColumnarResult.this.getDouble(row, column);
+        }
+
+        public double getDouble(final String label) {
+            return ColumnarResult.this.getDouble(row, column(label));
+        }
+
+        public String getString(final int column) {
+            return ColumnarResult.this.getString(row, column);
+        }
+
+        public String getString(final String label) {
+            return ColumnarResult.this.getString(row, column(label));
+        }
+
+        public Object getObject(final int column) {
+            return ColumnarResult.this.getObject(row, column);
+        }
+
+        public Object getObject(final String label) {
+            return ColumnarResult.this.getObject(row, column(label));
+        }
+    }
+
+    private static int grow(final int length, final int row) {
+        return Math.max(row + 1, Math.max(16, length + (length >> 1)));
+    }
+
+    private abstract static class Column {
+
+        abstract void read(ResultSet rs, int column, int row) throws SQLException;
+
+        /**
+         * 读完以后把数组截到实际行数
+         */
+        abstract void trim(int rowCount);
+
+        abstract boolean isNull(int row);
+
+        abstract Object getObject(int row);
+
+        abstract long estimateBytes();
+
+        long getLong(final int row) {
+            Object value = getObject(row);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString().trim());
+        }
+
+        double getDouble(final int row) {
+            Object value = getObject(row);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString().trim());
+        }
+
+        String getString(final int row) {
+            Object value = getObject(row);
+            return value == null ? null : value.toString();
+        }
+    }
+
+    /**
+     * 整数、布尔、日期和没有小数的DECIMAL，kind决定getObject装箱成什么类型
+     */
+    private static final class LongColumn extends Column {
+
+        static final int INTEGER = 0;
+        static final int LONG    = 1;
+        static final int SHORT   = 2;
+        static final int BYTE    = 3;
+        static final int BOOLEAN = 4;
+        static final int DECIMAL = 5;
+        static final int DATE    = 6;
+        static final int TIME    = 7;
+
+        private final int    kind;
+        private long[]       values = new long[16];
+        private final BitSet nulls  = new BitSet();
+
+        LongColumn(final int kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * 有类名时按类名，驱动没有提供时按JDBC类型推断，不能存成long返回-1
+         */
+        static int kind(final int type, final String className) {
+            if (className != null) {
+                switch (className) {
+                    case "java.lang.Integer":
+                        return INTEGER;
+                    case "java.lang.Long":
+                        return LONG;
+                    case "java.lang.Short":
+                        return SHORT;
+                    case "java.lang.Byte":
+                        return BYTE;
+                    case "java.lang.Boolean":
+                        return BOOLEAN;
+                    case "java.sql.Date":
+                        return DATE;
+                    case "java.sql.Time":
+                        return TIME;
+                    default:
+                        return -1;
+                }
+            }
+
+            switch (type) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                    return INTEGER;
+                case Types.BIGINT:
+                    return LONG;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    return BOOLEAN;
+                case Types.DATE:
+                    return DATE;
+                case Types.TIME:
+                    return TIME;
+                default:
+                    return -1;
+            }
+        }
+
+        @Override
+        void read(final ResultSet rs, final int column, final int row) throws SQLException {
+            long value;
+            boolean isNull;
+            switch (kind) {
+                case BOOLEAN:
+                    value = rs.getBoolean(column) ? 1 : 0;
+                    isNull = rs.wasNull();
+                    break;
+                case DATE: {
+                    Date date = rs.getDate(column);
+                    isNull = date == null;
+                    value = isNull ? 0 : date.getTime();
+                    break;
+                }
+                case TIME: {
+                    Time time = rs.getTime(column);
+                    isNull = time == null;
+                    value = isNull ? 0 : time.getTime();
+                    break;
+                }
+                default:
+                    value = rs.getLong(column);
+                    isNull = rs.wasNull();
+                    break;
+            }
+
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = value;
+            if (isNull) {
+                nulls.set(row);
+            }
+        }
+
+        @Override
+        void trim(final int rowCount) {
+            values = Arrays.copyOf(values, rowCount);
+        }
+
+        @Override
+        boolean isNull(final int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        long getLong(final int row) {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(final int row) {
+            return values[row];
+        }
+
+        @Override
+        Object getObject(final int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            long value = values[row];
+            switch (kind) {
+                case INTEGER:
+                    return (int) value;
+                case SHORT:
+                    return (short) value;
+                case BYTE:
+                    return (byte) value;
+                case BOOLEAN:
+                    return value != 0;
+                case DECIMAL:
+                    return BigDecimal.valueOf(value);
+                case DATE:
+                    return new Date(value);
+                case TIME:
+                    return new Time(value);
+                default:
+                    return value;
+            }
+        }
+
+        @Override
+        String getString(final int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            return kind == INTEGER || kind == LONG || kind == SHORT || kind == BYTE || kind == DECIMAL
+                    ? Long.toString(values[row]) : super.getString(row);
+        }
+
+        @Override
+        long estimateBytes() {
+            return 16 + values.length * 8L + nulls.size() / 8;
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+
+        private final boolean floatValue;
+        private double[]      values = new double[16];
+        private final BitSet  nulls  = new BitSet();
+
+        DoubleColumn(final boolean floatValue) {
+            this.floatValue = floatValue;
+        }
+
+        @Override
+        void read(final ResultSet rs, final int column, final int row) throws SQLException {
+            double value = rs.getDouble(column);
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = value;
+            if (rs.wasNull()) {
+                nulls.set(row);
+            }
+        }
+
+        @Override
+        void trim(final int rowCount) {
+            values = Arrays.copyOf(values, rowCount);
+        }
+
+        @Override
+        boolean isNull(final int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        long getLong(final int row) {
+            return (long) values[row];
+        }
+
+        @Override
+        double getDouble(final int row) {
+            return values[row];
+        }
+
+        @Override
+        Object getObject(final int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            return floatValue ? (Object) (float) values[row] : (Object) values[row];
+        }
+
+        @Override
+        long estimateBytes() {
+            return 16 + values.length * 8L + nulls.size() / 8;
+        }
+    }
+
+    private static final class TimestampColumn extends Column {
+
+        private long[]       millis = new long[16];
+        private int[]        nanos  = new int[16];
+        private final BitSet nulls  = new BitSet();
+
+        @Override
+        void read(final ResultSet rs, final int column, final int row) throws SQLException {
+            Timestamp value = rs.getTimestamp(column);
+            if (row >= millis.length) {
+                int length = grow(millis.length, row);
+                millis = Arrays.copyOf(millis, length);
+                nanos = Arrays.copyOf(nanos, length);
+            }
+            if (value == null) {
+                nulls.set(row);
+            } else {
+                millis[row] = value.getTime();
+                nanos[row] = value.getNanos();
+            }
+        }
+
+        @Override
+        void trim(final int rowCount) {
+            millis = Arrays.copyOf(millis, rowCount);
+            nanos = Arrays.copyOf(nanos, rowCount);
+        }
+
+        @Override
+        boolean isNull(final int row) {
+            return nulls.get(row);
+        }
+
+        /**
+         * 毫秒时间戳
+         */
+        @Override
+        long getLong(final int row) {
+            return millis[row];
+        }
+
+        @Override
+        double getDouble(final int row) {
+            return millis[row];
+        }
+
+        @Override
+        Object getObject(final int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            Timestamp value = new Timestamp(millis[row]);
+            value.setNanos(nanos[row]);
+            return value;
+        }
+
+        @Override
+        long estimateBytes() {
+            return 32 + millis.length * 12L + nulls.size() / 8;
+        }
+    }
+
+    /**
+     * 字典编码，相同的字符串只保留一份，codes为-1表示null。读完以后丢掉查找用的HashMap
+     */
+    private static final class StringColumn extends Column {
+
+        private int[]                codes      = new int[16];
+        private String[]             dictionary = new String[16];
+        private int                  size;
+        private Map<String, Integer> lookup     = new HashMap<String, Integer>();
+
+        @Override
+        void read(final ResultSet rs, final int column, final int row) throws SQLException {
+            String value = rs.getString(column);
+            if (row >= codes.length) {
+                codes = Arrays.copyOf(codes, grow(codes.length, row));
+            }
+            if (value == null) {
+                codes[row] = -1;
+                return;
+            }
+
+            Integer code = lookup.get(value);
+            if (code == null) {
+                if (size == dictionary.length) {
+                    dictionary = Arrays.copyOf(dictionary, grow(dictionary.length, size));
+                }
+                code = size;
+                dictionary[size++] = value;
+                lookup.put(value, code);
+            }
+            codes[row] = code;
+        }
+
+        @Override
+        void trim(final int rowCount) {
+            codes = Arrays.copyOf(codes, rowCount);
+            dictionary = Arrays.copyOf(dictionary, size);
+            lookup = null;
+        }
+
+        @Override
+        boolean isNull(final int row) {
+            return codes[row] < 0;
+        }
+
+        @Override
+        String getString(final int row) {
+            int code = codes[row];
+            return code < 0 ? null : dictionary[code];
+        }
+
+        @Override
+        Object getObject(final int row) {
+            return getString(row);
+        }
+
+        @Override
+        long estimateBytes() {
+            long bytes = 32 + codes.length * 4L + dictionary.length * 8L;
+            for (int i = 0; i < size; ++i) {
+                bytes += 40 + 2L * dictionary[i].length();
+            }
+            return bytes;
+        }
+    }
+
+    private static final class ObjectColumn extends Column {
+
+        private Object[] values = new Object[16];
+
+        @Override
+        void read(final ResultSet rs, final int column, final int row) throws SQLException {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getObject(column);
+        }
+
+        @Override
+        void trim(final int rowCount) {
+            values = Arrays.copyOf(values, rowCount);
+        }
+
+        @Override
+        boolean isNull(final int row) {
+            return values[row] == null;
+        }
+
+        @Override
+        Object getObject(final int row) {
+            return values[row];
+        }
+
+        @Override
+        long estimateBytes() {
+            long bytes = 16 + values.length * 8L;
+            for (Object value : values) {
+                if (value != null) {
+                    bytes += 48;
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.lsd.alien.util;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.lsd.alien.logging.Log;
+import org.lsd.alien.logging.LogFactory;
+
+/**
+ * 异步批量写一张表，替代请求线程里逐行调用JdbcUtils.insertToTable。
+ * 请求线程只把行放进有界队列，队列满时等待；后台线程攒够batchSize行或者最早一行等了maxDelayMillis以后，
+ * 借一个连接按列集合分组批量插入，每组的insert语句按列缓存。
+ *
+ * 插入失败的行记录日志后丢弃，不重试，适合审计日志这类允许少量丢失的数据。close时把队列里剩下的行写完，
+ * 最多等30秒，到时没写完的行丢弃并计入failedCount
+ *
+ * @author nhsoft.lsd
+ */
+public final class InsertToTableSink implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(InsertToTableSink.class);
+
+    public final static int  DEFAULT_QUEUE_CAPACITY   = 10000;
+    public final static int  DEFAULT_BATCH_SIZE       = 500;
+    public final static long DEFAULT_MAX_DELAY_MILLIS = 1000L;
+
+    /**
+     * 写线程检查closed的间隔
+     */
+    private static final long POLL_TIMEOUT_MILLIS = 200L;
+
+    /**
+     * close等写线程写完的最长时间
+     */
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * 缓存的insert语句数，列集合不固定时超过这个数清空
+     */
+    private static final int MAX_CACHED_SQLS = 64;
+
+    private final DataSource dataSource;
+    private final String     tableName;
+    private final int        batchSize;
+    private final long       maxDelayNanos;
+
+    private final ArrayBlockingQueue<Row> queue;
+
+    private final AtomicLong insertedCount = new AtomicLong();
+    private final AtomicLong failedCount   = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong flushCount    = new AtomicLong();
+
+    private volatile boolean closed = false;
+    private Thread writerThread;
+
+    /**
+     * 只在写线程里访问
+     */
+    private final Map<List<String>, String> sqls = new HashMap<List<String>, String>();
+
+    public InsertToTableSink(final DataSource dataSource, final String tableName) {
+        this(dataSource, tableName, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public InsertToTableSink(final DataSource dataSource, final String tableName, final int queueCapacity, final int batchSize, final long maxDelayMillis) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive : " + batchSize);
+        }
+        this.dataSource = dataSource;
+        this.tableName = tableName;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.queue = new ArrayBlockingQueue<Row>(queueCapacity);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::writeLoop);
+        thread.setName("Alien-InsertSink-" + tableName + "-" + System.identityHashCode(this));
+        thread.setDaemon(true);
+        thread.start();
+        writerThread = thread;
+    }
+
+    /**
+     * 队列满时一直等到有空位
+     */
+    public void insert(final Map<String, Object> data) throws InterruptedException {
+        checkOpen();
+        Row row = new Row(data);
+        queue.put(row);
+        if (closed && queue.remove(row)) {
+            throw new IllegalStateException("insert sink closed : " + tableName);
+        }
+    }
+
+    /**
+     * 队列满时最多等timeout，等不到返回false
+     */
+    public boolean offer(final Map<String, Object> data, final long timeout, final TimeUnit unit) throws InterruptedException {
+        checkOpen();
+        Row row = new Row(data);
+        if (!queue.offer(row, timeout, unit)) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        if (closed && queue.remove(row)) {
+            throw new IllegalStateException("insert sink closed : " + tableName);
+        }
+        return true;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("insert sink closed : " + tableName);
+        }
+    }
+
+    /**
+     * 停止接收新行，把队列里剩下的写完。
+     * 和close并发的insert入队以后会再检查closed，自己把行取回来；写线程退出以后还留在队列里的行，
+     * 或者等超时还没写的行，在这里取出丢弃，计入failedCount
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread thread = writerThread;
+        if (thread != null) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<Row> rest = new ArrayList<Row>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            failedCount.addAndGet(rest.size());
+            LOG.error("insert sink closed, discard " + rest.size() + " rows of " + tableName);
+        }
+    }
+
+    private void writeLoop() {
+        final List<Row> batch = new ArrayList<Row>(batchSize);
+
+        for (;;) {
+            Row first = null;
+            try {
+                first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+
+            if (first == null) {
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            fillBatch(batch, first.enqueueNanos + maxDelayNanos);
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * 攒到batchSize行，或者等到第一行入队以后maxDelay为止，关闭时不再等
+     */
+    private void fillBatch(final List<Row> batch, final long deadlineNanos) {
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadlineNanos - System.nanoTime();
+            if (batch.size() >= batchSize || closed || remaining <= 0) {
+                return;
+            }
+
+            try {
+                // 分段等待，关闭时及时写出
+                Row row = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_MILLIS)), TimeUnit.NANOSECONDS);
+                if (row != null) {
+                    batch.add(row);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+                return;
+            }
+        }
+    }
+
+    private void flush(final List<Row> batch) {
+        final Map<List<String>, List<List<Object>>> groups = new LinkedHashMap<List<String>, List<List<Object>>>();
+        for (Row row : batch) {
+            groups.computeIfAbsent(row.columns, columns -> new ArrayList<List<Object>>()).add(Arrays.asList(row.values));
+        }
+
+        int inserted = 0;
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            for (Map.Entry<List<String>, List<List<Object>>> group : groups.entrySet()) {
+                List<List<Object>> rows = group.getValue();
+                try {
+                    JdbcUtils.executeBatch(conn, sql(group.getKey()), rows.iterator(), batchSize, false);
+                    inserted += rows.size();
+                } catch (SQLException | RuntimeException e) {
+                    LOG.error("insert " + rows.size() + " rows into " + tableName + " error, columns " + group.getKey(), e);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error("insert " + batch.size() + " rows into " + tableName + " error", e);
+        } finally {
+            JdbcUtils.close(conn);
+        }
+
+        // 先加flushCount，看到insertedCount变化的线程一定也能看到这次flush
+        flushCount.incrementAndGet();
+        failedCount.addAndGet(batch.size() - inserted);
+        insertedCount.addAndGet(inserted);
+    }
+
+    private String sql(final List<String> columns) {
+        String sql = sqls.get(columns);
+        if (sql == null) {
+            if (sqls.size() >= MAX_CACHED_SQLS) {
+                sqls.clear();
+            }
+            sql = JdbcUtils.makeInsertToTableSql(tableName, columns);
+            sqls.put(columns, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * 入队时复制列名和值，调用方之后再改Map不影响
+     */
+    private static final class Row {
+
+        final List<String> columns;
+        final Object[]     values;
+        final long         enqueueNanos = System.nanoTime();
+
+        Row(final Map<String, Object> data) {
+            this.columns = new ArrayList<String>(data.keySet());
+            this.values = new Object[columns.size()];
+            int i = 0;
+            for (Object value : data.values()) {
+                values[i++] = value;
+            }
+        }
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getInsertedCount() {
+        return insertedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+}
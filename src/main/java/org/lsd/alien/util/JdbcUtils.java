@@ -36,10 +36,16 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.sql.DataSource;
 import org.lsd.alien.DbType;
 import org.lsd.alien.logging.Log;
@@ -773,6 +779,150 @@ public final class JdbcUtils implements JdbcConstants {
         }
     }
 
+    /**
+     * 批量执行时每块的最大行数
+     */
+    public final static int DEFAULT_BATCH_SIZE      = 1000;
+
+    /**
+     * 批量执行时每块参数的估算字节数上限。MySQL开了rewriteBatchedStatements以后一块拼成一条语句，
+     * 5.7默认的max_allowed_packet是4MB，留出SQL和转义的余量
+     */
+    public final static int DEFAULT_BATCH_MAX_BYTES = 3 * 1024 * 1024;
+
+    public static BatchResult executeBatch(DataSource dataSource, String sql, Iterable<? extends List<Object>> rows)
+                                                                                                            throws SQLException {
+        return executeBatch(dataSource, sql, rows.iterator(), DEFAULT_BATCH_SIZE, false);
+    }
+
+    public static BatchResult executeBatch(DataSource dataSource, String sql, Stream<? extends List<Object>> rows, int batchSize, boolean transactionPerChunk)
+                                                                                                                                                   throws SQLException {
+        return executeBatch(dataSource, sql, rows.iterator(), batchSize, transactionPerChunk);
+    }
+
+    public static BatchResult executeBatch(DataSource dataSource, String sql, Iterator<? extends List<Object>> rows, int batchSize, boolean transactionPerChunk)
+                                                                                                                                                     throws SQLException {
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            return executeBatch(conn, sql, rows, batchSize, transactionPerChunk);
+        } finally {
+            close(conn);
+        }
+    }
+
+    /**
+     * 按batchSize行或者DEFAULT_BATCH_MAX_BYTES字节分块addBatch/executeBatch，每块一次往返。
+     * transactionPerChunk时每块一个事务，出错回滚当前块，前面已经提交的块不回滚；
+     * 连接本来就在事务里（autoCommit为false）时不动事务，由调用方提交。
+     * 执行出错时抛出PartialBatchUpdateException，带着出错前已经执行完的分块
+     */
+    public static BatchResult executeBatch(Connection conn, String sql, Iterator<? extends List<Object>> rows, int batchSize, boolean transactionPerChunk)
+                                                                                                                                               throws SQLException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive : " + batchSize);
+        }
+
+        BatchResult result = new BatchResult();
+        PreparedStatement stmt = null;
+        boolean restoreAutoCommit = false;
+        Throwable failure = null;
+        try {
+            if (transactionPerChunk && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+
+            stmt = conn.prepareStatement(sql);
+
+            int chunkRows = 0;
+            long chunkBytes = 0;
+            while (rows.hasNext()) {
+                List<Object> parameters = rows.next();
+                setParameters(stmt, parameters);
+                stmt.addBatch();
+                chunkRows++;
+                chunkBytes += estimateBatchBytes(parameters);
+
+                if (chunkRows >= batchSize || chunkBytes >= DEFAULT_BATCH_MAX_BYTES) {
+                    executeChunk(conn, stmt, chunkRows, restoreAutoCommit, result);
+                    chunkRows = 0;
+                    chunkBytes = 0;
+                }
+            }
+            if (chunkRows > 0) {
+                executeChunk(conn, stmt, chunkRows, restoreAutoCommit, result);
+            }
+        } catch (SQLException ex) {
+            PartialBatchUpdateException error = new PartialBatchUpdateException(ex, result);
+            failure = error;
+            if (restoreAutoCommit) {
+                rollbackChunk(conn, error);
+            }
+            throw error;
+        } catch (RuntimeException ex) {
+            failure = ex;
+            if (restoreAutoCommit) {
+                rollbackChunk(conn, ex);
+            }
+            throw ex;
+        } finally {
+            JdbcUtils.close(stmt);
+            if (restoreAutoCommit) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException autoCommitError) {
+                    // 不能盖掉执行出错的异常
+                    if (failure == null) {
+                        throw autoCommitError;
+                    }
+                    failure.addSuppressed(autoCommitError);
+                }
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("executeBatch " + result + ", sql : " + sql);
+        }
+        return result;
+    }
+
+    private static void rollbackChunk(Connection conn, Throwable error) {
+        try {
+            conn.rollback();
+        } catch (SQLException rollbackError) {
+            error.addSuppressed(rollbackError);
+        }
+    }
+
+    private static void executeChunk(Connection conn, PreparedStatement stmt, int chunkRows, boolean commit, BatchResult result)
+                                                                                                                        throws SQLException {
+        long startNanos = System.nanoTime();
+        int[] updateCounts = stmt.executeBatch();
+        if (commit) {
+            conn.commit();
+        }
+        result.addChunk(chunkRows, updateCounts, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 估算一行参数拼进SQL以后的长度，字符串按utf8最长3字节，二进制按转义最多翻倍
+     */
+    private static long estimateBatchBytes(List<Object> parameters) {
+        long bytes = 4;
+        for (int i = 0, size = parameters.size(); i < size; ++i) {
+            Object param = parameters.get(i);
+            if (param instanceof CharSequence) {
+                bytes += ((CharSequence) param).length() * 3L + 3;
+            } else if (param instanceof byte[]) {
+                bytes += ((byte[]) param).length * 2L + 3;
+            } else {
+                bytes += 24;
+            }
+        }
+        return bytes;
+    }
+
     public static List<Map<String, Object>> executeQuery(DataSource dataSource, String sql, Object... parameters)
                                                                                                                  throws SQLException {
         return executeQuery(dataSource, sql, Arrays.asList(parameters));
@@ -791,7 +941,31 @@ public final class JdbcUtils implements JdbcConstants {
 
     public static List<Map<String, Object>> executeQuery(Connection conn, String sql, List<Object> parameters)
                                                                                                               throws SQLException {
-        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        return executeQuery(conn, new MapRowMapper(), sql, parameters);
+    }
+
+    /**
+     * 映射成JavaBean，映射计划按SQL指纹和类缓存，见{@link BeanRowMapper}
+     */
+    public static <T> List<T> executeQuery(DataSource dataSource, Class<T> type, String sql, Object... parameters)
+                                                                                                            throws SQLException {
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            return executeQuery(conn, type, sql, Arrays.asList(parameters));
+        } finally {
+            close(conn);
+        }
+    }
+
+    public static <T> List<T> executeQuery(Connection conn, Class<T> type, String sql, List<Object> parameters)
+                                                                                                         throws SQLException {
+        return executeQuery(conn, BeanRowMapper.of(type, sql), sql, parameters);
+    }
+
+    public static <T> List<T> executeQuery(Connection conn, RowMapper<T> mapper, String sql, List<Object> parameters)
+                                                                                                               throws SQLException {
+        List<T> rows = new ArrayList<T>();
 
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -802,18 +976,8 @@ public final class JdbcUtils implements JdbcConstants {
 
             rs = stmt.executeQuery();
 
-            ResultSetMetaData rsMeta = rs.getMetaData();
-
             while (rs.next()) {
-                Map<String, Object> row = new LinkedHashMap<String, Object>();
-
-                for (int i = 0, size = rsMeta.getColumnCount(); i < size; ++i) {
-                    String columName = rsMeta.getColumnLabel(i + 1);
-                    Object value = rs.getObject(i + 1);
-                    row.put(columName, value);
-                }
-
-                rows.add(row);
+                rows.add(mapper.map(rs));
             }
         } finally {
             JdbcUtils.close(rs);
@@ -823,6 +987,37 @@ public final class JdbcUtils implements JdbcConstants {
         return rows;
     }
 
+    /**
+     * 按列存放结果，行数多的分析查询比List&lt;Map&gt;省内存
+     */
+    public static ColumnarResult executeQueryColumnar(DataSource dataSource, String sql, Object... parameters)
+                                                                                                         throws SQLException {
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            return executeQueryColumnar(conn, sql, Arrays.asList(parameters));
+        } finally {
+            close(conn);
+        }
+    }
+
+    public static ColumnarResult executeQueryColumnar(Connection conn, String sql, List<Object> parameters)
+                                                                                                      throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement(sql);
+
+            setParameters(stmt, parameters);
+
+            rs = stmt.executeQuery();
+            return ColumnarResult.read(rs);
+        } finally {
+            JdbcUtils.close(rs);
+            JdbcUtils.close(stmt);
+        }
+    }
+
     private static void setParameters(PreparedStatement stmt, List<Object> parameters) throws SQLException {
         for (int i = 0, size = parameters.size(); i < size; ++i) {
             Object param = parameters.get(i);
@@ -847,6 +1042,59 @@ public final class JdbcUtils implements JdbcConstants {
         execute(conn, sql, parameters);
     }
 
+    /**
+     * 批量插入，每行的key必须和第一行相同，和单行insertToTable一样只插入map里有的列，
+     * 列不同的行会在执行前抛IllegalArgumentException，需要按列分组时用InsertToTableSink
+     */
+    public static BatchResult insertToTable(DataSource dataSource, String tableName, List<Map<String, Object>> rows)
+                                                                                                                 throws SQLException {
+        Connection conn = null;
+        try {
+            conn = dataSource.getConnection();
+            return insertToTable(conn, tableName, rows, DEFAULT_BATCH_SIZE, false);
+        } finally {
+            close(conn);
+        }
+    }
+
+    public static BatchResult insertToTable(Connection conn, String tableName, List<Map<String, Object>> rows, int batchSize, boolean transactionPerChunk)
+                                                                                                                                                 throws SQLException {
+        if (rows.isEmpty()) {
+            return new BatchResult();
+        }
+
+        final Set<String> columns = rows.get(0).keySet();
+        for (int i = 1, size = rows.size(); i < size; ++i) {
+            Set<String> rowColumns = rows.get(i).keySet();
+            if (!columns.equals(rowColumns)) {
+                // 缺的列插入null会盖掉列的默认值，多出的列会被丢掉，都不是调用方想要的
+                throw new IllegalArgumentException("row " + i + " columns " + rowColumns + " differ from first row " + columns);
+            }
+        }
+
+        final List<String> names = new ArrayList<String>(columns);
+        String sql = makeInsertToTableSql(tableName, names);
+        final Iterator<Map<String, Object>> iterator = rows.iterator();
+        Iterator<List<Object>> parameters = new Iterator<List<Object>>() {
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public List<Object> next() {
+                Map<String, Object> row = iterator.next();
+                List<Object> values = new ArrayList<Object>(names.size());
+                for (String name : names) {
+                    values.add(row.get(name));
+                }
+                return values;
+            }
+        };
+        return executeBatch(conn, sql, parameters, batchSize, transactionPerChunk);
+    }
+
     public static String makeInsertToTableSql(String tableName, Collection<String> names) {
         StringBuilder sql = new StringBuilder() //
         .append("insert into ") //
@@ -900,6 +1148,159 @@ public final class JdbcUtils implements JdbcConstants {
         }
     }
 
+    /**
+     * 读行和accept分开执行：当前线程读行并apply，workers个线程accept，读完就归还连接，返回行数。
+     * ordered时只用一个accept线程按顺序处理，更多选项见{@link ResultSetPipeline}
+     */
+    public static <T> long executeQueryPipelined(DataSource dataSource
+            , ResultSetConsumer<T> consumer
+            , int workers
+            , boolean ordered
+            , String sql
+            , Object... parameters) throws SQLException {
+        ResultSetPipeline<T> pipeline = new ResultSetPipeline<T>(consumer);
+        pipeline.setWorkers(workers);
+        pipeline.setOrdered(ordered);
+        return pipeline.execute(dataSource, sql, parameters);
+    }
+
+    /**
+     * 按主键区间在多个连接上并行执行sql，sql的最后两个参数是区间的上下界（都包含），无序交给consumer，返回行数。
+     * 主键范围从表里查min和max，更多选项见{@link ParallelScan}
+     */
+    public static <T> long executeQueryParallel(DataSource dataSource
+            , ResultSetConsumer<T> consumer
+            , String sql
+            , String tableName
+            , String keyColumn
+            , int parallelism
+            , Object... parameters) throws SQLException {
+        long[] range = ParallelScan.keyRange(dataSource, tableName, keyColumn);
+        if (range == null) {
+            return 0;
+        }
+
+        ParallelScan<T> scan = new ParallelScan<T>(dataSource, sql);
+        scan.setParallelism(parallelism);
+        return scan.scan(range[0], range[1], consumer, parameters);
+    }
+
+    /**
+     * 流式查询时的fetchSize，MySQL默认用Integer.MIN_VALUE逐行读取，url里开了useCursorFetch时用这个值按游标分批读取
+     */
+    public final static int DEFAULT_STREAM_FETCH_SIZE = 1000;
+
+    /**
+     * 流式查询，行在遍历时才从数据库读取，内存占用和结果集大小无关。
+     * Stream读完或者关闭时归还连接，没有读完时一定要在try-with-resources里使用
+     */
+    public static Stream<Map<String, Object>> executeQueryStream(DataSource dataSource, String sql, Object... parameters)
+                                                                                                                  throws SQLException {
+        return stream(executeQueryIterator(dataSource, new MapRowMapper(), sql, Arrays.asList(parameters)));
+    }
+
+    public static <T> Stream<T> executeQueryStream(DataSource dataSource, RowMapper<T> mapper, String sql, Object... parameters)
+                                                                                                                          throws SQLException {
+        return stream(executeQueryIterator(dataSource, mapper, sql, Arrays.asList(parameters)));
+    }
+
+    /**
+     * 使用调用方的连接，Stream关闭时不关闭连接
+     */
+    public static Stream<Map<String, Object>> executeQueryStream(Connection conn, String sql, List<Object> parameters)
+                                                                                                               throws SQLException {
+        return stream(executeQueryIterator(conn, new MapRowMapper(), sql, parameters));
+    }
+
+    public static <T> RowIterator<T> executeQueryIterator(DataSource dataSource, RowMapper<T> mapper, String sql, List<Object> parameters)
+                                                                                                                                      throws SQLException {
+        return executeQueryIterator(dataSource.getConnection(), true, mapper, sql, parameters);
+    }
+
+    public static <T> RowIterator<T> executeQueryIterator(Connection conn, RowMapper<T> mapper, String sql, List<Object> parameters)
+                                                                                                                                throws SQLException {
+        return executeQueryIterator(conn, false, mapper, sql, parameters);
+    }
+
+    public static <T> Stream<T> stream(RowIterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                .onClose(iterator::close);
+    }
+
+    private static <T> RowIterator<T> executeQueryIterator(Connection conn, boolean ownConnection, RowMapper<T> mapper, String sql, List<Object> parameters)
+                                                                                                                                                        throws SQLException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        boolean restoreAutoCommit = false;
+        try {
+            String url = conn.getMetaData().getURL();
+            DbType dbType = getDbTypeRaw(url, null);
+
+            // PostgreSQL只有在事务里才按fetchSize分批读取，调用方的连接不去改
+            if (ownConnection && isPgsqlDbType(dbType) && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+
+            stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(streamFetchSize(dbType, url));
+            setParameters(stmt, parameters);
+            rs = stmt.executeQuery();
+            return new RowIterator<T>(rs, stmt, ownConnection ? conn : null, restoreAutoCommit, mapper);
+        } catch (SQLException | RuntimeException ex) {
+            new RowIterator<T>(rs, stmt, ownConnection ? conn : null, restoreAutoCommit, mapper).close();
+            throw ex;
+        }
+    }
+
+    private static int streamFetchSize(DbType dbType, String url) {
+        if (dbType == null) {
+            return DEFAULT_STREAM_FETCH_SIZE;
+        }
+
+        switch (dbType) {
+            case mysql:
+            case tidb:
+            case oceanbase:
+            case drds:
+            case ads:
+                // Connector/J默认把整个结果集读到客户端，Integer.MIN_VALUE表示逐行流式读取
+                if (url != null && url.contains("useCursorFetch=true")) {
+                    return DEFAULT_STREAM_FETCH_SIZE;
+                }
+                return Integer.MIN_VALUE;
+            default:
+                return DEFAULT_STREAM_FETCH_SIZE;
+        }
+    }
+
+    /**
+     * 列标签在第一行时取一次
+     */
+    private static final class MapRowMapper implements RowMapper<Map<String, Object>> {
+
+        private String[] labels;
+
+        @Override
+        public Map<String, Object> map(ResultSet rs) throws SQLException {
+            String[] labels = this.labels;
+            if (labels == null) {
+                ResultSetMetaData rsMeta = rs.getMetaData();
+                labels = new String[rsMeta.getColumnCount()];
+                for (int i = 0; i < labels.length; ++i) {
+                    labels[i] = rsMeta.getColumnLabel(i + 1);
+                }
+                this.labels = labels;
+            }
+
+            Map<String, Object> row = new LinkedHashMap<String, Object>(labels.length * 2);
+            for (int i = 0; i < labels.length; ++i) {
+                row.put(labels[i], rs.getObject(i + 1));
+            }
+            return row;
+        }
+    }
+
     public static boolean isMySqlDriver(String driverClassName) {
         return driverClassName.equals(JdbcConstants.MYSQL_DRIVER) //
                 || driverClassName.equals(JdbcConstants.MYSQL_DRIVER_6)
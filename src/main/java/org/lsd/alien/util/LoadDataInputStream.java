@@ -0,0 +1,193 @@
+package org.lsd.alien.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 把行按LOAD DATA默认格式编码成字节流：字段之间tab，行尾\n，反斜杠转义，null写成\N，字符串按utf8mb4。
+ * 驱动读的时候才从迭代器取行，每次编码一块放进缓冲区，不写临时文件，也不会把整个结果放在内存里
+ *
+ * @author nhsoft.lsd
+ */
+public final class LoadDataInputStream extends InputStream {
+
+    /**
+     * 每次编码到这个大小就交给驱动
+     */
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final Iterator<? extends List<?>> rows;
+    private final int                         columnCount;
+
+    private byte[] buf = new byte[CHUNK_BYTES + 1024];
+    private int    pos;
+    private int    limit;
+
+    private long      rowCount;
+    private Throwable error;
+
+    public LoadDataInputStream(final Iterator<? extends List<?>> rows, final int columnCount) {
+        this.rows = rows;
+        this.columnCount = columnCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= limit && !fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        try {
+            while (limit < CHUNK_BYTES && rows.hasNext()) {
+                writeRow(rows.next());
+                rowCount++;
+            }
+        } catch (RuntimeException e) {
+            // 驱动读到IOException时会结束这次LOAD DATA，原始异常由调用方从getError取出
+            error = e;
+            throw new IOException("encode row " + (rowCount + 1) + " error", e);
+        }
+        return limit > 0;
+    }
+
+    private void writeRow(final List<?> row) {
+        if (row.size() != columnCount) {
+            throw new IllegalArgumentException("row " + (rowCount + 1) + " has " + row.size() + " values, expected " + columnCount);
+        }
+        for (int i = 0; i < columnCount; ++i) {
+            if (i != 0) {
+                write((byte) '\t');
+            }
+            writeValue(row.get(i));
+        }
+        write((byte) '\n');
+    }
+
+    private void writeValue(final Object value) {
+        if (value == null) {
+            write((byte) '\\');
+            write((byte) 'N');
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof BigDecimal) {
+            writeAscii(((BigDecimal) value).toPlainString());
+        } else if (value instanceof Number) {
+            writeAscii(value.toString());
+        } else if (value instanceof Boolean) {
+            write((Boolean) value ? (byte) '1' : (byte) '0');
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            for (byte b : bytes) {
+                writeEscaped(b);
+            }
+        } else if (value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof Timestamp) {
+            writeAscii(value.toString());
+        } else if (value instanceof java.util.Date) {
+            writeAscii(new Timestamp(((java.util.Date) value).getTime()).toString());
+        } else if (value instanceof LocalDateTime) {
+            writeAscii(value.toString().replace('T', ' '));
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeString(final String value) {
+        final int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            if (value.charAt(i) >= 0x80) {
+                for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                    writeEscaped(b);
+                }
+                return;
+            }
+        }
+        writeAscii(value);
+    }
+
+    private void writeAscii(final String value) {
+        final int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            writeEscaped((byte) value.charAt(i));
+        }
+    }
+
+    private void writeEscaped(final byte b) {
+        switch (b) {
+            case '\\':
+                write((byte) '\\');
+                write((byte) '\\');
+                break;
+            case '\t':
+                write((byte) '\\');
+                write((byte) 't');
+                break;
+            case '\n':
+                write((byte) '\\');
+                write((byte) 'n');
+                break;
+            case '\r':
+                write((byte) '\\');
+                write((byte) 'r');
+                break;
+            case 0:
+                write((byte) '\\');
+                write((byte) '0');
+                break;
+            default:
+                write(b);
+                break;
+        }
+    }
+
+    private void write(final byte b) {
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        buf[limit++] = b;
+    }
+
+    /**
+     * 已经编码交给驱动的行数
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * 迭代器或者编码抛出的异常
+     */
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,47 @@
+package org.lsd.alien.util;
+
+/**
+ * LOAD DATA LOCAL INFILE的结果
+ *
+ * @author nhsoft.lsd
+ */
+public final class LoadDataResult {
+
+    private final long rowCount;
+    private final long updateCount;
+    private final long nanos;
+
+    LoadDataResult(final long rowCount, final long updateCount, final long nanos) {
+        this.rowCount = rowCount;
+        this.updateCount = updateCount;
+        this.nanos = nanos;
+    }
+
+    /**
+     * 发给服务端的行数
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * 服务端返回的影响行数，IGNORE或者唯一键冲突时可能比发送的行数少
+     */
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public double getRowsPerSecond() {
+        return nanos == 0 ? 0 : rowCount * 1000000000D / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadDataResult{rows=" + rowCount + ", updateCount=" + updateCount + ", millis=" + nanos / 1000000
+                + ", rowsPerSecond=" + (long) getRowsPerSecond() + "}";
+    }
+}
@@ -0,0 +1,296 @@
+package org.lsd.alien.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * 按主键区间把一个查询拆开，在多个连接上并行执行，结果交给同一个ResultSetConsumer。
+ *
+ * sql的最后两个参数是主键区间的上下界（都包含），比如 select ... from t where merchant_id = ? and id between ? and ?。
+ * 区间数是线程数的rangesPerWorker倍，主键分布不均时快的线程多领几个区间。
+ * 每个线程从头到尾只借一个连接；数据源是AlienDataSource时线程数不超过maxActive * poolShare，给在线请求留出连接。
+ *
+ * apply在各个线程里并行调用，accept串行调用。ordered时按区间顺序accept，区间内的顺序由sql里的order by决定，
+ * 先查完的区间要在内存里等前面的区间
+ *
+ * @author nhsoft.lsd
+ */
+public class ParallelScan<T> {
+
+    public final static double DEFAULT_POOL_SHARE        = 0.25D;
+    public final static int    DEFAULT_RANGES_PER_WORKER = 4;
+
+    /**
+     * 无序时每攒这么多行加锁accept一次
+     */
+    private final static int ACCEPT_BATCH = 256;
+
+    private final DataSource dataSource;
+    private final String     sql;
+
+    private int     parallelism     = Runtime.getRuntime().availableProcessors();
+    private double  poolShare       = DEFAULT_POOL_SHARE;
+    private int     rangesPerWorker = DEFAULT_RANGES_PER_WORKER;
+    private boolean ordered;
+
+    public ParallelScan(final DataSource dataSource, final String sql) {
+        this.dataSource = dataSource;
+        this.sql = sql;
+    }
+
+    /**
+     * 表里主键的最小值和最大值，表为空时返回null
+     */
+    public static long[] keyRange(final DataSource dataSource, final String tableName, final String keyColumn) throws SQLException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            stmt = conn.prepareStatement("select min(" + keyColumn + "), max(" + keyColumn + ") from " + tableName);
+            rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            long min = rs.getLong(1);
+            if (rs.wasNull()) {
+                return null;
+            }
+            return new long[] {min, rs.getLong(2)};
+        } finally {
+            JdbcUtils.close(rs);
+            JdbcUtils.close(stmt);
+            JdbcUtils.close(conn);
+        }
+    }
+
+    /**
+     * 实际使用的线程数
+     */
+    public int workers() {
+        int workers = Math.max(1, parallelism);
+        if (dataSource instanceof AlienDataSource) {
+            int share = (int) (((AlienDataSource) dataSource).getMaxActive() * poolShare);
+            workers = Math.min(workers, Math.max(1, share));
+        }
+        return workers;
+    }
+
+    /**
+     * 把[minKey, maxKey]切成区间，切出来的区间数不超过区间里的主键个数
+     */
+    static long[][] split(final long minKey, final long maxKey, final int rangeCount) {
+        if (minKey > maxKey) {
+            return new long[0][];
+        }
+        final long span = Math.subtractExact(maxKey, minKey);
+        final int count = span >= rangeCount - 1 ? rangeCount : (int) (span + 1);
+        final long[][] ranges = new long[count][];
+        long lower = minKey;
+        for (int i = 0; i < count; ++i) {
+            long upper = i == count - 1 ? maxKey : minKey + (long) ((double) span * (i + 1) / count);
+            if (upper < lower) {
+                upper = lower;
+            }
+            ranges[i] = new long[] {lower, upper};
+            lower = upper + 1;
+        }
+        return ranges;
+    }
+
+    /**
+     * 扫描[minKey, maxKey]，返回处理的行数。任何一个区间出错时不再领新的区间，等正在执行的区间结束后抛出第一个异常
+     */
+    public long scan(final long minKey, final long maxKey, final ResultSetConsumer<T> consumer, final Object... parameters)
+            throws SQLException {
+        final int workers = workers();
+        final long[][] ranges = split(minKey, maxKey, workers * Math.max(1, rangesPerWorker));
+        if (ranges.length == 0) {
+            return 0;
+        }
+
+        final Merger merger = new Merger(consumer, ranges.length);
+        final AtomicInteger nextRange = new AtomicInteger();
+        final String threadName = "Alien-ParallelScan-" + System.identityHashCode(this);
+        final AtomicInteger threadIndex = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, ranges.length), r -> {
+            Thread thread = new Thread(r, threadName + "-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0, n = Math.min(workers, ranges.length); i < n; ++i) {
+                futures.add(executor.submit(() -> {
+                    scanRanges(ranges, nextRange, merger, consumer, parameters);
+                    return null;
+                }));
+            }
+
+            Throwable error = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                    } else if (error != e.getCause()) {
+                        error.addSuppressed(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    merger.failed = true;
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("parallel scan interrupted", e);
+                }
+            }
+            if (error instanceof SQLException) {
+                throw (SQLException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            if (error != null) {
+                throw new SQLException("parallel scan error", error);
+            }
+            return merger.rowCount.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void scanRanges(final long[][] ranges, final AtomicInteger nextRange, final Merger merger, final ResultSetConsumer<T> consumer, final Object[] parameters)
+            throws SQLException {
+        Connection conn = null;
+        try {
+            for (int index; !merger.failed && (index = nextRange.getAndIncrement()) < ranges.length; ) {
+                if (conn == null) {
+                    conn = dataSource.getConnection();
+                }
+
+                final List<Object> rangeParameters = new ArrayList<Object>(parameters.length + 2);
+                rangeParameters.addAll(Arrays.asList(parameters));
+                rangeParameters.add(ranges[index][0]);
+                rangeParameters.add(ranges[index][1]);
+
+                final List<T> buffer = new ArrayList<T>(ordered ? 1024 : ACCEPT_BATCH);
+                try (RowIterator<T> rows = JdbcUtils.executeQueryIterator(conn, consumer::apply, sql, rangeParameters)) {
+                    while (!merger.failed && rows.hasNext()) {
+                        buffer.add(rows.next());
+                        if (!ordered && buffer.size() >= ACCEPT_BATCH) {
+                            merger.accept(buffer);
+                            buffer.clear();
+                        }
+                    }
+                } catch (IllegalStateException e) {
+                    // RowIterator把SQLException包成了IllegalStateException
+                    if (e.getCause() instanceof SQLException) {
+                        throw (SQLException) e.getCause();
+                    }
+                    throw e;
+                }
+
+                if (ordered) {
+                    merger.complete(index, buffer);
+                } else {
+                    merger.accept(buffer);
+                }
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            merger.failed = true;
+            throw e;
+        } finally {
+            JdbcUtils.close(conn);
+        }
+    }
+
+    /**
+     * 串行调用accept，有序时按区间下标依次交出
+     */
+    private final class Merger {
+
+        private final ResultSetConsumer<T> consumer;
+        private final List<T>[]            completed;
+        private int                        next;
+
+        final AtomicLong rowCount = new AtomicLong();
+
+        volatile boolean failed;
+
+        @SuppressWarnings("unchecked")
+        Merger(final ResultSetConsumer<T> consumer, final int rangeCount) {
+            this.consumer = consumer;
+            this.completed = (List<T>[]) new List<?>[rangeCount];
+        }
+
+        synchronized void accept(final List<T> rows) {
+            for (T row : rows) {
+                consumer.accept(row);
+            }
+            rowCount.addAndGet(rows.size());
+        }
+
+        synchronized void complete(final int range, final List<T> rows) {
+            completed[range] = rows;
+            while (next < completed.length && completed[next] != null && !failed) {
+                accept(completed[next]);
+                completed[next] = null;
+                next++;
+            }
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(final int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public double getPoolShare() {
+        return poolShare;
+    }
+
+    /**
+     * 最多占用连接池maxActive的比例，只对AlienDataSource生效
+     */
+    public void setPoolShare(final double poolShare) {
+        if (poolShare <= 0 || poolShare > 1) {
+            throw new IllegalArgumentException("poolShare must be in (0, 1] : " + poolShare);
+        }
+        this.poolShare = poolShare;
+    }
+
+    public int getRangesPerWorker() {
+        return rangesPerWorker;
+    }
+
+    public void setRangesPerWorker(final int rangesPerWorker) {
+        this.rangesPerWorker = rangesPerWorker;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered(final boolean ordered) {
+        this.ordered = ordered;
+    }
+}
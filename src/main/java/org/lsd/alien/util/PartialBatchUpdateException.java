@@ -0,0 +1,39 @@
+package org.lsd.alien.util;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+
+/**
+ * 分块批量执行中途失败，getBatchResult是出错前已经执行完的分块，
+ * transactionPerChunk或者autoCommit时这些分块已经提交，重试时要跳过这些行
+ *
+ * @author nhsoft.lsd
+ */
+public class PartialBatchUpdateException extends BatchUpdateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient BatchResult batchResult;
+
+    /**
+     * @param cause 失败分块的异常，驱动抛出BatchUpdateException时沿用它的updateCounts
+     */
+    public PartialBatchUpdateException(final SQLException cause, final BatchResult batchResult) {
+        super(cause.getMessage(), cause.getSQLState(), cause.getErrorCode(), updateCounts(cause), cause);
+        this.batchResult = batchResult;
+    }
+
+    private static int[] updateCounts(final SQLException cause) {
+        if (cause instanceof BatchUpdateException) {
+            int[] updateCounts = ((BatchUpdateException) cause).getUpdateCounts();
+            if (updateCounts != null) {
+                return updateCounts;
+            }
+        }
+        return new int[0];
+    }
+
+    public BatchResult getBatchResult() {
+        return batchResult;
+    }
+}
@@ -0,0 +1,236 @@
+package org.lsd.alien.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+
+/**
+ * 读和处理分开的查询：调用线程只读行并apply，按batchSize攒成一批放进有界队列，workers个线程从队列取出来accept。
+ * accept慢的时候不再占着连接，读完最后一行就归还连接，不用等accept处理完。
+ *
+ * ordered时只用一个accept线程，按读出来的顺序处理；否则各线程并发调用accept，consumer要自己保证线程安全。
+ * 队列满时读线程等待，内存占用不超过(queueCapacity + workers) * batchSize行
+ *
+ * @author nhsoft.lsd
+ */
+public class ResultSetPipeline<T> {
+
+    public final static int DEFAULT_BATCH_SIZE     = 256;
+    public final static int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /**
+     * 队列里的结束标记，每个accept线程一个
+     */
+    private static final List<Object> END = Collections.emptyList();
+
+    private final ResultSetConsumer<T> consumer;
+
+    private int     workers       = 1;
+    private boolean ordered;
+    private int     batchSize     = DEFAULT_BATCH_SIZE;
+    private int     queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    public ResultSetPipeline(final ResultSetConsumer<T> consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * 执行查询并等所有行accept完，返回行数。读或者accept出错时停止读取、丢弃队列里剩下的行，抛出第一个异常
+     */
+    public long execute(final DataSource dataSource, final String sql, final Object... parameters) throws SQLException {
+        final int threadCount = ordered ? 1 : Math.max(1, workers);
+        final Run run = new Run(threadCount);
+        final String threadName = "Alien-Pipeline-" + System.identityHashCode(run);
+        for (int i = 0; i < threadCount; ++i) {
+            Thread thread = new Thread(run::acceptLoop, threadName + "-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long rowCount = 0;
+        try (RowIterator<T> rows = JdbcUtils.executeQueryIterator(dataSource, consumer::apply, sql, Arrays.asList(parameters))) {
+            List<T> batch = new ArrayList<T>(batchSize);
+            while (run.failure == null && rows.hasNext()) {
+                batch.add(rows.next());
+                rowCount++;
+                if (batch.size() >= batchSize) {
+                    run.put(batch);
+                    batch = new ArrayList<T>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                run.put(batch);
+            }
+        } catch (IllegalStateException e) {
+            // RowIterator把SQLException包成了IllegalStateException
+            run.fail(e.getCause() instanceof SQLException ? e.getCause() : e);
+        } catch (SQLException | RuntimeException | Error e) {
+            run.fail(e);
+        }
+
+        run.finish();
+
+        Throwable error = run.failure;
+        if (error == null) {
+            return rowCount;
+        }
+        if (error instanceof SQLException) {
+            throw (SQLException) error;
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        throw new SQLException("pipeline error", error);
+    }
+
+    /**
+     * 一次执行的队列和状态
+     */
+    private final class Run {
+
+        private final BlockingQueue<List<T>> queue;
+        private final int                    threadCount;
+        private final CountDownLatch         finished;
+
+        volatile Throwable failure;
+
+        Run(final int threadCount) {
+            this.queue = new ArrayBlockingQueue<List<T>>(Math.max(1, queueCapacity));
+            this.threadCount = threadCount;
+            this.finished = new CountDownLatch(threadCount);
+        }
+
+        synchronized void fail(final Throwable error) {
+            if (failure == null) {
+                failure = error;
+            } else if (failure != error) {
+                failure.addSuppressed(error);
+            }
+        }
+
+        /**
+         * 出错以后不再等队列腾位置，尽快停止读取
+         */
+        void put(final List<T> batch) {
+            try {
+                while (failure == null) {
+                    if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                fail(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 每个accept线程放一个结束标记，然后等它们处理完。出错以后accept线程只取不处理，队列会腾出位置
+         */
+        @SuppressWarnings("unchecked")
+        void finish() {
+            boolean interrupted = false;
+            for (int i = 0; i < threadCount; ) {
+                try {
+                    if (interrupted ? queue.offer((List<T>) END) : queue.offer((List<T>) END, 100, TimeUnit.MILLISECONDS)) {
+                        i++;
+                    }
+                } catch (InterruptedException e) {
+                    fail(e);
+                    interrupted = true;
+                }
+            }
+
+            while (!interrupted) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    fail(e);
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void acceptLoop() {
+            try {
+                for (;;) {
+                    List<T> batch = queue.take();
+                    if (batch == END) {
+                        break;
+                    }
+                    if (failure != null) {
+                        continue;
+                    }
+                    for (T row : batch) {
+                        consumer.accept(row);
+                    }
+                }
+            } catch (Throwable e) {
+                fail(e);
+                // 出错以后接着取，直到拿到自己的结束标记，免得读线程放不进去
+                drainUntilEnd();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private void drainUntilEnd() {
+            try {
+                while (queue.take() != END) {
+                    // 丢弃
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(final int workers) {
+        this.workers = workers;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered(final boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive : " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+}
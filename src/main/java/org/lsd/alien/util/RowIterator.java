@@ -0,0 +1,101 @@
+package org.lsd.alien.util;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 边读边返回的行迭代器，读完、出错或者close时关闭ResultSet、Statement和借来的连接。
+ * 没有读完就不用了一定要close，MySQL流式读取时连接在读完之前不能执行别的语句。
+ * SQLException包装成IllegalStateException抛出
+ *
+ * @author nhsoft.lsd
+ */
+public class RowIterator<T> implements Iterator<T>, Closeable {
+
+    private final ResultSet    rs;
+    private final Statement    stmt;
+    private final RowMapper<T> mapper;
+
+    /**
+     * 由迭代器借出的连接，关闭时归还，调用方传进来的连接为null
+     */
+    private final Connection conn;
+
+    /**
+     * 借出连接时为了游标读取改过autoCommit，归还前恢复
+     */
+    private final boolean restoreAutoCommit;
+
+    private boolean fetched;
+    private boolean hasNext;
+    private boolean closed;
+
+    public RowIterator(final ResultSet rs, final Statement stmt, final Connection conn, final boolean restoreAutoCommit, final RowMapper<T> mapper) {
+        this.rs = rs;
+        this.stmt = stmt;
+        this.conn = conn;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (!fetched) {
+            try {
+                hasNext = rs.next();
+            } catch (SQLException ex) {
+                close();
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+            fetched = true;
+            if (!hasNext) {
+                close();
+            }
+        }
+        return hasNext;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fetched = false;
+        try {
+            return mapper.map(rs);
+        } catch (SQLException ex) {
+            close();
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        JdbcUtils.close(rs);
+        JdbcUtils.close(stmt);
+        if (conn != null) {
+            if (restoreAutoCommit) {
+                try {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                } catch (SQLException ex) {
+                    // 交给连接池归还时处理
+                }
+            }
+            JdbcUtils.close(conn);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.lsd.alien.util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 把ResultSet的当前行转换成对象，不移动游标
+ *
+ * @author nhsoft.lsd
+ */
+public interface RowMapper<T> {
+
+    T map(ResultSet rs) throws SQLException;
+}
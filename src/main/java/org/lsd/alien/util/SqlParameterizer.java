@@ -0,0 +1,518 @@
+package org.lsd.alien.util;
+
+import java.util.Arrays;
+import org.lsd.alien.DbType;
+
+/**
+ * 单遍扫描把SQL归一化成参数化形式：字面量和IN列表替换成?，多行VALUES只保留第一行，
+ * 空白和注释折叠，整体转小写，token之间的空格按固定规则输出，与原SQL的排版无关。
+ * 只算指纹时不构造中间字符串，结果与 FnvHash.fnv1a_64_lower(parameterize(sql)) 相同
+ *
+ * @author nhsoft.lsd
+ */
+public final class SqlParameterizer {
+
+    private static final int NONE     = 0;
+    private static final int WORD     = 1;
+    private static final int PARAM    = 2;
+    private static final int OPERATOR = 3;
+    private static final int LPAREN   = 4;
+    private static final int RPAREN   = 5;
+    private static final int COMMA    = 6;
+    private static final int DOT      = 7;
+
+    private static final int IN_LIST_EXPECT_ITEM      = 1;
+    private static final int IN_LIST_EXPECT_SEPARATOR = 2;
+
+    private static final int VALUES_WAIT_GROUP  = 1;
+    private static final int VALUES_FIRST_GROUP = 2;
+    private static final int VALUES_AFTER_GROUP = 3;
+    private static final int VALUES_SKIP        = 4;
+
+    private static final long IN     = FnvHash.fnv1a_64_lower("in");
+    private static final long VALUES = FnvHash.fnv1a_64_lower("values");
+    private static final long VALUE  = FnvHash.fnv1a_64_lower("value");
+    private static final long TRUE   = FnvHash.fnv1a_64_lower("true");
+    private static final long FALSE  = FnvHash.fnv1a_64_lower("false");
+
+    /**
+     * 决定左括号前是否加空格、负号是否一元的关键字，固定写在这里，
+     * 不依赖classpath上的关键字资源，同一条SQL在任何环境下参数化结果都一样
+     */
+    private static final long[] KEYWORDS = FnvHash.fnv1a_64_lower(new String[] {
+            "all", "and", "any", "as", "between", "by", "case", "delete", "distinct", "div", "else", "end",
+            "exists", "from", "having", "in", "insert", "interval", "into", "is", "join", "like", "limit",
+            "mod", "not", "null", "offset", "on", "or", "regexp", "replace", "return", "rlike", "select",
+            "set", "some", "then", "union", "update", "using", "value", "values", "when", "where", "xor"
+    }, true);
+
+    private SqlParameterizer() {
+    }
+
+    public static String parameterize(final String sql) {
+        return parameterize(sql, DbType.mysql);
+    }
+
+    public static String parameterize(final String sql, final DbType dbType) {
+        StringBuilder out = new StringBuilder(sql.length());
+        new Lexer(sql, isMySql(dbType), out).scan();
+        return out.toString();
+    }
+
+    /**
+     * 参数化以后的SQL指纹，不构造中间字符串
+     */
+    public static long fnv1a_64_lower(final String sql) {
+        return fnv1a_64_lower(sql, DbType.mysql);
+    }
+
+    public static long fnv1a_64_lower(final String sql, final DbType dbType) {
+        return new Lexer(sql, isMySql(dbType), null).scan();
+    }
+
+    private static boolean isMySql(final DbType dbType) {
+        return dbType == null
+                || dbType == DbType.mysql
+                || dbType == DbType.mariadb
+                || dbType == DbType.tidb
+                || dbType == DbType.oceanbase
+                || dbType == DbType.drds
+                || dbType == DbType.ads
+                || dbType == DbType.polardb
+                || dbType == DbType.h2;
+    }
+
+    private static final class Lexer {
+
+        private final String        sql;
+        private final int           len;
+        private final boolean       mysql;
+        private final StringBuilder out;
+
+        private long hash = FnvHash.BASIC;
+        private int  pos;
+
+        /**
+         * 最近一个写出的token
+         */
+        private int     prevType = NONE;
+        private long    prevWordHash;
+        private boolean prevKeyword;
+
+        /**
+         * 最近一个扫描到的token，包括被折叠掉的，用来判断负号是不是一元的
+         */
+        private int     lastType = NONE;
+        private boolean lastKeyword;
+
+        private int depth;
+
+        private int inListState;
+        private int inListItems;
+
+        private int valuesState;
+        private int valuesDepth;
+
+        Lexer(final String sql, final boolean mysql, final StringBuilder out) {
+            this.sql = sql;
+            this.len = sql.length();
+            this.mysql = mysql;
+            this.out = out;
+        }
+
+        long scan() {
+            while (pos < len) {
+                char ch = sql.charAt(pos);
+
+                if (ch <= ' ') {
+                    pos++;
+                } else if (ch == '/' && peek(1) == '*') {
+                    int end = sql.indexOf("*/", pos + 2);
+                    pos = end < 0 ? len : end + 2;
+                } else if ((ch == '-' && peek(1) == '-' && (!mysql || peek(2) <= ' ')) || (ch == '#' && mysql)) {
+                    int end = sql.indexOf('\n', pos);
+                    pos = end < 0 ? len : end + 1;
+                } else if (ch == '\'') {
+                    scanString('\'');
+                    token(PARAM, 0, 0, 0);
+                } else if (ch == '"') {
+                    if (mysql) {
+                        scanString('"');
+                        token(PARAM, 0, 0, 0);
+                    } else {
+                        scanQuotedIdentifier('"');
+                    }
+                } else if (ch == '`' && mysql) {
+                    scanQuotedIdentifier('`');
+                } else if (isDigit(ch) || (ch == '.' && isDigit(peek(1)) && lastType != WORD && lastType != RPAREN)) {
+                    scanNumber(pos);
+                } else if ((ch == '-' || ch == '+') && isUnaryContext() && (isDigit(peek(1)) || (peek(1) == '.' && isDigit(peek(2))))) {
+                    scanNumber(pos++);
+                } else if (isIdentifierStart(ch)) {
+                    scanWord();
+                } else if (ch == '?') {
+                    pos++;
+                    token(PARAM, 0, 0, 0);
+                } else if (ch == '(') {
+                    pos++;
+                    token(LPAREN, 0, 0, 0);
+                } else if (ch == ')') {
+                    pos++;
+                    token(RPAREN, 0, 0, 0);
+                } else if (ch == ',') {
+                    pos++;
+                    token(COMMA, 0, 0, 0);
+                } else if (ch == '.') {
+                    pos++;
+                    token(DOT, 0, 0, 0);
+                } else {
+                    int start = pos;
+                    pos += operatorLength(ch);
+                    token(OPERATOR, start, pos, 0);
+                }
+            }
+
+            if (inListState != 0) {
+                replayInList();
+            }
+            return hash;
+        }
+
+        private char peek(final int offset) {
+            int index = pos + offset;
+            return index < len ? sql.charAt(index) : 0;
+        }
+
+        private boolean isUnaryContext() {
+            return lastType == NONE
+                    || lastType == OPERATOR
+                    || lastType == LPAREN
+                    || lastType == COMMA
+                    || (lastType == WORD && lastKeyword);
+        }
+
+        private int operatorLength(final char ch) {
+            char next = peek(1);
+            switch (ch) {
+                case '<':
+                    if (next == '=' && peek(2) == '>') {
+                        return 3;
+                    }
+                    return next == '=' || next == '>' || next == '<' ? 2 : 1;
+                case '>':
+                    return next == '=' || next == '>' ? 2 : 1;
+                case '!':
+                    return next == '=' ? 2 : 1;
+                case '|':
+                    return next == '|' ? 2 : 1;
+                case '&':
+                    return next == '&' ? 2 : 1;
+                case ':':
+                    return next == '=' ? 2 : 1;
+                case '-':
+                    if (next == '>') {
+                        return peek(2) == '>' ? 3 : 2;
+                    }
+                    return 1;
+                default:
+                    return 1;
+            }
+        }
+
+        private void scanString(final char quote) {
+            pos++;
+            while (pos < len) {
+                char ch = sql.charAt(pos);
+                if (ch == '\\' && mysql) {
+                    pos += 2;
+                } else if (ch == quote) {
+                    if (peek(1) == quote) {
+                        pos += 2;
+                    } else {
+                        pos++;
+                        return;
+                    }
+                } else {
+                    pos++;
+                }
+            }
+            pos = len;
+        }
+
+        private void scanQuotedIdentifier(final char quote) {
+            int start = ++pos;
+            int end = sql.indexOf(quote, start);
+            if (end < 0) {
+                end = len;
+            }
+            pos = end < len ? end + 1 : len;
+            token(WORD, start, end, FnvHash.hashCode64(sql, start, end));
+        }
+
+        private void scanNumber(final int start) {
+            char ch = sql.charAt(pos);
+            char next = peek(1);
+            if (ch == '0' && (next == 'x' || next == 'X')) {
+                pos += 2;
+                while (pos < len && isHexDigit(sql.charAt(pos))) {
+                    pos++;
+                }
+            } else if (ch == '0' && (next == 'b' || next == 'B')) {
+                pos += 2;
+                while (pos < len && (sql.charAt(pos) == '0' || sql.charAt(pos) == '1')) {
+                    pos++;
+                }
+            } else {
+                while (pos < len && isDigit(sql.charAt(pos))) {
+                    pos++;
+                }
+                if (pos < len && sql.charAt(pos) == '.') {
+                    pos++;
+                    while (pos < len && isDigit(sql.charAt(pos))) {
+                        pos++;
+                    }
+                }
+                if (pos < len && (sql.charAt(pos) == 'e' || sql.charAt(pos) == 'E')) {
+                    char sign = peek(1);
+                    if (isDigit(sign) || ((sign == '+' || sign == '-') && isDigit(peek(2)))) {
+                        pos += 2;
+                        while (pos < len && isDigit(sql.charAt(pos))) {
+                            pos++;
+                        }
+                    }
+                }
+            }
+
+            // MySQL的标识符可以以数字开头，比如 1st_table
+            if (pos < len && isIdentifierPart(sql.charAt(pos)) && isDigit(sql.charAt(start))) {
+                while (pos < len && isIdentifierPart(sql.charAt(pos))) {
+                    pos++;
+                }
+                token(WORD, start, pos, FnvHash.hashCode64(sql, start, pos));
+                return;
+            }
+
+            token(PARAM, 0, 0, 0);
+        }
+
+        private void scanWord() {
+            int start = pos;
+            pos++;
+            while (pos < len && isIdentifierPart(sql.charAt(pos))) {
+                pos++;
+            }
+
+            // N'..' X'..' B'..' 以及 _utf8mb4'..' 这类带前缀的字面量
+            if (pos < len && sql.charAt(pos) == '\'' && isLiteralPrefix(start, pos)) {
+                scanString('\'');
+                token(PARAM, 0, 0, 0);
+                return;
+            }
+
+            long wordHash = FnvHash.hashCode64(sql, start, pos);
+            if (wordHash == TRUE || wordHash == FALSE) {
+                token(PARAM, 0, 0, 0);
+                return;
+            }
+            token(WORD, start, pos, wordHash);
+        }
+
+        private boolean isLiteralPrefix(final int start, final int end) {
+            char first = sql.charAt(start);
+            if (end - start == 1) {
+                return first == 'n' || first == 'N' || first == 'x' || first == 'X' || first == 'b' || first == 'B';
+            }
+            return first == '_' && mysql;
+        }
+
+        private void token(final int type, final int start, final int end, final long wordHash) {
+            lastType = type;
+            lastKeyword = type == WORD && Arrays.binarySearch(KEYWORDS, wordHash) >= 0;
+
+            if (valuesState >= VALUES_AFTER_GROUP && skipValues(type)) {
+                return;
+            }
+            if (inListState != 0 && collapseInList(type)) {
+                return;
+            }
+            write(type, start, end, wordHash, lastKeyword);
+        }
+
+        /**
+         * 第一行之后的 ,(...) 全部吞掉
+         */
+        private boolean skipValues(final int type) {
+            if (valuesState == VALUES_AFTER_GROUP) {
+                if (type == COMMA) {
+                    valuesState = VALUES_SKIP;
+                    return true;
+                }
+                valuesState = NONE;
+                return false;
+            }
+
+            if (type == LPAREN) {
+                depth++;
+                return true;
+            }
+            if (type == RPAREN && depth > valuesDepth) {
+                depth--;
+                return true;
+            }
+            if (depth > valuesDepth || type == COMMA) {
+                return true;
+            }
+            valuesState = NONE;
+            return false;
+        }
+
+        /**
+         * IN后面只有字面量和逗号时折叠成 (?)，遇到其他token时原样补回已经吞掉的部分
+         */
+        private boolean collapseInList(final int type) {
+            if (type == PARAM && inListState == IN_LIST_EXPECT_ITEM) {
+                inListItems++;
+                inListState = IN_LIST_EXPECT_SEPARATOR;
+                return true;
+            }
+            if (type == COMMA && inListState == IN_LIST_EXPECT_SEPARATOR) {
+                inListState = IN_LIST_EXPECT_ITEM;
+                return true;
+            }
+            if (type == RPAREN && inListState == IN_LIST_EXPECT_SEPARATOR) {
+                inListState = NONE;
+                write(PARAM, 0, 0, 0, false);
+                write(RPAREN, 0, 0, 0, false);
+                return true;
+            }
+
+            replayInList();
+            return false;
+        }
+
+        private void replayInList() {
+            boolean trailingComma = inListState == IN_LIST_EXPECT_ITEM && inListItems > 0;
+            int items = inListItems;
+            inListState = NONE;
+            inListItems = 0;
+
+            for (int i = 0; i < items; ++i) {
+                if (i > 0) {
+                    write(COMMA, 0, 0, 0, false);
+                }
+                write(PARAM, 0, 0, 0, false);
+            }
+            if (trailingComma) {
+                write(COMMA, 0, 0, 0, false);
+            }
+        }
+
+        private void write(final int type, final int start, final int end, final long wordHash, final boolean keyword) {
+            if (prevType != NONE && needSpace(type)) {
+                append(' ');
+            }
+
+            switch (type) {
+                case WORD:
+                case OPERATOR:
+                    for (int i = start; i < end; ++i) {
+                        append(sql.charAt(i));
+                    }
+                    break;
+                case PARAM:
+                    append('?');
+                    break;
+                case LPAREN:
+                    append('(');
+                    break;
+                case RPAREN:
+                    append(')');
+                    break;
+                case COMMA:
+                    append(',');
+                    break;
+                default:
+                    append('.');
+                    break;
+            }
+
+            if (type == LPAREN) {
+                if (prevType == WORD && prevWordHash == IN) {
+                    inListState = IN_LIST_EXPECT_ITEM;
+                    inListItems = 0;
+                }
+                if (valuesState == VALUES_WAIT_GROUP) {
+                    valuesState = VALUES_FIRST_GROUP;
+                    valuesDepth = depth;
+                }
+                depth++;
+            } else if (type == RPAREN) {
+                if (depth > 0) {
+                    depth--;
+                }
+                if (valuesState == VALUES_FIRST_GROUP && depth == valuesDepth) {
+                    valuesState = VALUES_AFTER_GROUP;
+                }
+            } else if (valuesState == VALUES_WAIT_GROUP) {
+                valuesState = NONE;
+            }
+
+            // 只认 insert into t(...) values (...)，排除 on duplicate key update a = values(a)
+            if (type == WORD && (wordHash == VALUES || wordHash == VALUE) && (prevType == WORD || prevType == RPAREN)) {
+                valuesState = VALUES_WAIT_GROUP;
+            }
+
+            prevType = type;
+            prevWordHash = type == WORD ? wordHash : 0;
+            prevKeyword = keyword;
+        }
+
+        private boolean needSpace(final int type) {
+            if (prevType == LPAREN || prevType == DOT) {
+                return false;
+            }
+            if (type == RPAREN || type == COMMA || type == DOT) {
+                return false;
+            }
+            if (type == LPAREN) {
+                // 函数调用不加空格，关键字后面加
+                return prevType != WORD || prevKeyword;
+            }
+            return true;
+        }
+
+        private void append(char ch) {
+            if (ch >= 'A' && ch <= 'Z') {
+                ch = (char) (ch + 32);
+            }
+
+            hash ^= ch;
+            hash *= FnvHash.PRIME;
+
+            if (out != null) {
+                out.append(ch);
+            }
+        }
+    }
+
+    private static boolean isDigit(final char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static boolean isHexDigit(final char ch) {
+        return (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'f') || (ch >= 'A' && ch <= 'F');
+    }
+
+    private static boolean isIdentifierStart(final char ch) {
+        return (ch >= 'a' && ch <= 'z')
+                || (ch >= 'A' && ch <= 'Z')
+                || ch == '_'
+                || ch == '$'
+                || ch == '@'
+                || ch >= 0x80;
+    }
+
+    private static boolean isIdentifierPart(final char ch) {
+        return isIdentifierStart(ch) || isDigit(ch);
+    }
+}
@@ -0,0 +1,14 @@
+package com.mysql.cj.jdbc;
+
+import java.io.InputStream;
+import java.sql.Statement;
+
+/**
+ * 测试里没有Connector/J，只保留MySqlUtils.loadData用到的方法，StubDriver的Statement实现这个接口
+ *
+ * @author nhsoft.lsd
+ */
+public interface JdbcStatement extends Statement {
+
+    void setLocalInfileInputStream(InputStream stream);
+}
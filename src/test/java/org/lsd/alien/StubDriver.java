@@ -0,0 +1,401 @@
+package org.lsd.alien;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * 测试用的JDBC驱动，url为jdbc:mock:name，不连数据库。
+ * 每个name可以单独设置执行延迟和复制延迟，查询返回一行，第一列是“当前时间 - 复制延迟”，可以当作心跳表。
+ * setDown以后建连和执行语句都抛异常，模拟数据库宕机。getExecuteCount是发到“数据库”的语句数，getFetchSize是最后一次设置的fetchSize，
+ * getCallCount是连接上某个方法的调用次数
+ *
+ * @author nhsoft.lsd
+ */
+public class StubDriver implements java.sql.Driver {
+
+    public static final String URL_PREFIX = "jdbc:mock:";
+
+    private static final Map<String, Long> LATENCY_MILLIS = new ConcurrentHashMap<String, Long>();
+    private static final Map<String, Long> LAG_MILLIS     = new ConcurrentHashMap<String, Long>();
+    private static final Set<String>       DOWN           = ConcurrentHashMap.newKeySet();
+
+    private static final Map<String, AtomicLong> EXECUTE_COUNTS = new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, Integer>    FETCH_SIZES    = new ConcurrentHashMap<String, Integer>();
+    private static final Map<String, AtomicLong> COMMIT_COUNTS  = new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, byte[]>     LOAD_DATA      = new ConcurrentHashMap<String, byte[]>();
+    private static final Map<String, Integer>    ROW_COUNTS     = new ConcurrentHashMap<String, Integer>();
+    private static final Map<String, AtomicLong> CALL_COUNTS    = new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, Runnable>   CLOSE_HOOKS    = new ConcurrentHashMap<String, Runnable>();
+
+    private static final int LOAD_DATA_HEAD_BYTES = 64 * 1024;
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String url(final String name) {
+        return URL_PREFIX + name;
+    }
+
+    public static void setLatencyMillis(final String name, final long millis) {
+        LATENCY_MILLIS.put(name, millis);
+    }
+
+    public static void setLagMillis(final String name, final long millis) {
+        LAG_MILLIS.put(name, millis);
+    }
+
+    public static void setDown(final String name, final boolean down) {
+        if (down) {
+            DOWN.add(name);
+        } else {
+            DOWN.remove(name);
+        }
+    }
+
+    /**
+     * 查询返回的行数，默认1行
+     */
+    public static void setRowCount(final String name, final int rows) {
+        ROW_COUNTS.put(name, rows);
+    }
+
+    public static long getExecuteCount(final String name) {
+        AtomicLong count = EXECUTE_COUNTS.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    public static Integer getFetchSize(final String name) {
+        return FETCH_SIZES.get(name);
+    }
+
+    /**
+     * 最近一次LOAD DATA收到的内容，只保留开头64KB
+     */
+    public static byte[] getLoadData(final String name) {
+        return LOAD_DATA.get(name);
+    }
+
+    public static long getCommitCount(final String name) {
+        AtomicLong count = COMMIT_COUNTS.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * 连接上某个方法被调用的次数
+     */
+    public static long getCallCount(final String name, final String method) {
+        AtomicLong count = CALL_COUNTS.get(name + "#" + method);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * 语句close时在调用线程上执行hook，传null清除
+     */
+    public static void setStatementCloseHook(final String name, final Runnable hook) {
+        if (hook == null) {
+            CLOSE_HOOKS.remove(name);
+        } else {
+            CLOSE_HOOKS.put(name, hook);
+        }
+    }
+
+    private static void checkDown(final String name) throws SQLException {
+        if (DOWN.contains(name)) {
+            throw new SQLException("Communications link failure: " + name, "08S01");
+        }
+    }
+
+    @Override
+    public Connection connect(final String url, final Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        String name = url.substring(URL_PREFIX.length());
+        checkDown(name);
+        return connection(name);
+    }
+
+    private static Connection connection(final String name) {
+        final boolean[] closed = {false};
+        final boolean[] autoCommit = {true};
+        final boolean[] readOnly = {false};
+        return (Connection) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+            CALL_COUNTS.computeIfAbsent(name + "#" + method.getName(), key -> new AtomicLong()).incrementAndGet();
+            switch (method.getName()) {
+                case "close":
+                case "abort":
+                    closed[0] = true;
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                case "isValid":
+                    return !closed[0] && !DOWN.contains(name);
+                case "getAutoCommit":
+                    return autoCommit[0];
+                case "setAutoCommit":
+                    autoCommit[0] = (Boolean) args[0];
+                    return null;
+                case "isReadOnly":
+                    return readOnly[0];
+                case "setReadOnly":
+                    readOnly[0] = (Boolean) args[0];
+                    return null;
+                case "commit":
+                    COMMIT_COUNTS.computeIfAbsent(name, key -> new AtomicLong()).incrementAndGet();
+                    return null;
+                case "getTransactionIsolation":
+                    return Connection.TRANSACTION_REPEATABLE_READ;
+                case "getCatalog":
+                    return name;
+                case "createStatement":
+                case "prepareStatement":
+                case "prepareCall":
+                    return statement(name, method.getReturnType());
+                case "getMetaData":
+                    return metaData(name);
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    private static Object statement(final String name, final Class<?> type) {
+        final int[] batchRows = {0};
+        final InputStream[] localInfile = {null};
+        final Map<Integer, Object> parameters = new HashMap<Integer, Object>();
+        return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class[]{type, JdbcStatement.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "execute":
+                case "executeQuery":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                    checkDown(name);
+                    EXECUTE_COUNTS.computeIfAbsent(name, key -> new AtomicLong()).incrementAndGet();
+                    sleepLatency(name);
+                    if (method.getName().equals("executeQuery")) {
+                        return resultSet(name, new HashMap<Integer, Object>(parameters));
+                    }
+                    long updateCount = 1;
+                    if (localInfile[0] != null && ((String) args[0]).startsWith("LOAD DATA LOCAL INFILE")) {
+                        updateCount = loadData(name, localInfile[0]);
+                        localInfile[0] = null;
+                    }
+                    if (method.getName().equals("execute")) {
+                        return Boolean.FALSE;
+                    }
+                    return method.getReturnType() == long.class ? (Object) updateCount : (Object) (int) updateCount;
+                case "setObject":
+                case "setLong":
+                case "setInt":
+                case "setString":
+                    parameters.put((Integer) args[0], args[1]);
+                    return null;
+                case "clearParameters":
+                    parameters.clear();
+                    return null;
+                case "setLocalInfileInputStream":
+                    localInfile[0] = (InputStream) args[0];
+                    return null;
+                case "addBatch":
+                    batchRows[0]++;
+                    return null;
+                case "clearBatch":
+                    batchRows[0] = 0;
+                    return null;
+                case "executeBatch": {
+                    // 一批算一次往返
+                    checkDown(name);
+                    EXECUTE_COUNTS.computeIfAbsent(name, key -> new AtomicLong()).incrementAndGet();
+                    sleepLatency(name);
+                    int[] updateCounts = new int[batchRows[0]];
+                    Arrays.fill(updateCounts, 1);
+                    batchRows[0] = 0;
+                    return updateCounts;
+                }
+                case "getUpdateCount":
+                    return 1;
+                case "setFetchSize":
+                    FETCH_SIZES.put(name, (Integer) args[0]);
+                    return null;
+                case "close": {
+                    Runnable hook = CLOSE_HOOKS.get(name);
+                    if (hook != null) {
+                        hook.run();
+                    }
+                    return null;
+                }
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    private static void sleepLatency(final String name) throws InterruptedException {
+        Long latency = LATENCY_MILLIS.get(name);
+        if (latency != null && latency > 0) {
+            Thread.sleep(latency);
+        }
+    }
+
+    /**
+     * 像服务端一样读完整个流，按行数返回，保留开头一段内容给测试检查
+     */
+    private static long loadData(final String name, final InputStream in) throws SQLException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        long lines = 0;
+        try {
+            for (int n; (n = in.read(buf)) > 0; ) {
+                for (int i = 0; i < n; ++i) {
+                    if (buf[i] == '\n') {
+                        lines++;
+                    }
+                }
+                if (head.size() < LOAD_DATA_HEAD_BYTES) {
+                    head.write(buf, 0, Math.min(n, LOAD_DATA_HEAD_BYTES - head.size()));
+                }
+            }
+            in.close();
+        } catch (IOException e) {
+            // 和驱动一样读流出错时抛SQLException
+            throw new SQLException("Unable to read local infile stream", e);
+        }
+        LOAD_DATA.put(name, head.toByteArray());
+        return lines;
+    }
+
+    private static DatabaseMetaData metaData(final String name) {
+        return (DatabaseMetaData) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class[]{DatabaseMetaData.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getURL")) {
+                return url(name);
+            }
+            return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+        });
+    }
+
+    private static final ResultSetMetaData META_DATA = (ResultSetMetaData) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+        switch (method.getName()) {
+            case "getColumnCount":
+                return 1;
+            case "getColumnLabel":
+            case "getColumnName":
+                return "heartbeat";
+            case "getColumnType":
+                return Types.TIMESTAMP;
+            default:
+                return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+        }
+    });
+
+    /**
+     * 默认只有一行，getObject和getTimestamp返回心跳时间，getLong(n)返回第n个绑定参数，getRow返回行号
+     */
+    private static ResultSet resultSet(final String name, final Map<Integer, Object> parameters) {
+        final int[] row = {0};
+        final int rows = ROW_COUNTS.getOrDefault(name, 1);
+        Long lag = LAG_MILLIS.get(name);
+        final Timestamp heartbeat = new Timestamp(System.currentTimeMillis() - (lag == null ? 0 : lag));
+        return (ResultSet) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return row[0]++ < rows;
+                case "getRow":
+                    return row[0] <= rows ? row[0] : 0;
+                case "getTimestamp":
+                case "getObject":
+                    return heartbeat;
+                case "getLong": {
+                    Object value = args[0] instanceof Integer ? parameters.get(args[0]) : null;
+                    return value instanceof Number ? ((Number) value).longValue() : 0L;
+                }
+                case "getMetaData":
+                    return META_DATA;
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    private static Object defaultValue(final Object proxy, final String name, final Class<?> type, final Object[] args) {
+        switch (name) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "stub";
+            case "unwrap":
+                return ((Class<?>) args[0]).isInstance(proxy) ? proxy : null;
+            case "isWrapperFor":
+                return ((Class<?>) args[0]).isInstance(proxy);
+            default:
+                break;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean acceptsURL(final String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
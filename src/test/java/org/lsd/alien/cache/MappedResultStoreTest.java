@@ -0,0 +1,170 @@
+package org.lsd.alien.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.DbType;
+
+/**
+ * @author nhsoft.lsd
+ */
+class MappedResultStoreTest {
+
+    private static final String QUERY = "select * from t_region where id = ?";
+
+    private MappedResultStore store;
+
+    @AfterEach
+    void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private MappedResultStore store(final long maxBytes) throws Exception {
+        File directory = Files.createTempDirectory("alien-spill").toFile();
+        directory.deleteOnExit();
+        store = new MappedResultStore(directory, maxBytes, maxBytes);
+        return store;
+    }
+
+    private static CachedResultSetMetaData metaData(final String... labels) throws SQLException {
+        ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(MappedResultStoreTest.class.getClassLoader(), new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return labels.length;
+                case "getColumnLabel":
+                case "getColumnName":
+                    return labels[(Integer) args[0] - 1];
+                case "getColumnType":
+                    return Types.OTHER;
+                default:
+                    return method.getReturnType() == int.class ? (Object) 0 : method.getReturnType() == boolean.class ? (Object) false : null;
+            }
+        });
+        return new CachedResultSetMetaData(meta);
+    }
+
+    private static CachedRows rows(final int count) throws SQLException {
+        Object[][] rows = new Object[count][];
+        for (int i = 0; i < count; ++i) {
+            rows[i] = new Object[] {(long) i, "region-" + i};
+        }
+        return new CachedRows(metaData("id", "name"), rows);
+    }
+
+    @Test
+    void replaysAllValueTypes() throws Exception {
+        Timestamp timestamp = Timestamp.valueOf("2024-02-29 12:34:56.123456789");
+        LocalDateTime localDateTime = LocalDateTime.of(2024, 1, 2, 3, 4, 5, 6);
+        CachedRows rows = new CachedRows(metaData("id", "name", "amount", "updated", "data", "note", "local", "enabled"), new Object[][] {
+                {1, "华东", new BigDecimal("12.50"), timestamp, new byte[] {1, 2, 3}, null, localDateTime, true},
+                {2L, "", BigDecimal.ZERO, null, new byte[0], "x", null, false},
+        });
+
+        QueryResultCache cache = new QueryResultCache(DbType.mysql, Arrays.asList(QUERY), 1024, 1, store(1 << 20));
+        QueryResultCache.Key key = new QueryResultCache.Key(cache.fingerprint(QUERY), new Object[] {1});
+        cache.put(key, rows, cache.stamp(QUERY));
+
+        try (ResultSet rs = cache.get(key, null)) {
+            assertTrue(rs instanceof MappedResultSet);
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt("id"));
+            assertEquals("华东", rs.getString("name"));
+            assertEquals(new BigDecimal("12.50"), rs.getBigDecimal("amount"));
+            assertEquals(timestamp, rs.getTimestamp("updated"));
+            assertTrue(Arrays.equals(new byte[] {1, 2, 3}, rs.getBytes("data")));
+            assertNull(rs.getString("note"));
+            assertTrue(rs.wasNull());
+            assertEquals(localDateTime, rs.getObject("local", LocalDateTime.class));
+            assertTrue(rs.getBoolean("enabled"));
+
+            assertTrue(rs.next());
+            assertEquals(2L, rs.getLong(1));
+            assertEquals("", rs.getString(2));
+            assertFalse(rs.next());
+
+            assertTrue(rs.absolute(1));
+            assertEquals("华东", rs.getString(2));
+        }
+    }
+
+    @Test
+    void overwritesOldestAndKeepsOpenResults() throws Exception {
+        CachedRows rows = rows(10);
+        int length = MappedResultStore.encode(rows, Long.MAX_VALUE).remaining();
+        MappedResultStore store = store(length * 3L);
+
+        QueryResultCache cache = new QueryResultCache(DbType.mysql, Arrays.asList(QUERY), 1024, 1, store);
+        long fingerprint = cache.fingerprint(QUERY);
+        QueryResultCache.Key[] keys = new QueryResultCache.Key[5];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = new QueryResultCache.Key(fingerprint, new Object[] {i});
+        }
+
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(store.put(keys[i], rows, cache.stamp(QUERY)));
+        }
+        assertNull(cache.get(keys[0], null));
+        assertEquals(1, store.getEvictCount());
+
+        // keys[1]是下一个被覆盖的，打开期间写入放弃
+        ResultSet rs = cache.get(keys[1], null);
+        assertNotNull(rs);
+        assertFalse(store.put(keys[4], rows, cache.stamp(QUERY)));
+        assertTrue(rs.absolute(10));
+        assertEquals("region-9", rs.getString("name"));
+        rs.close();
+
+        assertTrue(store.put(keys[4], rows, cache.stamp(QUERY)));
+        assertNull(cache.get(keys[1], null));
+    }
+
+    @Test
+    void invalidatedEntryIsNotReplayed() throws Exception {
+        QueryResultCache cache = new QueryResultCache(DbType.mysql, Arrays.asList(QUERY), 1024, 1, store(1 << 20));
+        QueryResultCache.Key key = new QueryResultCache.Key(cache.fingerprint(QUERY), new Object[] {1});
+        cache.put(key, rows(3), cache.stamp(QUERY));
+        assertEquals(1, store.getSize());
+
+        cache.onExecute("delete from t_region where id = 1");
+        assertNull(cache.get(key, null));
+        assertEquals(0, store.getSize());
+    }
+
+    @Test
+    void encodesEntriesLargerThanScratchBuffer() throws Exception {
+        CachedRows rows = rows(10000);
+        int length = MappedResultStore.encode(rows, Long.MAX_VALUE).remaining();
+        assertTrue(length > MappedResultStore.SCRATCH_RETAIN_BYTES);
+        assertNull(MappedResultStore.encode(rows, length - 1));
+
+        QueryResultCache cache = new QueryResultCache(DbType.mysql, Arrays.asList(QUERY), 1024, 1, store(1 << 20));
+        QueryResultCache.Key key = new QueryResultCache.Key(cache.fingerprint(QUERY), new Object[] {1});
+        assertTrue(store.put(key, rows, cache.stamp(QUERY)));
+        assertEquals(length, store.getUsedBytes());
+
+        try (ResultSet rs = cache.get(key, null)) {
+            assertTrue(rs.absolute(10000));
+            assertEquals(9999L, rs.getLong(1));
+            assertEquals("region-9999", rs.getString(2));
+            assertFalse(rs.next());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.lsd.alien.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.DbType;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class QueryResultCacheTest {
+
+    private static final String QUERY = "select heartbeat from t_order where id = ?";
+
+    private final List<AlienDataSource> dataSources = new ArrayList<AlienDataSource>();
+
+    @AfterEach
+    void close() {
+        for (AlienDataSource dataSource : dataSources) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name) throws SQLException {
+        AlienDataSource dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setMaxActive(4);
+        dataSource.setTestWhileIdle(false);
+        dataSource.setQueryCacheEnabled(true);
+        dataSource.setQueryCacheSqls(Arrays.asList(QUERY));
+        dataSource.init();
+        dataSources.add(dataSource);
+        return dataSource;
+    }
+
+    private static void query(final Connection conn, final long id) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(QUERY)) {
+            stmt.setLong(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next());
+                assertNotNull(rs.getTimestamp("heartbeat"));
+                assertFalse(rs.next());
+            }
+        }
+    }
+
+    private static void update(final Connection conn, final String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+
+    @Test
+    void replaysCachedResultForSameParameters() throws Exception {
+        AlienDataSource dataSource = dataSource("cache-hit");
+        try (Connection conn = dataSource.getConnection()) {
+            long before = StubDriver.getExecuteCount("cache-hit");
+            query(conn, 1);
+            query(conn, 1);
+            assertEquals(before + 1, StubDriver.getExecuteCount("cache-hit"));
+
+            query(conn, 2);
+            assertEquals(before + 2, StubDriver.getExecuteCount("cache-hit"));
+        }
+        assertEquals(1, dataSource.getQueryResultCache().getHitCount());
+    }
+
+    @Test
+    void writeInvalidatesOnlyTouchedTables() throws Exception {
+        AlienDataSource dataSource = dataSource("cache-invalidate");
+        try (Connection conn = dataSource.getConnection()) {
+            query(conn, 1);
+            long before = StubDriver.getExecuteCount("cache-invalidate");
+
+            update(conn, "update t_user set name = 'a' where id = 1");
+            query(conn, 1);
+            assertEquals(before + 1, StubDriver.getExecuteCount("cache-invalidate"));
+
+            update(conn, "update `shop`.`t_order` set amount = 1 where id = 2");
+            query(conn, 1);
+            assertEquals(before + 3, StubDriver.getExecuteCount("cache-invalidate"));
+        }
+    }
+
+    @Test
+    void transactionWriteInvalidatesAgainOnCommit() throws Exception {
+        AlienDataSource dataSource = dataSource("cache-tx");
+        try (Connection writer = dataSource.getConnection(); Connection reader = dataSource.getConnection()) {
+            writer.setAutoCommit(false);
+            update(writer, "insert into t_order (id) values (3)");
+
+            // 提交前读到的是旧数据，可以缓存，提交以后必须失效
+            query(reader, 1);
+            query(reader, 1);
+            long before = StubDriver.getExecuteCount("cache-tx");
+
+            writer.commit();
+            query(reader, 1);
+            assertEquals(before + 1, StubDriver.getExecuteCount("cache-tx"));
+
+            // 事务里不使用缓存
+            query(writer, 1);
+            assertEquals(before + 2, StubDriver.getExecuteCount("cache-tx"));
+        }
+    }
+
+    @Test
+    void parsesTables() {
+        SqlTables read = SqlTables.parse("select a.x from db.t_a a, t_c join `t_b` b on a.id = b.id where a.s = 'from t_d'");
+        assertFalse(read.write);
+        assertEquals(Arrays.asList("t_a", "t_c", "t_b"), Arrays.asList(read.tables));
+
+        SqlTables update = SqlTables.parse("/* x */ UPDATE t_order o, t_item i SET o.amount = i.amount");
+        assertTrue(update.write);
+        assertEquals(Arrays.asList("t_order", "t_item"), Arrays.asList(update.tables));
+
+        SqlTables insert = SqlTables.parse("insert into t_log select * from t_order");
+        assertEquals(Arrays.asList("t_log", "t_order"), Arrays.asList(insert.tables));
+
+        assertNull(SqlTables.parse("call refresh_all()").tables);
+        assertFalse(SqlTables.parse("set names utf8mb4").write);
+    }
+
+    @Test
+    void frequentEntrySurvivesScan() throws Exception {
+        AlienDataSource dataSource = dataSource("cache-admission");
+        CachedRows rows;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(QUERY)) {
+            stmt.setLong(1, 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rows = ((CachedResultSet) rs).getRows();
+            }
+        }
+
+        QueryResultCache cache = new QueryResultCache(DbType.mysql, Arrays.asList(QUERY), rows.getEstimatedBytes() * 40, QueryResultCache.DEFAULT_MAX_ENTRY_BYTES);
+        long fingerprint = cache.fingerprint(QUERY);
+
+        QueryResultCache.Key hot = new QueryResultCache.Key(fingerprint, new Object[] {0L});
+        cache.put(hot, rows, cache.stamp(QUERY));
+        for (int i = 0; i < 10; ++i) {
+            assertNotNull(cache.get(hot, null));
+        }
+
+        for (long id = 1; id <= 200; ++id) {
+            QueryResultCache.Key cold = new QueryResultCache.Key(fingerprint, new Object[] {id});
+            assertNull(cache.get(cold, null));
+            cache.put(cold, rows, cache.stamp(QUERY));
+        }
+        assertNotNull(cache.get(hot, null));
+        assertTrue(cache.getRejectCount() > 0);
+    }
+
+    @Test
+    void closingStatementReleasesSpilledResult() throws Exception {
+        File directory = Files.createTempDirectory("alien-spill").toFile();
+        directory.deleteOnExit();
+        AlienDataSource dataSource = new AlienDataSource();
+        dataSource.setName("cache-spill-close");
+        dataSource.setUrl(StubDriver.url("cache-spill-close"));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setMaxActive(4);
+        dataSource.setTestWhileIdle(false);
+        dataSource.setQueryCacheEnabled(true);
+        dataSource.setQueryCacheSqls(Arrays.asList(QUERY));
+        // 所有结果都放到映射文件里
+        dataSource.setQueryCacheMaxEntryBytes(1);
+        dataSource.setQueryCacheSpillDirectory(directory.getPath());
+        dataSource.setQueryCacheSpillMaxBytes(1 << 20);
+        dataSource.init();
+        dataSources.add(dataSource);
+
+        QueryResultCache cache = dataSource.getQueryResultCache();
+        QueryResultCache.Key key = new QueryResultCache.Key(cache.fingerprint(QUERY), new Object[] {1L});
+        try (Connection conn = dataSource.getConnection()) {
+            query(conn, 1);
+            assertEquals(1, cache.getSpillStore().getSize());
+
+            // 只关闭语句，不关闭ResultSet
+            PreparedStatement stmt = conn.prepareStatement(QUERY);
+            stmt.setLong(1, 1);
+            ResultSet rs = stmt.executeQuery();
+            assertTrue(rs instanceof MappedResultSet);
+            assertEquals(1, pins(cache, key));
+            stmt.close();
+            assertTrue(rs.isClosed());
+            assertEquals(0, pins(cache, key));
+
+            // 再次执行也会关闭上一次的结果
+            stmt = conn.prepareStatement(QUERY);
+            stmt.setLong(1, 1);
+            rs = stmt.executeQuery();
+            stmt.executeQuery();
+            assertTrue(rs.isClosed());
+            assertEquals(1, pins(cache, key));
+            stmt.close();
+            assertEquals(0, pins(cache, key));
+        }
+    }
+
+    private static int pins(final QueryResultCache cache, final QueryResultCache.Key key) {
+        MappedResultStore.Slot slot = cache.getSpillStore().pin(key);
+        cache.getSpillStore().unpin(slot);
+        return slot.pins;
+    }
+}
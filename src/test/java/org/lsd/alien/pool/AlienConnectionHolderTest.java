@@ -0,0 +1,127 @@
+package org.lsd.alien.pool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+
+/**
+ * 归还时按dirtyBits恢复会话属性，StubDriver.getCallCount统计发给驱动的调用
+ *
+ * @author nhsoft.lsd
+ */
+class AlienConnectionHolderTest {
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final AlienDataSource dataSource, final String name) throws SQLException {
+        this.dataSource = dataSource;
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setMaxActive(1);
+        dataSource.setPoolPreparedStatements(true);
+        dataSource.init();
+        return dataSource;
+    }
+
+    @Test
+    void onlyDirtyAttributesAreRestored() throws Exception {
+        dataSource(new AlienDataSource(), "reset-dirty");
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setReadOnly(true);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            // 改回默认值，不再算脏
+            conn.setCatalog("other");
+            conn.setCatalog("reset-dirty");
+        }
+
+        assertEquals(2, StubDriver.getCallCount("reset-dirty", "setReadOnly"));
+        assertEquals(2, StubDriver.getCallCount("reset-dirty", "setTransactionIsolation"));
+        assertEquals(2, StubDriver.getCallCount("reset-dirty", "setCatalog"));
+        assertEquals(0, StubDriver.getCallCount("reset-dirty", "setAutoCommit"));
+        assertEquals(0, StubDriver.getCallCount("reset-dirty", "rollback"));
+
+        // 没有修改过的连接归还时不发任何设置
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setReadOnly(false);
+        }
+        assertEquals(2, StubDriver.getCallCount("reset-dirty", "setReadOnly"));
+    }
+
+    @Test
+    void uncommittedTransactionIsRolledBack() throws Exception {
+        dataSource(new AlienDataSource(), "reset-rollback");
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("update t set a = 1");
+            }
+        }
+        assertEquals(1, StubDriver.getCallCount("reset-rollback", "rollback"));
+        assertEquals(2, StubDriver.getCallCount("reset-rollback", "setAutoCommit"));
+
+        // 提交过的事务不需要回滚
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("update t set a = 1");
+            }
+            conn.commit();
+        }
+        assertEquals(1, StubDriver.getCallCount("reset-rollback", "rollback"));
+    }
+
+    @Test
+    void resetSessionReappliesDefaultsAndClearsStatementPool() throws Exception {
+        dataSource(new AlienDataSource() {
+
+            @Override
+            protected boolean resetSession(final Connection conn) {
+                return true;
+            }
+        }, "reset-session");
+        dataSource.setResetConnectionOnRecycle(true);
+
+        PreparedStatementPool statementPool;
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            statementPool = conn.getHolder().getStatementPool();
+            conn.prepareStatement("select 1").close();
+            assertEquals(1, statementPool.size());
+        }
+
+        // 服务端的预编译语句已经释放，缓存的语句不能再用
+        assertEquals(0, statementPool.size());
+        assertEquals(0, dataSource.getPreparedStatementBudget().getCount());
+        assertEquals(1, StubDriver.getCallCount("reset-session", "setAutoCommit"));
+        assertEquals(1, StubDriver.getCallCount("reset-session", "setReadOnly"));
+        assertEquals(1, StubDriver.getCallCount("reset-session", "setTransactionIsolation"));
+        assertEquals(1, StubDriver.getCallCount("reset-session", "setCatalog"));
+    }
+
+    @Test
+    void statementPoolKeptWithoutReset() throws Exception {
+        dataSource(new AlienDataSource(), "reset-keep");
+
+        PreparedStatementPool statementPool;
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            statementPool = conn.getHolder().getStatementPool();
+            conn.prepareStatement("select 1").close();
+        }
+        assertEquals(1, statementPool.size());
+    }
+}
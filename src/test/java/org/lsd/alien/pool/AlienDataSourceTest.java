@@ -0,0 +1,281 @@
+package org.lsd.alien.pool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+
+/**
+ * 泄露检测和abandoned回收直接调用扫描方法，定时器的间隔设得很长，不会并发扫描
+ *
+ * @author nhsoft.lsd
+ */
+class AlienDataSourceTest {
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name) {
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setTimeBetweenLeakDetectionRunsMillis(TimeUnit.HOURS.toMillis(1));
+        return dataSource;
+    }
+
+    @Test
+    void leakReportedOncePerBorrow() throws Exception {
+        AlienDataSource dataSource = dataSource("leak");
+        dataSource.setLeakDetectionThresholdMillis(50);
+        dataSource.setLeakDetectionSampleRate(1.0D);
+        dataSource.init();
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        dataSource.detectLeaks();
+        assertEquals(0, dataSource.getLeakCount());
+
+        Thread.sleep(80);
+        dataSource.detectLeaks();
+        assertEquals(1, dataSource.getLeakCount());
+        dataSource.detectLeaks();
+        assertEquals(1, dataSource.getLeakCount());
+
+        // 同一个物理连接重新借出，按新的借出时间算
+        AlienConnectionHolder holder = conn.getHolder();
+        conn.close();
+        conn = dataSource.getConnection();
+        assertEquals(holder, conn.getHolder());
+        dataSource.detectLeaks();
+        assertEquals(1, dataSource.getLeakCount());
+
+        Thread.sleep(80);
+        dataSource.detectLeaks();
+        assertEquals(2, dataSource.getLeakCount());
+        conn.close();
+    }
+
+    @Test
+    void abandonedConnectionIsAborted() throws Exception {
+        AlienDataSource dataSource = dataSource("abandon");
+        dataSource.setRemoveAbandoned(true);
+        dataSource.setRemoveAbandonedTimeoutMillis(50);
+        dataSource.init();
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        dataSource.removeAbandoned();
+        assertEquals(0, dataSource.getRemoveAbandonedCount());
+
+        Thread.sleep(80);
+        dataSource.removeAbandoned();
+        assertEquals(1, dataSource.getRemoveAbandonedCount());
+        assertEquals(0, dataSource.getActiveCount());
+        assertTrue(conn.getHolder().isAbandoned());
+        assertThrows(SQLException.class, conn::createStatement);
+        conn.close();
+
+        // 名额已经收回，可以借出新的连接
+        try (AlienPooledConnection other = dataSource.getConnection()) {
+            assertFalse(other.getHolder().isAbandoned());
+        }
+    }
+
+    @Test
+    void reborrowedOrActiveConnectionIsNotAbandoned() throws Exception {
+        AlienDataSource dataSource = dataSource("abandon-reborrow");
+        dataSource.setRemoveAbandoned(true);
+        dataSource.setRemoveAbandonedTimeoutMillis(50);
+        dataSource.init();
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        AlienConnectionHolder holder = conn.getHolder();
+        Thread.sleep(80);
+        // 扫描时看到的借出时间
+        long borrowTimeMillis = holder.borrowTimeMillis;
+
+        // 扫描线程在锁外检查期间，连接归还后又被借出
+        conn.close();
+        Thread.sleep(5);
+        conn = dataSource.getConnection();
+        assertEquals(holder, conn.getHolder());
+        assertFalse(dataSource.markAbandoned(holder, borrowTimeMillis, 50, System.currentTimeMillis()));
+
+        // 借出时间没变，但是刚执行过语句
+        Thread.sleep(80);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("select 1");
+        }
+        assertFalse(dataSource.markAbandoned(holder, holder.borrowTimeMillis, 50, System.currentTimeMillis()));
+
+        assertFalse(holder.isAbandoned());
+        assertEquals(1, dataSource.getActiveCount());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("select 1");
+        }
+        conn.close();
+        assertEquals(0, dataSource.getRemoveAbandonedCount());
+    }
+
+    @Test
+    void recycleReleasesActiveSlotAndCreatorRespectsMaxActive() throws Exception {
+        AlienDataSource dataSource = dataSource("max-active");
+        dataSource.setMaxActive(2);
+        dataSource.init();
+
+        for (int i = 0; i < 20; ++i) {
+            AlienPooledConnection first = dataSource.getConnection();
+            AlienPooledConnection second = dataSource.getConnection();
+            assertEquals(2, dataSource.getActiveCount());
+            first.close();
+            assertEquals(1, dataSource.getActiveCount());
+            second.close();
+            assertEquals(0, dataSource.getActiveCount());
+        }
+
+        // 借出的连接也算在maxActive里，创建线程不会多建
+        Thread.sleep(50);
+        assertEquals(2, dataSource.getCreateCount());
+        assertEquals(2, dataSource.getPoolingCount());
+        assertEquals(0, dataSource.getDiscardCount());
+    }
+
+    @Test
+    void borrowTimesOutAfterMaxWait() throws Exception {
+        AlienDataSource dataSource = dataSource("max-wait");
+        dataSource.setMaxActive(1);
+        dataSource.setMaxWait(100);
+        dataSource.init();
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            long startNanos = System.nanoTime();
+            assertThrows(GetConnectionTimeoutException.class, dataSource::getConnection);
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            assertTrue(waitMillis >= 90, "waited " + waitMillis);
+            assertTrue(waitMillis < 1000, "waited " + waitMillis);
+            assertEquals(1, dataSource.getBorrowTimeoutCount());
+        }
+
+        // 归还以后可以借出
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            assertEquals(1, dataSource.getActiveCount());
+        }
+    }
+
+    @Test
+    void failedTestOnReturnClosesPhysicalConnection() throws Exception {
+        AlienDataSource dataSource = dataSource("test-on-return");
+        dataSource.setMaxActive(1);
+        dataSource.setTestOnReturn(true);
+        dataSource.setValidationQuery("select 1");
+        dataSource.init();
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        AlienConnectionHolder holder = conn.getHolder();
+        StubDriver.setDown("test-on-return", true);
+        try {
+            conn.close();
+        } finally {
+            StubDriver.setDown("test-on-return", false);
+        }
+
+        assertTrue(holder.conn.isClosed());
+        assertEquals(1, dataSource.getDiscardCount());
+        assertEquals(0, dataSource.getActiveCount());
+        assertEquals(0, dataSource.getPoolingCount());
+    }
+
+    @Test
+    void discardConnectionIsIdempotent() throws Exception {
+        AlienDataSource dataSource = dataSource("discard-twice");
+        dataSource.setMaxActive(2);
+        dataSource.init();
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        AlienPooledConnection other = dataSource.getConnection();
+        AlienConnectionHolder holder = conn.getHolder();
+        dataSource.discardConnection(holder);
+        dataSource.discardConnection(holder);
+        assertEquals(1, dataSource.getDiscardCount());
+        assertEquals(1, dataSource.getActiveCount());
+
+        // 归还被丢弃的连接也不会重复扣减
+        conn.close();
+        assertEquals(1, dataSource.getDiscardCount());
+        assertEquals(1, dataSource.getActiveCount());
+        other.close();
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void closeClosesIdleAndReturnedConnections() throws Exception {
+        AlienDataSource dataSource = dataSource("pool-close");
+        dataSource.setMaxActive(2);
+        dataSource.init();
+
+        AlienPooledConnection idle = dataSource.getConnection();
+        AlienPooledConnection busy = dataSource.getConnection();
+        AlienConnectionHolder idleHolder = idle.getHolder();
+        AlienConnectionHolder busyHolder = busy.getHolder();
+        idle.close();
+        assertEquals(1, dataSource.getActiveCount());
+
+        dataSource.close();
+        assertEquals(0, dataSource.getPoolingCount());
+        assertTrue(idleHolder.conn.isClosed());
+        assertFalse(busyHolder.conn.isClosed());
+        assertThrows(SQLException.class, dataSource::getConnection);
+
+        busy.close();
+        assertTrue(busyHolder.conn.isClosed());
+        assertEquals(0, dataSource.getActiveCount());
+        // 再关一次什么都不做
+        dataSource.close();
+        assertEquals(2, dataSource.getDestroyCount());
+    }
+
+    @Test
+    void connectionCreatedDuringDrainIsDiscarded() throws Exception {
+        final boolean[] drained = {false};
+        dataSource = new AlienDataSource() {
+            @Override
+            protected Connection connect(final Properties properties) throws SQLException {
+                // 建连期间切换了地址，这个连接连的可能是旧库
+                if (!drained[0]) {
+                    drained[0] = true;
+                    drainConnections();
+                }
+                return super.connect(properties);
+            }
+        };
+        dataSource.setName("drain-during-connect");
+        dataSource.setUrl(StubDriver.url("drain-during-connect"));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setMaxActive(1);
+        dataSource.setInitialSize(1);
+        dataSource.init();
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        AlienConnectionHolder holder = conn.getHolder();
+        assertEquals(dataSource.getConnectEpoch() - 1, holder.getConnectEpoch());
+        conn.close();
+        assertTrue(holder.conn.isClosed());
+        assertEquals(1, dataSource.getDiscardCount());
+    }
+}
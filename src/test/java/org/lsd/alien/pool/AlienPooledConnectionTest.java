@@ -0,0 +1,254 @@
+package org.lsd.alien.pool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+
+/**
+ * @author nhsoft.lsd
+ */
+class AlienPooledConnectionTest {
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource lazyDataSource(final String name) throws SQLException {
+        return dataSource(name, false);
+    }
+
+    private AlienDataSource dataSource(final String name, final boolean transactionPooling) throws SQLException {
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setMaxActive(2);
+        dataSource.setLazyConnectionBinding(true);
+        dataSource.setTransactionPooling(transactionPooling);
+        dataSource.init();
+        return dataSource;
+    }
+
+    @Test
+    void pendingSettingsAreReplayedOnFirstStatement() throws Exception {
+        AlienDataSource dataSource = lazyDataSource("lazy-replay");
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            conn.setReadOnly(true);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            assertFalse(conn.isBound());
+            assertFalse(conn.getAutoCommit());
+            assertTrue(conn.isReadOnly());
+            assertEquals(Connection.TRANSACTION_READ_COMMITTED, conn.getTransactionIsolation());
+            assertEquals(0, dataSource.getActiveCount());
+            assertEquals(0, StubDriver.getCallCount("lazy-replay", "setAutoCommit"));
+
+            try (Statement stmt = conn.createStatement()) {
+                assertTrue(conn.isBound());
+                assertEquals(1, dataSource.getActiveCount());
+                stmt.executeUpdate("update t set a = 1");
+            }
+            assertEquals(1, StubDriver.getCallCount("lazy-replay", "setAutoCommit"));
+            assertEquals(1, StubDriver.getCallCount("lazy-replay", "setReadOnly"));
+            assertEquals(1, StubDriver.getCallCount("lazy-replay", "setTransactionIsolation"));
+            assertTrue(conn.isReadOnly());
+            conn.commit();
+        }
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void unboundConnectionNeverBorrows() throws Exception {
+        AlienDataSource dataSource = lazyDataSource("lazy-unbound");
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        conn.setAutoCommit(false);
+        conn.commit();
+        conn.rollback();
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(0, dataSource.getBorrowCount());
+        assertThrows(SQLException.class, conn::createStatement);
+    }
+
+    @Test
+    void rollbackToSavepointBindsFirst() throws Exception {
+        AlienDataSource dataSource = lazyDataSource("lazy-savepoint");
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            conn.rollback(null);
+            assertTrue(conn.isBound());
+        }
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        conn.close();
+        assertThrows(SQLException.class, () -> conn.rollback(null));
+    }
+
+    @Test
+    void abortDiscardsBoundConnection() throws Exception {
+        AlienDataSource dataSource = lazyDataSource("lazy-abort");
+
+        AlienPooledConnection conn = dataSource.getConnection();
+        conn.createStatement().close();
+        AlienConnectionHolder holder = conn.getHolder();
+        conn.abort(Runnable::run);
+
+        assertTrue(conn.isClosed());
+        assertEquals(0, dataSource.getActiveCount());
+        assertEquals(1, dataSource.getDiscardCount());
+        assertEquals(1, StubDriver.getCallCount("lazy-abort", "abort"));
+
+        // abort以后close不会把物理连接还给连接池
+        long recycleCount = dataSource.getRecycleCount();
+        conn.close();
+        assertEquals(recycleCount, dataSource.getRecycleCount());
+        assertTrue(holder.discard);
+
+        try (AlienPooledConnection other = dataSource.getConnection()) {
+            other.createStatement().close();
+            assertNotSame(holder, other.getHolder());
+        }
+    }
+
+    @Test
+    void transactionPoolingReleasesAndRebinds() throws Exception {
+        AlienDataSource dataSource = dataSource("pooling-rebind", true);
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("select 1");
+                assertTrue(conn.isBound());
+            }
+            // 语句关闭后物理连接已经还给连接池
+            assertFalse(conn.isBound());
+            assertEquals(0, dataSource.getActiveCount());
+            assertEquals(1, dataSource.getRecycleCount());
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("select 1");
+                assertTrue(conn.isBound());
+                assertEquals(1, dataSource.getActiveCount());
+            }
+            assertFalse(conn.isBound());
+        }
+        assertEquals(2, dataSource.getBorrowCount());
+        assertEquals(2, dataSource.getRecycleCount());
+    }
+
+    @Test
+    void transactionPoolingKeepsConnectionWhileStatementOpen() throws Exception {
+        AlienDataSource dataSource = dataSource("pooling-statement", true);
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            Statement first = conn.createStatement();
+            Statement second = conn.createStatement();
+            AlienConnectionHolder holder = conn.getHolder();
+            first.execute("select 1");
+            first.close();
+            assertTrue(conn.isBound());
+            assertEquals(holder, conn.getHolder());
+
+            second.execute("select 1");
+            second.close();
+            assertFalse(conn.isBound());
+        }
+        assertEquals(1, dataSource.getBorrowCount());
+    }
+
+    @Test
+    void transactionPoolingKeepsConnectionInTransaction() throws Exception {
+        AlienDataSource dataSource = dataSource("pooling-transaction", true);
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("update t set a = 1");
+            }
+            AlienConnectionHolder holder = conn.getHolder();
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("update t set a = 2");
+            }
+            assertTrue(conn.isBound());
+            assertEquals(holder, conn.getHolder());
+            conn.commit();
+            assertTrue(conn.isBound());
+
+            // 事务结束，autoCommit恢复默认值以后才释放
+            conn.setAutoCommit(true);
+            assertFalse(conn.isBound());
+            assertEquals(0, dataSource.getActiveCount());
+        }
+        assertEquals(1, dataSource.getBorrowCount());
+    }
+
+    @Test
+    void transactionPoolingPinsAfterPrepareCall() throws Exception {
+        AlienDataSource dataSource = dataSource("pooling-call", true);
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            CallableStatement call = conn.prepareCall("{call p()}");
+            AlienConnectionHolder holder = conn.getHolder();
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("select 1");
+            }
+            // CallableStatement还在用这个物理连接，不能还给连接池
+            assertTrue(conn.isBound());
+            conn.setAutoCommit(false);
+            conn.setAutoCommit(true);
+            assertEquals(holder, conn.getHolder());
+            assertEquals(1, dataSource.getActiveCount());
+            call.close();
+        }
+        assertEquals(0, dataSource.getActiveCount());
+        assertEquals(1, dataSource.getBorrowCount());
+    }
+
+    @Test
+    void transactionPoolingPinsAfterGetConnection() throws Exception {
+        AlienDataSource dataSource = dataSource("pooling-raw", true);
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            Connection raw = conn.getConnection();
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("select 1");
+            }
+            assertTrue(conn.isBound());
+            assertEquals(raw, conn.getHolder().getConn());
+        }
+        assertEquals(0, dataSource.getActiveCount());
+        assertEquals(1, dataSource.getBorrowCount());
+    }
+
+    @Test
+    void transactionPoolingPinsAfterUnwrap() throws Exception {
+        AlienDataSource dataSource = dataSource("pooling-unwrap", true);
+
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            conn.unwrap(Connection.class);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("select 1");
+            }
+            assertTrue(conn.isBound());
+        }
+        assertEquals(0, dataSource.getActiveCount());
+        assertEquals(1, dataSource.getBorrowCount());
+    }
+}
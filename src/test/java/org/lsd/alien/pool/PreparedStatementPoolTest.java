@@ -0,0 +1,113 @@
+package org.lsd.alien.pool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+
+/**
+ * @author nhsoft.lsd
+ */
+class PreparedStatementPoolTest {
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    @Test
+    void idleConnectionStatementsEvictedByBudgetAreClosedByDestroyThread() throws SQLException {
+        dataSource = new AlienDataSource();
+        dataSource.setName("ps-budget");
+        dataSource.setUrl(StubDriver.url("ps-budget"));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setMaxActive(2);
+        dataSource.setPoolPreparedStatements(true);
+        dataSource.setMaxPoolPreparedStatementCount(2);
+        dataSource.init();
+
+        AlienPooledConnection idle = dataSource.getConnection();
+        Connection busy = dataSource.getConnection();
+        PreparedStatementPool idlePool = idle.getHolder().getStatementPool();
+
+        idle.prepareStatement("select 1").close();
+        idle.prepareStatement("select 2").close();
+        idle.close();
+        assertEquals(2, idlePool.size());
+
+        // 超出全局预算，驱逐的是空闲连接上的两个语句，只打了标记
+        PreparedStatement stmt = busy.prepareStatement("select 3");
+        assertEquals(2, idlePool.getPendingEvictCount());
+        assertEquals(2, idlePool.size());
+
+        dataSource.purgeIdleStatementPools();
+        assertEquals(0, idlePool.getPendingEvictCount());
+        assertEquals(0, idlePool.size());
+        assertEquals(1, dataSource.getPreparedStatementBudget().getCount());
+
+        stmt.close();
+        busy.close();
+    }
+
+    @Test
+    void purgedStatementsAreClosedOutsidePoolLock() throws SQLException {
+        dataSource = new AlienDataSource();
+        dataSource.setName("ps-purge-lock");
+        dataSource.setUrl(StubDriver.url("ps-purge-lock"));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setMaxActive(2);
+        dataSource.setPoolPreparedStatements(true);
+        dataSource.setMaxPoolPreparedStatementCount(1);
+        dataSource.init();
+
+        AlienPooledConnection idle = dataSource.getConnection();
+        Connection busy = dataSource.getConnection();
+        idle.prepareStatement("select 1").close();
+        idle.close();
+        PreparedStatement stmt = busy.prepareStatement("select 2");
+
+        // 关闭语句的时候另一个线程要能借到连接，说明没有拿着池子的锁
+        AtomicInteger closes = new AtomicInteger();
+        AtomicBoolean borrowedWhileClosing = new AtomicBoolean();
+        StubDriver.setStatementCloseHook("ps-purge-lock", () -> {
+            closes.incrementAndGet();
+            AtomicBoolean borrowed = new AtomicBoolean();
+            Thread borrower = new Thread(() -> {
+                try (Connection conn = dataSource.getConnection(1000)) {
+                    borrowed.set(true);
+                } catch (SQLException ignored) {
+                }
+            });
+            borrower.start();
+            try {
+                borrower.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            borrowedWhileClosing.set(borrowed.get());
+        });
+        try {
+            dataSource.purgeIdleStatementPools();
+        } finally {
+            StubDriver.setStatementCloseHook("ps-purge-lock", null);
+        }
+        assertEquals(1, closes.get());
+        assertTrue(borrowedWhileClosing.get());
+
+        stmt.close();
+        busy.close();
+    }
+}
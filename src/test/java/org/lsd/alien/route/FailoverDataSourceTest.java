@@ -0,0 +1,152 @@
+package org.lsd.alien.route;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+
+/**
+ * 用StubDriver.setDown模拟主地址宕机和恢复
+ *
+ * @author nhsoft.lsd
+ */
+class FailoverDataSourceTest {
+
+    private FailoverDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private FailoverDataSource create(final String primary, final String secondary) throws Exception {
+        StubDriver.setDown(primary, false);
+        StubDriver.setDown(secondary, false);
+
+        dataSource = new FailoverDataSource();
+        dataSource.setUrls(Arrays.asList(StubDriver.url(primary), StubDriver.url(secondary)));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setInitialSize(3);
+        dataSource.setMaxActive(4);
+        dataSource.setMaxWait(3000);
+        dataSource.setTestOnBorrow(true);
+        dataSource.setValidationQuery("select 1");
+        dataSource.setTimeBetweenConnectErrorMillis(50);
+        dataSource.init();
+        return dataSource;
+    }
+
+    private static String borrowCatalog(final FailoverDataSource dataSource) throws Exception {
+        try (Connection conn = dataSource.getConnection()) {
+            return conn.getCatalog();
+        }
+    }
+
+    @Test
+    void failsOverAndDrainsOldHost() throws Exception {
+        FailoverDataSource dataSource = create("failover-p", "failover-s");
+        assertEquals("failover-p", borrowCatalog(dataSource));
+
+        StubDriver.setDown("failover-p", true);
+        assertEquals("failover-s", borrowCatalog(dataSource));
+        assertEquals(StubDriver.url("failover-s"), dataSource.getCurrentUrl());
+        assertEquals(1, dataSource.getFailoverCount());
+        assertTrue(dataSource.getHosts()[0].getScore() < dataSource.getFailoverScore());
+
+        // 旧地址的空闲连接已经一次性关掉，之后借到的都是新地址的连接
+        Connection[] conns = new Connection[4];
+        for (int i = 0; i < conns.length; ++i) {
+            conns[i] = dataSource.getConnection();
+            assertEquals("failover-s", conns[i].getCatalog());
+        }
+        for (Connection conn : conns) {
+            conn.close();
+        }
+        assertEquals(1, dataSource.getFailoverCount());
+    }
+
+    @Test
+    void failsBackOncePrimaryIsHealthy() throws Exception {
+        FailoverDataSource dataSource = create("failback-p", "failback-s");
+
+        StubDriver.setDown("failback-p", true);
+        Connection held = dataSource.getConnection();
+        assertEquals("failback-s", held.getCatalog());
+
+        // 主地址还没恢复，探测不会切回去
+        dataSource.checkHealth();
+        assertEquals(StubDriver.url("failback-s"), dataSource.getCurrentUrl());
+
+        StubDriver.setDown("failback-p", false);
+        for (int i = 0; i < 10 && dataSource.getCurrentUrl().equals(StubDriver.url("failback-s")); ++i) {
+            dataSource.checkHealth();
+        }
+        assertEquals(StubDriver.url("failback-p"), dataSource.getCurrentUrl());
+        assertTrue(dataSource.getHosts()[0].getScore() >= dataSource.getFailbackScore());
+
+        // 切换前借出的连接归还时关闭，不会回到池里
+        long discardCount = dataSource.getDiscardCount();
+        held.close();
+        assertEquals(discardCount + 1, dataSource.getDiscardCount());
+        assertEquals("failback-p", borrowCatalog(dataSource));
+    }
+
+    @Test
+    void backsOffWhenAllHostsAreDown() throws Exception {
+        FailoverDataSource dataSource = create("down-p", "down-s");
+        long createErrorCount = dataSource.getCreateErrorCount();
+
+        StubDriver.setDown("down-p", true);
+        StubDriver.setDown("down-s", true);
+        dataSource.drainConnections();
+        Thread.sleep(500);
+
+        // 每轮把两个地址各试一次，然后等50ms
+        assertTrue(dataSource.getCreateErrorCount() - createErrorCount <= 500 / 50 + 1);
+
+        StubDriver.setDown("down-s", false);
+        assertEquals("down-s", borrowCatalog(dataSource));
+    }
+
+    @Test
+    void triesOneOtherHostPerConnect() throws Exception {
+        StubDriver.setDown("one-p", false);
+        StubDriver.setDown("one-s", false);
+        StubDriver.setDown("one-t", false);
+        dataSource = new FailoverDataSource();
+        dataSource.setUrls(Arrays.asList(StubDriver.url("one-p"), StubDriver.url("one-s"), StubDriver.url("one-t")));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        // 连接池已满，创建线程不会并发建连
+        dataSource.setInitialSize(2);
+        dataSource.setMaxActive(2);
+        dataSource.init();
+        Properties properties = new Properties();
+
+        StubDriver.setDown("one-p", true);
+        StubDriver.setDown("one-s", true);
+        // 当前地址的分数还没低于failoverScore，不试其他地址
+        assertThrows(SQLException.class, () -> dataSource.connect(properties));
+        assertEquals(1D, dataSource.getHosts()[1].getScore());
+
+        // 只试分数最高的一个其他地址，t留给下一次
+        assertThrows(SQLException.class, () -> dataSource.connect(properties));
+        assertTrue(dataSource.getHosts()[1].getScore() < 1D);
+        assertEquals(1D, dataSource.getHosts()[2].getScore());
+        assertEquals(StubDriver.url("one-p"), dataSource.getCurrentUrl());
+
+        try (Connection conn = dataSource.connect(properties)) {
+            assertEquals("one-t", conn.getCatalog());
+        }
+        assertEquals(StubDriver.url("one-t"), dataSource.getCurrentUrl());
+        assertEquals(1, dataSource.getFailoverCount());
+    }
+}
@@ -0,0 +1,216 @@
+package org.lsd.alien.route;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * 用StubDriver模拟耗时和复制延迟不同的从库
+ *
+ * @author nhsoft.lsd
+ */
+class ReplicaBalancerTest {
+
+    private final List<AlienDataSource> dataSources = new ArrayList<AlienDataSource>();
+
+    @AfterEach
+    void close() {
+        for (AlienDataSource dataSource : dataSources) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource replica(final String name, final long latencyMillis) throws SQLException {
+        StubDriver.setLatencyMillis(name, latencyMillis);
+        StubDriver.setLagMillis(name, 0);
+
+        AlienDataSource dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setMaxActive(4);
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+        dataSources.add(dataSource);
+        return dataSource;
+    }
+
+    private static void query(final AlienDataSource dataSource, final int count) throws SQLException {
+        for (int i = 0; i < count; ++i) {
+            try (Connection conn = dataSource.getConnection();
+                 Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("select 1")) {
+                while (rs.next()) {
+                    // drain
+                }
+            }
+        }
+    }
+
+    @Test
+    void prefersFewerOutstandingBorrows() throws Exception {
+        AlienDataSource a = replica("outstanding-a", 0);
+        AlienDataSource b = replica("outstanding-b", 0);
+        ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList(a, b));
+
+        try (Connection held1 = a.getConnection(); Connection held2 = a.getConnection()) {
+            for (int i = 0; i < 10; ++i) {
+                assertSame(b, balancer.select());
+            }
+        }
+    }
+
+    @Test
+    void slowReplicaGetsLowerWeight() throws Exception {
+        AlienDataSource fast = replica("latency-fast", 1);
+        AlienDataSource slow = replica("latency-slow", 20);
+        // 第一次执行有类加载的开销，不计入
+        query(fast, 1);
+        query(slow, 1);
+        ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList(fast, slow));
+
+        query(fast, 5);
+        query(slow, 5);
+        balancer.probe();
+
+        ReplicaBalancer.Replica[] replicas = balancer.getReplicas();
+        assertTrue(replicas[0].getLatencyMillis() < replicas[1].getLatencyMillis());
+
+        // 两个都空闲时选快的；快的借出两个以后分数仍然低于慢的
+        assertSame(fast, balancer.select());
+        try (Connection held1 = fast.getConnection(); Connection held2 = fast.getConnection()) {
+            assertSame(fast, balancer.select());
+        }
+    }
+
+    @Test
+    void laggingReplicaLeavesAndRejoinsRotation() throws Exception {
+        AlienDataSource a = replica("lag-a", 0);
+        AlienDataSource b = replica("lag-b", 0);
+        ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList(a, b));
+        balancer.setLagProbe(new HeartbeatLagProbe("select ts from heartbeat"));
+        balancer.setMaxLagMillis(1000);
+
+        StubDriver.setLagMillis("lag-b", 10000);
+        balancer.probe();
+        assertTrue(balancer.getReplicas()[0].isAvailable());
+        assertFalse(balancer.getReplicas()[1].isAvailable());
+        for (int i = 0; i < 10; ++i) {
+            assertSame(a, balancer.select());
+        }
+
+        StubDriver.setLagMillis("lag-b", 0);
+        balancer.probe();
+        assertTrue(balancer.getReplicas()[1].isAvailable());
+    }
+
+    @Test
+    void saturatedReplicaKeepsPreviousState() throws Exception {
+        AlienDataSource a = replica("busy-a", 0);
+        ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList(a));
+        balancer.setLagProbe(new HeartbeatLagProbe("select ts from heartbeat"));
+        balancer.setMaxLagMillis(1000);
+        balancer.setProbeMaxWaitMillis(10);
+        balancer.probe();
+        // 心跳的时间和探测的时间之间可能跨了一毫秒
+        long lagMillis = balancer.getReplicas()[0].getLagMillis();
+        assertTrue(balancer.getReplicas()[0].isAvailable());
+        assertTrue(lagMillis < 1000);
+
+        // 连接都被借走时探测借不到连接，不算延迟过大
+        List<Connection> held = new ArrayList<Connection>();
+        try {
+            for (int i = 0; i < a.getMaxActive(); ++i) {
+                held.add(a.getConnection());
+            }
+            StubDriver.setLagMillis("busy-a", 10000);
+            balancer.probe();
+            assertTrue(balancer.getReplicas()[0].isAvailable());
+            assertEquals(lagMillis, balancer.getReplicas()[0].getLagMillis());
+        } finally {
+            for (Connection conn : held) {
+                conn.close();
+            }
+        }
+
+        balancer.probe();
+        assertFalse(balancer.getReplicas()[0].isAvailable());
+    }
+
+    @Test
+    void routesReadOnlyConnectionsAwayFromLaggingReplica() throws Exception {
+        AlienDataSource master = replica("route-master", 0);
+        AlienDataSource a = replica("route-a", 0);
+        AlienDataSource b = replica("route-b", 0);
+        ReadWriteRoutingDataSource routing = new ReadWriteRoutingDataSource(master, Arrays.asList(a, b));
+        routing.getReplicaBalancer().setLagProbe(new HeartbeatLagProbe("select ts from heartbeat"));
+        routing.getReplicaBalancer().setMaxLagMillis(1000);
+
+        StubDriver.setLagMillis("route-a", 10000);
+        routing.getReplicaBalancer().probe();
+
+        long masterBorrows = master.getBorrowCount();
+        long replicaBorrows = b.getBorrowCount();
+        for (int i = 0; i < 5; ++i) {
+            try (Connection conn = routing.getConnection()) {
+                conn.setReadOnly(true);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeQuery("select 1").close();
+                }
+            }
+        }
+        try (Connection conn = routing.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("update t set a = 1");
+        }
+
+        assertEquals(replicaBorrows + 5, b.getBorrowCount());
+        assertEquals(masterBorrows + 1, master.getBorrowCount());
+    }
+
+    @Test
+    void onlyWritesStartReadYourWritesWindow() throws Exception {
+        AlienDataSource master = replica("ryw-master", 0);
+        AlienDataSource replica = replica("ryw-replica", 0);
+        ReadWriteRoutingDataSource routing = new ReadWriteRoutingDataSource(master, Arrays.asList(replica));
+        routing.setReadYourWritesMillis(60000);
+
+        // 读写连接上只查询，不影响之后的只读连接
+        try (Connection conn = routing.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeQuery("select 1").close();
+        }
+        long replicaBorrows = replica.getBorrowCount();
+        try (Connection conn = routing.getConnection()) {
+            conn.setReadOnly(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeQuery("select 1").close();
+            }
+        }
+        assertEquals(replicaBorrows + 1, replica.getBorrowCount());
+
+        try (Connection conn = routing.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("update t set a = 1");
+        }
+        long masterBorrows = master.getBorrowCount();
+        try (Connection conn = routing.getConnection()) {
+            conn.setReadOnly(true);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeQuery("select 1").close();
+            }
+        }
+        assertEquals(masterBorrows + 1, master.getBorrowCount());
+        assertEquals(replicaBorrows + 1, replica.getBorrowCount());
+    }
+}
@@ -0,0 +1,152 @@
+package org.lsd.alien.route;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class ShardingDataSourceTest {
+
+    private static final int KEY_COUNT = 100000;
+
+    private static List<AlienDataSource> pools(final String prefix, final int count) {
+        List<AlienDataSource> pools = new ArrayList<AlienDataSource>();
+        for (int i = 0; i < count; ++i) {
+            AlienDataSource dataSource = new AlienDataSource();
+            dataSource.setName(prefix + i);
+            dataSource.setUrl(StubDriver.url(prefix + i));
+            dataSource.setDriverClassName(StubDriver.class.getName());
+            dataSource.setTestWhileIdle(false);
+            pools.add(dataSource);
+        }
+        return pools;
+    }
+
+    @Test
+    void jumpConsistentHashMovesOnlyToNewBucket() {
+        int moved = 0;
+        for (long key = 0; key < KEY_COUNT; ++key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int before = ShardingDataSource.jumpConsistentHash(hash, 4);
+            int after = ShardingDataSource.jumpConsistentHash(hash, 5);
+            if (before != after) {
+                assertEquals(4, after);
+                moved++;
+            }
+        }
+        // 期望1/5
+        assertTrue(Math.abs(moved - KEY_COUNT / 5) < KEY_COUNT / 50, "moved " + moved);
+    }
+
+    @Test
+    void routesKeysEvenlyAndStably() {
+        ShardingDataSource sharding = new ShardingDataSource(pools("even-", 4));
+        AlienDataSource[] shards = sharding.getShards();
+
+        int[] counts = new int[shards.length];
+        for (long merchantId = 1; merchantId <= KEY_COUNT; ++merchantId) {
+            AlienDataSource shard = sharding.getShard(merchantId);
+            assertSame(shard, sharding.getShard(BigInteger.valueOf(merchantId)));
+            counts[Arrays.asList(shards).indexOf(shard)]++;
+        }
+        for (int count : counts) {
+            assertTrue(Math.abs(count - KEY_COUNT / 4) < KEY_COUNT / 20, Arrays.toString(counts));
+        }
+    }
+
+    @Test
+    void addingShardKeepsMostKeys() throws SQLException {
+        ShardingDataSource sharding = new ShardingDataSource(pools("add-", 4));
+        AlienDataSource[] before = new AlienDataSource[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; ++i) {
+            before[i] = sharding.getShard(i);
+        }
+
+        AlienDataSource added = pools("added-", 1).get(0);
+        assertEquals(4, sharding.addShard(added));
+
+        int moved = 0;
+        for (int i = 0; i < KEY_COUNT; ++i) {
+            AlienDataSource after = sharding.getShard(i);
+            if (after != before[i]) {
+                assertSame(added, after);
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - KEY_COUNT / 5) < KEY_COUNT / 20, "moved " + moved);
+    }
+
+    @Test
+    void customMappingMovesSingleVirtualShard() throws SQLException {
+        ShardingDataSource sharding = new ShardingDataSource(pools("custom-", 2), 16);
+        int[] mapping = new int[16];
+        sharding.setVirtualShardMapping(mapping);
+
+        // 新池子在映射表改之前没有流量
+        AlienDataSource added = pools("custom-added-", 1).get(0);
+        sharding.addShard(added);
+        assertSame(sharding.getShards()[0], sharding.getShard(42L));
+
+        int virtualShard = sharding.virtualShardOf(42L);
+        mapping[virtualShard] = 2;
+        sharding.setVirtualShardMapping(mapping);
+        assertSame(added, sharding.getShard(42L));
+
+        mapping[0] = 3;
+        assertThrows(IllegalArgumentException.class, () -> sharding.setVirtualShardMapping(mapping));
+    }
+
+    @Test
+    void getConnectionRoutesToShard() throws SQLException {
+        ShardingDataSource sharding = new ShardingDataSource(pools("conn-", 3));
+        sharding.init();
+        try {
+            BigInteger merchantId = BigInteger.valueOf(4344L);
+            AlienDataSource shard = sharding.getShard(merchantId);
+            try (Connection conn = sharding.getConnection(merchantId)) {
+                assertEquals(shard.getName(), conn.getCatalog());
+            }
+            assertEquals(1, shard.getBorrowCount());
+            assertThrows(SQLException.class, sharding::getConnection);
+        } finally {
+            sharding.close();
+        }
+    }
+
+    @Test
+    void addedShardIsReadyOnRunningInstance() throws SQLException {
+        ShardingDataSource sharding = new ShardingDataSource(pools("running-", 2));
+        sharding.init();
+        AlienDataSource added = pools("running-added-", 1).get(0);
+        try {
+            added.setMaxWait(1000);
+            sharding.addShard(added);
+
+            long merchantId = 1;
+            while (sharding.getShard(merchantId) != added) {
+                merchantId++;
+            }
+            // 新连接池已经有创建线程，不会等到maxWait超时
+            try (Connection conn = sharding.getConnection(merchantId)) {
+                assertEquals(added.getName(), conn.getCatalog());
+            }
+            assertEquals(1, added.getBorrowCount());
+        } finally {
+            sharding.close();
+        }
+        assertTrue(added.isClosed());
+    }
+}
@@ -0,0 +1,112 @@
+package org.lsd.alien.stat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author nhsoft.lsd
+ */
+class JdbcSqlStatTableTest {
+
+    @Test
+    void concurrentGetOrCreateSharesOneStat() throws Exception {
+        for (int round = 0; round < 100; ++round) {
+            JdbcSqlStatTable table = new JdbcSqlStatTable(16);
+            JdbcSqlStat[] stats = new JdbcSqlStat[8];
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[stats.length];
+            for (int i = 0; i < threads.length; ++i) {
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    stats[index] = table.getOrCreate(42L, "select 1");
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            for (JdbcSqlStat stat : stats) {
+                assertSame(stats[0], stat);
+            }
+            assertEquals(1, table.getStats().size());
+        }
+    }
+
+    @Test
+    void readerWaitsUntilClaimedSlotIsPublished() throws Exception {
+        JdbcSqlStatTable table = new JdbcSqlStatTable(16);
+        AtomicLongArray keys = field(table, "keys");
+        AtomicReferenceArray<JdbcSqlStat> values = field(table, "values");
+
+        // 模拟另一个线程刚抢到槽位，还没写入value
+        keys.set(7, 7L);
+        AtomicReference<JdbcSqlStat> found = new AtomicReference<JdbcSqlStat>();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            found.set(table.getOrCreate(7L, "select 7"));
+            done.countDown();
+        });
+        reader.setDaemon(true);
+        reader.start();
+
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        JdbcSqlStat stat = new JdbcSqlStat(7L, "select 7");
+        values.set(7, stat);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertSame(stat, found.get());
+        assertSame(stat, table.get(7L));
+    }
+
+    @Test
+    void newSqlGoesToOverflowOnceFull() {
+        JdbcSqlStatTable table = new JdbcSqlStatTable(16);
+        JdbcSqlStat[] stats = new JdbcSqlStat[table.getCapacity()];
+        for (int i = 0; i < stats.length; ++i) {
+            stats[i] = table.getOrCreate(100 + i, "select " + i);
+            assertNotSame(table.getOverflow(), stats[i]);
+        }
+
+        JdbcSqlStat overflow = table.getOrCreate(1000, "select 1000");
+        assertSame(table.getOverflow(), overflow);
+        assertSame(overflow, table.getOrCreate(1001, "select 1001"));
+        assertEquals(2, table.getOverflowSqlCount());
+        assertNull(table.get(1000));
+
+        // 已有的SQL照常找到，不算overflow
+        for (int i = 0; i < stats.length; ++i) {
+            assertSame(stats[i], table.getOrCreate(100 + i, "select " + i));
+        }
+        assertEquals(2, table.getOverflowSqlCount());
+
+        // overflow有执行记录以后才出现在统计列表里
+        assertEquals(stats.length, table.getStats().size());
+        overflow.recordExecute(1000, 0);
+        assertEquals(stats.length + 1, table.getStats().size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T field(final Object target, final String name) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return (T) field.get(target);
+    }
+}
@@ -0,0 +1,132 @@
+package org.lsd.alien.stat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class SlowSqlLoggerTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("alien-slow-sql");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static SlowSqlRecord record(final String sql) {
+        return new SlowSqlRecord(System.currentTimeMillis(), 100_000_000L, sql.hashCode(), sql, null, null, false, "main", null);
+    }
+
+    private static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static void awaitLogged(final SlowSqlLogger logger, final long count) throws InterruptedException {
+        for (int i = 0; i < 200 && logger.getLoggedCount() < count; ++i) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void onlyStatementsOverThresholdAreLogged() throws Exception {
+        Path file = directory.resolve("slow.log");
+        AlienDataSource dataSource = new AlienDataSource();
+        dataSource.setName("slow-sql");
+        dataSource.setUrl(StubDriver.url("slow-sql"));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.setLogSlowSql(true);
+        dataSource.setSlowSqlMillis(50);
+        dataSource.setSlowSqlLogFile(file.toString());
+        try {
+            dataSource.init();
+            try (Connection conn = dataSource.getConnection();
+                 Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("update t_fast set id = 1");
+                StubDriver.setLatencyMillis("slow-sql", 80);
+                stmt.executeUpdate("update t_slow set id = 1");
+            } finally {
+                StubDriver.setLatencyMillis("slow-sql", 0);
+            }
+        } finally {
+            // 关闭时把队列里的记录写完
+            dataSource.close();
+        }
+
+        assertEquals(1, dataSource.getSlowSqlLogger().getLoggedCount());
+        String text = read(file);
+        assertTrue(text.contains("t_slow"), text);
+        assertFalse(text.contains("t_fast"), text);
+    }
+
+    @Test
+    void fullQueueDropsAndReportsCount() throws Exception {
+        Path file = directory.resolve("slow.log");
+        SlowSqlLogger logger = new SlowSqlLogger(50, false, file.toString(), 1 << 20, 1, 2);
+
+        // 写线程还没启动，队列放满以后直接丢弃
+        assertTrue(logger.offer(record("select 1")));
+        assertTrue(logger.offer(record("select 2")));
+        assertFalse(logger.offer(record("select 3")));
+        assertEquals(1, logger.getDroppedCount());
+
+        logger.start("slow-sql-drop");
+        logger.close();
+        assertEquals(2, logger.getLoggedCount());
+        String text = read(file);
+        assertTrue(text.contains("select 1"), text);
+        assertFalse(text.contains("select 3"), text);
+        assertTrue(text.contains("dropped 1 slow sql records, total 1"), text);
+
+        assertFalse(logger.offer(record("select 4")));
+        assertEquals(2, logger.getDroppedCount());
+    }
+
+    @Test
+    void rollsFilesAndKeepsMaxBackups() throws Exception {
+        Path file = directory.resolve("slow.log");
+        // 每条记录都超过maxFileBytes，每次写入前都会滚动
+        SlowSqlLogger logger = new SlowSqlLogger(50, false, file.toString(), 64, 2, 16);
+        logger.start("slow-sql-roll");
+        try {
+            for (int i = 1; i <= 4; ++i) {
+                assertTrue(logger.offer(record("select " + i)));
+                awaitLogged(logger, i);
+            }
+        } finally {
+            logger.close();
+        }
+
+        assertEquals(4, logger.getLoggedCount());
+        assertTrue(read(file).contains("select 4"));
+        assertTrue(read(directory.resolve("slow.log.1")).contains("select 3"));
+        assertTrue(read(directory.resolve("slow.log.2")).contains("select 2"));
+        assertFalse(Files.exists(directory.resolve("slow.log.3")));
+    }
+}
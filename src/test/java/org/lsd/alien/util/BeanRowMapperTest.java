@@ -0,0 +1,190 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.util.Date;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author nhsoft.lsd
+ */
+class BeanRowMapperTest {
+
+    private static final String SQL = "select * from location where merchant_id = ?";
+
+    public enum Status {
+        OPEN, CLOSED
+    }
+
+    public static class Location {
+
+        private BigInteger id;
+        private String     name;
+        private Integer    imageCount;
+        private int        sort;
+        private boolean    enabled;
+        private Date       createdTime;
+        private BigDecimal latitude;
+        private Status     status;
+
+        public BigInteger getId() {
+            return id;
+        }
+
+        public void setId(final BigInteger id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Location setName(final String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Integer getImageCount() {
+            return imageCount;
+        }
+
+        public void setImageCount(final Integer imageCount) {
+            this.imageCount = imageCount;
+        }
+
+        public int getSort() {
+            return sort;
+        }
+
+        public void setSort(final int sort) {
+            this.sort = sort;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Date getCreatedTime() {
+            return createdTime;
+        }
+
+        public void setCreatedTime(final Date createdTime) {
+            this.createdTime = createdTime;
+        }
+
+        public BigDecimal getLatitude() {
+            return latitude;
+        }
+
+        public void setLatitude(final BigDecimal latitude) {
+            this.latitude = latitude;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public void setStatus(final Status status) {
+            this.status = status;
+        }
+    }
+
+    /**
+     * 只有一行的ResultSet，values和labels一一对应
+     */
+    private static ResultSet resultSet(final String[] labels, final Object[] values) {
+        final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(BeanRowMapperTest.class.getClassLoader(), new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return labels.length;
+                case "getColumnLabel":
+                    return labels[(Integer) args[0] - 1];
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        final boolean[] wasNull = {false};
+        return (ResultSet) Proxy.newProxyInstance(BeanRowMapperTest.class.getClassLoader(), new Class[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMetaData":
+                    return meta;
+                case "wasNull":
+                    return wasNull[0];
+                default:
+                    break;
+            }
+
+            Object value = values[(Integer) args[0] - 1];
+            wasNull[0] = value == null;
+            switch (method.getName()) {
+                case "getInt":
+                    return value == null ? 0 : ((Number) value).intValue();
+                case "getBoolean":
+                    return value != null && (Boolean) value;
+                case "getBigDecimal":
+                    return value == null ? null : new BigDecimal(value.toString());
+                case "getString":
+                    return value == null ? null : value.toString();
+                case "getTimestamp":
+                case "getObject":
+                    return value;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    void mapsColumnsToSetters() throws Exception {
+        Timestamp created = Timestamp.valueOf("2024-05-06 07:08:09");
+        ResultSet rs = resultSet(new String[] {"id", "NAME", "image_count", "sort", "enabled", "created_time", "latitude", "status", "merchant_id"},
+                new Object[] {12345678901234L, "东门店", null, 3, true, created, new BigDecimal("30.27"), "CLOSED", 1L});
+
+        Location location = BeanRowMapper.of(Location.class, SQL).map(rs);
+        assertEquals(BigInteger.valueOf(12345678901234L), location.getId());
+        assertEquals("东门店", location.getName());
+        assertNull(location.getImageCount());
+        assertEquals(3, location.getSort());
+        assertTrue(location.isEnabled());
+        assertEquals(created, location.getCreatedTime());
+        assertEquals(new BigDecimal("30.27"), location.getLatitude());
+        assertSame(Status.CLOSED, location.getStatus());
+    }
+
+    @Test
+    void planIsCachedBySqlAndRebuiltWhenColumnsChange() throws Exception {
+        String[] labels = {"id", "sort"};
+        ResultSet rs = resultSet(labels, new Object[] {1L, 2});
+
+        BeanRowMapper.Plan plan = BeanRowMapper.plan(Location.class, SqlParameterizer.fnv1a_64_lower(SQL), rs.getMetaData());
+        // 参数不同的同一条SQL复用计划
+        String sql = "select * from location where merchant_id = 42";
+        assertSame(plan, BeanRowMapper.plan(Location.class, SqlParameterizer.fnv1a_64_lower(sql), rs.getMetaData()));
+        assertEquals(2, plan.setters.length);
+
+        ResultSet altered = resultSet(new String[] {"id", "sort", "enabled"}, new Object[] {1L, 2, false});
+        BeanRowMapper.Plan rebuilt = BeanRowMapper.plan(Location.class, SqlParameterizer.fnv1a_64_lower(SQL), altered.getMetaData());
+        assertNotSame(plan, rebuilt);
+        assertEquals(3, rebuilt.setters.length);
+
+        Location location = BeanRowMapper.of(Location.class, SQL).map(altered);
+        assertEquals(2, location.getSort());
+        assertFalse(location.isEnabled());
+    }
+}
@@ -0,0 +1,143 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author nhsoft.lsd
+ */
+class ColumnarResultTest {
+
+    private static final String[] LABELS     = {"id", "amount", "ratio", "region", "created", "day", "note"};
+    private static final int[]    TYPES      = {Types.BIGINT, Types.DECIMAL, Types.DOUBLE, Types.VARCHAR, Types.TIMESTAMP, Types.DATE, Types.BLOB};
+    private static final String[] CLASSES    = {"java.lang.Long", "java.math.BigDecimal", "java.lang.Double", "java.lang.String", "java.sql.Timestamp", "java.sql.Date", "[B"};
+    private static final int[]    PRECISIONS = {19, 10, 22, 64, 26, 10, 65535};
+
+    /**
+     * 按行给出的值模拟驱动的ResultSet
+     */
+    private static ResultSet resultSet(final Object[][] rows) {
+        final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(ColumnarResultTest.class.getClassLoader(), new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return LABELS.length;
+                case "getColumnLabel":
+                    return LABELS[(Integer) args[0] - 1];
+                case "getColumnType":
+                    return TYPES[(Integer) args[0] - 1];
+                case "getColumnClassName":
+                    return CLASSES[(Integer) args[0] - 1];
+                case "getPrecision":
+                    return PRECISIONS[(Integer) args[0] - 1];
+                case "getScale":
+                    return 0;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        final int[] row = {-1};
+        final boolean[] wasNull = {false};
+        return (ResultSet) Proxy.newProxyInstance(ColumnarResultTest.class.getClassLoader(), new Class[]{ResultSet.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMetaData":
+                    return meta;
+                case "next":
+                    return ++row[0] < rows.length;
+                case "wasNull":
+                    return wasNull[0];
+                default:
+                    break;
+            }
+
+            Object value = rows[row[0]][(Integer) args[0] - 1];
+            wasNull[0] = value == null;
+            switch (method.getName()) {
+                case "getLong":
+                    return value == null ? 0L : ((Number) value).longValue();
+                case "getDouble":
+                    return value == null ? 0D : ((Number) value).doubleValue();
+                case "getString":
+                    return value == null ? null : value.toString();
+                default:
+                    return value;
+            }
+        });
+    }
+
+    @Test
+    void storesColumnsByType() throws Exception {
+        Timestamp created = Timestamp.valueOf("2024-05-06 07:08:09.123456");
+        byte[] note = {1, 2};
+        ColumnarResult result = ColumnarResult.read(resultSet(new Object[][] {
+                {1L, new BigDecimal("100"), 0.5D, "east", created, Date.valueOf("2024-05-06"), note},
+                {2L, null, null, "west", null, null, null},
+                {3L, new BigDecimal("-7"), 1.25D, "east", created, Date.valueOf("2024-05-07"), null},
+        }));
+
+        assertEquals(3, result.getRowCount());
+        assertEquals(7, result.getColumnCount());
+        assertEquals(3, result.findColumn("REGION"));
+        assertEquals(-1, result.findColumn("missing"));
+
+        assertEquals(1L, result.getObject(0, 0));
+        assertEquals(new BigDecimal("100"), result.getObject(0, 1));
+        assertEquals(-7L, result.getLong(2, 1));
+        assertTrue(result.isNull(1, 1));
+        assertNull(result.getObject(1, 2));
+        assertEquals(1.25D, result.getDouble(2, 2));
+        assertEquals(created, result.getObject(0, 4));
+        assertEquals(Date.valueOf("2024-05-07"), result.getObject(2, 5));
+        assertSame(note, result.getObject(0, 6));
+
+        // 字典编码以后相同的字符串是同一个对象
+        assertSame(result.getString(0, 3), result.getString(2, 3));
+    }
+
+    @Test
+    void cursorWalksRowsByLabel() throws Exception {
+        ColumnarResult result = ColumnarResult.read(resultSet(new Object[][] {
+                {10L, new BigDecimal("1"), 1D, "a", null, null, null},
+                {20L, new BigDecimal("2"), 2D, null, null, null, null},
+        }));
+
+        ColumnarResult.Cursor cursor = result.cursor();
+        long sum = 0;
+        int nullRegions = 0;
+        while (cursor.next()) {
+            sum += cursor.getLong("id") + cursor.getLong("amount");
+            if (cursor.isNull("region")) {
+                nullRegions++;
+            }
+        }
+        assertEquals(33, sum);
+        assertEquals(1, nullRegions);
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    void columnarIsSmallerThanMaps() throws Exception {
+        Object[][] rows = new Object[100_000][];
+        Timestamp created = new Timestamp(System.currentTimeMillis());
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = new Object[] {(long) i, new BigDecimal(i % 1000), i / 3D, "region-" + (i % 16), created, null, null};
+        }
+
+        ColumnarResult result = ColumnarResult.read(resultSet(rows));
+        assertEquals(rows.length, result.getRowCount());
+        // 每行7个值，Map的实现每行至少要几百字节
+        assertTrue(result.estimateBytes() < rows.length * 64L, "estimateBytes " + result.estimateBytes());
+    }
+}
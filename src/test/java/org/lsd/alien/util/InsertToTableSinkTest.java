@@ -0,0 +1,129 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class InsertToTableSinkTest {
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name) throws SQLException {
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+        return dataSource;
+    }
+
+    private static Map<String, Object> row(final Object... namesAndValues) {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            row.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    private static void awaitInserted(final InsertToTableSink sink, final long rows) throws InterruptedException {
+        for (int i = 0; i < 200 && sink.getInsertedCount() < rows; ++i) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void flushesFullBatchesAndRestOnClose() throws Exception {
+        AlienDataSource dataSource = dataSource("sink-size");
+        InsertToTableSink sink = new InsertToTableSink(dataSource, "t_audit", 100, 10, TimeUnit.MINUTES.toMillis(1));
+        sink.start();
+
+        for (int i = 0; i < 25; ++i) {
+            sink.insert(row("id", i, "action", "login"));
+        }
+        awaitInserted(sink, 20);
+        assertEquals(20, sink.getInsertedCount());
+        assertEquals(2, StubDriver.getExecuteCount("sink-size"));
+
+        // 剩下的5行没到batchSize也没到maxDelay，关闭时写完
+        sink.close();
+        assertEquals(25, sink.getInsertedCount());
+        assertEquals(3, StubDriver.getExecuteCount("sink-size"));
+        assertThrows(IllegalStateException.class, () -> sink.insert(row("id", 26)));
+    }
+
+    @Test
+    void groupsColumnSetsAndFlushesOnDelay() throws Exception {
+        AlienDataSource dataSource = dataSource("sink-delay");
+        InsertToTableSink sink = new InsertToTableSink(dataSource, "t_audit", 100, 100, 50);
+        sink.start();
+        try {
+            for (int i = 0; i < 6; ++i) {
+                sink.insert(i % 2 == 0 ? row("id", i, "action", "login") : row("id", i, "action", "logout", "ip", "10.0.0.1"));
+            }
+            awaitInserted(sink, 6);
+
+            assertEquals(6, sink.getInsertedCount());
+            assertEquals(1, sink.getFlushCount());
+            // 两种列集合各一次executeBatch
+            assertEquals(2, StubDriver.getExecuteCount("sink-delay"));
+        } finally {
+            sink.close();
+        }
+    }
+
+    @Test
+    void rowsLeftAfterCloseAreCountedAsFailed() throws Exception {
+        AlienDataSource dataSource = dataSource("sink-left");
+        // 没有启动写线程，close时队列里的行只能丢弃
+        InsertToTableSink sink = new InsertToTableSink(dataSource, "t_audit", 100, 10, 0);
+        sink.insert(row("id", 1));
+        sink.insert(row("id", 2));
+
+        sink.close();
+        assertEquals(0, sink.getPendingCount());
+        assertEquals(0, sink.getInsertedCount());
+        assertEquals(2, sink.getFailedCount());
+        assertEquals(0, StubDriver.getExecuteCount("sink-left"));
+    }
+
+    @Test
+    void fullQueueAppliesBackpressure() throws Exception {
+        AlienDataSource dataSource = dataSource("sink-full");
+        StubDriver.setLatencyMillis("sink-full", 300);
+        InsertToTableSink sink = new InsertToTableSink(dataSource, "t_audit", 2, 1, 0);
+        sink.start();
+        try {
+            // 第一行被写线程取走卡在executeBatch里，再放两行队列就满了
+            sink.insert(row("id", 1));
+            Thread.sleep(100);
+            assertTrue(sink.offer(row("id", 2), 10, TimeUnit.MILLISECONDS));
+            assertTrue(sink.offer(row("id", 3), 10, TimeUnit.MILLISECONDS));
+            assertFalse(sink.offer(row("id", 4), 10, TimeUnit.MILLISECONDS));
+            assertEquals(1, sink.getRejectedCount());
+        } finally {
+            sink.close();
+        }
+        assertEquals(3, sink.getInsertedCount());
+    }
+}
@@ -0,0 +1,208 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class JdbcUtilsTest {
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name) throws SQLException {
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setMaxActive(2);
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+        return dataSource;
+    }
+
+    @Test
+    void streamReturnsConnectionWhenExhausted() throws Exception {
+        AlienDataSource dataSource = dataSource("stream-exhausted");
+
+        List<Map<String, Object>> rows;
+        try (Stream<Map<String, Object>> stream = JdbcUtils.executeQueryStream(dataSource, "select heartbeat from t_heartbeat")) {
+            assertEquals(1, dataSource.getActiveCount());
+            rows = stream.collect(Collectors.toList());
+            // 读完时已经归还，不用等close
+            assertEquals(0, dataSource.getActiveCount());
+        }
+
+        assertEquals(1, rows.size());
+        assertNotNull(rows.get(0).get("heartbeat"));
+        assertEquals(JdbcUtils.DEFAULT_STREAM_FETCH_SIZE, (int) StubDriver.getFetchSize("stream-exhausted"));
+    }
+
+    @Test
+    void closingUnfinishedStreamReturnsConnection() throws Exception {
+        AlienDataSource dataSource = dataSource("stream-closed");
+
+        for (int i = 0; i < 5; ++i) {
+            try (Stream<Long> stream = JdbcUtils.executeQueryStream(dataSource, rs -> rs.getTimestamp(1).getTime(), "select heartbeat from t_heartbeat where id > ?", i)) {
+                assertTrue(stream.iterator().hasNext());
+            }
+        }
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void iteratorOnCallerConnectionKeepsConnectionOpen() throws Exception {
+        AlienDataSource dataSource = dataSource("stream-caller");
+
+        try (Connection conn = dataSource.getConnection()) {
+            try (RowIterator<Object> iterator = JdbcUtils.executeQueryIterator(conn, rs -> rs.getObject(1), "select heartbeat from t_heartbeat", Collections.emptyList())) {
+                assertTrue(iterator.hasNext());
+                assertNotNull(iterator.next());
+                assertFalse(iterator.hasNext());
+            }
+            assertFalse(conn.isClosed());
+        }
+    }
+
+    @Test
+    void batchIsSplitIntoChunks() throws Exception {
+        AlienDataSource dataSource = dataSource("batch-chunks");
+
+        List<List<Object>> rows = new ArrayList<List<Object>>();
+        for (int i = 0; i < 2500; ++i) {
+            rows.add(Arrays.<Object>asList(i, "name-" + i));
+        }
+        BatchResult result;
+        try (Stream<List<Object>> stream = rows.stream()) {
+            result = JdbcUtils.executeBatch(dataSource, "insert into t_batch (id, name) values (?, ?)", stream, 1000, true);
+        }
+
+        assertEquals(3, result.getChunkCount());
+        assertEquals(1000, result.getChunkRows(0));
+        assertEquals(500, result.getChunkRows(2));
+        assertEquals(2500, result.getRowCount());
+        assertEquals(2500, result.getUpdateCount());
+        assertEquals(3, StubDriver.getExecuteCount("batch-chunks"));
+        assertEquals(3, StubDriver.getCommitCount("batch-chunks"));
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void failedChunkCarriesCommittedChunks() throws Exception {
+        StubDriver.setDown("batch-partial", false);
+        Connection stub = new StubDriver().connect(StubDriver.url("batch-partial"), new Properties());
+        // 恢复autoCommit也失败，不能盖掉执行出错的异常
+        Connection conn = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("setAutoCommit") && Boolean.TRUE.equals(args[0])) {
+                throw new SQLException("restore autoCommit error");
+            }
+            return method.invoke(stub, args);
+        });
+
+        Iterator<List<Object>> rows = new Iterator<List<Object>>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < 2500;
+            }
+
+            @Override
+            public List<Object> next() {
+                if (next == 1500) {
+                    StubDriver.setDown("batch-partial", true);
+                }
+                return Arrays.<Object>asList(next++, "name");
+            }
+        };
+
+        PartialBatchUpdateException ex;
+        try {
+            ex = assertThrows(PartialBatchUpdateException.class,
+                    () -> JdbcUtils.executeBatch(conn, "insert into t_batch (id, name) values (?, ?)", rows, 1000, true));
+        } finally {
+            StubDriver.setDown("batch-partial", false);
+        }
+
+        assertEquals(1, ex.getBatchResult().getChunkCount());
+        assertEquals(1000, ex.getBatchResult().getRowCount());
+        assertEquals("08S01", ex.getSQLState());
+        assertEquals(1, StubDriver.getCommitCount("batch-partial"));
+        assertEquals(1, StubDriver.getCallCount("batch-partial", "rollback"));
+        assertEquals(1, ex.getSuppressed().length);
+        assertEquals("restore autoCommit error", ex.getSuppressed()[0].getMessage());
+    }
+
+    @Test
+    void insertToTableInOneBatch() throws Exception {
+        AlienDataSource dataSource = dataSource("batch-insert");
+
+        List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 10; ++i) {
+            Map<String, Object> row = new LinkedHashMap<String, Object>();
+            row.put("id", i);
+            row.put("name", "name-" + i);
+            rows.add(row);
+        }
+
+        BatchResult result = JdbcUtils.insertToTable(dataSource, "t_batch", rows);
+        assertEquals(1, result.getChunkCount());
+        assertEquals(10, result.getUpdateCount());
+        assertEquals(1, StubDriver.getExecuteCount("batch-insert"));
+        assertEquals(0, StubDriver.getCommitCount("batch-insert"));
+    }
+
+    @Test
+    void insertToTableRejectsMismatchedColumns() throws Exception {
+        AlienDataSource dataSource = dataSource("batch-mismatch");
+
+        Map<String, Object> first = new LinkedHashMap<String, Object>();
+        first.put("id", 1);
+        first.put("name", "a");
+        // 列相同顺序不同可以
+        Map<String, Object> reordered = new LinkedHashMap<String, Object>();
+        reordered.put("name", "b");
+        reordered.put("id", 2);
+        Map<String, Object> missing = new LinkedHashMap<String, Object>();
+        missing.put("id", 3);
+        Map<String, Object> extra = new LinkedHashMap<String, Object>(first);
+        extra.put("note", "x");
+
+        assertThrows(IllegalArgumentException.class, () -> JdbcUtils.insertToTable(dataSource, "t_batch", Arrays.asList(first, missing)));
+        assertThrows(IllegalArgumentException.class, () -> JdbcUtils.insertToTable(dataSource, "t_batch", Arrays.asList(first, extra)));
+        // 校验在执行之前，一行都没有插入
+        assertEquals(0, StubDriver.getExecuteCount("batch-mismatch"));
+
+        BatchResult result = JdbcUtils.insertToTable(dataSource, "t_batch", Arrays.asList(first, reordered));
+        assertEquals(2, result.getRowCount());
+    }
+}
@@ -0,0 +1,86 @@
+package org.lsd.alien.util;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * 分块批量insert和LOAD DATA LOCAL INFILE的导入速度对比，单位行/秒。
+ * 不传url时用StubDriver，每次往返固定1ms，测的是往返次数和客户端编码的开销；
+ * 传MySQL的url、用户名和密码时导入到t_load_benchmark(id, name, amount, created)，url里要带allowLoadLocalInfile=true
+ *
+ * @author nhsoft.lsd
+ */
+public class LoadDataBenchmark {
+
+    private static final String TABLE = "t_load_benchmark";
+
+    private static final List<String> COLUMNS = Arrays.asList("id", "name", "amount", "created");
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        AlienDataSource dataSource = new AlienDataSource();
+        if (args.length > 1) {
+            dataSource.setUrl(args[1]);
+            dataSource.setUsername(args.length > 2 ? args[2] : null);
+            dataSource.setPassword(args.length > 3 ? args[3] : null);
+        } else {
+            StubDriver.setLatencyMillis("load-benchmark", 1);
+            dataSource.setUrl(StubDriver.url("load-benchmark"));
+            dataSource.setDriverClassName(StubDriver.class.getName());
+        }
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+
+        String insert = "insert into " + TABLE + " (id, name, amount, created) values (?, ?, ?, ?)";
+        try {
+            for (int round = 0; round < 3; ++round) {
+                BatchResult batch = JdbcUtils.executeBatch(dataSource, insert, rows(count), JdbcUtils.DEFAULT_BATCH_SIZE, false);
+                report("executeBatch", count, batch.getTotalNanos());
+
+                try (Connection conn = dataSource.getConnection()) {
+                    LoadDataResult load = MySqlUtils.loadData(conn, TABLE, COLUMNS, rows(count));
+                    report("loadData    ", count, load.getNanos());
+                }
+            }
+        } finally {
+            dataSource.close();
+        }
+    }
+
+    /**
+     * 边取边生成，不把测试数据放在内存里
+     */
+    private static Iterator<List<Object>> rows(final int count) {
+        final Timestamp created = new Timestamp(System.currentTimeMillis());
+        return new Iterator<List<Object>>() {
+
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public List<Object> next() {
+                if (next >= count) {
+                    throw new NoSuchElementException();
+                }
+                int id = next++;
+                return Arrays.<Object>asList(id, "location-" + id, BigDecimal.valueOf(id, 2), created);
+            }
+        };
+    }
+
+    private static void report(String name, int count, long nanos) {
+        System.out.printf("%s %10.0f rows/s  (%d rows, %d ms)%n", name, count * 1000000000D / nanos, count, nanos / 1000000L);
+    }
+}
@@ -0,0 +1,112 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+import org.lsd.alien.pool.AlienPooledConnection;
+
+/**
+ * @author nhsoft.lsd
+ */
+class MySqlUtilsTest {
+
+    private static final List<String> COLUMNS = Arrays.asList("id", "name", "amount", "created");
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name) throws Exception {
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+        return dataSource;
+    }
+
+    @Test
+    void loadDataStreamsEscapedRows() throws Exception {
+        AlienDataSource dataSource = dataSource("load-data");
+
+        Timestamp created = Timestamp.valueOf("2024-05-06 07:08:09.5");
+        Iterator<List<Object>> rows = Arrays.<List<Object>>asList(
+                Arrays.<Object>asList(1L, "东门店", new BigDecimal("1E+2"), created),
+                Arrays.<Object>asList(2, "tab\there\nnew\\line", null, null)).iterator();
+
+        LoadDataResult result;
+        try (Connection conn = dataSource.getConnection()) {
+            result = MySqlUtils.loadData(conn, "t_location", COLUMNS, rows);
+        }
+
+        assertEquals(2, result.getRowCount());
+        assertEquals(2, result.getUpdateCount());
+        assertEquals("1\t东门店\t100\t2024-05-06 07:08:09.5\n"
+                + "2\ttab\\there\\nnew\\\\line\t\\N\t\\N\n", new String(StubDriver.getLoadData("load-data"), StandardCharsets.UTF_8));
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void loadDataRethrowsRowError() throws Exception {
+        AlienDataSource dataSource = dataSource("load-data-error");
+
+        Iterator<List<Object>> rows = Arrays.<List<Object>>asList(Arrays.<Object>asList(1, "a")).iterator();
+        try (Connection conn = dataSource.getConnection()) {
+            assertThrows(IllegalArgumentException.class, () -> MySqlUtils.loadData(conn, "t_location", COLUMNS, rows));
+            // autoCommit时在事务里导入，出错回滚，已经发出的行不会提交
+            assertTrue(conn.getAutoCommit());
+        }
+        assertEquals(1, StubDriver.getCallCount("load-data-error", "rollback"));
+        assertEquals(0, StubDriver.getCommitCount("load-data-error"));
+    }
+
+    @Test
+    void loadDataRunsThroughPooledStatement() throws Exception {
+        AlienDataSource dataSource = dataSource("load-data-running");
+
+        int[] runningCount = new int[1];
+        try (AlienPooledConnection conn = dataSource.getConnection()) {
+            Iterator<List<Object>> rows = new Iterator<List<Object>>() {
+
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < 3;
+                }
+
+                @Override
+                public List<Object> next() {
+                    // 驱动读流期间连接算作执行中，不会被当作abandoned回收
+                    runningCount[0] = Math.max(runningCount[0], conn.getHolder().getRunningCount());
+                    return Arrays.<Object>asList(next++, "name", null, null);
+                }
+            };
+            long lastExecTimeMillis = conn.getHolder().getLastExecTimeMillis();
+            Thread.sleep(5);
+            assertEquals(3, MySqlUtils.loadData(conn, "t_location", COLUMNS, rows).getRowCount());
+            assertTrue(conn.getHolder().getLastExecTimeMillis() > lastExecTimeMillis);
+            assertEquals(0, conn.getHolder().getRunningCount());
+        }
+        assertEquals(1, runningCount[0]);
+        assertEquals(1, StubDriver.getCommitCount("load-data-running"));
+    }
+}
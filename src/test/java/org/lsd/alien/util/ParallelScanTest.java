@@ -0,0 +1,125 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class ParallelScanTest {
+
+    /**
+     * StubDriver的getLong(1)返回第一个绑定参数，也就是区间下界
+     */
+    private static final String SQL = "select id from t_location where id between ? and ? order by id";
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name) throws SQLException {
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setMaxActive(8);
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+        return dataSource;
+    }
+
+    @Test
+    void splitCoversKeysWithoutGaps() {
+        long[][] ranges = ParallelScan.split(1, 10, 4);
+        assertEquals(4, ranges.length);
+        assertEquals(1, ranges[0][0]);
+        assertEquals(10, ranges[3][1]);
+        for (int i = 1; i < ranges.length; ++i) {
+            assertEquals(ranges[i - 1][1] + 1, ranges[i][0]);
+        }
+
+        assertEquals(2, ParallelScan.split(5, 6, 8).length);
+        assertEquals(0, ParallelScan.split(6, 5, 8).length);
+        assertEquals(8, ParallelScan.split(0, Long.MAX_VALUE, 8).length);
+    }
+
+    @Test
+    void orderedScanStaysWithinPoolShare() throws Exception {
+        final AlienDataSource dataSource = dataSource("parallel-ordered");
+        final AtomicInteger maxActive = new AtomicInteger();
+        final List<Long> lowers = new ArrayList<Long>();
+
+        ParallelScan<Long> scan = new ParallelScan<Long>(dataSource, SQL);
+        scan.setParallelism(8);
+        scan.setOrdered(true);
+        assertEquals(2, scan.workers());
+
+        long rows = scan.scan(1, 80, new ResultSetConsumer<Long>() {
+
+            @Override
+            public Long apply(final ResultSet rs) throws SQLException {
+                long lower = rs.getLong(1);
+                maxActive.accumulateAndGet(dataSource.getActiveCount(), Math::max);
+                try {
+                    // 前面的区间慢，后面的区间先查完
+                    Thread.sleep((80 - lower) / 4);
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                return lower;
+            }
+
+            @Override
+            public void accept(final Long lower) {
+                lowers.add(lower);
+            }
+        });
+
+        assertEquals(8, rows);
+        assertEquals(8, lowers.size());
+        for (int i = 1; i < lowers.size(); ++i) {
+            assertTrue(lowers.get(i - 1) < lowers.get(i), "out of order " + lowers);
+        }
+        assertTrue(maxActive.get() <= 2, "active " + maxActive.get());
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void failedRangeStopsScan() throws Exception {
+        AlienDataSource dataSource = dataSource("parallel-error");
+
+        ParallelScan<Long> scan = new ParallelScan<Long>(dataSource, SQL);
+        scan.setParallelism(2);
+        assertThrows(SQLException.class, () -> scan.scan(1, 100, new ResultSetConsumer<Long>() {
+
+            @Override
+            public Long apply(final ResultSet rs) throws SQLException {
+                if (rs.getLong(1) > 50) {
+                    throw new SQLException("broken range");
+                }
+                return rs.getLong(1);
+            }
+
+            @Override
+            public void accept(final Long lower) {
+            }
+        }));
+        assertEquals(0, dataSource.getActiveCount());
+    }
+}
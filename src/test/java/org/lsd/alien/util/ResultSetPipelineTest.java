@@ -0,0 +1,130 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.StubDriver;
+import org.lsd.alien.pool.AlienDataSource;
+
+/**
+ * @author nhsoft.lsd
+ */
+class ResultSetPipelineTest {
+
+    private static final String SQL = "select id from t_location";
+
+    private AlienDataSource dataSource;
+
+    @AfterEach
+    void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private AlienDataSource dataSource(final String name, final int rows) throws SQLException {
+        StubDriver.setRowCount(name, rows);
+        dataSource = new AlienDataSource();
+        dataSource.setName(name);
+        dataSource.setUrl(StubDriver.url(name));
+        dataSource.setDriverClassName(StubDriver.class.getName());
+        dataSource.setTestWhileIdle(false);
+        dataSource.init();
+        return dataSource;
+    }
+
+    /**
+     * apply返回行号
+     */
+    private abstract static class RowNumberConsumer implements ResultSetConsumer<Integer> {
+
+        @Override
+        public Integer apply(final ResultSet rs) throws SQLException {
+            return rs.getRow();
+        }
+    }
+
+    @Test
+    void connectionIsReleasedBeforeSlowAcceptFinishes() throws Exception {
+        final AlienDataSource dataSource = dataSource("pipeline-ordered", 200);
+        final List<Integer> accepted = new ArrayList<Integer>();
+        final int[] activeAtLastRow = {-1};
+
+        ResultSetPipeline<Integer> pipeline = new ResultSetPipeline<Integer>(new RowNumberConsumer() {
+
+            @Override
+            public void accept(final Integer row) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                accepted.add(row);
+                if (row == 200) {
+                    activeAtLastRow[0] = dataSource.getActiveCount();
+                }
+            }
+        });
+        pipeline.setWorkers(4);
+        pipeline.setOrdered(true);
+        pipeline.setBatchSize(10);
+        pipeline.setQueueCapacity(32);
+
+        assertEquals(200, pipeline.execute(dataSource, SQL));
+        assertEquals(200, accepted.size());
+        for (int i = 0; i < accepted.size(); ++i) {
+            assertEquals(i + 1, (int) accepted.get(i));
+        }
+        // 读线程早就读完归还了连接
+        assertEquals(0, activeAtLastRow[0]);
+    }
+
+    @Test
+    void unorderedWorkersAcceptEveryRow() throws Exception {
+        AlienDataSource dataSource = dataSource("pipeline-unordered", 1000);
+        final Set<Integer> accepted = ConcurrentHashMap.newKeySet();
+
+        long rows = JdbcUtils.executeQueryPipelined(dataSource, new RowNumberConsumer() {
+
+            @Override
+            public void accept(final Integer row) {
+                assertTrue(accepted.add(row));
+            }
+        }, 4, false, SQL);
+
+        assertEquals(1000, rows);
+        assertEquals(1000, accepted.size());
+        assertEquals(0, dataSource.getActiveCount());
+    }
+
+    @Test
+    void acceptErrorStopsReading() throws Exception {
+        AlienDataSource dataSource = dataSource("pipeline-error", 100000);
+        final IllegalArgumentException error = new IllegalArgumentException("bad row");
+
+        ResultSetPipeline<Integer> pipeline = new ResultSetPipeline<Integer>(new RowNumberConsumer() {
+
+            @Override
+            public void accept(final Integer row) {
+                if (row == 50) {
+                    throw error;
+                }
+            }
+        });
+        pipeline.setWorkers(2);
+        pipeline.setQueueCapacity(1);
+
+        assertSame(error, assertThrows(IllegalArgumentException.class, () -> pipeline.execute(dataSource, SQL)));
+        assertEquals(0, dataSource.getActiveCount());
+    }
+}
@@ -0,0 +1,61 @@
+package org.lsd.alien.util;
+
+import java.util.Random;
+
+/**
+ * SqlParameterizer吞吐量测试，分别测只算指纹和构造参数化SQL两种模式，单位MB/s（按UTF-16字符数 x 2计算）
+ *
+ * @author nhsoft.lsd
+ */
+public class SqlParameterizerBenchmark {
+
+    private static final String[] TEMPLATES = {
+            "SELECT id, merchant_id, name, address FROM location WHERE merchant_id = %d AND id = %d",
+            "select * from `order` o left join order_item i on o.id = i.order_id where o.merchant_id = %d and o.status in (%d, %d, %d) order by o.id desc limit %d, 20",
+            "UPDATE account SET balance = balance - %d.50, updated_at = '2022-06-%02d 10:00:00' WHERE id = %d /* pay */",
+            "insert into log (merchant_id, level, message) values (%d, 'INFO', 'hello world'), (%d, 'WARN', \"it's\"), (%d, 'ERROR', 'x')",
+            "delete from session -- cleanup\nwhere expire_time < %d and user_id = -%d",
+    };
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        Random random = new Random(0);
+        String[] sqls = new String[count];
+        long chars = 0;
+        for (int i = 0; i < count; ++i) {
+            String template = TEMPLATES[i % TEMPLATES.length];
+            sqls[i] = String.format(template, random.nextInt(100000), random.nextInt(28) + 1, random.nextInt(1000), random.nextInt(1000), random.nextInt(100));
+            chars += sqls[i].length();
+        }
+
+        for (int round = 0; round < 5; ++round) {
+            hash(sqls, chars);
+            parameterize(sqls, chars);
+        }
+    }
+
+    private static void hash(String[] sqls, long chars) {
+        long start = System.nanoTime();
+        long blackhole = 0;
+        for (String sql : sqls) {
+            blackhole ^= SqlParameterizer.fnv1a_64_lower(sql);
+        }
+        report("fnv1a_64_lower", chars, System.nanoTime() - start, blackhole);
+    }
+
+    private static void parameterize(String[] sqls, long chars) {
+        long start = System.nanoTime();
+        long blackhole = 0;
+        for (String sql : sqls) {
+            blackhole += SqlParameterizer.parameterize(sql).length();
+        }
+        report("parameterize  ", chars, System.nanoTime() - start, blackhole);
+    }
+
+    private static void report(String name, long chars, long nanos, long blackhole) {
+        double mb = chars * 2 / 1024.0D / 1024.0D;
+        double seconds = nanos / 1000000000.0D;
+        System.out.printf("%s %8.1f MB/s  (%d ms, %d)%n", name, mb / seconds, nanos / 1000000L, blackhole & 0xFF);
+    }
+}
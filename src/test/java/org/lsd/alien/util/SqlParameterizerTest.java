@@ -0,0 +1,98 @@
+package org.lsd.alien.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.lsd.alien.DbType;
+
+/**
+ * @author nhsoft.lsd
+ */
+class SqlParameterizerTest {
+
+    /**
+     * 参数化结果，同时检查只算指纹的结果和参数化SQL的指纹一致
+     */
+    private static String parameterize(final String sql) {
+        return parameterize(sql, DbType.mysql);
+    }
+
+    private static String parameterize(final String sql, final DbType dbType) {
+        String parameterized = SqlParameterizer.parameterize(sql, dbType);
+        assertEquals(FnvHash.fnv1a_64_lower(parameterized), SqlParameterizer.fnv1a_64_lower(sql, dbType));
+        return parameterized;
+    }
+
+    @Test
+    void stringLiterals() {
+        assertEquals("select * from t where name = ? and note = ? and id = ?",
+                parameterize("SELECT * FROM t WHERE name = 'O''Brien' AND note = \"it's\" AND id = 42"));
+        assertEquals("select * from t where a = ?", parameterize("select * from t where a = 'x\\'y'"));
+        assertEquals("select * from t where c = ? and d = ?", parameterize("select * from t where c = N'abc' and d = _utf8mb4'x'"));
+    }
+
+    @Test
+    void numberLiterals() {
+        assertEquals("select * from t where a = ? and b = ? and c = ? and d = ? and e = ?",
+                parameterize("select * from t where a = 1.5e3 and b = 0x1F and c = .5 and d = 0b101 and e = true"));
+        // 数字开头的标识符不是字面量
+        assertEquals("select 1st_col from t", parameterize("select 1st_col from t"));
+    }
+
+    @Test
+    void unaryMinus() {
+        assertEquals("select a - ?, b - ?, ?, x = ?, f(?), c * ? from t",
+                parameterize("select a - 1, b-1, -5, x = -3, f(-2), c * -1.5 from t"));
+        assertEquals(parameterize("select * from t where id = 5"), parameterize("select * from t where id = -5"));
+    }
+
+    @Test
+    void inListCollapsed() {
+        assertEquals("select * from t where id in (?) and name in (?) and y in (?)",
+                parameterize("select * from t where id in (1, 2, 3) and name in ('a','b') and y in (?, ?)"));
+        assertEquals("select * from t where x in (select id from u)", parameterize("select * from t where x in (select id from u)"));
+        // 列表里有非字面量时原样保留
+        assertEquals("select * from t where id in (?, a)", parameterize("select * from t where id in (1, a)"));
+        // SQL在IN列表中间截断
+        assertEquals("select count(*) from t where a in (?, ?,", parameterize("select count(*) from t where a in (1, 2,"));
+    }
+
+    @Test
+    void valuesCollapsed() {
+        assertEquals("insert into t(a, b) values (?, ?)", parameterize("INSERT INTO t (a, b) VALUES (1, 'x'), (2, 'y'), (3, f(4))"));
+        assertEquals(parameterize("insert into t(a) value (1)"), parameterize("insert into t(a) value (1), (2)"));
+        assertEquals("insert into t(a) values (?) on duplicate key update a = values (a)",
+                parameterize("insert into t(a) values (1), (2) on duplicate key update a = values(a)"));
+    }
+
+    @Test
+    void commentsAndWhitespace() {
+        assertEquals("select a from t where b = ?", parameterize("select /* hint */ a -- comment\n from t # mysql comment\n where b = 2"));
+        assertEquals("select a, b from t where c = ?", parameterize("SELECT  a,b\n\tFROM   t  WHERE c=1"));
+        // MySQL里--后面必须跟空白才是注释
+        assertEquals("select a - ? from t", parameterize("select a --1 from t"));
+        assertEquals("select a from t where b = ?", parameterize("select a from t -- c\n where b = 1", DbType.postgresql));
+    }
+
+    @Test
+    void quotedIdentifiers() {
+        assertEquals("select order.id from order where id = ?", parameterize("select `Order`.`ID` from `Order` where `ID` = 1"));
+        // 非MySQL的双引号是标识符，MySQL里是字符串
+        assertEquals("select order.id from order where id = ?", parameterize("select \"Order\".id from \"Order\" where id = 1", DbType.postgresql));
+        assertEquals("select ?.id from ? where id = ?", parameterize("select \"Order\".id from \"Order\" where id = 1"));
+    }
+
+    @Test
+    void operators() {
+        assertEquals("select a ->> ? from t where b <=> ? and c != ? and d >= ?",
+                parameterize("select a->>'$.x' from t where b<=>1 and c!=2 and d>=3"));
+    }
+
+    @Test
+    void literalsDoNotChangeFingerprint() {
+        long hash = SqlParameterizer.fnv1a_64_lower("select * from t where id in (1, 2) and name = 'a'");
+        assertEquals(hash, SqlParameterizer.fnv1a_64_lower("SELECT * FROM t WHERE id IN (3,4,5,6) AND name = 'bbb'"));
+        assertTrue(hash != SqlParameterizer.fnv1a_64_lower("select * from u where id in (1, 2) and name = 'a'"));
+    }
+}